@@ -0,0 +1,63 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.server;
+
+import java.util.Queue;
+
+/**
+ * Component used by benchmarks as a routing destination. It only counts packets passed for processing.
+ */
+public class BenchmarkComponent
+		extends BasicComponent {
+
+	private final boolean localDomains;
+	private final boolean nameSubdomains;
+	private final boolean nonLocalDomains;
+	private long processed = 0;
+
+	public BenchmarkComponent(String name, boolean localDomains, boolean nonLocalDomains, boolean nameSubdomains) {
+		this.localDomains = localDomains;
+		this.nonLocalDomains = nonLocalDomains;
+		this.nameSubdomains = nameSubdomains;
+		setName(name);
+	}
+
+	@Override
+	public boolean handlesLocalDomains() {
+		return localDomains;
+	}
+
+	@Override
+	public boolean handlesNameSubdomains() {
+		return nameSubdomains;
+	}
+
+	@Override
+	public boolean handlesNonLocalDomains() {
+		return nonLocalDomains;
+	}
+
+	@Override
+	public void processPacket(Packet packet, Queue<Packet> results) {
+		++processed;
+	}
+
+	public long getProcessed() {
+		return processed;
+	}
+}
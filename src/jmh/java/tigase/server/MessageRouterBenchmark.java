@@ -0,0 +1,118 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.server;
+
+import org.openjdk.jmh.annotations.*;
+import tigase.vhosts.BenchmarkVHostRepository;
+import tigase.vhosts.VHostManager;
+import tigase.xml.Element;
+import tigase.xmpp.StanzaType;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks for {@link MessageRouter#processPacket(Packet)} destination lookups.
+ * <br>
+ * Destination components only count received packets, so results reflect the cost of finding a destination for a
+ * packet: direct component address, component subdomain, local domain and remote domain (which has to go through all
+ * regex routings of registered receivers).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageRouterBenchmark {
+
+	@Param({"10"})
+	public int regexReceivers;
+	@Param({"1", "100"})
+	public int vhosts;
+
+	private Packet toComponentId;
+	private Packet toComponentSubdomain;
+	private Packet toLocalUser;
+	private Packet toRemoteUser;
+	private MessageRouter router;
+
+	private static Packet message(String from, String to) throws Exception {
+		Element elem = new Element("message", new String[]{"from", "to", "type", "id"},
+								   new String[]{from, to, StanzaType.chat.name(), "msg-1"});
+		elem.addChild(new Element("body", "Wherefore art thou, Romeo?"));
+		return Packet.packetInstance(elem);
+	}
+
+	@Setup
+	public void setup() throws Exception {
+		BenchmarkComponent sessMan = new BenchmarkComponent("sess-man", true, false, false);
+		BenchmarkComponent muc = new BenchmarkComponent("muc", false, false, true);
+		BenchmarkComponent s2s = new BenchmarkComponent("s2s", false, true, false);
+		VHostManager vHostManager = BenchmarkVHostRepository.createVHostManager(vhosts, sessMan, muc, s2s);
+
+		router = new MessageRouter();
+		router.setName("message-router");
+		router.setVHostManager(vHostManager);
+		router.addComponent(sessMan);
+		router.addComponent(muc);
+		router.addComponent(s2s);
+		for (int i = 0; i < regexReceivers; i++) {
+			RegexReceiver receiver = new RegexReceiver();
+			receiver.setName("ext-" + i);
+			receiver.addRegexRouting(".*@ext" + i + "\\.example\\.net");
+			router.addRouter(receiver);
+		}
+
+		String from = "juliet@" + BenchmarkVHostRepository.domain(0) + "/balcony";
+		toComponentId = message(from, muc.getComponentId().toString());
+		toComponentSubdomain = message(from, "room@muc." + BenchmarkVHostRepository.domain(vhosts - 1));
+		toLocalUser = message(from, "romeo@" + BenchmarkVHostRepository.domain(vhosts - 1) + "/orchard");
+		toRemoteUser = message(from, "romeo@remote.org/orchard");
+	}
+
+	@Benchmark
+	public void toComponentId() {
+		router.processPacket(toComponentId);
+	}
+
+	@Benchmark
+	public void toComponentSubdomain() {
+		router.processPacket(toComponentSubdomain);
+	}
+
+	@Benchmark
+	public void toLocalUser() {
+		router.processPacket(toLocalUser);
+	}
+
+	@Benchmark
+	public void toRemoteUser() {
+		router.processPacket(toRemoteUser);
+	}
+
+	/**
+	 * Receiver registered only for its regex routings, which never match benchmark packets.
+	 */
+	public static class RegexReceiver
+			extends AbstractMessageReceiver {
+
+		@Override
+		public void processPacket(Packet packet) {
+		}
+	}
+}
@@ -0,0 +1,101 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.server;
+
+import org.openjdk.jmh.annotations.*;
+import tigase.util.stringprep.TigaseStringprepException;
+import tigase.xml.Element;
+import tigase.xmpp.jid.JID;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks for {@link Packet} creation and stanza address parsing.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PacketBenchmark {
+
+	private JID from;
+	private Element iq;
+	private Element message;
+	private Packet packet;
+	private Element presence;
+	private JID to;
+
+	@Setup
+	public void setup() throws TigaseStringprepException {
+		from = JID.jidInstance("juliet@capulet.lit/balcony");
+		to = JID.jidInstance("romeo@montague.lit/orchard");
+
+		message = new Element("message", new String[]{"from", "to", "type", "id"},
+							  new String[]{from.toString(), to.toString(), "chat", "msg-1"});
+		message.addChild(new Element("body", "Wherefore art thou, Romeo?"));
+
+		presence = new Element("presence", new String[]{"from", "to", "id"},
+							   new String[]{from.toString(), to.getBareJID().toString(), "pres-1"});
+		presence.addChild(new Element("priority", "5"));
+
+		iq = new Element("iq", new String[]{"from", "to", "type", "id"},
+						 new String[]{from.toString(), to.getBareJID().toString(), "get", "iq-1"});
+		iq.addChild(new Element("query", new String[]{"xmlns"}, new String[]{"jabber:iq:version"}));
+
+		packet = Packet.packetInstance(message);
+	}
+
+	@Benchmark
+	public Packet messageInstance() throws TigaseStringprepException {
+		return Packet.packetInstance(message);
+	}
+
+	@Benchmark
+	public Packet messageInstancePreparsed() {
+		return Packet.packetInstance(message, from, to);
+	}
+
+	@Benchmark
+	public Packet presenceInstance() throws TigaseStringprepException {
+		return Packet.packetInstance(presence);
+	}
+
+	@Benchmark
+	public Packet iqInstance() throws TigaseStringprepException {
+		return Packet.packetInstance(iq);
+	}
+
+	@Benchmark
+	public Packet initVars() throws TigaseStringprepException {
+		packet.initVars();
+		return packet;
+	}
+
+	@Benchmark
+	public Packet initVarsPreparsed() {
+		// Swapping addresses on each call, so the stanza attributes are updated every time
+		if (packet.getStanzaFrom() == from) {
+			packet.initVars(to, from);
+		} else {
+			packet.initVars(from, to);
+		}
+		return packet;
+	}
+}
@@ -0,0 +1,147 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.server.xmppsession;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import tigase.server.Packet;
+import tigase.xml.Element;
+import tigase.xmpp.Authorization;
+import tigase.xmpp.XMPPProcessorIfc;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark of selecting {@link XMPPProcessorIfc} plugins for a packet as done by {@code SessionManager.walk()}.
+ * <br>
+ * Plugins are instantiated directly with their default constructors, without configuration, as only
+ * {@code canHandle()} is called. Methods with {@code indexed} prefix use {@link ProcessorsIndex} as
+ * {@code SessionManager} does, the remaining ones call {@code canHandle()} of every plugin.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SessionManagerWalkBenchmark {
+
+	private static final String[] PLUGINS = {"tigase.xmpp.impl.BindResource", "tigase.xmpp.impl.BlockingCommand",
+											 "tigase.xmpp.impl.C2SDeliveryErrorProcessor",
+											 "tigase.xmpp.impl.ClientStateIndication",
+											 "tigase.xmpp.impl.DomainFilter", "tigase.xmpp.impl.EntityTime",
+											 "tigase.xmpp.impl.FlexibleOfflineMessageRetrieval",
+											 "tigase.xmpp.impl.JabberIqAuth", "tigase.xmpp.impl.JabberIqCommand",
+											 "tigase.xmpp.impl.JabberIqIq", "tigase.xmpp.impl.JabberIqPrivacy",
+											 "tigase.xmpp.impl.JabberIqPrivate", "tigase.xmpp.impl.JabberIqRegister",
+											 "tigase.xmpp.impl.JabberIqRoster", "tigase.xmpp.impl.JabberIqStats",
+											 "tigase.xmpp.impl.JabberIqVersion", "tigase.xmpp.impl.LastActivity",
+											 "tigase.xmpp.impl.Message", "tigase.xmpp.impl.MessageAmp",
+											 "tigase.xmpp.impl.MessageCarbons", "tigase.xmpp.impl.OfflineMessages",
+											 "tigase.xmpp.impl.PepPlugin", "tigase.xmpp.impl.PresenceState",
+											 "tigase.xmpp.impl.PresenceSubscription",
+											 "tigase.xmpp.impl.SaslAuth", "tigase.xmpp.impl.ServiceDiscovery",
+											 "tigase.xmpp.impl.SessionBind", "tigase.xmpp.impl.StartTLS",
+											 "tigase.xmpp.impl.StartZLib", "tigase.xmpp.impl.UrnXmppPing",
+											 "tigase.xmpp.impl.VCard4", "tigase.xmpp.impl.VCardTemp"};
+
+	private final ProcessorsIndex.Candidates candidates = new ProcessorsIndex.Candidates();
+	private Packet iqPing;
+	private Packet message;
+	private Packet presence;
+	private List<XMPPProcessorIfc> processors;
+	private ProcessorsIndex processorsIndex;
+
+	@Setup
+	public void setup() throws Exception {
+		processors = new ArrayList<>();
+		for (String cls : PLUGINS) {
+			try {
+				processors.add((XMPPProcessorIfc) Class.forName(cls).newInstance());
+			} catch (Throwable ex) {
+				// plugin not available or not constructible without kernel, skipping
+			}
+		}
+
+		processorsIndex = ProcessorsIndex.build(processors, null);
+
+		Element elem = new Element("message", new String[]{"from", "to", "type", "id"},
+								   new String[]{"juliet@capulet.lit/balcony", "romeo@montague.lit", "chat", "m-1"});
+		elem.addChild(new Element("body", "Wherefore art thou, Romeo?"));
+		message = Packet.packetInstance(elem);
+
+		elem = new Element("presence", new String[]{"from", "id"}, new String[]{"juliet@capulet.lit/balcony", "p-1"});
+		elem.addChild(new Element("priority", "5"));
+		presence = Packet.packetInstance(elem);
+
+		elem = new Element("iq", new String[]{"from", "to", "type", "id"},
+						   new String[]{"juliet@capulet.lit/balcony", "capulet.lit", "get", "iq-1"});
+		elem.addChild(new Element("ping", new String[]{"xmlns"}, new String[]{"urn:xmpp:ping"}));
+		iqPing = Packet.packetInstance(elem);
+	}
+
+	@Benchmark
+	public void message(Blackhole bh) {
+		walk(message, bh);
+	}
+
+	@Benchmark
+	public void presence(Blackhole bh) {
+		walk(presence, bh);
+	}
+
+	@Benchmark
+	public void iqPing(Blackhole bh) {
+		walk(iqPing, bh);
+	}
+
+	@Benchmark
+	public void indexedMessage(Blackhole bh) {
+		indexedWalk(message, bh);
+	}
+
+	@Benchmark
+	public void indexedPresence(Blackhole bh) {
+		indexedWalk(presence, bh);
+	}
+
+	@Benchmark
+	public void indexedIqPing(Blackhole bh) {
+		indexedWalk(iqPing, bh);
+	}
+
+	private void indexedWalk(Packet packet, Blackhole bh) {
+		processorsIndex.getCandidates(packet.getElement(), candidates);
+		for (int i = 0; i < candidates.size(); i++) {
+			ProcessorsIndex.Entry entry = candidates.get(i);
+			if (entry.getProcessor().canHandle(packet, null) == Authorization.AUTHORIZED) {
+				bh.consume(entry.getProcessor());
+			}
+		}
+	}
+
+	private void walk(Packet packet, Blackhole bh) {
+		for (XMPPProcessorIfc processor : processors) {
+			if (processor.canHandle(packet, null) == Authorization.AUTHORIZED) {
+				bh.consume(processor);
+			}
+		}
+	}
+}
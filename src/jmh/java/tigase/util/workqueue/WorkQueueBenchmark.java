@@ -0,0 +1,135 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.util.workqueue;
+
+import org.openjdk.jmh.annotations.*;
+import tigase.server.Priority;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks for {@link PriorityQueueAbstract} implementations used by component in/out queues.
+ * <br>
+ * {@code offerAndTake} measures the uncontended cost of passing a single element through the queue, while
+ * {@code contendedPut*} measures throughput of many producer threads feeding a single consumer thread, which is how
+ * queues are used by {@link tigase.server.AbstractMessageReceiver}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WorkQueueBenchmark {
+
+	private static final Object ITEM = new Object();
+	private static final Object POISON = new Object();
+	private static final int PRIORITIES = Priority.values().length;
+
+	@SuppressWarnings("unchecked")
+	private static PriorityQueueAbstract<Object> createQueue(String queueClass, int maxSize) throws Exception {
+		return PriorityQueueAbstract.getPriorityQueue(PRIORITIES, maxSize,
+													  (Class<? extends PriorityQueueAbstract>) Class.forName(
+															  queueClass));
+	}
+
+	@Benchmark
+	public Object offerAndTake(SingleThreadState state) throws InterruptedException {
+		state.queue.offer(ITEM, state.nextPriority());
+		return state.queue.take();
+	}
+
+	@Benchmark
+	@Threads(4)
+	public void contendedPut4(ConsumerState state, ProducerState producer) throws InterruptedException {
+		state.queue.put(ITEM, producer.nextPriority());
+	}
+
+	@Benchmark
+	@Threads(Threads.MAX)
+	public void contendedPutMax(ConsumerState state, ProducerState producer) throws InterruptedException {
+		state.queue.put(ITEM, producer.nextPriority());
+	}
+
+	@State(Scope.Thread)
+	public static class SingleThreadState {
+
+		@Param({"tigase.util.workqueue.PriorityQueueRelaxed", "tigase.util.workqueue.PriorityQueueStrict",
+				"tigase.util.workqueue.NonpriorityQueue", "tigase.util.workqueue.PriorityQueueLockFree"})
+		public String queueClass;
+		@Param({"10000"})
+		public int maxSize;
+
+		private int counter = 0;
+		private PriorityQueueAbstract<Object> queue;
+
+		@Setup(Level.Trial)
+		public void setup() throws Exception {
+			queue = createQueue(queueClass, maxSize);
+		}
+
+		private int nextPriority() {
+			return (counter++ & 0x7fffffff) % PRIORITIES;
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class ProducerState {
+
+		private int counter = 0;
+
+		private int nextPriority() {
+			return (counter++ & 0x7fffffff) % PRIORITIES;
+		}
+	}
+
+	@State(Scope.Benchmark)
+	public static class ConsumerState {
+
+		@Param({"tigase.util.workqueue.PriorityQueueRelaxed", "tigase.util.workqueue.PriorityQueueStrict",
+				"tigase.util.workqueue.NonpriorityQueue", "tigase.util.workqueue.PriorityQueueLockFree"})
+		public String queueClass;
+		@Param({"10000"})
+		public int maxSize;
+
+		private Thread consumer;
+		private PriorityQueueAbstract<Object> queue;
+
+		@Setup(Level.Iteration)
+		public void setup() throws Exception {
+			queue = createQueue(queueClass, maxSize);
+			consumer = new Thread(() -> {
+				try {
+					while (queue.take() != POISON) {
+						// consuming only
+					}
+				} catch (InterruptedException ex) {
+					// benchmark is finished
+				}
+			}, "work-queue-benchmark-consumer");
+			consumer.setDaemon(true);
+			consumer.start();
+		}
+
+		@TearDown(Level.Iteration)
+		public void tearDown() throws InterruptedException {
+			// Using the lowest priority, so the consumer drains all remaining items first
+			queue.put(POISON, PRIORITIES - 1);
+			consumer.join(TimeUnit.SECONDS.toMillis(10));
+		}
+	}
+}
@@ -0,0 +1,90 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.vhosts;
+
+import tigase.db.comp.ConfigRepository;
+import tigase.server.ServerComponent;
+import tigase.util.stringprep.TigaseStringprepException;
+
+/**
+ * In-memory vhosts repository used by benchmarks, so no database is required to set up {@link VHostManager}.
+ */
+public class BenchmarkVHostRepository
+		extends ConfigRepository<VHostItem>
+		implements VHostComponentRepository {
+
+	public static final String DOMAIN_PREFIX = "example";
+	public static final String DOMAIN_SUFFIX = ".com";
+
+	/**
+	 * Creates {@link VHostManager} with {@code vhosts} local domains named {@code example[N].com} and registers given
+	 * components in it.
+	 */
+	public static VHostManager createVHostManager(int vhosts, ServerComponent... components) throws Exception {
+		BenchmarkVHostRepository repo = new BenchmarkVHostRepository();
+
+		for (int i = 0; i < vhosts; i++) {
+			repo.addItemNoStore(new VHostItemImpl(domain(i)));
+		}
+
+		VHostManager vHostManager = new VHostManager();
+		vHostManager.repo = repo;
+		vHostManager.setName("vhost-man");
+		for (ServerComponent component : components) {
+			vHostManager.addComponent(component);
+		}
+		return vHostManager;
+	}
+
+	public static String domain(int i) {
+		return DOMAIN_PREFIX + i + DOMAIN_SUFFIX;
+	}
+
+	@Override
+	public void destroy() {
+	}
+
+	@Override
+	public String getConfigKey() {
+		return "benchmark-vhosts";
+	}
+
+	@Override
+	public VHostItem getDefaultVHostItem() {
+		return getItem(domain(0));
+	}
+
+	@Override
+	public VHostItem getItemInstance() {
+		return new VHostItemImpl();
+	}
+
+	@Override
+	public String getPropertyKey() {
+		return null;
+	}
+
+	/**
+	 * Adds local domain which packets should be processed by the given components only.
+	 */
+	public void addBoundDomain(String domain, String... comps) throws TigaseStringprepException {
+		VHostItemImpl item = new VHostItemImpl(domain);
+		item.setComps(comps);
+		addItemNoStore(item);
+	}
+}
@@ -0,0 +1,83 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.vhosts;
+
+import org.openjdk.jmh.annotations.*;
+import tigase.server.BenchmarkComponent;
+import tigase.server.ServerComponent;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks for {@link VHostManager#getComponentsForLocalDomain(String)} which is called by
+ * {@link tigase.server.MessageRouter} for every packet not addressed directly to a component.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class VHostManagerBenchmark {
+
+	@Param({"1", "100"})
+	public int vhosts;
+
+	private String boundDomain;
+	private String localDomain;
+	private String nameSubdomain;
+	private String nonLocalDomain;
+	private VHostManager vHostManager;
+
+	@Setup
+	public void setup() throws Exception {
+		vHostManager = BenchmarkVHostRepository.createVHostManager(vhosts,
+																   new BenchmarkComponent("sess-man", true, false,
+																						  false),
+																   new BenchmarkComponent("c2s", true, false,
+																						  false),
+																   new BenchmarkComponent("muc", false, false, true),
+																   new BenchmarkComponent("s2s", false, true, false));
+		boundDomain = "bound.example.org";
+		((BenchmarkVHostRepository) vHostManager.repo).addBoundDomain(boundDomain, "muc", "sess-man");
+
+		localDomain = BenchmarkVHostRepository.domain(vhosts / 2);
+		nameSubdomain = "muc." + localDomain;
+		nonLocalDomain = "remote.org";
+	}
+
+	@Benchmark
+	public ServerComponent[] localDomain() {
+		return vHostManager.getComponentsForLocalDomain(localDomain);
+	}
+
+	@Benchmark
+	public ServerComponent[] localDomainWithBoundComponents() {
+		return vHostManager.getComponentsForLocalDomain(boundDomain);
+	}
+
+	@Benchmark
+	public ServerComponent[] nameSubdomain() {
+		return vHostManager.getComponentsForLocalDomain(nameSubdomain);
+	}
+
+	@Benchmark
+	public ServerComponent[] nonLocalDomain() {
+		return vHostManager.getComponentsForLocalDomain(nonLocalDomain);
+	}
+}
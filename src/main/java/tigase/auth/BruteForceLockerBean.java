@@ -97,6 +97,8 @@ public class BruteForceLockerBean
 	@Inject
 	private EventBus eventBus;
 	private Map<Key, Value> map;
+	@ConfigField(desc = "Time in milliseconds for which changes of the distributed map are collected before they are sent to other cluster nodes", alias = "map-replication-window")
+	private long mapReplicationWindow = 0;
 	@Inject
 	private SessionManager sessionManager;
 
@@ -258,6 +260,7 @@ public class BruteForceLockerBean
 	public void initialize() {
 		this.map = ClusterMapFactory.get().createMap(MAP_TYPE, Key.class, Value.class);
 		assert this.map != null : "Distributed Map is NULL!";
+		ClusterMapFactory.get().setReplicationWindow(this.map, mapReplicationWindow);
 		assert this.sessionManager != null : "SessionManager is NULL!";
 
 		if (eventBus != null) {
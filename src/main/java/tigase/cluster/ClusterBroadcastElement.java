@@ -0,0 +1,128 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.cluster;
+
+import tigase.server.Packet;
+import tigase.xml.Element;
+import tigase.xmpp.jid.JID;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Cluster element sent to one of many nodes receiving the same cluster method call.
+ * <br>
+ * Elements for all nodes share children (control and data) of a single cluster element and differ only in
+ * <code>to</code> and <code>id</code> attributes. Shared children are serialized only once, when the first of the
+ * elements is written to the socket, and the serialized form is reused by other elements as long as they were not
+ * modified.
+ */
+class ClusterBroadcastElement
+		extends Element {
+
+	private final SharedContent content;
+
+	ClusterBroadcastElement(Element template, JID to, String id, SharedContent content) {
+		super(template.getName());
+
+		Map<String, String> attrs = template.getAttributes();
+		if (attrs != null) {
+			setAttributes(attrs);
+		}
+		setXMLNS(template.getXMLNS());
+		setAttribute(Packet.TO_ATT, to.toString());
+		setAttribute("id", id);
+		addChildren(content.children);
+		this.content = content;
+	}
+
+	@Override
+	public String toString() {
+		String data = content.getData(this);
+		if (data == null) {
+			return super.toString();
+		}
+
+		StringBuilder result = new StringBuilder(data.length() + 256);
+		result.append('<').append(getName());
+
+		String xmlns = getXMLNS();
+		if (xmlns != null) {
+			result.append(" xmlns=\"").append(xmlns).append('"');
+		}
+
+		Map<String, String> attrs = getAttributes();
+		if (attrs != null) {
+			for (Map.Entry<String, String> attr : attrs.entrySet()) {
+				if (!"xmlns".equals(attr.getKey())) {
+					result.append(' ').append(attr.getKey()).append("=\"").append(attr.getValue()).append('"');
+				}
+			}
+		}
+		result.append('>').append(data).append("</").append(getName()).append('>');
+
+		return result.toString();
+	}
+
+	/**
+	 * Children shared by cluster elements of a single broadcast.
+	 */
+	static class SharedContent {
+
+		private final List<Element> children;
+		private final LongAdder reusedChars;
+		private volatile String data = null;
+
+		SharedContent(List<Element> children, LongAdder reusedChars) {
+			this.children = children;
+			this.reusedChars = reusedChars;
+		}
+
+		private String getData(Element elem) {
+			List<Element> current = elem.getChildren();
+			if (current == null || current.size() != children.size()) {
+				return null;
+			}
+			for (int i = 0; i < children.size(); i++) {
+				if (current.get(i) != children.get(i)) {
+					return null;
+				}
+			}
+
+			String result = data;
+			if (result != null) {
+				reusedChars.add(result.length());
+				return result;
+			}
+
+			synchronized (this) {
+				if (data == null) {
+					StringBuilder sb = new StringBuilder();
+					for (Element child : children) {
+						sb.append(child.toString());
+					}
+					data = sb.toString();
+				} else {
+					reusedChars.add(data.length());
+				}
+				return data;
+			}
+		}
+	}
+}
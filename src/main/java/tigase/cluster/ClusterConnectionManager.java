@@ -30,6 +30,7 @@ import tigase.db.comp.ComponentRepository;
 import tigase.db.comp.ComponentRepositoryDataSourceAware;
 import tigase.db.comp.RepositoryChangeListenerIfc;
 import tigase.eventbus.EventBus;
+import tigase.io.AdaptiveZLibIO;
 import tigase.kernel.beans.Bean;
 import tigase.kernel.beans.Inject;
 import tigase.kernel.beans.config.ConfigField;
@@ -58,6 +59,7 @@ import tigase.xmpp.XMPPIOService;
 import tigase.xmpp.jid.JID;
 
 import javax.script.Bindings;
+import java.io.IOException;
 import java.lang.reflect.Type;
 import java.net.InetAddress;
 import java.net.NetworkInterface;
@@ -93,6 +95,14 @@ public class ClusterConnectionManager
 
 	public static final String COMPRESS_STREAM_PROP_KEY = "compress-stream";
 
+	public static final String COMPRESS_ADAPTIVE_PROP_KEY = "compress-adaptive";
+
+	public static final String COMPRESS_DICTIONARY_PROP_KEY = "compress-dictionary";
+
+	public static final String COMPRESS_LEVEL_PROP_KEY = "compress-level";
+
+	public static final String COMPRESS_MIN_GAIN_PROP_KEY = "compress-min-gain";
+
 	public static final String CONNECT_ALL_PAR = "--cluster-connect-all";
 
 	public static final String CONNECT_ALL_PROP_KEY = "connect-all";
@@ -108,6 +118,8 @@ public class ClusterConnectionManager
 	public static final boolean RETURN_SERVICE_DISCO_VAL = true;
 	public static final boolean CONNECT_ALL_PROP_VAL = false;
 	public static final boolean COMPRESS_STREAM_PROP_VAL = false;
+	public static final String BINARY_FRAMING_PROP_KEY = "binary-framing";
+	public static final boolean BINARY_FRAMING_PROP_VAL = false;
 	public final static String EVENTBUS_REPOSITORY_NOTIFICATIONS_ENABLED_KEY = "eventbus-repository-notifications";
 	public final static boolean EVENTBUS_REPOSITORY_NOTIFICATIONS_ENABLED_VALUE = false;
 	private static final Logger log = Logger.getLogger(ClusterConnectionManager.class.getName());
@@ -122,9 +134,19 @@ public class ClusterConnectionManager
 	 */
 	public static int ELEMENTS_NUMBER_LIMIT_CLUSTER_PROP_VAL = 100 * 1000;
 
+	@ConfigField(desc = "Use binary framing if supported by the remote node", alias = BINARY_FRAMING_PROP_KEY)
+	private boolean binaryFraming = BINARY_FRAMING_PROP_VAL;
 	@Inject
 	private ClusterControllerIfc clusterController = null;
 	private tigase.eventbus.EventListener<ClusterInitializedEvent> clusterEventHandler = null;
+	@ConfigField(desc = "Adapt compression level to the traffic", alias = COMPRESS_ADAPTIVE_PROP_KEY)
+	private boolean compressAdaptive = false;
+	@ConfigField(desc = "Use preset dictionary for compression", alias = COMPRESS_DICTIONARY_PROP_KEY)
+	private boolean compressDictionary = false;
+	@ConfigField(desc = "Compression level (initial level in adaptive mode)", alias = COMPRESS_LEVEL_PROP_KEY)
+	private int compressLevel = Deflater.BEST_COMPRESSION;
+	@ConfigField(desc = "Minimal number of bytes saved per microsecond of additional compression time to increase compression level", alias = COMPRESS_MIN_GAIN_PROP_KEY)
+	private int compressMinGain = 4;
 	@ConfigField(desc = "Compress stream", alias = COMPRESS_STREAM_PROP_KEY)
 	private boolean compress_stream = COMPRESS_STREAM_PROP_VAL;
 	@ConfigField(desc = "Connect to all nodes", alias = CONNECT_ALL_PROP_KEY)
@@ -175,6 +197,8 @@ public class ClusterConnectionManager
 		super();
 		serviceConnectedTimeout = 10;
 		elements_number_limit = ELEMENTS_NUMBER_LIMIT_CLUSTER_PROP_VAL;
+		// cluster connections should not be delayed by client connections
+		ioThreadGroupName = "cluster";
 		if (getDefHostName().toString().equalsIgnoreCase("localhost")) {
 			TigaseRuntime.getTigaseRuntime()
 					.shutdownTigase(new String[]{"ERROR! Tigase is running in Clustered Mode yet the hostname",
@@ -483,7 +507,8 @@ public class ClusterConnectionManager
 				new Object[]{serv.getRemoteAddress(), serv.connectionType().toString(), serv.getUniqueId()});
 		if (compress_stream) {
 			log.log(Level.INFO, "Starting stream compression for: {0}", serv.getUniqueId());
-			serv.startZLib(Deflater.BEST_COMPRESSION);
+			serv.startZLib(compressLevel, compressAdaptive, compressMinGain,
+						   compressDictionary ? AdaptiveZLibIO.CLUSTER_DICTIONARY : null);
 		}
 		switch (serv.connectionType()) {
 			case connect:
@@ -498,7 +523,7 @@ public class ClusterConnectionManager
 
 				String data = "<stream:stream" + " xmlns='" + XMLNS + "'" +
 						" xmlns:stream='http://etherx.jabber.org/streams'" + " from='" + getDefHostName() + "'" +
-						" to='" + remote_host + "'" + ">";
+						" to='" + remote_host + "'" + (binaryFraming ? framingAttribute() : "") + ">";
 
 				log.log(Level.INFO, "cid: {0}, sending: {1}",
 						new Object[]{(String) serv.getSessionData().get("cid"), data});
@@ -634,10 +659,27 @@ public class ClusterConnectionManager
 								new Object[]{id, secret, digest, item});
 					}
 
-					return new String[] { "<handshake>" + digest + "</handshake>" };
+					String handshake = "<handshake>" + digest + "</handshake>";
+
+					if (isBinaryFramingOffered(service, attribs)) {
+						ClusterIOService clusterService = (ClusterIOService) service;
+
+						log.log(Level.CONFIG, "Using binary framing for: {0}", service);
+						clusterService.enableBinaryInput();
+						clusterService.writeHandshake(handshake);
+
+						return null;
+					}
+
+					return new String[] { handshake };
 				} catch (NoSuchAlgorithmException e) {
 					log.log(Level.SEVERE, "Can not generate digest for pass phrase.", e);
 
+					return null;
+				} catch (IOException e) {
+					log.log(Level.WARNING, "Can not send handshake to: " + service, e);
+					service.forceStop();
+
 					return null;
 				}
 			}
@@ -656,9 +698,17 @@ public class ClusterConnectionManager
 				service.getSessionData().put(XMPPIOService.SESSION_ID_KEY, id);
 				updateConnectionDetails(service.getSessionData());
 
+				// binary framing is agreed only if requested by the remote node
+				String framing = "";
+				if (isBinaryFramingOffered(service, attribs)) {
+					log.log(Level.CONFIG, "Using binary framing for: {0}", service);
+					((ClusterIOService) service).enableBinaryInput();
+					framing = framingAttribute();
+				}
+
 				return new String[] { "<stream:stream" + " xmlns='" + XMLNS + "'" +
 						" xmlns:stream='http://etherx.jabber.org/streams'" + " from='" + getDefHostName() + "'" +
-						" to='" + remote_host + "'" + " id='" + id + "'" + ">" };
+						" to='" + remote_host + "'" + " id='" + id + "'" + framing + ">" };
 			}
 
 			default:
@@ -691,7 +741,17 @@ public class ClusterConnectionManager
 		doForAllServices(ioStatsGetter);
 		list.add(getName(), "Average compression ratio", ioStatsGetter.getAverageCompressionRatio(), Level.FINE);
 		list.add(getName(), "Average decompression ratio", ioStatsGetter.getAverageDecompressionRatio(), Level.FINE);
+		if (compress_stream) {
+			list.add(getName(), "Average compression level", ioStatsGetter.getAverageCompressionLevel(), Level.FINE);
+			list.add(getName(), "Compression time [ms]", ioStatsGetter.getCompressionTime(), Level.FINE);
+			list.add(getName(), "Decompression time [ms]", ioStatsGetter.getDecompressionTime(), Level.FINE);
+			list.add(getName(), "Compression time per node [ms]", ioStatsGetter.getCompressionTimePerNode().toString(),
+					 Level.FINER);
+		}
 		list.add(getName(), "Waiting to send", ioStatsGetter.getWaitingToSend(), Level.FINE);
+		list.add(getName(), "Binary framing connections", ioStatsGetter.getBinaryConnections(), Level.FINE);
+		list.add(getName(), "Binary frames received", ioStatsGetter.getFramesReceived(), Level.FINER);
+		list.add(getName(), "Binary frames sent", ioStatsGetter.getFramesSent(), Level.FINER);
 
 		list.add(getName(), "Max daily cluster nodes count in last month", maxNodes, Level.INFO);
 		list.add(getName(), "Max nodes count within last week", maxNodesWithinLastWeek, Level.INFO);
@@ -858,7 +918,7 @@ public class ClusterConnectionManager
 
 	@Override
 	protected XMPPIOService<Object> getXMPPIOServiceInstance() {
-		return new XMPPIOService<>();
+		return new ClusterIOService();
 	}
 
 	@Override
@@ -866,6 +926,15 @@ public class ClusterConnectionManager
 		return true;
 	}
 
+	private String framingAttribute() {
+		return " " + ClusterIOService.FRAMING_ATTR + "='" + ClusterIOService.FRAMING_BINARY + "'";
+	}
+
+	private boolean isBinaryFramingOffered(XMPPIOService<Object> service, Map<String, String> attribs) {
+		return binaryFraming && (service instanceof ClusterIOService) &&
+				ClusterIOService.FRAMING_BINARY.equals(attribs.get(ClusterIOService.FRAMING_ATTR));
+	}
+
 	private void sendEvent(REPO_ITEM_UPDATE_TYPE action, ClusterRepoItem item) {
 
 		// either RepositoryItem was wrong or EventBus is not enabled - skiping broadcasting the event;
@@ -927,9 +996,13 @@ public class ClusterConnectionManager
 								new Object[]{secret, digest, loc_digest, serv.getSessionData()});
 					}
 					if ((digest != null) && digest.equals(loc_digest)) {
-						Packet resp = Packet.packetInstance(new Element("handshake"), null, null);
+						if ((serv instanceof ClusterIOService) && ((ClusterIOService) serv).isBinary()) {
+							((ClusterIOService) serv).writeHandshake("<handshake/>");
+						} else {
+							Packet resp = Packet.packetInstance(new Element("handshake"), null, null);
 
-						writePacketToSocket(serv, resp);
+							writePacketToSocket(serv, resp);
+						}
 						serviceConnected(serv);
 					} else {
 						if (secret == null) {
@@ -1022,10 +1095,18 @@ public class ClusterConnectionManager
 	private class IOServiceStatisticsGetter
 			implements ServiceChecker<XMPPIOService<Object>> {
 
+		private int binaryConnections = 0;
 		private int clIOQueue = 0;
+		private int compressionLevels = 0;
 		private float compressionRatio = 0f;
+		private long compressionTime = 0;
+		private Map<String, Long> compressionTimePerNode = new TreeMap<>();
+		private int compressedConnections = 0;
 		private int counter = 0;
 		private float decompressionRatio = 0f;
+		private long decompressionTime = 0;
+		private long framesReceived = 0;
+		private long framesSent = 0;
 		private StatisticsList list = new StatisticsList(Level.ALL);
 
 		@Override
@@ -1035,6 +1116,20 @@ public class ClusterConnectionManager
 			decompressionRatio += list.getValue("zlibio", "Average decompression rate", -1f);
 			++counter;
 			clIOQueue += service.waitingToSendSize();
+			AdaptiveZLibIO zlib = service.getAdaptiveZLibIO();
+			if (zlib != null) {
+				++compressedConnections;
+				compressionLevels += zlib.getLevel();
+				compressionTime += zlib.getCompressionTime();
+				decompressionTime += zlib.getDecompressionTime();
+				compressionTimePerNode.merge(String.valueOf(service.getRemoteAddress()), zlib.getCompressionTime(),
+											 Long::sum);
+			}
+			if ((service instanceof ClusterIOService) && ((ClusterIOService) service).isBinary()) {
+				++binaryConnections;
+				framesReceived += ((ClusterIOService) service).getFramesReceived();
+				framesSent += ((ClusterIOService) service).getFramesSent();
+			}
 		}
 
 		public void reset() {
@@ -1044,12 +1139,24 @@ public class ClusterConnectionManager
 			// any stats in case of the disconnection.
 			// bytesReceived = 0;
 			// bytesSent = 0;
+			binaryConnections = 0;
 			clIOQueue = 0;
+			compressedConnections = 0;
+			compressionLevels = 0;
+			compressionTime = 0;
+			compressionTimePerNode = new TreeMap<>();
 			counter = 0;
+			decompressionTime = 0;
+			framesReceived = 0;
+			framesSent = 0;
 			compressionRatio = 0f;
 			decompressionRatio = 0f;
 		}
 
+		public float getAverageCompressionLevel() {
+			return compressedConnections == 0 ? 0f : ((float) compressionLevels) / compressedConnections;
+		}
+
 		public float getAverageCompressionRatio() {
 			return compressionRatio / counter;
 		}
@@ -1058,6 +1165,30 @@ public class ClusterConnectionManager
 			return decompressionRatio / counter;
 		}
 
+		public long getCompressionTime() {
+			return compressionTime;
+		}
+
+		public Map<String, Long> getCompressionTimePerNode() {
+			return compressionTimePerNode;
+		}
+
+		public long getDecompressionTime() {
+			return decompressionTime;
+		}
+
+		public int getBinaryConnections() {
+			return binaryConnections;
+		}
+
+		public long getFramesReceived() {
+			return framesReceived;
+		}
+
+		public long getFramesSent() {
+			return framesSent;
+		}
+
 		public int getWaitingToSend() {
 			return clIOQueue;
 		}
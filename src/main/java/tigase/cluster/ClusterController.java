@@ -29,6 +29,8 @@ import tigase.server.AbstractComponentRegistrator;
 import tigase.server.Packet;
 import tigase.server.Priority;
 import tigase.server.ServerComponent;
+import tigase.stats.StatisticsContainer;
+import tigase.stats.StatisticsList;
 import tigase.xml.Element;
 import tigase.xmpp.StanzaType;
 import tigase.xmpp.jid.JID;
@@ -40,6 +42,7 @@ import java.util.Set;
 import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -56,13 +59,16 @@ import java.util.logging.Logger;
 @ClusterModeRequired(active = true)
 public class ClusterController
 		extends AbstractComponentRegistrator<ClusteredComponentIfc>
-		implements Configurable, ClusterControllerIfc {
+		implements Configurable, ClusterControllerIfc, StatisticsContainer {
 
 	public static final String MY_DOMAIN_NAME_PROP_KEY = "domain-name";
 
 	public static final String MY_DOMAIN_NAME_PROP_VAL = "localhost";
 	private static final Logger log = Logger.getLogger(ClusterController.class.getName());
 
+	private final LongAdder broadcastReusedChars = new LongAdder();
+	private final LongAdder broadcastReusedElements = new LongAdder();
+	private final LongAdder broadcasts = new LongAdder();
 	private ConcurrentSkipListMap<String, CommandListener> commandListeners = new ConcurrentSkipListMap<String, CommandListener>();
 	private AtomicLong currId = new AtomicLong(1L);
 
@@ -91,6 +97,14 @@ public class ClusterController
 		clusteredComponents.remove(component);
 	}
 
+	@Override
+	public void getStatistics(StatisticsList list) {
+		super.getStatistics(list);
+		list.add(getName(), "Broadcasts", broadcasts.sum(), Level.FINE);
+		list.add(getName(), "Broadcast elements reused", broadcastReusedElements.sum(), Level.FINE);
+		list.add(getName(), "Broadcast serialized chars reused", broadcastReusedChars.sum(), Level.FINE);
+	}
+
 	@Override
 	public void handleClusterPacket(Element packet) {
 		ClusterElement clel = new ClusterElement(packet);
@@ -165,22 +179,24 @@ public class ClusterController
 		CommandListener listener = commandListeners.get(command);
 		Priority priority = listener != null ? listener.getPriority() : null;
 
-		// TODO: Maybe more optimal would be creating the object once and then clone
-		// it? However, the 'to' parameter must be double-checked whether all
-		// internal states are set properly for each different to parameter
-		for (JID to : toNodes) {
-			ClusterElement clel = ClusterElement.createClusterMethodCall(fromNode, to, StanzaType.set, command, data);
-
-			// set priority to ClusterElement so it will get proper priority for processing
-			if (priority != null) {
-				clel.setPriority(priority);
+		if (toNodes.length > 1) {
+			// cluster element is created once and elements for all nodes share its content, so it is
+			// also serialized only once
+			String id = nextId();
+			Element template = createClusterElement(command, data, packets, fromNode, visitedNodes, toNodes[0],
+													priority, id);
+			ClusterBroadcastElement.SharedContent content = new ClusterBroadcastElement.SharedContent(
+					template.getChildren(), broadcastReusedChars);
+
+			for (int i = 0; i < toNodes.length; i++) {
+				results.offer(new ClusterBroadcastElement(template, toNodes[i], i == 0 ? id : nextId(), content));
+			}
+			broadcasts.increment();
+			broadcastReusedElements.add(toNodes.length - 1);
+		} else {
+			for (JID to : toNodes) {
+				results.offer(createClusterElement(command, data, packets, fromNode, visitedNodes, to, priority, nextId()));
 			}
-			clel.addVisitedNodes(visitedNodes);
-			clel.addDataPackets(packets);
-
-			Element result = clel.getClusterElement(nextId());
-
-			results.offer(result);
 		}
 		try {
 			packetSender.executeCommand(null, null, null, results);
@@ -251,6 +267,20 @@ public class ClusterController
 		super.setName(name);
 	}
 
+	private Element createClusterElement(String command, Map<String, String> data, Queue<Element> packets,
+										 JID fromNode, Set<JID> visitedNodes, JID to, Priority priority, String id) {
+		ClusterElement clel = ClusterElement.createClusterMethodCall(fromNode, to, StanzaType.set, command, data);
+
+		// set priority to ClusterElement so it will get proper priority for processing
+		if (priority != null) {
+			clel.setPriority(priority);
+		}
+		clel.addVisitedNodes(visitedNodes);
+		clel.addDataPackets(packets);
+
+		return clel.getClusterElement(id);
+	}
+
 	private String nextId() {
 		return "cl-" + currId.incrementAndGet();
 	}
@@ -0,0 +1,597 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.cluster;
+
+import tigase.xml.DomBuilderHandler;
+import tigase.xml.Element;
+import tigase.xml.SimpleParser;
+import tigase.xml.SingletonFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static tigase.cluster.api.ClusterElement.*;
+
+/**
+ * Codec of binary frames used by cluster connections after binary framing was negotiated.
+ * <br>
+ * Each frame starts with its length encoded as a variable length integer followed by a frame type:
+ * <ul>
+ * <li><code>{@value #FRAME_CLUSTER}</code> - cluster element, where attributes, node JIDs, method name and names of
+ * parameters and results are written as strings from the dictionary and embedded stanzas are written as serialized
+ * XML, so only stanzas and not the cluster element itself are parsed by the receiver,</li>
+ * <li><code>{@value #FRAME_XML}</code> - any other XML data, which is passed to the XML parser of the stream.</li>
+ * </ul>
+ * Each string written to the dictionary gets the next id when it is written for the first time and only the id is
+ * written afterwards. Dictionary is kept separately for each direction of a connection and is limited to {@value
+ * #MAX_DICTIONARY_SIZE} strings, so it has to be used by a single connection and frames have to be decoded in the same
+ * order in which they were encoded.
+ * <br>
+ * Instance is not thread safe. Encoding and decoding may be done concurrently by different threads.
+ */
+public class ClusterFrameCodec {
+
+	public static final byte FRAME_CLUSTER = 1;
+
+	public static final byte FRAME_XML = 2;
+
+	public static final int MAX_DICTIONARY_SIZE = 4096;
+
+	public static final int MAX_FRAME_SIZE = 64 * 1024 * 1024;
+
+	private static final int CONTROL = 1;
+	private static final int DATA = 2;
+	private static final int METHOD_CALL = 4;
+	private static final int RESULTS = 8;
+	private static final int VISITED_NODES = 16;
+
+	// frame length is written in front of the frame, when the frame is complete
+	private static final int LENGTH_RESERVED = 5;
+
+	private static final int DICT_NULL = 0;
+	private static final int DICT_NEW = 1;
+	private static final int DICT_LITERAL = 2;
+	private static final int DICT_ID_OFFSET = 3;
+
+	private static final List<String> CLUSTER_ATTRS = Arrays.asList("xmlns", "from", "to", "type", "id", "priority");
+	private static final List<String> NAME_ATTRS = Arrays.asList(CLUSTER_NAME_ATTR);
+
+	private final List<String> inDictionary = new ArrayList<>();
+	private final DomBuilderHandler stanzaHandler = new DomBuilderHandler();
+	private final SimpleParser parser = SingletonFactory.getParserInstance();
+	private final Map<String, Integer> outDictionary = new HashMap<>();
+	private byte[] out = new byte[1024];
+	private int outPos = 0;
+
+	/**
+	 * Checks if element may be written as {@link #FRAME_CLUSTER} frame.
+	 */
+	public static boolean isClusterFrameElement(Element elem) {
+		if (elem.getName() != CLUSTER_EL_NAME || !XMLNS.equals(elem.getXMLNS()) ||
+				!hasOnlyAttributes(elem, CLUSTER_ATTRS) || elem.getCData() != null) {
+			return false;
+		}
+
+		Element control = null;
+		Element data = null;
+		for (Element child : children(elem)) {
+			if (child.getName() == CLUSTER_CONTROL_EL_NAME && control == null) {
+				control = child;
+			} else if (child.getName() == CLUSTER_DATA_EL_NAME && data == null) {
+				data = child;
+			} else {
+				return false;
+			}
+		}
+		if (data != null && (!hasOnlyAttributes(data, null) || data.getCData() != null)) {
+			return false;
+		}
+		return control == null || isControlElement(control);
+	}
+
+	private static List<Element> children(Element elem) {
+		List<Element> children = elem.getChildren();
+		return children == null ? new ArrayList<>() : children;
+	}
+
+	private static boolean hasOnlyAttributes(Element elem, List<String> allowed) {
+		Map<String, String> attrs = elem.getAttributes();
+		if (attrs == null || attrs.isEmpty()) {
+			return true;
+		}
+		return allowed != null && allowed.containsAll(attrs.keySet());
+	}
+
+	private static boolean isControlElement(Element control) {
+		if (!hasOnlyAttributes(control, null) || control.getCData() != null) {
+			return false;
+		}
+
+		boolean firstNode = false, visitedNodes = false, methodCall = false;
+		for (Element child : children(control)) {
+			String name = child.getName();
+			if (name == FIRST_NODE_EL_NAME && !firstNode) {
+				firstNode = true;
+				if (!isValueElement(child, null)) {
+					return false;
+				}
+			} else if (name == VISITED_NODES_EL_NAME && !visitedNodes) {
+				visitedNodes = true;
+				if (!isContainerOf(child, NODE_ID_EL_NAME, null)) {
+					return false;
+				}
+			} else if (name == CLUSTER_METHOD_EL_NAME && !methodCall) {
+				methodCall = true;
+				if (!isMethodCallElement(child)) {
+					return false;
+				}
+			} else {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean isContainerOf(Element elem, String childName, List<String> childAttrs) {
+		if (!hasOnlyAttributes(elem, null) || elem.getCData() != null) {
+			return false;
+		}
+		for (Element child : children(elem)) {
+			if (child.getName() != childName || !isValueElement(child, childAttrs)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean isMethodCallElement(Element methodCall) {
+		if (methodCall.getAttributeStaticStr(CLUSTER_NAME_ATTR) == null || !hasOnlyAttributes(methodCall, NAME_ATTRS) ||
+				methodCall.getCData() != null) {
+			return false;
+		}
+
+		boolean results = false;
+		for (Element child : children(methodCall)) {
+			if (child.getName() == CLUSTER_METHOD_PAR_EL_NAME) {
+				if (!isValueElement(child, NAME_ATTRS)) {
+					return false;
+				}
+			} else if (child.getName() == CLUSTER_METHOD_RESULTS_EL_NAME && !results) {
+				results = true;
+				if (!isContainerOf(child, CLUSTER_METHOD_RESULTS_VAL_EL_NAME, NAME_ATTRS)) {
+					return false;
+				}
+			} else {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean isValueElement(Element elem, List<String> attrs) {
+		if (attrs != null && elem.getAttributeStaticStr(CLUSTER_NAME_ATTR) == null) {
+			return false;
+		}
+		List<Element> children = elem.getChildren();
+		return hasOnlyAttributes(elem, attrs) && (children == null || children.isEmpty());
+	}
+
+	/**
+	 * Decodes all complete frames available in the buffer. Position of the buffer is moved to the beginning of the
+	 * first incomplete frame.
+	 *
+	 * @param in buffer in read mode
+	 * @param handler called for each decoded frame
+	 *
+	 * @return number of decoded frames
+	 *
+	 * @throws IOException if frame is not valid
+	 */
+	public int decode(ByteBuffer in, FrameHandler handler) throws IOException {
+		int frames = 0;
+		while (in.hasRemaining()) {
+			int start = in.position();
+			int length = readLength(in);
+			if (length < 0 || in.remaining() < length) {
+				in.position(start);
+				break;
+			}
+
+			ByteBuffer frame = in.slice();
+			frame.limit(length);
+			in.position(in.position() + length);
+
+			byte type = frame.get();
+			switch (type) {
+				case FRAME_CLUSTER:
+					handler.clusterElement(decodeClusterElement(frame));
+					break;
+				case FRAME_XML:
+					handler.xmlData(readString(frame, frame.remaining()));
+					break;
+				default:
+					throw new IOException("Unknown frame type: " + type);
+			}
+			if (frame.hasRemaining()) {
+				throw new IOException("Frame of type " + type + " has " + frame.remaining() + " unexpected bytes");
+			}
+			frames++;
+		}
+		return frames;
+	}
+
+	/**
+	 * Encodes element in a frame. Elements which cannot be written as {@link #FRAME_CLUSTER} frame are written as
+	 * {@link #FRAME_XML} frames.
+	 *
+	 * @return buffer with the frame, which is valid only until the next call to any of encoding methods
+	 */
+	public ByteBuffer encode(Element elem) {
+		if (!isClusterFrameElement(elem)) {
+			return encodeXml(elem.toString());
+		}
+
+		startFrame(FRAME_CLUSTER);
+		writeString(elem.getAttributeStaticStr("id"));
+		writeDict(elem.getAttributeStaticStr("from"));
+		writeDict(elem.getAttributeStaticStr("to"));
+		writeDict(elem.getAttributeStaticStr("type"));
+		writeDict(elem.getAttributeStaticStr("priority"));
+
+		Element control = elem.getChild(CLUSTER_CONTROL_EL_NAME);
+		Element data = elem.getChild(CLUSTER_DATA_EL_NAME);
+		Element visitedNodes = control == null ? null : control.getChild(VISITED_NODES_EL_NAME);
+		Element methodCall = control == null ? null : control.getChild(CLUSTER_METHOD_EL_NAME);
+		Element results = methodCall == null ? null : methodCall.getChild(CLUSTER_METHOD_RESULTS_EL_NAME);
+
+		writeVarInt((control != null ? CONTROL : 0) | (data != null ? DATA : 0) | (methodCall != null ? METHOD_CALL : 0) |
+							(results != null ? RESULTS : 0) | (visitedNodes != null ? VISITED_NODES : 0));
+
+		if (control != null) {
+			Element firstNode = control.getChild(FIRST_NODE_EL_NAME);
+			writeVarInt(firstNode == null ? 0 : 1);
+			if (firstNode != null) {
+				writeString(firstNode.getCData());
+			}
+			if (visitedNodes != null) {
+				List<Element> nodes = children(visitedNodes);
+				writeVarInt(nodes.size());
+				for (Element node : nodes) {
+					writeDict(node.getCData());
+				}
+			}
+			if (methodCall != null) {
+				writeDict(methodCall.getAttributeStaticStr(CLUSTER_NAME_ATTR));
+				writeNamedValues(methodCall, CLUSTER_METHOD_PAR_EL_NAME);
+				if (results != null) {
+					writeNamedValues(results, CLUSTER_METHOD_RESULTS_VAL_EL_NAME);
+				}
+			}
+		}
+
+		if (data != null) {
+			List<Element> packets = children(data);
+			writeVarInt(packets.size());
+			for (Element packet : packets) {
+				writeBytes(packet.toString());
+			}
+		}
+
+		return endFrame();
+	}
+
+	/**
+	 * Encodes XML data in a frame.
+	 *
+	 * @return buffer with the frame, which is valid only until the next call to any of encoding methods
+	 */
+	public ByteBuffer encodeXml(String data) {
+		startFrame(FRAME_XML);
+		byte[] bytes = data.getBytes(StandardCharsets.UTF_8);
+		ensureCapacity(bytes.length);
+		System.arraycopy(bytes, 0, out, outPos, bytes.length);
+		outPos += bytes.length;
+		return endFrame();
+	}
+
+	public int getInDictionarySize() {
+		return inDictionary.size();
+	}
+
+	public int getOutDictionarySize() {
+		return outDictionary.size();
+	}
+
+	private Element decodeClusterElement(ByteBuffer in) throws IOException {
+		Element cluster = new Element(CLUSTER_EL_NAME);
+		cluster.setXMLNS(XMLNS);
+		setAttribute(cluster, "id", readNullableString(in));
+		setAttribute(cluster, "from", readDict(in));
+		setAttribute(cluster, "to", readDict(in));
+		setAttribute(cluster, "type", readDict(in));
+		setAttribute(cluster, "priority", readDict(in));
+
+		int flags = readVarInt(in);
+		if ((flags & CONTROL) != 0) {
+			Element control = new Element(CLUSTER_CONTROL_EL_NAME);
+			cluster.addChild(control);
+
+			if (readVarInt(in) != 0) {
+				control.addChild(new Element(FIRST_NODE_EL_NAME, readNullableString(in)));
+			}
+			if ((flags & VISITED_NODES) != 0) {
+				Element visitedNodes = new Element(VISITED_NODES_EL_NAME);
+				int count = readCount(in);
+				for (int i = 0; i < count; i++) {
+					visitedNodes.addChild(new Element(NODE_ID_EL_NAME, readDict(in)));
+				}
+				control.addChild(visitedNodes);
+			}
+			if ((flags & METHOD_CALL) != 0) {
+				Element methodCall = new Element(CLUSTER_METHOD_EL_NAME, new String[]{CLUSTER_NAME_ATTR},
+												 new String[]{readDict(in)});
+				readNamedValues(in, methodCall, CLUSTER_METHOD_PAR_EL_NAME);
+				if ((flags & RESULTS) != 0) {
+					Element results = new Element(CLUSTER_METHOD_RESULTS_EL_NAME);
+					readNamedValues(in, results, CLUSTER_METHOD_RESULTS_VAL_EL_NAME);
+					methodCall.addChild(results);
+				}
+				control.addChild(methodCall);
+			}
+		}
+
+		if ((flags & DATA) != 0) {
+			Element data = new Element(CLUSTER_DATA_EL_NAME);
+			int count = readCount(in);
+			for (int i = 0; i < count; i++) {
+				data.addChild(parseStanza(readBytesString(in)));
+			}
+			cluster.addChild(data);
+		}
+		return cluster;
+	}
+
+	private Element parseStanza(String xml) throws IOException {
+		char[] data = xml.toCharArray();
+
+		parser.parse(stanzaHandler, data, 0, data.length);
+
+		Element stanza = stanzaHandler.getParsedElements().poll();
+		if (stanza == null) {
+			throw new IOException("Invalid stanza: " + xml);
+		}
+		return stanza;
+	}
+
+	private void ensureCapacity(int length) {
+		if (outPos + length > out.length) {
+			out = Arrays.copyOf(out, Math.max(out.length * 2, outPos + length));
+		}
+	}
+
+	private ByteBuffer endFrame() {
+		int length = outPos - LENGTH_RESERVED;
+		int lengthSize = varIntSize(length);
+		int start = LENGTH_RESERVED - lengthSize;
+
+		outPos = start;
+		writeVarInt(length);
+		return ByteBuffer.wrap(out, start, lengthSize + length);
+	}
+
+	private void setAttribute(Element elem, String name, String value) {
+		if (value != null) {
+			elem.setAttribute(name, value);
+		}
+	}
+
+	private int readCount(ByteBuffer in) throws IOException {
+		int count = readVarInt(in);
+		if (count > in.remaining()) {
+			throw new IOException("Invalid number of items: " + count);
+		}
+		return count;
+	}
+
+	private String readDict(ByteBuffer in) throws IOException {
+		int id = readVarInt(in);
+		switch (id) {
+			case DICT_NULL:
+				return null;
+			case DICT_NEW:
+				if (inDictionary.size() >= MAX_DICTIONARY_SIZE) {
+					throw new IOException("Dictionary size exceeded");
+				}
+				String value = readBytesString(in).intern();
+				inDictionary.add(value);
+				return value;
+			case DICT_LITERAL:
+				return readBytesString(in);
+			default:
+				if (id - DICT_ID_OFFSET >= inDictionary.size()) {
+					throw new IOException("Unknown dictionary id: " + id);
+				}
+				return inDictionary.get(id - DICT_ID_OFFSET);
+		}
+	}
+
+	private String readBytesString(ByteBuffer in) throws IOException {
+		return readString(in, readVarInt(in));
+	}
+
+	private int readLength(ByteBuffer in) throws IOException {
+		int value = 0;
+		for (int shift = 0; shift < 35; shift += 7) {
+			if (!in.hasRemaining()) {
+				return -1;
+			}
+			byte b = in.get();
+			value |= (b & 0x7F) << shift;
+			if (b >= 0) {
+				if (value <= 0 || value > MAX_FRAME_SIZE) {
+					throw new IOException("Invalid frame size: " + value);
+				}
+				return value;
+			}
+		}
+		throw new IOException("Invalid frame size");
+	}
+
+	private void readNamedValues(ByteBuffer in, Element parent, String name) throws IOException {
+		int count = readCount(in);
+		for (int i = 0; i < count; i++) {
+			String key = readDict(in);
+			String value = readNullableString(in);
+			parent.addChild(new Element(name, value, new String[]{CLUSTER_NAME_ATTR}, new String[]{key}));
+		}
+	}
+
+	private String readNullableString(ByteBuffer in) throws IOException {
+		int length = readVarInt(in);
+		return length == 0 ? null : readString(in, length - 1);
+	}
+
+	private String readString(ByteBuffer in, int length) throws IOException {
+		if (length < 0 || length > in.remaining()) {
+			throw new IOException("Invalid string length: " + length);
+		}
+
+		String value;
+		if (in.hasArray()) {
+			value = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+			in.position(in.position() + length);
+		} else {
+			byte[] bytes = new byte[length];
+			in.get(bytes);
+			value = new String(bytes, StandardCharsets.UTF_8);
+		}
+		return value;
+	}
+
+	private int readVarInt(ByteBuffer in) throws IOException {
+		int value = 0;
+		for (int shift = 0; shift < 35; shift += 7) {
+			if (!in.hasRemaining()) {
+				throw new IOException("Unexpected end of frame");
+			}
+			byte b = in.get();
+			value |= (b & 0x7F) << shift;
+			if (b >= 0) {
+				if (value < 0) {
+					throw new IOException("Invalid value: " + value);
+				}
+				return value;
+			}
+		}
+		throw new IOException("Invalid value");
+	}
+
+	private void startFrame(byte type) {
+		outPos = LENGTH_RESERVED;
+		ensureCapacity(1);
+		out[outPos++] = type;
+	}
+
+	private int varIntSize(int value) {
+		int size = 1;
+		while ((value >>>= 7) != 0) {
+			size++;
+		}
+		return size;
+	}
+
+	private void writeBytes(String value) {
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		writeVarInt(bytes.length);
+		ensureCapacity(bytes.length);
+		System.arraycopy(bytes, 0, out, outPos, bytes.length);
+		outPos += bytes.length;
+	}
+
+	private void writeDict(String value) {
+		if (value == null) {
+			writeVarInt(DICT_NULL);
+			return;
+		}
+
+		Integer id = outDictionary.get(value);
+		if (id != null) {
+			writeVarInt(id + DICT_ID_OFFSET);
+		} else if (outDictionary.size() < MAX_DICTIONARY_SIZE) {
+			outDictionary.put(value, outDictionary.size());
+			writeVarInt(DICT_NEW);
+			writeBytes(value);
+		} else {
+			writeVarInt(DICT_LITERAL);
+			writeBytes(value);
+		}
+	}
+
+	private void writeNamedValues(Element parent, String name) {
+		List<Element> values = new ArrayList<>();
+		for (Element child : children(parent)) {
+			if (child.getName() == name) {
+				values.add(child);
+			}
+		}
+		writeVarInt(values.size());
+		for (Element value : values) {
+			writeDict(value.getAttributeStaticStr(CLUSTER_NAME_ATTR));
+			writeString(value.getCData());
+		}
+	}
+
+	private void writeString(String value) {
+		if (value == null) {
+			writeVarInt(0);
+			return;
+		}
+
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		writeVarInt(bytes.length + 1);
+		ensureCapacity(bytes.length);
+		System.arraycopy(bytes, 0, out, outPos, bytes.length);
+		outPos += bytes.length;
+	}
+
+	private void writeVarInt(int value) {
+		ensureCapacity(5);
+		while ((value & ~0x7F) != 0) {
+			out[outPos++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out[outPos++] = (byte) value;
+	}
+
+	/**
+	 * Handler of decoded frames.
+	 */
+	public interface FrameHandler {
+
+		void clusterElement(Element elem) throws IOException;
+
+		void xmlData(String data) throws IOException;
+
+	}
+}
@@ -0,0 +1,268 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.cluster;
+
+import tigase.server.Packet;
+import tigase.util.stringprep.TigaseStringprepException;
+import tigase.xml.Element;
+import tigase.xmpp.XMPPIOService;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Service of a cluster connection which supports binary framing of data sent between cluster nodes.
+ * <br>
+ * Connection is always started as an XML stream. If binary framing is enabled on both nodes, they agree to use it
+ * while opening the stream and both of them switch to frames encoded by {@link ClusterFrameCodec} right after sending
+ * the <code>handshake</code> element. If binary framing is not agreed, the connection works as a plain XML stream.
+ */
+public class ClusterIOService
+		extends XMPPIOService<Object> {
+
+	public static final String FRAMING_ATTR = "framing";
+
+	public static final String FRAMING_BINARY = "binary";
+
+	private static final byte[] HANDSHAKE_END = "</handshake>".getBytes(StandardCharsets.UTF_8);
+
+	private static final byte[] HANDSHAKE_EMPTY = "<handshake/>".getBytes(StandardCharsets.UTF_8);
+
+	private static final int INPUT_BUFFER_SIZE = 16 * 1024;
+
+	private static final Logger log = Logger.getLogger(ClusterIOService.class.getName());
+
+	private final ClusterFrameCodec codec = new ClusterFrameCodec();
+	private final ClusterFrameCodec.FrameHandler frameHandler = new FrameHandler();
+	private long framesReceived = 0;
+	private long framesSent = 0;
+	private ByteBuffer input = null;
+	private volatile InputMode inputMode = InputMode.xml;
+	private volatile boolean outputBinary = false;
+
+	/**
+	 * Switches input of the connection to binary frames, which are expected after the <code>handshake</code>
+	 * element.
+	 */
+	public void enableBinaryInput() {
+		if (log.isLoggable(Level.FINEST)) {
+			log.log(Level.FINEST, "{0}, binary input enabled", toString());
+		}
+		inputMode = InputMode.handshake;
+	}
+
+	public long getFramesReceived() {
+		return framesReceived;
+	}
+
+	public long getFramesSent() {
+		return framesSent;
+	}
+
+	/**
+	 * Returns <code>true</code> if binary framing was agreed for this connection.
+	 */
+	public boolean isBinary() {
+		return inputMode != InputMode.xml;
+	}
+
+	/**
+	 * Writes <code>handshake</code> element as XML and switches output of the connection to binary frames.
+	 *
+	 * @param handshake serialized <code>handshake</code> element
+	 */
+	public void writeHandshake(String handshake) throws IOException {
+		synchronized (codec) {
+			super.writeRawData(handshake);
+			outputBinary = true;
+		}
+	}
+
+	@Override
+	public void writeRawData(String data) throws IOException {
+		if (!outputBinary || data == null || data.isEmpty()) {
+			super.writeRawData(data);
+			return;
+		}
+
+		synchronized (codec) {
+			bufferBytes(codec.encodeXml(data));
+			++framesSent;
+		}
+		flushData();
+	}
+
+	@Override
+	protected void processSocketData() throws IOException {
+		if (inputMode == InputMode.xml) {
+			super.processSocketData();
+			if (inputMode == InputMode.xml) {
+				return;
+			}
+		}
+
+		ByteBuffer data;
+		while (isConnected() && (data = readBytes()) != null) {
+			try {
+				appendInput(data);
+			} finally {
+				data.clear();
+			}
+			if (!processInput()) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * XML stream may be replaced by binary frames in the middle of a read, which is detected only by
+	 * {@link #readData()}.
+	 */
+	@Override
+	protected boolean isByteParsingSupported() {
+		return false;
+	}
+
+	@Override
+	protected char[] readData() throws IOException {
+		// after binary framing was agreed, data is read by processSocketData()
+		if (inputMode != InputMode.xml) {
+			return null;
+		}
+		return super.readData();
+	}
+
+	@Override
+	protected void writePacket(Packet packet) throws IOException {
+		if (!outputBinary) {
+			super.writePacket(packet);
+			return;
+		}
+
+		// frames must be written in the same order in which they were encoded
+		synchronized (codec) {
+			bufferBytes(codec.encode(packet.getElement()));
+			++framesSent;
+		}
+	}
+
+	private void appendInput(ByteBuffer data) {
+		if (input == null) {
+			input = ByteBuffer.allocate(Math.max(INPUT_BUFFER_SIZE, data.remaining()));
+		} else if (input.remaining() < data.remaining()) {
+			ByteBuffer newInput = ByteBuffer.allocate(Math.max(input.capacity() * 2, input.position() + data.remaining()));
+			input.flip();
+			newInput.put(input);
+			input = newInput;
+		}
+		input.put(data);
+	}
+
+	private int indexOf(ByteBuffer buffer, byte[] pattern) {
+		for (int i = buffer.position(); i <= buffer.limit() - pattern.length; i++) {
+			int j = 0;
+			while (j < pattern.length && buffer.get(i + j) == pattern[j]) {
+				j++;
+			}
+			if (j == pattern.length) {
+				return i + pattern.length;
+			}
+		}
+		return -1;
+	}
+
+	private boolean processHandshake() throws IOException {
+		int end = indexOf(input, HANDSHAKE_END);
+		int empty = indexOf(input, HANDSHAKE_EMPTY);
+		if (end < 0 || (empty >= 0 && empty < end)) {
+			end = empty;
+		}
+		if (end < 0) {
+			return true;
+		}
+
+		ByteBuffer handshakeBytes = input.duplicate();
+		handshakeBytes.limit(end);
+
+		CharBuffer chars = StandardCharsets.UTF_8.decode(handshakeBytes);
+		char[] handshake = new char[chars.remaining()];
+		chars.get(handshake);
+
+		// data following the handshake element are binary frames
+		input.position(end);
+		inputMode = InputMode.binary;
+		return processData(handshake);
+	}
+
+	private boolean processInput() throws IOException {
+		input.flip();
+		try {
+			if (inputMode == InputMode.handshake) {
+				if (!processHandshake()) {
+					return false;
+				}
+				if (inputMode == InputMode.handshake) {
+					// waiting for the rest of the handshake element
+					return true;
+				}
+			}
+			framesReceived += codec.decode(input, frameHandler);
+			return true;
+		} catch (IOException ex) {
+			log.log(Level.INFO, toString() + ", Incorrect binary data, stopping connection: " + getConnectionId(), ex);
+			forceStop();
+			return false;
+		} finally {
+			input.compact();
+		}
+	}
+
+	private enum InputMode {
+		xml,
+		handshake,
+		binary
+	}
+
+	private class FrameHandler
+			implements ClusterFrameCodec.FrameHandler {
+
+		@Override
+		public void clusterElement(Element elem) throws IOException {
+			if (log.isLoggable(Level.FINEST)) {
+				log.log(Level.FINEST, "{0}, Read packet: {1}", new Object[]{ClusterIOService.this.toString(), elem});
+			}
+			try {
+				addReceivedPacket(Packet.packetInstance(elem));
+			} catch (TigaseStringprepException ex) {
+				log.log(Level.INFO, ClusterIOService.this.toString() + ", Incorrect to/from JID format for stanza: " + elem,
+						ex);
+			}
+		}
+
+		@Override
+		public void xmlData(String data) throws IOException {
+			if (!processData(data.toCharArray())) {
+				throw new IOException("Invalid XML data");
+			}
+		}
+	}
+}
@@ -0,0 +1,324 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.cluster.strategy;
+
+import tigase.stats.StatisticsList;
+import tigase.xml.Element;
+import tigase.xmpp.jid.JID;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Collects records of user connections and presences which have to be synchronized with other cluster nodes and
+ * sends them in batches.
+ * <br>
+ * Records are collected separately for each destination node. Batch is sent when it contains <code>maxSize</code>
+ * records or when <code>window</code> milliseconds passed since the first record was added to it. Presence of a
+ * connection replaces presence of the same connection which was not sent yet, so only the latest presence is sent.
+ * <br>
+ * Batch is sent as a single map of parameters, where parameters of each record are prefixed with the index of the
+ * record, and a queue with presences of all presence records in the same order. Such batch may be split back into
+ * records with {@link #parseBatch(Map)}.
+ */
+class ClusterSyncBatcher {
+
+	static final String COUNT_KEY = "count";
+
+	static final String TYPE_KEY = "type";
+
+	static final String TYPE_CONNECTED = "c";
+
+	static final String TYPE_PRESENCE = "p";
+
+	private static final Logger log = Logger.getLogger(ClusterSyncBatcher.class.getName());
+
+	private final Map<JID, Batch> batches = new ConcurrentHashMap<>();
+	private final LongAdder batchesSent = new LongAdder();
+	private final LongAccumulator maxBatchSize = new LongAccumulator(Long::max, 0);
+	private final LongAccumulator maxLatency = new LongAccumulator(Long::max, 0);
+	private final LongAdder recordsSent = new LongAdder();
+	private final Sender sender;
+	private final LongAdder superseded = new LongAdder();
+	private final LongAdder totalLatency = new LongAdder();
+	private volatile int maxSize;
+	private Timer timer = null;
+	private volatile long window;
+
+	/**
+	 * Splits parameters of the batch into parameters of records.
+	 *
+	 * @return list of parameters of records, each containing <code>{@value #TYPE_KEY}</code> parameter
+	 */
+	static List<Map<String, String>> parseBatch(Map<String, String> data) {
+		int count = Integer.parseInt(data.get(COUNT_KEY));
+		List<Map<String, String>> records = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			records.add(new LinkedHashMap<>());
+		}
+
+		for (Map.Entry<String, String> entry : data.entrySet()) {
+			String key = entry.getKey();
+			int idx = key.indexOf('.');
+			if (idx > 0) {
+				records.get(Integer.parseInt(key.substring(0, idx))).put(key.substring(idx + 1), entry.getValue());
+			}
+		}
+		return records;
+	}
+
+	ClusterSyncBatcher(Sender sender, long window, int maxSize) {
+		this.sender = sender;
+		this.window = window;
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * Adds record of a user connection.
+	 *
+	 * @param nodes to which record should be sent
+	 * @param key identifying the connection
+	 * @param params of the connection
+	 */
+	void addConnected(List<JID> nodes, String key, Map<String, String> params) {
+		for (JID node : nodes) {
+			add(node, TYPE_CONNECTED + key, new Record(TYPE_CONNECTED, params, null), null, null);
+		}
+	}
+
+	/**
+	 * Adds record of a user presence, replacing presence of the same connection which was not sent yet.
+	 *
+	 * @param nodes to which record should be sent
+	 * @param key identifying the connection
+	 * @param params of the connection
+	 * @param presence of the connection
+	 * @param keepKey name of the parameter which value should be kept from the replaced record if it was equal to
+	 * <code>keepValue</code> and the new presence is available
+	 * @param keepValue value of the parameter which should be kept
+	 */
+	void addPresence(List<JID> nodes, String key, Map<String, String> params, Element presence, String keepKey,
+					 String keepValue) {
+		for (JID node : nodes) {
+			add(node, TYPE_PRESENCE + key, new Record(TYPE_PRESENCE, params, presence), keepKey, keepValue);
+		}
+	}
+
+	/**
+	 * Sends all collected records.
+	 */
+	void flushAll() {
+		for (Batch batch : batches.values()) {
+			synchronized (batch) {
+				send(batch);
+			}
+		}
+	}
+
+	long getWindow() {
+		return window;
+	}
+
+	void setWindow(long window) {
+		this.window = window;
+		if (window <= 0) {
+			flushAll();
+		}
+	}
+
+	void getStatistics(String compName, StatisticsList list) {
+		long batchesVal = batchesSent.sum();
+		long recordsVal = recordsSent.sum();
+
+		list.add(compName, "Cluster sync batches", batchesVal, Level.FINE);
+		list.add(compName, "Cluster sync batched records", recordsVal, Level.FINE);
+		list.add(compName, "Cluster sync superseded presences", superseded.sum(), Level.FINE);
+		list.add(compName, "Cluster sync average batch size", batchesVal == 0 ? 0f : ((float) recordsVal) / batchesVal,
+				 Level.FINE);
+		list.add(compName, "Cluster sync max batch size", maxBatchSize.get(), Level.FINE);
+		list.add(compName, "Cluster sync average batch latency [ms]",
+				 batchesVal == 0 ? 0f : ((float) totalLatency.sum()) / batchesVal, Level.FINE);
+		list.add(compName, "Cluster sync max batch latency [ms]", maxLatency.get(), Level.FINE);
+	}
+
+	boolean isEnabled() {
+		return window > 0;
+	}
+
+	/**
+	 * Removes records collected for the node.
+	 */
+	void nodeDisconnected(JID node) {
+		Batch batch = batches.remove(node);
+		if (batch != null) {
+			synchronized (batch) {
+				if (batch.task != null) {
+					batch.task.cancel();
+					batch.task = null;
+				}
+				batch.records.clear();
+			}
+		}
+	}
+
+	void setMaxSize(int maxSize) {
+		this.maxSize = maxSize;
+	}
+
+	private void add(JID node, String key, Record record, String keepKey, String keepValue) {
+		Batch batch = batches.computeIfAbsent(node, Batch::new);
+
+		// batch is sent while holding its lock, so batches for the node are sent in order
+		synchronized (batch) {
+			if (batch.records.isEmpty()) {
+				batch.created = System.currentTimeMillis();
+				batch.task = new FlushTask(batch);
+				getTimer().schedule(batch.task, Math.max(1, window));
+			}
+
+			Record old = batch.records.put(key, record);
+			if (old != null) {
+				superseded.increment();
+				// ie. initial presence replaced by unavailable presence must not be reported as initial
+				if (keepKey != null && keepValue.equals(old.params.get(keepKey)) &&
+						!keepValue.equals(record.params.get(keepKey)) && isAvailable(record.presence)) {
+					Map<String, String> params = new LinkedHashMap<>(record.params);
+					params.put(keepKey, keepValue);
+					batch.records.put(key, new Record(record.type, params, record.presence));
+				}
+			}
+			if (batch.records.size() >= maxSize) {
+				send(batch);
+			}
+		}
+	}
+
+	private static boolean isAvailable(Element presence) {
+		return presence != null && presence.getAttributeStaticStr("type") == null;
+	}
+
+	private synchronized Timer getTimer() {
+		if (timer == null) {
+			timer = new Timer("cluster-sync-batcher", true);
+		}
+		return timer;
+	}
+
+	private void send(Batch batch) {
+		if (batch.task != null) {
+			batch.task.cancel();
+			batch.task = null;
+		}
+		if (batch.records.isEmpty()) {
+			return;
+		}
+
+		Map<String, String> params = new LinkedHashMap<>();
+		Queue<Element> packets = new ArrayDeque<>();
+		int idx = 0;
+
+		for (Record record : batch.records.values()) {
+			String prefix = idx + ".";
+			params.put(prefix + TYPE_KEY, record.type);
+			for (Map.Entry<String, String> param : record.params.entrySet()) {
+				params.put(prefix + param.getKey(), param.getValue());
+			}
+			if (record.presence != null) {
+				packets.offer(record.presence);
+			}
+			++idx;
+		}
+		params.put(COUNT_KEY, String.valueOf(idx));
+		batch.records.clear();
+
+		long latency = System.currentTimeMillis() - batch.created;
+		batchesSent.increment();
+		recordsSent.add(idx);
+		maxBatchSize.accumulate(idx);
+		totalLatency.add(latency);
+		maxLatency.accumulate(latency);
+
+		if (log.isLoggable(Level.FINEST)) {
+			log.log(Level.FINEST, "Sending batch of {0} records to {1}, latency: {2}ms",
+					new Object[]{idx, batch.node, latency});
+		}
+		try {
+			sender.send(batch.node, params, packets);
+		} catch (Exception ex) {
+			log.log(Level.WARNING, "Problem sending cluster sync batch to: " + batch.node, ex);
+		}
+	}
+
+	/**
+	 * Sends batch of records to the node.
+	 */
+	interface Sender {
+
+		void send(JID node, Map<String, String> params, Queue<Element> packets);
+
+	}
+
+	private static class Batch {
+
+		private final JID node;
+		private final LinkedHashMap<String, Record> records = new LinkedHashMap<>();
+		private long created;
+		private TimerTask task;
+
+		private Batch(JID node) {
+			this.node = node;
+		}
+	}
+
+	private static class Record {
+
+		private final Map<String, String> params;
+		private final Element presence;
+		private final String type;
+
+		private Record(String type, Map<String, String> params, Element presence) {
+			this.type = type;
+			this.params = params;
+			this.presence = presence;
+		}
+	}
+
+	private class FlushTask
+			extends TimerTask {
+
+		private final Batch batch;
+
+		private FlushTask(Batch batch) {
+			this.batch = batch;
+		}
+
+		@Override
+		public void run() {
+			synchronized (batch) {
+				// task could be replaced if the batch was sent in the meantime
+				if (batch.task == this) {
+					send(batch);
+				}
+			}
+		}
+	}
+}
@@ -21,8 +21,10 @@ import tigase.cluster.SessionManagerClustered;
 import tigase.cluster.api.ClusterCommandException;
 import tigase.cluster.api.CommandListenerAbstract;
 import tigase.kernel.beans.Bean;
+import tigase.kernel.beans.config.ConfigField;
 import tigase.server.*;
 import tigase.server.xmppsession.UserConnectedEvent;
+import tigase.stats.StatisticsList;
 import tigase.xml.Element;
 import tigase.xmpp.*;
 import tigase.xmpp.jid.BareJID;
@@ -59,18 +61,54 @@ public class DefaultClusteringStrategy<E extends ConnectionRecordIfc>
 	private static final String PRESENCE_TYPE_UPDATE = "update";
 	private static final String USER_CONNECTED_CMD = "user-connected-sm-cmd";
 	private static final String USER_PRESENCE_CMD = "user-presence-sm-cmd";
+	private static final String USER_SYNC_BATCH_CMD = "user-sync-batch-sm-cmd";
 
 	// Simple random generator, we do not need a strong randomization here.
 	// Just enough to ensure better traffic distribution
 	private Random rand = new Random();
-
+	@ConfigField(desc = "Maximal number of user connections and presences sent in a single batch", alias = "sync-batch-max-size")
+	private int syncBatchMaxSize = 100;
+	@ConfigField(desc = "Time window for batching user connections and presences sent to other nodes [ms]", alias = "sync-batch-window")
+	private long syncBatchWindow = 0;
+	private final ClusterSyncBatcher syncBatcher;
+	private final UserConnectedCommand userConnectedCommand;
+	private final UserPresenceCommand userPresenceCommand;
 
 	public DefaultClusteringStrategy() {
 		super();
-		addCommandListener(new UserPresenceCommand(USER_PRESENCE_CMD));
-		addCommandListener(new UserConnectedCommand(USER_CONNECTED_CMD));
+		userPresenceCommand = new UserPresenceCommand(USER_PRESENCE_CMD);
+		userConnectedCommand = new UserConnectedCommand(USER_CONNECTED_CMD);
+		addCommandListener(userPresenceCommand);
+		addCommandListener(userConnectedCommand);
+		addCommandListener(new UserSyncBatchCommand(USER_SYNC_BATCH_CMD));
+		syncBatcher = new ClusterSyncBatcher(
+				(node, params, packets) -> cluster.sendToNodes(USER_SYNC_BATCH_CMD, params, packets,
+															   sm.getComponentId(), null, node), syncBatchWindow,
+				syncBatchMaxSize);
+	}
+
+	@Override
+	public void getStatistics(String compName, StatisticsList list) {
+		super.getStatistics(compName, list);
+		syncBatcher.getStatistics(compName, list);
+	}
+
+	@Override
+	public void nodeDisconnected(JID node) {
+		super.nodeDisconnected(node);
+		syncBatcher.nodeDisconnected(node);
+	}
+
+	public void setSyncBatchMaxSize(int syncBatchMaxSize) {
+		this.syncBatchMaxSize = syncBatchMaxSize;
+		syncBatcher.setMaxSize(syncBatchMaxSize);
+	}
+
+	public void setSyncBatchWindow(long syncBatchWindow) {
+		this.syncBatchWindow = syncBatchWindow;
+		syncBatcher.setWindow(syncBatchWindow);
 	}
-	
+
 	@Override
 	public void handleLocalPacket(Packet packet, XMPPResourceConnection conn) {
 		if (packet.getElemName() == Presence.ELEM_NAME) {
@@ -108,8 +146,7 @@ public class DefaultClusteringStrategy<E extends ConnectionRecordIfc>
 				if ((cl_nodes != null) && (cl_nodes.size() > 0)) {
 
 					// ++clusterSyncOutTraffic;
-					cluster.sendToNodes(USER_PRESENCE_CMD, params, presence, sm.getComponentId(), null,
-										cl_nodes.toArray(new JID[cl_nodes.size()]));
+					sendUserPresence(params, presence, cl_nodes);
 				}
 			} catch (Exception e) {
 				log.log(Level.WARNING, "Problem with broadcast user presence for: " + conn, e);
@@ -125,8 +162,12 @@ public class DefaultClusteringStrategy<E extends ConnectionRecordIfc>
 			List<JID> cl_nodes = getNodesConnected();
 
 			// ++clusterSyncOutTraffic;
-			cluster.sendToNodes(USER_CONNECTED_CMD, params, sm.getComponentId(),
-								cl_nodes.toArray(new JID[cl_nodes.size()]));
+			if (syncBatcher.isEnabled()) {
+				syncBatcher.addConnected(cl_nodes, params.get(CONNECTION_ID), params);
+			} else {
+				cluster.sendToNodes(USER_CONNECTED_CMD, params, sm.getComponentId(),
+									cl_nodes.toArray(new JID[cl_nodes.size()]));
+			}
 		} catch (Exception e) {
 			log.log(Level.WARNING, "Problem with broadcast user presence for: " + conn, e);
 		}
@@ -156,8 +197,7 @@ public class DefaultClusteringStrategy<E extends ConnectionRecordIfc>
 			if ((cl_nodes != null) && (cl_nodes.size() > 0)) {
 
 				// ++clusterSyncOutTraffic;
-				cluster.sendToNodes(USER_PRESENCE_CMD, params, presence, sm.getComponentId(), null,
-									cl_nodes.toArray(new JID[cl_nodes.size()]));
+				sendUserPresence(params, presence, cl_nodes);
 			}
 		} catch (Exception e) {
 			log.log(Level.WARNING, "Problem with broadcast user presence for: " + conn, e);
@@ -262,6 +302,16 @@ public class DefaultClusteringStrategy<E extends ConnectionRecordIfc>
 		return rec;
 	}
 
+	private void sendUserPresence(Map<String, String> params, Element presence, List<JID> cl_nodes) {
+		if (syncBatcher.isEnabled()) {
+			syncBatcher.addPresence(cl_nodes, params.get(CONNECTION_ID), params, presence, PRESENCE_TYPE_KEY,
+									PRESENCE_TYPE_INITIAL);
+		} else {
+			cluster.sendToNodes(USER_PRESENCE_CMD, params, presence, sm.getComponentId(), null,
+								cl_nodes.toArray(new JID[cl_nodes.size()]));
+		}
+	}
+
 	private List<JID> selectNodes(JID fromNode, Set<JID> visitedNodes) {
 		List<JID> result = null;
 		List<JID> cl_nodes_list = getNodesConnected();
@@ -448,5 +498,37 @@ public class DefaultClusteringStrategy<E extends ConnectionRecordIfc>
 			}
 		}
 	}
-}
 
+	private class UserSyncBatchCommand
+			extends CommandListenerAbstract {
+
+		public UserSyncBatchCommand(String name) {
+			super(name, Priority.CLUSTER);
+		}
+
+		@Override
+		public void executeCommand(JID fromNode, Set<JID> visitedNodes, Map<String, String> data,
+								   Queue<Element> packets) throws ClusterCommandException {
+			if (log.isLoggable(Level.FINEST)) {
+				log.log(Level.FINEST, "Called fromNode: {0}, visitedNodes: {1}, data: {2}, packets: {3}",
+						new Object[]{fromNode, visitedNodes, data, packets});
+			}
+
+			for (Map<String, String> record : ClusterSyncBatcher.parseBatch(data)) {
+				String type = record.remove(ClusterSyncBatcher.TYPE_KEY);
+				try {
+					if (ClusterSyncBatcher.TYPE_PRESENCE.equals(type)) {
+						Queue<Element> presence = new ArrayDeque<>(1);
+						presence.offer(packets.poll());
+						userPresenceCommand.executeCommand(fromNode, visitedNodes, record, presence);
+					} else {
+						userConnectedCommand.executeCommand(fromNode, visitedNodes, record, packets);
+					}
+				} catch (Exception ex) {
+					log.log(Level.WARNING, "Problem processing batched record: " + record + ", fromNode: " + fromNode,
+							ex);
+				}
+			}
+		}
+	}
+}
@@ -19,6 +19,7 @@ package tigase.db;
 
 import tigase.db.jdbc.DataRepositoryImpl;
 import tigase.db.util.DBInitForkJoinPoolCache;
+import tigase.kernel.beans.config.ConfigField;
 import tigase.stats.StatisticsList;
 import tigase.stats.StatisticsProviderIfc;
 import tigase.util.Version;
@@ -33,13 +34,28 @@ import java.util.ArrayDeque;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Queue;
-import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.concurrent.ForkJoinPool;
-import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
+ * Pool of data repositories, each of them using a single database connection.
+ * <br>
+ * Statements obtained directly from the pool are always executed on a connection selected by a hash of the user ID,
+ * so callers have to synchronize on them. Handles obtained with {@link #takeRepoHandle(BareJID)} depend on the
+ * configured mode:
+ * <ul>
+ * <li><code>hashed</code> (default) - the same connection as for statements obtained directly from the pool is
+ * returned,</li>
+ * <li><code>borrow</code> - an idle connection is borrowed exclusively until it is returned with {@link
+ * #releaseRepoHandle(DataRepository)}, so a slow query of one user does not block other users hashed to the same
+ * connection. If there is no idle connection within <code>pool-max-wait</code>, the hashed connection is returned
+ * instead.</li>
+ * </ul>
+ * Prepared statements are cached by each repository (connection), so leased handles use their own statements.
+ * <br>
  * Created: Sep 4, 2010 2:13:22 PM
  *
  * @author <a href="mailto:artur.hefczyc@tigase.org">Artur Hefczyc</a>
@@ -50,13 +66,36 @@ public class DataRepositoryPool
 
 	private static final Logger log = Logger.getLogger(DataRepositoryPool.class.getName());
 
+	public enum Mode {
+		hashed,
+		borrow
+	}
+
 	// ~--- fields ---------------------------------------------------------------
+	private final LongAdder borrowTimeouts = new LongAdder();
+	private final LongAdder borrowWaitTime = new LongAdder();
+	private final LongAdder borrowWaits = new LongAdder();
+	private final LongAdder borrows = new LongAdder();
 	private dbTypes database = null;
+	private final LinkedBlockingDeque<DataRepository> idle = new LinkedBlockingDeque<>();
+	private final LongAccumulator maxBorrowWaitTime = new LongAccumulator(Math::max, 0);
+	private final LongAccumulator maxInUse = new LongAccumulator(Math::max, 0);
+	@ConfigField(desc = "Maximal time in ms to wait for an idle connection in borrow mode", alias = "pool-max-wait")
+	private long maxWait = 1000;
+	@ConfigField(desc = "Mode of assigning connections to repository handles", alias = "pool-mode")
+	private Mode mode = Mode.hashed;
+	private final ConcurrentHashMap<DataRepository, Thread> owners = new ConcurrentHashMap<>();
 	private CopyOnWriteArrayList<DataRepository> repoPool = new CopyOnWriteArrayList<DataRepository>();
 	private String resource_uri = null;
 
 	public void addRepo(DataRepository repo) {
-		repoPool.addIfAbsent(repo);
+		if (repoPool.addIfAbsent(repo)) {
+			idle.offerLast(repo);
+		}
+	}
+
+	public Mode getMode() {
+		return mode;
 	}
 
 	@Override
@@ -94,14 +133,51 @@ public class DataRepositoryPool
 		return result;
 	}
 
+	/**
+	 * Returns handle of the repository for exclusive use. In <code>borrow</code> mode handle has to be returned with
+	 * {@link #releaseRepoHandle(DataRepository)} by the same thread.
+	 */
 	@Override
 	public DataRepository takeRepoHandle(BareJID user_id) {
-		return takeRepo(user_id);
+		if (mode != Mode.borrow) {
+			return takeRepo(user_id);
+		}
+
+		borrows.increment();
+		DataRepository repo = idle.pollFirst();
+		if (repo == null) {
+			borrowWaits.increment();
+			long start = System.currentTimeMillis();
+			try {
+				repo = idle.pollFirst(maxWait, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+			long waitTime = System.currentTimeMillis() - start;
+			borrowWaitTime.add(waitTime);
+			maxBorrowWaitTime.accumulate(waitTime);
+
+			if (repo == null) {
+				borrowTimeouts.increment();
+				if (log.isLoggable(Level.FINE)) {
+					log.log(Level.FINE, "No idle connection for {0} after {1}ms, using shared connection",
+							new Object[]{user_id, waitTime});
+				}
+				return takeRepo(user_id);
+			}
+		}
+
+		owners.put(repo, Thread.currentThread());
+		maxInUse.accumulate(owners.size());
+		return repo;
 	}
 
 	@Override
 	public void releaseRepoHandle(DataRepository repo) {
-		// addRepo(repo);
+		// only handles borrowed by this thread are returned, shared connections are not tracked
+		if (repo != null && owners.remove(repo, Thread.currentThread())) {
+			idle.offerFirst(repo);
+		}
 	}
 
 	@Override
@@ -210,6 +286,21 @@ public class DataRepositoryPool
 	public void getStatistics(String compName, StatisticsList list) {
 		list.add(compName, "uri", getResourceUri(), Level.FINE);
 		list.add(compName, "connections count", repoPool.size(), Level.FINE);
+		if (mode == Mode.borrow || borrows.sum() > 0) {
+			int inUse = owners.size();
+			long borrowsCount = borrows.sum();
+			long waits = borrowWaits.sum();
+			list.add(compName, "connections in use", inUse, Level.FINE);
+			list.add(compName, "connections in use max", maxInUse.get(), Level.FINE);
+			list.add(compName, "pool saturation [%]", repoPool.isEmpty() ? 0f : (inUse * 100f / repoPool.size()),
+					 Level.FINE);
+			list.add(compName, "connection borrows", borrowsCount, Level.FINER);
+			list.add(compName, "connection borrow waits", waits, Level.FINER);
+			list.add(compName, "connection borrow timeouts", borrowTimeouts.sum(), Level.FINE);
+			list.add(compName, "connection borrow average wait time [ms]",
+					 waits == 0 ? 0f : ((float) borrowWaitTime.sum() / waits), Level.FINE);
+			list.add(compName, "connection borrow max wait time [ms]", maxBorrowWaitTime.get(), Level.FINER);
+		}
 		for (DataRepository repo : repoPool) {
 			if (repo instanceof StatisticsProviderIfc) {
 				((StatisticsProviderIfc) repo).getStatistics(compName, list);
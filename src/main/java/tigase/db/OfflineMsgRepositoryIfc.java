@@ -23,6 +23,7 @@ import tigase.xmpp.jid.JID;
 
 import java.util.Date;
 import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Interface for storing and restoring offline Elements.
@@ -76,4 +77,29 @@ public interface OfflineMsgRepositoryIfc
 	 */
 	boolean storeMessage(JID from, JID to, Date expired, Element msg, NonAuthUserRepository userRepo)
 			throws UserNotFoundException;
+
+	/**
+	 * Saves the massage to the repository without waiting for the message being stored. Messages to the same
+	 * recipient are stored in the order in which this method was called.
+	 *
+	 * @param from {@link JID} denotes address of the sender
+	 * @param to {@link JID} denotes address of the receiver
+	 * @param expired {@link Date} object denoting expiration date of the message
+	 * @param msg {@link Element} payload of the stanza to be saved
+	 * @param userRepo {@link NonAuthUserRepository} instance of non auth user repository to get user settings for
+	 * offline messages
+	 *
+	 * @return future completed with {@code true} if the packet was correctly saved to repository, {@code false}
+	 * otherwise.
+	 */
+	default CompletableFuture<Boolean> storeMessageAsync(JID from, JID to, Date expired, Element msg,
+														 NonAuthUserRepository userRepo) {
+		CompletableFuture<Boolean> future = new CompletableFuture<>();
+		try {
+			future.complete(storeMessage(from, to, expired, msg, userRepo));
+		} catch (UserNotFoundException ex) {
+			future.completeExceptionally(ex);
+		}
+		return future;
+	}
 }
@@ -22,6 +22,7 @@ import tigase.kernel.beans.config.ConfigField;
 import tigase.stats.ComponentStatisticsProvider;
 import tigase.stats.StatisticsInvocationHandler;
 import tigase.stats.StatisticsList;
+import tigase.stats.StatisticsProviderIfc;
 
 import java.lang.reflect.Proxy;
 import java.util.Arrays;
@@ -75,6 +76,12 @@ public abstract class MDRepositoryBeanWithStatistics<T extends DataSourceAware>
 		handlers.values().forEach(handler -> {
 			handler.getStatistics(compName, getName(), list);
 		});
+		// repositories may provide statistics of their own
+		super.getRepositories().values().forEach(repo -> {
+			if (repo instanceof StatisticsProviderIfc) {
+				((StatisticsProviderIfc) repo).getStatistics(compName, list);
+			}
+		});
 	}
 
 	public void setStatisticsEnabled(boolean value) {
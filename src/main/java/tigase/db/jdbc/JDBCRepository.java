@@ -127,8 +127,10 @@ public class JDBCRepository
 	public String getData(BareJID user_id, final String subnode, final String key, final String def)
 			throws UserNotFoundException, TigaseDBException {
 
+		DataRepository repo = data_repo.takeRepoHandle(user_id);
+
 		try {
-			long nid = getNodeNID(null, user_id, subnode);
+			long nid = getNodeNID(repo, user_id, subnode);
 
 			if (log.isLoggable(Level.FINEST)) {
 				log.log(Level.FINEST, "Loading data for key: {0}, user: {1}, node: {2}, def: {3}, found nid: {4}",
@@ -138,7 +140,7 @@ public class JDBCRepository
 			if (nid > 0) {
 				ResultSet rs = null;
 
-				PreparedStatement data_for_node_st = data_repo.getPreparedStatement(user_id, DATA_FOR_NODE_QUERY);
+				PreparedStatement data_for_node_st = repo.getPreparedStatement(user_id, DATA_FOR_NODE_QUERY);
 
 				synchronized (data_for_node_st) {
 					try {
@@ -165,6 +167,8 @@ public class JDBCRepository
 			}    // end of if (nid > 0) else
 		} catch (SQLException e) {
 			throw new TigaseDBException("Error getting user data for: " + user_id + "/" + subnode + "/" + key, e);
+		} finally {
+			data_repo.releaseRepoHandle(repo);
 		}
 	}
 
@@ -182,13 +186,15 @@ public class JDBCRepository
 	@Override
 	public Map<String, String> getDataMap(BareJID user_id, String subnode)
 			throws TigaseDBException {
+		DataRepository repo = data_repo.takeRepoHandle(user_id);
+
 		try {
-			long nid = getNodeNID(null, user_id, subnode);
+			long nid = getNodeNID(repo, user_id, subnode);
 			
 			if (nid > 0) {
 				ResultSet rs = null;
 
-				PreparedStatement data_for_node_st = data_repo.getPreparedStatement(user_id, KEYS_DATA_FOR_NODE_QUERY);
+				PreparedStatement data_for_node_st = repo.getPreparedStatement(user_id, KEYS_DATA_FOR_NODE_QUERY);
 
 				synchronized (data_for_node_st) {
 					try {
@@ -215,6 +221,8 @@ public class JDBCRepository
 			}    // end of if (nid > 0) else
 		} catch (SQLException e) {
 			throw new TigaseDBException("Error getting data map for: " + user_id + "/" + subnode, e);
+		} finally {
+			data_repo.releaseRepoHandle(repo);
 		}
 	}
 
@@ -247,8 +255,10 @@ public class JDBCRepository
 		// return cache_res;
 		// } // end of if (result != null)
 
+		DataRepository repo = data_repo.takeRepoHandle(user_id);
+
 		try {
-			long nid = getNodeNID(null, user_id, subnode);
+			long nid = getNodeNID(repo, user_id, subnode);
 
 			if (log.isLoggable(Level.FINEST)) {
 				log.log(Level.FINEST, "Loading data for key: {0}, user: {1}, node: {2}, found nid: {3}",
@@ -258,7 +268,7 @@ public class JDBCRepository
 			if (nid > 0) {
 				ResultSet rs = null;
 
-				PreparedStatement data_for_node_st = data_repo.getPreparedStatement(user_id, DATA_FOR_NODE_QUERY);
+				PreparedStatement data_for_node_st = repo.getPreparedStatement(user_id, DATA_FOR_NODE_QUERY);
 
 				synchronized (data_for_node_st) {
 					try {
@@ -287,6 +297,8 @@ public class JDBCRepository
 			}    // end of if (nid > 0) else
 		} catch (SQLException e) {
 			throw new TigaseDBException("Error getting data list for: " + user_id + "/" + subnode + "/" + key, e);
+		} finally {
+			data_repo.releaseRepoHandle(repo);
 		}
 	}
 
@@ -687,6 +699,8 @@ public class JDBCRepository
 				log.log(Level.WARNING,
 						"Error setting data , user_id: " + user_id + ", subnode: " + subnode + ", key: " + key +
 								", uid: " + uid + ", nid: " + nid + ", value: " + value, e);
+			} finally {
+				data_repo.releaseRepoHandle(repo);
 			}
 		}
 	}
@@ -52,4 +52,10 @@ public @interface HandleEvent {
 	}
 
 	Type filter() default Type.all;
+
+	/**
+	 * Handler is executed in the thread firing the event, instead of the event bus thread pool. It should be used
+	 * only by handlers which execute quickly and do not block.
+	 */
+	boolean inline() default false;
 }
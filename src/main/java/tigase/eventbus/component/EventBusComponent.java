@@ -27,11 +27,13 @@ import tigase.component.modules.impl.XmppPingModule;
 import tigase.eventbus.EventBusFactory;
 import tigase.eventbus.component.stores.Affiliation;
 import tigase.eventbus.component.stores.AffiliationStore;
+import tigase.eventbus.impl.EventBusImplementation;
 import tigase.kernel.beans.Bean;
+import tigase.kernel.beans.config.ConfigField;
 import tigase.kernel.beans.selector.ConfigType;
 import tigase.kernel.beans.selector.ConfigTypeEnum;
 import tigase.kernel.core.Kernel;
-import tigase.stats.StatisticsList;
+import tigase.stats.MetricsRegistry;
 import tigase.xmpp.jid.JID;
 
 import javax.script.ScriptEngineManager;
@@ -44,6 +46,11 @@ public class EventBusComponent
 		extends AbstractKernelBasedComponent
 		implements ClusteredComponentIfc {
 
+	@ConfigField(desc = "Maximal number of events queued for a single listener (0 - no limit)", alias = "listener-queue-size")
+	private int listenerQueueSize = EventBusImplementation.DEFAULT_LISTENER_QUEUE_SIZE;
+	@ConfigField(desc = "Action taken when listener queue is full", alias = "queue-overflow-policy")
+	private EventBusImplementation.OverflowPolicy queueOverflowPolicy = EventBusImplementation.OverflowPolicy.dropNewest;
+
 	public EventBusComponent() {
 	}
 
@@ -62,11 +69,6 @@ public class EventBusComponent
 		return "Distributed EventBus";
 	}
 
-	@Override
-	public void getStatistics(StatisticsList list) {
-		super.getStatistics(list);
-	}
-
 	@Override
 	public boolean isDiscoNonAdmin() {
 		return false;
@@ -93,6 +95,26 @@ public class EventBusComponent
 		super.processPacket(packet);
 	}
 
+	public void setListenerQueueSize(int listenerQueueSize) {
+		this.listenerQueueSize = listenerQueueSize;
+		getLocalEventBus().setListenerQueueSize(listenerQueueSize);
+	}
+
+	public void setQueueOverflowPolicy(EventBusImplementation.OverflowPolicy queueOverflowPolicy) {
+		this.queueOverflowPolicy = queueOverflowPolicy;
+		getLocalEventBus().setOverflowPolicy(queueOverflowPolicy);
+	}
+
+	@Override
+	public void setName(String name) {
+		String oldName = getName();
+		super.setName(name);
+		if (oldName != null && !oldName.equals(name)) {
+			MetricsRegistry.getInstance().unregister(oldName);
+		}
+		getLocalEventBus().registerMetrics(name);
+	}
+
 	@Override
 	public void setClusterController(ClusterControllerIfc cl_controller) {
 	}
@@ -113,6 +135,10 @@ public class EventBusComponent
 
 	}
 
+	private EventBusImplementation getLocalEventBus() {
+		return (EventBusImplementation) EventBusFactory.getInstance();
+	}
+
 	@Override
 	protected void registerModules(Kernel kernel) {
 		kernel.registerBean("scriptEngineManager").asInstance(new ScriptEngineManager()).exec();
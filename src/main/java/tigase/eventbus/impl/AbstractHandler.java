@@ -36,8 +36,10 @@ public abstract class AbstractHandler {
 		 */
 		asIs
 	}
+	final ListenerQueue queue = new ListenerQueue(this);
 	private final String eventName;
 	private final String packageName;
+	private boolean inline = false;
 
 	public AbstractHandler(String packageName, String eventName) {
 		this.packageName = packageName;
@@ -56,4 +58,15 @@ public abstract class AbstractHandler {
 
 	public abstract Type getRequiredEventType();
 
+	/**
+	 * Returns <code>true</code> if handler should be executed in the thread firing the event.
+	 */
+	public boolean isInline() {
+		return inline;
+	}
+
+	public void setInline(boolean inline) {
+		this.inline = inline;
+	}
+
 }
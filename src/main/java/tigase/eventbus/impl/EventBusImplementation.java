@@ -18,6 +18,9 @@
 package tigase.eventbus.impl;
 
 import tigase.eventbus.*;
+import tigase.stats.CounterMetric;
+import tigase.stats.HistogramMetric;
+import tigase.stats.MetricsRegistry;
 import tigase.xml.Element;
 
 import java.util.*;
@@ -28,6 +31,27 @@ import java.util.logging.Logger;
 public class EventBusImplementation
 		implements EventBus {
 
+	/**
+	 * Listener queues are not limited by default, as some listeners (ie. replication of distributed maps) must not
+	 * lose any event.
+	 */
+	public static final int DEFAULT_LISTENER_QUEUE_SIZE = 0;
+
+	/**
+	 * Action taken when an event is fired to a handler which queue is full. Used only if size of listener queues is
+	 * limited.
+	 */
+	public enum OverflowPolicy {
+		/**
+		 * Fired event is dropped.
+		 */
+		dropNewest,
+		/**
+		 * The oldest event waiting in the queue is dropped.
+		 */
+		dropOldest
+	}
+
 	private static final Logger log = Logger.getLogger(EventBusImplementation.class.getName());
 	private final EventsNameMap<AbstractHandler> listeners = new EventsNameMap<>();
 	private final ReflectEventListenerHandlerFactory reflectEventListenerFactory = new ReflectEventListenerHandlerFactory();
@@ -38,7 +62,13 @@ public class EventBusImplementation
 	private final Map<Class<?>, EventRoutingSelector> routingSelectors = new ConcurrentHashMap<>();
 	private final Serializer serializer = new EventBusSerializer();
 	private boolean acceptOnlyRegisteredEvents = false;
+	private final HistogramMetric dispatchLatency = new HistogramMetric("Dispatch latency [us]", Level.FINE);
+	private final CounterMetric dispatched = new CounterMetric("Event dispatches", Level.FINE);
+	private final CounterMetric dropped = new CounterMetric("Dropped events", Level.FINE);
 	private Executor executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors() * 4);
+	private final CounterMetric inlineDispatched = new CounterMetric("Inline event dispatches", Level.FINE);
+	private int listenerQueueSize = DEFAULT_LISTENER_QUEUE_SIZE;
+	private OverflowPolicy overflowPolicy = OverflowPolicy.dropNewest;
 	private ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
 
 	public EventBusImplementation() {
@@ -158,6 +188,25 @@ public class EventBusImplementation
 		this.executor = executor;
 	}
 
+	/**
+	 * Returns maximal number of events queued for a single handler, <code>0</code> means no limit.
+	 */
+	public int getListenerQueueSize() {
+		return listenerQueueSize;
+	}
+
+	public void setListenerQueueSize(int listenerQueueSize) {
+		this.listenerQueueSize = listenerQueueSize;
+	}
+
+	public OverflowPolicy getOverflowPolicy() {
+		return overflowPolicy;
+	}
+
+	public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+		this.overflowPolicy = overflowPolicy;
+	}
+
 	public EventsRegistrar getRegistrar() {
 		return registrar;
 	}
@@ -166,6 +215,31 @@ public class EventBusImplementation
 		return serializer;
 	}
 
+	/**
+	 * Registers metrics of the event bus in {@link MetricsRegistry} as metrics of the component.
+	 */
+	public void registerMetrics(String compName) {
+		MetricsRegistry registry = MetricsRegistry.getInstance();
+		registry.register(compName, dispatched);
+		registry.register(compName, inlineDispatched);
+		registry.register(compName, dropped);
+		registry.gauge(compName, "Queued events", Level.FINE, () -> {
+			long queued = 0;
+			for (AbstractHandler handler : listeners.getAllData()) {
+				queued += handler.queue.size();
+			}
+			return queued;
+		});
+		registry.gauge(compName, "Max listener queue size", Level.FINE, () -> {
+			long maxQueue = 0;
+			for (AbstractHandler handler : listeners.getAllData()) {
+				maxQueue = Math.max(maxQueue, handler.queue.size());
+			}
+			return maxQueue;
+		});
+		registry.register(compName, dispatchLatency);
+	}
+
 	public boolean isAcceptOnlyRegisteredEvents() {
 		return acceptOnlyRegisteredEvents;
 	}
@@ -301,16 +375,38 @@ public class EventBusImplementation
 				eventObject = event;
 			}
 
-			Runnable task = () -> {
+			if (listenerHandler.isInline()) {
+				inlineDispatched.inc();
 				try {
 					listenerHandler.dispatch(eventObject, source, remotelyGeneratedEvent);
 				} catch (Throwable e) {
 					log.log(Level.WARNING,
 							"Exception during execution of event: " + event.getClass().getCanonicalName(), e);
 				}
-			};
+			} else {
+				listenerHandler.queue.execute(this, eventObject, source, remotelyGeneratedEvent);
+			}
+		}
+	}
+
+	void dispatch(AbstractHandler listenerHandler, Object event, Object source, boolean remotelyGeneratedEvent,
+				  long queued) {
+		long latency = System.nanoTime() - queued;
+		dispatched.inc();
+		dispatchLatency.record(latency / 1000);
+		try {
+			listenerHandler.dispatch(event, source, remotelyGeneratedEvent);
+		} catch (Throwable e) {
+			log.log(Level.WARNING, "Exception during execution of event: " + event.getClass().getCanonicalName(), e);
+		}
+	}
 
-			executor.execute(task);
+	void eventDropped(AbstractHandler listenerHandler, Object event) {
+		dropped.inc();
+		long count = dropped.getValue();
+		if (count % 1000 == 1) {
+			log.log(Level.WARNING, "Queue of listener {0} is full, dropped event: {1}, total dropped events: {2}",
+					new Object[]{listenerHandler, event.getClass().getName(), count});
 		}
 	}
 
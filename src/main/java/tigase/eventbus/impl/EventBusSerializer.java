@@ -23,103 +23,216 @@ import tigase.kernel.TypesConverter;
 import tigase.xml.Element;
 import tigase.xml.XMLUtils;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
-import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+/**
+ * Serializes events to XML and back.
+ * <br>
+ * Classes of events are looked up only once, and for each class accessors of its fields are prepared only once, as
+ * method handles of getters and setters (or fields, if there are no getters or setters), so events are serialized
+ * without reflection.
+ */
 public class EventBusSerializer
 		implements Serializer {
 
+	private static final MethodType CONSTRUCTOR_TYPE = MethodType.methodType(Object.class);
+	private static final MethodType GETTER_TYPE = MethodType.methodType(Object.class, Object.class);
+	private static final MethodType SETTER_TYPE = MethodType.methodType(void.class, Object.class, Object.class);
+
 	private static final Logger log = Logger.getLogger(EventBusSerializer.class.getName());
+	private final Map<String, Class<?>> classes = new ConcurrentHashMap<>();
+	private final Map<Class<?>, ClassSerializer> serializers = new ConcurrentHashMap<>();
 	private TypesConverter typesConverter = new DefaultTypesConverter();
 
 	public <T> T deserialize(final Element element) {
+		final Class<?> cls = getClass(element.getName());
+		if (cls == null) {
+			return null;
+		}
+
+		final ClassSerializer serializer = getSerializer(cls);
+		final Object result;
 		try {
-			final Class<?> cls = Class.forName(element.getName());
-			final Object result = cls.newInstance();
+			result = serializer.newInstance();
+		} catch (Throwable e) {
+			log.log(Level.WARNING, "Error while deserializing", e);
+			return null;
+		}
 
-			Field[] fields = BeanUtils.getAllFields(cls);
-			for (final Field f : fields) {
-				if (Modifier.isTransient(f.getModifiers())) {
-					continue;
-				}
-				if (Modifier.isFinal(f.getModifiers())) {
-					continue;
-				}
-				if (Modifier.isStatic(f.getModifiers())) {
+		for (final FieldAccessor f : serializer.fields) {
+			try {
+				Object value;
+				Element v = element.getChild(f.name);
+				if (v == null) {
 					continue;
 				}
 
-				try {
-					Object value;
-					Element v = element.getChild(f.getName());
-					if (v == null) {
-						continue;
-					}
-
-					if (Element.class.isAssignableFrom(f.getType())) {
-						if (v.getChildren().size() > 0) {
-							value = v.getChildren().get(0);
-						} else {
-							value = null;
-						}
+				if (f.element) {
+					if (v.getChildren().size() > 0) {
+						value = v.getChildren().get(0);
 					} else {
-						value = typesConverter.convert(XMLUtils.unescape(v.getCData()), f.getType(),
-													   f.getGenericType());
+						value = null;
 					}
-					BeanUtils.setValue(result, f, value);
-				} catch (IllegalAccessException | InvocationTargetException caught) {
-					log.log(Level.WARNING, "Error while deserializing", caught);
+				} else if (f.type == String.class) {
+					// converted in the same way as by DefaultTypesConverter, without looking up the conversion
+					String cdata = XMLUtils.unescape(v.getCData());
+					value = cdata == null || "null".equals(cdata) ? null : cdata.trim();
+				} else {
+					value = typesConverter.convert(XMLUtils.unescape(v.getCData()), f.type, f.genericType);
 				}
+				f.setter.invokeExact(result, value);
+			} catch (Throwable caught) {
+				log.log(Level.WARNING, "Error while deserializing", caught);
 			}
-			return (T) result;
-		} catch (ClassNotFoundException e) {
-			return null;
-		} catch (InstantiationException | IllegalAccessException e) {
-			log.log(Level.WARNING, "Error while deserializing", e);
-			return null;
 		}
+		return (T) result;
 	}
 
 	public Element serialize(final Object object) {
 		final Class<?> cls = object.getClass();
 		Element e = new Element(cls.getName());
 
-		Field[] fields = BeanUtils.getAllFields(cls);
-		for (final Field f : fields) {
-			if (Modifier.isTransient(f.getModifiers())) {
-				continue;
-			}
-			if (Modifier.isFinal(f.getModifiers())) {
-				continue;
-			}
-			if (Modifier.isStatic(f.getModifiers())) {
-				continue;
-			}
-
+		for (final FieldAccessor f : getSerializer(cls).fields) {
 			try {
-				final Object value = BeanUtils.getValue(object, f);
+				final Object value = f.getter.invokeExact(object);
 
 				if (value == null) {
 					continue;
 				}
 
-				Element v = new Element(f.getName());
-				if (Element.class.isAssignableFrom(f.getType())) {
+				Element v = new Element(f.name);
+				if (f.element) {
 					v.addChild((Element) value);
 				} else {
-					String x = typesConverter.toString(value);
+					String x = value instanceof String ? (String) value : typesConverter.toString(value);
 					v.setCData(XMLUtils.escape(x));
 				}
 				e.addChild(v);
-			} catch (IllegalAccessException | InvocationTargetException caught) {
-				log.log(Level.WARNING, "Error while serializing", e);
+			} catch (Throwable caught) {
+				log.log(Level.WARNING, "Error while serializing", caught);
 			}
 		}
 
 		return e;
 	}
 
+	private Class<?> getClass(final String name) {
+		Class<?> cls = classes.get(name);
+		if (cls == null) {
+			try {
+				cls = Class.forName(name);
+			} catch (ClassNotFoundException e) {
+				// not cached, as names of events may come from remote entities
+				return null;
+			}
+			classes.put(name, cls);
+		}
+		return cls;
+	}
+
+	private ClassSerializer getSerializer(final Class<?> cls) {
+		ClassSerializer serializer = serializers.get(cls);
+		if (serializer == null) {
+			serializer = serializers.computeIfAbsent(cls, ClassSerializer::new);
+		}
+		return serializer;
+	}
+
+	private static class ClassSerializer {
+
+		private final Class<?> cls;
+		private final MethodHandle constructor;
+		private final List<FieldAccessor> fields = new ArrayList<>();
+
+		private ClassSerializer(Class<?> cls) {
+			this.cls = cls;
+
+			final MethodHandles.Lookup lookup = MethodHandles.lookup();
+			MethodHandle constructor = null;
+			try {
+				Constructor<?> c = cls.getDeclaredConstructor();
+				c.setAccessible(true);
+				constructor = lookup.unreflectConstructor(c).asType(CONSTRUCTOR_TYPE);
+			} catch (NoSuchMethodException | IllegalAccessException | RuntimeException e) {
+				if (log.isLoggable(Level.FINEST)) {
+					log.log(Level.FINEST, "No accessible constructor for class " + cls.getName(), e);
+				}
+			}
+			this.constructor = constructor;
+
+			for (final Field f : BeanUtils.getAllFields(cls)) {
+				if (Modifier.isTransient(f.getModifiers())) {
+					continue;
+				}
+				if (Modifier.isFinal(f.getModifiers())) {
+					continue;
+				}
+				if (Modifier.isStatic(f.getModifiers())) {
+					continue;
+				}
+
+				try {
+					fields.add(new FieldAccessor(lookup, f));
+				} catch (IllegalAccessException | RuntimeException e) {
+					log.log(Level.WARNING, "Cannot access field " + f + " of event " + cls.getName(), e);
+				}
+			}
+		}
+
+		private Object newInstance() throws Throwable {
+			if (constructor == null) {
+				throw new InstantiationException("No accessible no-argument constructor in class " + cls.getName());
+			}
+			return constructor.invokeExact();
+		}
+	}
+
+	private static class FieldAccessor {
+
+		private final boolean element;
+		private final Type genericType;
+		private final MethodHandle getter;
+		private final String name;
+		private final MethodHandle setter;
+		private final Class<?> type;
+
+		private FieldAccessor(MethodHandles.Lookup lookup, Field f) throws IllegalAccessException {
+			this.name = f.getName();
+			this.type = f.getType();
+			this.genericType = f.getGenericType();
+			this.element = Element.class.isAssignableFrom(type);
+
+			Method getterMethod = BeanUtils.prepareGetterMethod(f);
+			Method setterMethod = BeanUtils.prepareSetterMethod(f);
+			if (getterMethod == null || setterMethod == null) {
+				f.setAccessible(true);
+			}
+			if (getterMethod != null) {
+				getterMethod.setAccessible(true);
+				getter = lookup.unreflect(getterMethod).asType(GETTER_TYPE);
+			} else {
+				getter = lookup.unreflectGetter(f).asType(GETTER_TYPE);
+			}
+			if (setterMethod != null) {
+				setterMethod.setAccessible(true);
+				setter = lookup.unreflect(setterMethod).asType(SETTER_TYPE);
+			} else {
+				setter = lookup.unreflectSetter(f).asType(SETTER_TYPE);
+			}
+		}
+	}
+
 }
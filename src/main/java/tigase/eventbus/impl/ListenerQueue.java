@@ -0,0 +1,122 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.eventbus.impl;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Queue of events waiting for execution by a single handler.
+ * <br>
+ * Events are executed one by one, in the order in which they were fired, by threads of the event bus executor. At
+ * most one thread is executing events of the handler at any time, and it executes up to {@link #BATCH_SIZE} events
+ * before it is returned to the executor, so a busy handler does not starve other handlers.
+ */
+class ListenerQueue
+		implements Runnable {
+
+	static final int BATCH_SIZE = 64;
+
+	private final AbstractHandler handler;
+	private final AtomicBoolean scheduled = new AtomicBoolean(false);
+	private final AtomicInteger size = new AtomicInteger(0);
+	private final Queue<Task> tasks = new ConcurrentLinkedQueue<>();
+	private volatile EventBusImplementation eventBus = null;
+
+	ListenerQueue(AbstractHandler handler) {
+		this.handler = handler;
+	}
+
+	/**
+	 * Adds event to the queue, applying the overflow policy of the event bus if the queue is full.
+	 */
+	void execute(EventBusImplementation eventBus, Object event, Object source, boolean remotelyGeneratedEvent) {
+		this.eventBus = eventBus;
+
+		int maxSize = eventBus.getListenerQueueSize();
+		if (maxSize > 0 && size.get() >= maxSize) {
+			switch (eventBus.getOverflowPolicy()) {
+				case dropNewest:
+					eventBus.eventDropped(handler, event);
+					return;
+				case dropOldest:
+					Task oldest = tasks.poll();
+					if (oldest != null) {
+						size.decrementAndGet();
+						eventBus.eventDropped(handler, oldest.event);
+					}
+					break;
+			}
+		}
+
+		tasks.offer(new Task(event, source, remotelyGeneratedEvent, System.nanoTime()));
+		size.incrementAndGet();
+		schedule();
+	}
+
+	int size() {
+		return size.get();
+	}
+
+	@Override
+	public void run() {
+		try {
+			for (int i = 0; i < BATCH_SIZE; i++) {
+				Task task = tasks.poll();
+				if (task == null) {
+					break;
+				}
+				size.decrementAndGet();
+				eventBus.dispatch(handler, task.event, task.source, task.remotelyGeneratedEvent, task.queued);
+			}
+		} finally {
+			scheduled.set(false);
+			if (!tasks.isEmpty()) {
+				schedule();
+			}
+		}
+	}
+
+	private void schedule() {
+		if (scheduled.compareAndSet(false, true)) {
+			try {
+				eventBus.getExecutor().execute(this);
+			} catch (RuntimeException ex) {
+				scheduled.set(false);
+				throw ex;
+			}
+		}
+	}
+
+	private static class Task {
+
+		private final Object event;
+		private final long queued;
+		private final boolean remotelyGeneratedEvent;
+		private final Object source;
+
+		private Task(Object event, Object source, boolean remotelyGeneratedEvent, long queued) {
+			this.event = event;
+			this.source = source;
+			this.remotelyGeneratedEvent = remotelyGeneratedEvent;
+			this.queued = queued;
+		}
+	}
+}
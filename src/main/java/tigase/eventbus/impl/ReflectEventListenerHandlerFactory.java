@@ -57,6 +57,7 @@ public class ReflectEventListenerHandlerFactory {
 		}
 
 		method.setAccessible(true);
+		handler.setInline(annotation.inline());
 
 		return handler;
 	};
@@ -0,0 +1,366 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.io;
+
+import tigase.stats.StatisticsList;
+import tigase.util.IOListener;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * ZLIB compression with configurable and adaptive compression level and optional preset dictionary.
+ * <br>
+ * In adaptive mode compression level is selected separately for each connection. Compression time and ratio are
+ * measured for each level used and the level is increased only if the additional CPU time is worth the bytes saved,
+ * ie. at least <code>minGain</code> bytes are saved per microsecond of additional compression time. Neighbouring
+ * levels are probed from time to time as the traffic changes.
+ * <br>
+ * The preset dictionary is used for compression only if provided, but the stream compressed with it may be always
+ * decompressed as long as the remote side uses the same {@link #CLUSTER_DICTIONARY}. Level of compression does not
+ * have to match the remote side.
+ */
+public class AdaptiveZLibIO
+		extends ZLibIO {
+
+	/**
+	 * Preset dictionary with tokens common for XMPP and cluster traffic. Most common tokens are at the end, as they
+	 * are encoded with shortest distances.
+	 */
+	public static final byte[] CLUSTER_DICTIONARY = ("<stream:stream xmlns:stream='http://etherx.jabber.org/streams'" +
+			" xmlns='tigase:cluster'</stream:stream><stream:features/><handshake></handshake>" +
+			"<iq type='result'<iq type='error'<error type='cancel'><item-not-found" +
+			" xmlns='urn:ietf:params:xml:ns:xmpp-stanzas'/></error><query xmlns='jabber:iq:roster'" +
+			"<query xmlns='http://jabber.org/protocol/disco#info'<show>away</show><show>chat</show><show>dnd</show>" +
+			"<show>xa</show><priority>0</priority><status></status><c xmlns='http://jabber.org/protocol/caps'" +
+			" hash='sha-1' node='' ver=''/><delay xmlns='urn:xmpp:delay' stamp=''/><body></body>" +
+			"<message type='chat'<presence type='unavailable'<presence><iq type='get'<iq type='set'" +
+			" xmlns='jabber:client'<visited-node></visited-node><method-call name='packet-forward-sm-cmd'" +
+			"<method-call name='user-presence-sm-cmd'<method-call name='user-connected-sm-cmd'" +
+			"<par name='connectionId'><par name='userId'><par name='resource'><par name='xmppSessionId'>" +
+			"<par name='auth-time'><par name='presence-type'>initial</par>update</par></par><first-node>" +
+			"</first-node><visited-nodes><data></data><control></control></cluster><cluster" +
+			" xmlns='tigase:clustered' type='set' from='sess-man@' to='sess-man@' id='cl-' priority='CLUSTER'>" +
+			"</presence></message></iq> from=' to=' id=' type='").getBytes(StandardCharsets.UTF_8);
+
+	private static final int BUFFER_SIZE = 4096;
+
+	private static final Logger log = Logger.getLogger(AdaptiveZLibIO.class.getName());
+
+	private final Deflater deflater;
+	private final byte[] dictionary;
+	private final Inflater inflater = new Inflater();
+	private final LevelTuner tuner;
+	private byte[] compressBuffer = new byte[BUFFER_SIZE];
+	private byte[] compressInput = new byte[BUFFER_SIZE];
+	private long compressNanos = 0;
+	private long compressedBytes = 0;
+	private byte[] decompressBuffer = new byte[BUFFER_SIZE];
+	private byte[] decompressInput = new byte[BUFFER_SIZE];
+	private long decompressNanos = 0;
+	private long decompressedBytes = 0;
+	private int level;
+	private boolean levelChanged = false;
+	private IOListener listener = null;
+	private long receivedCompressedBytes = 0;
+	private long sampleIn = 0;
+	private long sampleNanos = 0;
+	private long sampleOut = 0;
+	private long uncompressedBytes = 0;
+
+	/**
+	 * @param level of compression or initial level in adaptive mode
+	 * @param adaptive set to <code>true</code> to adapt compression level to the traffic
+	 * @param minGain minimal number of bytes saved per microsecond of additional compression time to use higher level
+	 * @param compressionDictionary dictionary to use for compression, <code>null</code> to not use any
+	 */
+	public AdaptiveZLibIO(final IOInterface ioi, final int level, final boolean adaptive, final int minGain,
+						  final byte[] compressionDictionary) {
+		super(ioi);
+		this.level = Math.max(LevelTuner.MIN_LEVEL, Math.min(LevelTuner.MAX_LEVEL, level));
+		this.deflater = new Deflater(this.level);
+		this.dictionary = CLUSTER_DICTIONARY;
+		this.tuner = adaptive ? new LevelTuner(minGain) : null;
+		if (compressionDictionary != null) {
+			deflater.setDictionary(compressionDictionary);
+		}
+	}
+
+	public long getCompressionTime() {
+		return compressNanos / 1000000;
+	}
+
+	public long getDecompressionTime() {
+		return decompressNanos / 1000000;
+	}
+
+	public int getLevel() {
+		return level;
+	}
+
+	@Override
+	public void getStatistics(StatisticsList list, boolean reset) {
+		if (io != null) {
+			io.getStatistics(list, reset);
+		}
+
+		list.add("zlibio", "Average compression rate",
+				 uncompressedBytes == 0 ? 0f : ((float) compressedBytes) / uncompressedBytes, Level.FINE);
+		list.add("zlibio", "Average decompression rate",
+				 decompressedBytes == 0 ? 0f : ((float) receivedCompressedBytes) / decompressedBytes, Level.FINE);
+		list.add("zlibio", "Compression level", level, Level.FINE);
+		list.add("zlibio", "Compression time [ms]", getCompressionTime(), Level.FINE);
+		list.add("zlibio", "Decompression time [ms]", getDecompressionTime(), Level.FINE);
+	}
+
+	@Override
+	public ByteBuffer read(ByteBuffer buff) throws IOException {
+		ByteBuffer tmpBuffer = io.read(buff);
+
+		if (io.bytesRead() > 0) {
+			ByteBuffer decompressed_buff = decompress(tmpBuffer);
+
+			// The buffer is reused to it needs to be cleared before it can be
+			// used again.
+			tmpBuffer.clear();
+
+			return decompressed_buff;
+		}
+
+		return null;
+	}
+
+	@Override
+	public void setIOListener(IOListener listener) {
+		this.listener = listener;
+	}
+
+	@Override
+	public void stop() throws IOException {
+		if (log.isLoggable(Level.FINEST)) {
+			log.finest("Stop called..." + toString());
+		}
+
+		io.stop();
+		synchronized (deflater) {
+			deflater.end();
+		}
+		synchronized (inflater) {
+			inflater.end();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "ZLIB(" + level + "): " + io.toString();
+	}
+
+	@Override
+	public int write(ByteBuffer buff) throws IOException {
+		if (buff == null) {
+			return io.write(null);
+		}
+
+		if (log.isLoggable(Level.FINER)) {
+			log.log(Level.FINER, "ZLIB - Writing data, remaining: {0}", buff.remaining());
+		}
+
+		return io.write(compress(buff));
+	}
+
+	private ByteBuffer compress(ByteBuffer input) {
+		synchronized (deflater) {
+			int len = input.remaining();
+			if (compressInput.length < len) {
+				compressInput = new byte[len];
+			}
+			input.get(compressInput, 0, len);
+
+			long start = System.nanoTime();
+			deflater.setInput(compressInput, 0, len);
+
+			int outLen = 0;
+			while (true) {
+				outLen += deflater.deflate(compressBuffer, outLen, compressBuffer.length - outLen, Deflater.SYNC_FLUSH);
+				if (outLen == compressBuffer.length) {
+					compressBuffer = Arrays.copyOf(compressBuffer, compressBuffer.length * 2);
+				} else if (deflater.needsInput()) {
+					if (!levelChanged) {
+						break;
+					}
+					// new level is applied with a partial flush, so data needs to be flushed again
+					levelChanged = false;
+				}
+			}
+			long time = System.nanoTime() - start;
+
+			compressNanos += time;
+			uncompressedBytes += len;
+			compressedBytes += outLen;
+			if (tuner != null) {
+				sampleIn += len;
+				sampleOut += outLen;
+				sampleNanos += time;
+				if (sampleIn >= LevelTuner.SAMPLE_SIZE) {
+					int newLevel = tuner.nextLevel(level, sampleIn, sampleOut, sampleNanos);
+					if (newLevel != level) {
+						if (log.isLoggable(Level.FINEST)) {
+							log.log(Level.FINEST, "{0}, changing compression level from {1} to {2}",
+									new Object[]{this, level, newLevel});
+						}
+						level = newLevel;
+						levelChanged = true;
+						deflater.setLevel(newLevel);
+					}
+					sampleIn = 0;
+					sampleOut = 0;
+					sampleNanos = 0;
+				}
+			}
+
+			// buffer is queued by the socket, so it cannot be reused
+			ByteBuffer result = ByteBuffer.allocate(outLen);
+			result.put(compressBuffer, 0, outLen);
+			result.flip();
+			return result;
+		}
+	}
+
+	private ByteBuffer decompress(ByteBuffer input) throws IOException {
+		synchronized (inflater) {
+			int len = input.remaining();
+			if (decompressInput.length < len) {
+				decompressInput = new byte[len];
+			}
+			input.get(decompressInput, 0, len);
+
+			long start = System.nanoTime();
+			inflater.setInput(decompressInput, 0, len);
+
+			int outLen = 0;
+			try {
+				while (true) {
+					int res = inflater.inflate(decompressBuffer, outLen, decompressBuffer.length - outLen);
+					if (res == 0) {
+						if (inflater.needsDictionary()) {
+							inflater.setDictionary(dictionary);
+							continue;
+						}
+						break;
+					}
+					outLen += res;
+					if (outLen == decompressBuffer.length) {
+						int newSize = decompressBuffer.length * 2;
+						if (listener != null && !listener.checkBufferLimit(newSize)) {
+							throw new IOException("Decompressed data exceeds buffer limit: " + newSize);
+						}
+						decompressBuffer = Arrays.copyOf(decompressBuffer, newSize);
+					}
+				}
+			} catch (DataFormatException | IllegalArgumentException ex) {
+				throw new IOException("Invalid compressed data", ex);
+			}
+
+			decompressNanos += System.nanoTime() - start;
+			receivedCompressedBytes += len;
+			decompressedBytes += outLen;
+
+			// decompressed data is processed before next read, so the buffer is reused
+			return ByteBuffer.wrap(decompressBuffer, 0, outLen);
+		}
+	}
+
+	/**
+	 * Selects compression level based on measured compression time and ratio of each level.
+	 */
+	static class LevelTuner {
+
+		static final int MAX_LEVEL = Deflater.BEST_COMPRESSION;
+
+		static final int MIN_LEVEL = Deflater.BEST_SPEED;
+
+		// number of samples after which neighbouring levels are probed again
+		static final int PROBE_INTERVAL = 64;
+
+		// number of uncompressed bytes in a single sample
+		static final int SAMPLE_SIZE = 64 * 1024;
+
+		private final double[] cost = new double[MAX_LEVEL + 1];
+		private final boolean[] known = new boolean[MAX_LEVEL + 1];
+		private final double minGain;
+		private final double[] ratio = new double[MAX_LEVEL + 1];
+		private int samples = 0;
+
+		LevelTuner(int minGain) {
+			// bytes per nanosecond
+			this.minGain = minGain / 1000d;
+		}
+
+		/**
+		 * Records sample for the current level and returns level to use for the next sample.
+		 */
+		int nextLevel(int level, long in, long out, long nanos) {
+			double sampleCost = ((double) nanos) / in;
+			double sampleRatio = ((double) out) / in;
+			if (known[level]) {
+				cost[level] = cost[level] * 0.7 + sampleCost * 0.3;
+				ratio[level] = ratio[level] * 0.7 + sampleRatio * 0.3;
+			} else {
+				cost[level] = sampleCost;
+				ratio[level] = sampleRatio;
+				known[level] = true;
+			}
+
+			if (++samples % PROBE_INTERVAL == 0) {
+				if (level > MIN_LEVEL) {
+					known[level - 1] = false;
+				}
+				if (level < MAX_LEVEL) {
+					known[level + 1] = false;
+				}
+			}
+
+			if (level > MIN_LEVEL && known[level - 1] && !isWorth(level - 1, level)) {
+				return level - 1;
+			}
+			if (level < MAX_LEVEL && (!known[level + 1] || isWorth(level, level + 1))) {
+				return level + 1;
+			}
+			if (level > MIN_LEVEL && !known[level - 1]) {
+				return level - 1;
+			}
+			return level;
+		}
+
+		private boolean isWorth(int lower, int higher) {
+			double saved = ratio[lower] - ratio[higher];
+			double extraCost = cost[higher] - cost[lower];
+			if (extraCost <= 0) {
+				return saved >= 0;
+			}
+			return saved / extraCost >= minGain;
+		}
+	}
+}
@@ -0,0 +1,198 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.io;
+
+import tigase.stats.StatisticsList;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Pool of byte buffers shared by all connections.
+ * <br>
+ * Connections borrow buffers only while reading or writing data and return them when there is no more data to
+ * process, so idle connections do not keep any buffers. Buffers are kept in size classes being powers of 2, from
+ * {@value #MIN_BUFFER_SIZE} bytes up to {@value #MAX_BUFFER_SIZE} bytes, so a borrowed buffer may be larger than
+ * requested. Bigger buffers are allocated on each request and are not pooled.
+ * <br>
+ * Pool may be configured using system properties:
+ * <ul>
+ * <li><code>{@value #DIRECT_PROP_KEY}</code> - use direct (off-heap) buffers, <code>false</code> by default,</li>
+ * <li><code>{@value #MAX_BUFFERS_PROP_KEY}</code> - maximal number of idle buffers kept per size class, {@value
+ * #MAX_BUFFERS_PROP_DEF} by default. Setting it to <code>0</code> disables pooling.</li>
+ * </ul>
+ */
+public class BufferPool {
+
+	public static final String DIRECT_PROP_KEY = "buffer-pool-direct";
+
+	public static final String MAX_BUFFERS_PROP_KEY = "buffer-pool-max-buffers";
+
+	public static final int MAX_BUFFERS_PROP_DEF = 1024;
+
+	public static final int MAX_BUFFER_SIZE = 1 << 20;
+
+	public static final int MIN_BUFFER_SIZE = 1 << 10;
+
+	private static final int MIN_SHIFT = 10;
+
+	private static final Logger log = Logger.getLogger(BufferPool.class.getName());
+
+	private static final BufferPool instance = new BufferPool(Boolean.getBoolean(DIRECT_PROP_KEY),
+															  Integer.getInteger(MAX_BUFFERS_PROP_KEY,
+																				 MAX_BUFFERS_PROP_DEF));
+
+	private final LongAdder acquired = new LongAdder();
+	private final SizeClass[] classes;
+	private final boolean direct;
+	private final LongAdder dropped = new LongAdder();
+	private final LongAdder hits = new LongAdder();
+	private final int maxBuffers;
+	private final LongAdder released = new LongAdder();
+	private final LongAdder unpooled = new LongAdder();
+
+	public static BufferPool getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Returns size of the buffer which will be returned for the requested size.
+	 */
+	public static int capacityFor(int size) {
+		if (size > MAX_BUFFER_SIZE) {
+			return size;
+		}
+		return 1 << (MIN_SHIFT + classIndex(size));
+	}
+
+	private static int classIndex(int size) {
+		if (size <= MIN_BUFFER_SIZE) {
+			return 0;
+		}
+		return (32 - Integer.numberOfLeadingZeros(size - 1)) - MIN_SHIFT;
+	}
+
+	public BufferPool(boolean direct, int maxBuffers) {
+		this.direct = direct;
+		this.maxBuffers = maxBuffers;
+		this.classes = new SizeClass[classIndex(MAX_BUFFER_SIZE) + 1];
+		for (int i = 0; i < classes.length; i++) {
+			classes[i] = new SizeClass();
+		}
+		log.log(Level.CONFIG, "using {0} buffer pool with up to {1} buffers per size class",
+				new Object[]{direct ? "direct" : "heap", maxBuffers});
+	}
+
+	/**
+	 * Borrows a cleared buffer with capacity of at least <code>size</code> bytes. Buffer should be returned with
+	 * {@link #release(ByteBuffer)} when it is no longer used.
+	 *
+	 * @param size minimal capacity of the buffer
+	 */
+	public ByteBuffer acquire(int size) {
+		acquired.increment();
+		if (size > MAX_BUFFER_SIZE) {
+			unpooled.increment();
+			return allocate(size);
+		}
+
+		int idx = classIndex(size);
+		ByteBuffer buffer = classes[idx].buffers.poll();
+		if (buffer != null) {
+			classes[idx].idle.decrementAndGet();
+			hits.increment();
+			return buffer;
+		}
+
+		return allocate(1 << (MIN_SHIFT + idx));
+	}
+
+	public void getStatistics(String compName, StatisticsList list) {
+		long acquiredVal = acquired.sum();
+		long idle = 0;
+		long idleBytes = 0;
+
+		for (int i = 0; i < classes.length; i++) {
+			int count = classes[i].idle.get();
+			idle += count;
+			idleBytes += ((long) count) << (MIN_SHIFT + i);
+		}
+
+		list.add(compName, "Buffer pool acquired", acquiredVal, Level.FINE);
+		list.add(compName, "Buffer pool hit rate [%]", acquiredVal == 0 ? 0f : (hits.sum() * 100f / acquiredVal),
+				 Level.FINE);
+		list.add(compName, "Buffer pool idle buffers", idle, Level.FINE);
+		list.add(compName, "Buffer pool idle bytes", idleBytes, Level.FINE);
+		list.add(compName, "Buffer pool released", released.sum(), Level.FINER);
+		list.add(compName, "Buffer pool dropped", dropped.sum(), Level.FINER);
+		list.add(compName, "Buffer pool unpooled allocations", unpooled.sum(), Level.FINER);
+	}
+
+	public boolean isDirect() {
+		return direct;
+	}
+
+	/**
+	 * Returns buffer to the pool. Buffers which were not allocated by the pool or which do not fit in the pool are
+	 * dropped. Buffer must not be used after it was returned.
+	 *
+	 * @param buffer to return, may be <code>null</code>
+	 */
+	public void release(ByteBuffer buffer) {
+		if (buffer == null) {
+			return;
+		}
+
+		released.increment();
+
+		int capacity = buffer.capacity();
+		if (capacity < MIN_BUFFER_SIZE || capacity > MAX_BUFFER_SIZE || Integer.bitCount(capacity) != 1 ||
+				buffer.isDirect() != direct || buffer.isReadOnly()) {
+			dropped.increment();
+			return;
+		}
+
+		SizeClass sizeClass = classes[classIndex(capacity)];
+		if (sizeClass.idle.incrementAndGet() > maxBuffers) {
+			sizeClass.idle.decrementAndGet();
+			dropped.increment();
+			return;
+		}
+
+		buffer.clear();
+		buffer.order(ByteOrder.BIG_ENDIAN);
+		sizeClass.buffers.offer(buffer);
+	}
+
+	private ByteBuffer allocate(int size) {
+		return direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+	}
+
+	private static final class SizeClass {
+
+		private final Queue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+		private final AtomicInteger idle = new AtomicInteger();
+
+	}
+}
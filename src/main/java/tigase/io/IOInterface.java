@@ -60,6 +60,13 @@ public interface IOInterface {
 
 	ByteBuffer read(final ByteBuffer buff) throws IOException;
 
+	/**
+	 * Method called when there is no more data to process, so implementation may return its buffers to the {@link
+	 * BufferPool}.
+	 */
+	default void releaseIdleBuffers() {
+	}
+
 	void stop() throws IOException;
 
 	boolean waitingToSend();
@@ -324,12 +324,14 @@ public class JcaTLSWrapper
 			log.log(Level.FINER, "{0}, Resizing tlsInput to {1} bytes", new Object[]{debugId, newSize});
 		}
 
-		ByteBuffer bb = ByteBuffer.allocate(newSize);
+		ByteBuffer bb = BufferPool.getInstance().acquire(newSize);
 
 		// bb.clear();
 		bb.order(app.order());
 		app.flip();
 		bb.put(app);
+		// caller replaces its buffer with the returned one
+		BufferPool.getInstance().release(app);
 
 		return bb;
 
@@ -42,10 +42,15 @@ public class TLSIO
 
 	private static final Logger log = Logger.getLogger(TLSIO.class.getName());
 
+	private final BufferPool bufferPool = BufferPool.getInstance();
+
 	private IOInterface io = null;
 
+	private ByteOrder order;
+
 	/**
-	 * <code>tlsInput</code> buffer keeps data decoded from tlsWrapper.
+	 * <code>tlsInput</code> buffer keeps data decoded from tlsWrapper. It is borrowed from the {@link BufferPool} only
+	 * while there is data to decode.
 	 */
 	private ByteBuffer tlsInput = null;
 
@@ -70,8 +75,7 @@ public class TLSIO
 		io = ioi;
 		tlsWrapper = wrapper;
 		tlsWrapper.setDebugId(toString());
-		tlsInput = ByteBuffer.allocate(tlsWrapper.getAppBuffSize());
-		tlsInput.order(order);
+		this.order = order;
 
 		if (log.isLoggable(Level.FINER)) {
 			log.log(Level.FINER, "TLS Socket created: {0}", io.toString());
@@ -171,21 +175,21 @@ public class TLSIO
 
 			return decodeData(tmpBuffer);
 		} else {
-			if (tlsInput.capacity() > tlsWrapper.getAppBuffSize() && tlsInput.capacity() == tlsInput.remaining()) {
-				if (log.isLoggable(Level.FINE)) {
-					log.log(Level.FINE, "Resizing tlsInput to {0} bytes, capacity: {1}, remaining: {2}; IO: {3}",
-							new Object[]{tlsWrapper.getAppBuffSize(), tlsInput.capacity(), tlsInput.remaining(), toString()});
-				}
-				ByteBuffer bb = ByteBuffer.allocate(tlsWrapper.getAppBuffSize());
-
-				bb.order(tlsInput.order());
-
-				tlsInput = bb;
-			}
+			// there is nothing to decode, so buffer (possibly resized) is not needed now
+			releaseIdleBuffers();
 			return null;
 		} // end of else
 	}
 
+	@Override
+	public void releaseIdleBuffers() {
+		if (tlsInput != null && tlsInput.capacity() == tlsInput.remaining()) {
+			bufferPool.release(tlsInput);
+			tlsInput = null;
+		}
+		io.releaseIdleBuffers();
+	}
+
 	@Override
 	public void stop() throws IOException {
 		if (log.isLoggable(Level.FINEST)) {
@@ -250,7 +254,7 @@ public class TLSIO
 					// I wonder if some real data can be read from the socket here (and we
 					// would
 					// loose the data) or this is just TLS stuff here.....
-					ByteBuffer rbuff = read(ByteBuffer.allocate(tlsWrapper.getNetBuffSize()));
+					readAndDrop();
 
 					break;
 
@@ -319,6 +323,18 @@ public class TLSIO
 		io.setLogId(logId);
 	}
 
+	/**
+	 * Reads data from the socket during handshake, which is not passed to the caller.
+	 */
+	private void readAndDrop() throws IOException {
+		ByteBuffer buff = bufferPool.acquire(tlsWrapper.getNetBuffSize());
+		try {
+			read(buff);
+		} finally {
+			bufferPool.release(buff);
+		}
+	}
+
 	public void processHandshake(byte[] data) throws IOException {
 		decodeData(ByteBuffer.wrap(data));
 	}
@@ -327,6 +343,11 @@ public class TLSIO
 		TLSStatus stat = null;
 		boolean continueLoop = true;
 
+		if (tlsInput == null) {
+			tlsInput = bufferPool.acquire(tlsWrapper.getAppBuffSize());
+			tlsInput.order(order);
+		}
+
 		// input.flip();
 		// do_loop:
 		do {
@@ -451,22 +472,27 @@ public class TLSIO
 				// I wonder if some real data can be read from the socket here (and we
 				// would
 				// loose the data) or this is just TLS stuff here.....
-				ByteBuffer rbuff = read(ByteBuffer.allocate(tlsWrapper.getNetBuffSize()));
+				readAndDrop();
 			}
 
-			ByteBuffer tlsOutput = ByteBuffer.allocate(tlsWrapper.getNetBuffSize());
+			ByteBuffer tlsOutput = bufferPool.acquire(tlsWrapper.getNetBuffSize());
 
 			// Not sure if this is really needed, I guess not...
 			tlsOutput.clear();
 			tlsWrapper.wrap(buff, tlsOutput);
 
 			if (tlsWrapper.getStatus() == TLSStatus.CLOSED) {
+				bufferPool.release(tlsOutput);
 				throw new EOFException("Socket has been closed.");
 			} // end of if (tlsWrapper.getStatus() == TLSStatus.CLOSED)
 
 			tlsOutput.flip();
 			wr = io.write(tlsOutput);
 			result += wr;
+			if (!tlsOutput.hasRemaining()) {
+				// otherwise buffer was queued by the socket and it is still in use
+				bufferPool.release(tlsOutput);
+			}
 
 			if (log.isLoggable(Level.FINER)) {
 				log.log(Level.FINER, "TLS - Writing data, remaining: {0}, run {1} of {2}, TLSIO: {3}, tlsWrapper: {4}",
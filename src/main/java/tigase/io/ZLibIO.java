@@ -39,7 +39,7 @@ public class ZLibIO
 
 	private static Logger log = Logger.getLogger(ZLibIO.class.getName());
 
-	private IOInterface io = null;
+	protected IOInterface io = null;
 	private ZLibWrapper zlib = null;
 
 	public ZLibIO(final IOInterface ioi, final int level) {
@@ -47,6 +47,13 @@ public class ZLibIO
 		zlib = new ZLibWrapper();
 	}
 
+	/**
+	 * Constructor for subclasses providing their own compression.
+	 */
+	protected ZLibIO(final IOInterface ioi) {
+		this.io = ioi;
+	}
+
 	@Override
 	public int bytesRead() {
 		return io.bytesRead();
@@ -178,6 +185,11 @@ public class ZLibIO
 		return io.write(compressed_buff);
 	}
 
+	@Override
+	public void releaseIdleBuffers() {
+		io.releaseIdleBuffers();
+	}
+
 	@Override
 	public void setLogId(String logId) {
 		io.setLogId(logId);
@@ -25,22 +25,30 @@ import tigase.kernel.DefaultTypesConverter;
 import tigase.kernel.TypesConverter;
 
 import java.io.Serializable;
-import java.util.Map;
+import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public class ClusterMapFactory {
 
+	/**
+	 * Maximal number of entries sent in a single {@link ElementsDeltaEvent}.
+	 */
+	static final int MAX_DELTA_SIZE = 1000;
 	private final static EventName NEWMAP_EVENT_NAME = new EventName(NewMapCreatedEvent.class);
 	private static ClusterMapFactory instance;
 	private final Logger log = Logger.getLogger(this.getClass().getName());
 	private final ConcurrentHashMap<String, DMap> maps = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String, PendingDelta> pendingDeltas = new ConcurrentHashMap<>();
 	private final TypesConverter typesConverter = new DefaultTypesConverter();
 	private EventBus eventBus;
 	private final DMap.DMapListener mapListener = new DMap.DMapListener() {
 		@Override
 		public void onClear(DMap map) {
+			if (map.replicationWindow > 0) {
+				discardDelta(map.getUid());
+			}
 			MapClearEvent event = new MapClearEvent();
 			event.setUid(map.getUid());
 			eventBus.fire(event);
@@ -48,6 +56,10 @@ public class ClusterMapFactory {
 
 		@Override
 		public void onPut(DMap map, Object key, Object value) {
+			if (map.replicationWindow > 0) {
+				addToDelta(map, typesConverter.toString(key), typesConverter.toString(value));
+				return;
+			}
 			ElementAddEvent event = new ElementAddEvent();
 			event.setUid(map.getUid());
 			event.setKey(typesConverter.toString(key));
@@ -58,6 +70,10 @@ public class ClusterMapFactory {
 		@Override
 		public void onPutAll(DMap map, Map<?, ?> m) {
 			for (Map.Entry<?, ?> en : m.entrySet()) {
+				if (map.replicationWindow > 0) {
+					addToDelta(map, typesConverter.toString(en.getKey()), typesConverter.toString(en.getValue()));
+					continue;
+				}
 				ElementAddEvent event = new ElementAddEvent();
 				event.setUid(map.getUid());
 				event.setKey(typesConverter.toString(en.getKey()));
@@ -68,12 +84,17 @@ public class ClusterMapFactory {
 
 		@Override
 		public void onRemove(DMap map, Object key) {
+			if (map.replicationWindow > 0) {
+				addToDelta(map, typesConverter.toString(key), null);
+				return;
+			}
 			ElementRemoveEvent event = new ElementRemoveEvent();
 			event.setUid(map.getUid());
 			event.setKey(typesConverter.toString(key));
 			eventBus.fire(event);
 		}
 	};
+	private Timer timer = null;
 
 	public static final ClusterMapFactory get() {
 		if (instance == null) {
@@ -109,6 +130,31 @@ public class ClusterMapFactory {
 
 			eventBus.fire(event);
 			this.maps.remove(((DMap) map).getUid(), map);
+			removeDelta(((DMap) map).getUid());
+		}
+	}
+
+	/**
+	 * Enables replication of changes of the map in batches. Changes made within <code>window</code> milliseconds are
+	 * sent to other cluster nodes in a single event, in which only the last change of each key is included.
+	 * <br>
+	 * Batches are not understood by older versions of Tigase XMPP Server, so it should be enabled only if all nodes of
+	 * the cluster support it.
+	 *
+	 * @param map created by this factory
+	 * @param window in milliseconds, <code>0</code> to send each change immediately
+	 */
+	public void setReplicationWindow(Map map, long window) {
+		if (map instanceof DMap) {
+			((DMap) map).replicationWindow = window;
+			if (window <= 0) {
+				PendingDelta delta = pendingDeltas.get(((DMap) map).getUid());
+				if (delta != null) {
+					synchronized (delta) {
+						flushDelta(delta);
+					}
+				}
+			}
 		}
 	}
 
@@ -149,6 +195,7 @@ public class ClusterMapFactory {
 	void onMapDestroyed(MapDestroyEvent event) {
 		final String uid = event.getUid();
 		DMap map = this.maps.remove(uid);
+		removeDelta(uid);
 		if (map != null) {
 			fireOnMapDestroyed(map, map.uid);
 		}
@@ -188,6 +235,28 @@ public class ClusterMapFactory {
 		map.removeNoEvent(key);
 	}
 
+	@HandleEvent(filter = HandleEvent.Type.remote)
+	void onMapElementsDelta(ElementsDeltaEvent event) {
+		final String uid = event.getUid();
+		DMap map = this.maps.get(uid);
+
+		if (map == null) {
+			log.log(Level.FINE, "No map '" + uid + "' created on this node! Ignoring ElementsDelta event.");
+			return;
+		}
+
+		// each key is present only once in the delta, so order of puts and removals does not matter
+		List<String> keys = decodeStrings(event.getKeys());
+		List<String> values = decodeStrings(event.getValues());
+		for (int i = 0; i < keys.size() && i < values.size(); i++) {
+			map.putNoEvent(typesConverter.convert(keys.get(i), map.keyClass),
+						   typesConverter.convert(values.get(i), map.valueClass));
+		}
+		for (String k : decodeStrings(event.getRemovedKeys())) {
+			map.removeNoEvent(typesConverter.convert(k, map.keyClass));
+		}
+	}
+
 	@HandleEvent(filter = HandleEvent.Type.remote)
 	void onNewMapCreated(final NewMapCreatedEvent event) {
 		final String uid = event.getUid();
@@ -202,7 +271,146 @@ public class ClusterMapFactory {
 			fireOnMapCreated(map, uid, parameters);
 		} else {
 			DMap map = this.maps.get(uid);
-			mapListener.onPutAll(map, map);
+			if (map.replicationWindow > 0) {
+				sendFullState(map);
+			} else {
+				mapListener.onPutAll(map, map);
+			}
+		}
+	}
+
+	private void addToDelta(DMap map, String key, String value) {
+		PendingDelta delta = pendingDeltas.computeIfAbsent(map.getUid(), PendingDelta::new);
+		synchronized (delta) {
+			if (delta.changes.isEmpty()) {
+				delta.task = new TimerTask() {
+					@Override
+					public void run() {
+						synchronized (delta) {
+							if (delta.task == this) {
+								flushDelta(delta);
+							}
+						}
+					}
+				};
+				getTimer().schedule(delta.task, map.replicationWindow);
+			}
+			delta.changes.put(key, value);
+			if (delta.changes.size() >= MAX_DELTA_SIZE) {
+				flushDelta(delta);
+			}
+		}
+	}
+
+	private void discardDelta(String uid) {
+		discardDelta(pendingDeltas.get(uid));
+	}
+
+	private void discardDelta(PendingDelta delta) {
+		if (delta != null) {
+			synchronized (delta) {
+				if (delta.task != null) {
+					delta.task.cancel();
+					delta.task = null;
+				}
+				delta.changes.clear();
+			}
+		}
+	}
+
+	private void removeDelta(String uid) {
+		discardDelta(pendingDeltas.remove(uid));
+	}
+
+	private void fireDelta(String uid, List<String> keys, List<String> values, List<String> removedKeys) {
+		ElementsDeltaEvent event = new ElementsDeltaEvent();
+		event.setUid(uid);
+		if (!keys.isEmpty()) {
+			event.setKeys(encodeStrings(keys));
+			event.setValues(encodeStrings(values));
+		}
+		if (!removedKeys.isEmpty()) {
+			event.setRemovedKeys(encodeStrings(removedKeys));
+		}
+		eventBus.fire(event);
+	}
+
+	private void flushDelta(PendingDelta delta) {
+		if (delta.task != null) {
+			delta.task.cancel();
+			delta.task = null;
+		}
+		if (delta.changes.isEmpty()) {
+			return;
+		}
+
+		List<String> keys = new ArrayList<>();
+		List<String> values = new ArrayList<>();
+		List<String> removedKeys = new ArrayList<>();
+		for (Map.Entry<String, String> change : delta.changes.entrySet()) {
+			if (change.getValue() == null) {
+				removedKeys.add(change.getKey());
+			} else {
+				keys.add(change.getKey());
+				values.add(change.getValue());
+			}
+		}
+		delta.changes.clear();
+
+		fireDelta(delta.uid, keys, values, removedKeys);
+	}
+
+	/**
+	 * Encodes list of strings as a single string, in which each item is prefixed by its length. Unlike comma separated
+	 * arrays, it keeps empty items and items containing any characters.
+	 */
+	static String encodeStrings(List<String> items) {
+		StringBuilder sb = new StringBuilder();
+		for (String item : items) {
+			sb.append(item.length()).append(':').append(item);
+		}
+		return sb.toString();
+	}
+
+	static List<String> decodeStrings(String data) {
+		if (data == null || data.isEmpty()) {
+			return Collections.emptyList();
+		}
+		List<String> result = new ArrayList<>();
+		int pos = 0;
+		while (pos < data.length()) {
+			int sep = data.indexOf(':', pos);
+			if (sep < 0) {
+				throw new IllegalArgumentException("Invalid encoded list of strings at position " + pos);
+			}
+			int end = sep + 1 + Integer.parseInt(data.substring(pos, sep));
+			result.add(data.substring(sep + 1, end));
+			pos = end;
+		}
+		return result;
+	}
+
+	private synchronized Timer getTimer() {
+		if (timer == null) {
+			timer = new Timer("cluster-map-replication", true);
+		}
+		return timer;
+	}
+
+	private void sendFullState(DMap<?, ?> map) {
+		List<String> keys = new ArrayList<>();
+		List<String> values = new ArrayList<>();
+		for (Map.Entry<?, ?> en : map.map.entrySet()) {
+			keys.add(typesConverter.toString(en.getKey()));
+			values.add(typesConverter.toString(en.getValue()));
+			if (keys.size() >= MAX_DELTA_SIZE) {
+				fireDelta(map.getUid(), keys, values, Collections.emptyList());
+				keys.clear();
+				values.clear();
+			}
+		}
+		if (!keys.isEmpty()) {
+			fireDelta(map.getUid(), keys, values, Collections.emptyList());
 		}
 	}
 
@@ -238,6 +446,51 @@ public class ClusterMapFactory {
 		}
 	}
 
+	/**
+	 * Batch of changes of the map, containing the last value of each changed key. Keys and values are lists of strings
+	 * encoded by {@link ClusterMapFactory#encodeStrings(List)}.
+	 */
+	public static class ElementsDeltaEvent
+			implements Serializable {
+
+		private String keys;
+		private String removedKeys;
+		private String uid;
+		private String values;
+
+		public String getKeys() {
+			return keys;
+		}
+
+		public void setKeys(String keys) {
+			this.keys = keys;
+		}
+
+		public String getRemovedKeys() {
+			return removedKeys;
+		}
+
+		public void setRemovedKeys(String removedKeys) {
+			this.removedKeys = removedKeys;
+		}
+
+		public String getUid() {
+			return uid;
+		}
+
+		public void setUid(String uid) {
+			this.uid = uid;
+		}
+
+		public String getValues() {
+			return values;
+		}
+
+		public void setValues(String values) {
+			this.values = values;
+		}
+	}
+
 	public static class ElementRemoveEvent
 			implements Serializable {
 
@@ -331,4 +584,16 @@ public class ClusterMapFactory {
 
 	}
 
+	private static class PendingDelta {
+
+		// null value means that the key was removed
+		private final LinkedHashMap<String, String> changes = new LinkedHashMap<>();
+		private final String uid;
+		private TimerTask task;
+
+		private PendingDelta(String uid) {
+			this.uid = uid;
+		}
+	}
+
 }
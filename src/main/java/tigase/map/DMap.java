@@ -30,6 +30,7 @@ class DMap<K, V>
 	final ConcurrentHashMap<K, V> map = new ConcurrentHashMap<K, V>();
 	final String uid;
 	final Class<V> valueClass;
+	volatile long replicationWindow = 0;
 
 	public DMap(String uid, DMapListener listener, final Class<K> keyClass, final Class<V> valueClass) {
 		this.listener = listener;
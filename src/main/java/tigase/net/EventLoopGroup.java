@@ -0,0 +1,426 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.net;
+
+import tigase.stats.HistogramMetric;
+import tigase.stats.StatisticsList;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Group of event loops handling network connections.
+ * <br>
+ * Each connection is assigned to a single loop which owns its <code>SelectionKey</code> for the whole lifetime of
+ * the connection. When the connection is ready, its interest set is cleared and {@link IOService#call()} is executed
+ * directly by the loop thread. After the call the interest set is restored, so the key is never cancelled and
+ * registered again, as it is done by {@link SocketThread}.
+ * <br>
+ * If a call takes longer than <code>slowCallThreshold</code>, following calls for the same connection are handed off
+ * to a pool of worker threads until one of them is fast again, so slow connections (ie. during TLS handshake) do not
+ * delay other connections of the loop.
+ */
+public class EventLoopGroup
+		implements IOThreadGroup {
+
+	private static final Logger log = Logger.getLogger(EventLoopGroup.class.getName());
+	// same as in Netty, wakeups caused by adding connections also return early
+	private static final int MAX_EMPTY_SELECTIONS = 512;
+	private static final long SELECT_TIMEOUT = 1000;
+	private static final long UTILIZATION_PERIOD = TimeUnit.SECONDS.toNanos(1);
+
+	private final LongAdder handedOffCalls = new LongAdder();
+	private final LongAdder inlineCalls = new LongAdder();
+	private final HistogramMetric loopTime = new HistogramMetric("Event loop time [us]", Level.FINE);
+	private final EventLoop[] loops;
+	private final String name;
+	private final long slowCallThreshold;
+	private final ThreadPoolExecutor workers;
+
+	/**
+	 * Creates and starts a new group of event loops.
+	 *
+	 * @param name of the group, used as a prefix of names of threads
+	 * @param loopsCount number of event loops (selector threads)
+	 * @param workersCount number of worker threads for calls handed off by event loops
+	 * @param slowCallThreshold time in milliseconds after which a call is considered slow, <code>0</code> disables
+	 * handing off calls
+	 */
+	public EventLoopGroup(String name, int loopsCount, int workersCount, long slowCallThreshold) throws IOException {
+		this.name = name;
+		this.slowCallThreshold = TimeUnit.MILLISECONDS.toNanos(slowCallThreshold);
+		AtomicInteger workerIdx = new AtomicInteger();
+		this.workers = new ThreadPoolExecutor(workersCount, workersCount, 0L, TimeUnit.MILLISECONDS,
+											  new LinkedBlockingQueue<>(), r -> {
+			Thread thread = new Thread(r);
+			thread.setName(name + "-worker-" + workerIdx.getAndIncrement());
+			return thread;
+		});
+		this.loops = new EventLoop[loopsCount];
+		for (int i = 0; i < loops.length; i++) {
+			loops[i] = new EventLoop(name + "-" + i);
+
+			Thread thread = new Thread(loops[i]);
+			thread.setName(loops[i].name);
+			thread.start();
+		}
+
+		log.log(Level.CONFIG, "{0} event loops and {1} worker threads started for {2}",
+				new Object[]{loopsCount, workersCount, name});
+	}
+
+	@Override
+	public void addSocketService(IOService<?> s) {
+		s.setSocketServiceReady(true);
+		getLoop(s).addSocketService(s);
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	@Override
+	public void getStatistics(String compName, StatisticsList list) {
+		int pending = 0;
+		for (EventLoop loop : loops) {
+			list.add(compName, loop.name + " utilization [%]", loop.utilization, Level.FINE);
+			list.add(compName, loop.name + " connections", loop.selector.keys().size(), Level.FINE);
+			list.add(compName, loop.name + " events", loop.events.sum(), Level.FINER);
+			pending += loop.pending.size();
+		}
+		list.add(compName, name + " inline calls", inlineCalls.sum(), Level.FINE);
+		list.add(compName, name + " handed off calls", handedOffCalls.sum(), Level.FINE);
+		list.add(compName, name + " pending registrations", pending, Level.FINE);
+		list.add(compName, name + " workers queue", workers.getQueue().size(), Level.FINE);
+		list.add(compName, name + " loop time 99th percentile [us]", loopTime.getPercentile(99), Level.FINE);
+		list.add(compName, name + " loop time max [us]", loopTime.getMax(), Level.FINE);
+	}
+
+	@Override
+	public void removeSocketService(IOService<?> s) {
+		s.setSocketServiceReady(false);
+		getLoop(s).removeSocketService(s);
+	}
+
+	private IOService<?> call(IOService<?> s) {
+		try {
+			return s.call();
+		} catch (Exception e) {
+			log.log(Level.WARNING, "Protocol execution exception.", e);
+			return null;
+		}
+	}
+
+	private EventLoop getLoop(IOService<?> s) {
+		return loops[(s.hashCode() & 0x7fffffff) % loops.length];
+	}
+
+	private static int getInterestOps(IOService<?> s) {
+		int ops = 0;
+		if (s.waitingToRead()) {
+			ops |= SelectionKey.OP_READ;
+		}
+		if (s.waitingToSend()) {
+			ops |= SelectionKey.OP_WRITE;
+		}
+		return ops;
+	}
+
+	/**
+	 * Connection registered in the event loop.
+	 */
+	private static class Registration {
+
+		private final IOService<?> service;
+		private volatile boolean offload = false;
+
+		private Registration(IOService<?> service) {
+			this.service = service;
+		}
+	}
+
+	private class EventLoop
+			implements Runnable {
+
+		private final LongAdder events = new LongAdder();
+		private final String name;
+		private final Queue<IOService<?>> pending = new ConcurrentLinkedQueue<>();
+		private int emptySelections = 0;
+		private volatile Selector selector;
+		private volatile float utilization = 0;
+
+		private EventLoop(String name) throws IOException {
+			this.name = name;
+			this.selector = Selector.open();
+		}
+
+		@Override
+		public void run() {
+			long periodStart = System.nanoTime();
+			long busy = 0;
+
+			while (true) {
+				try {
+					long selectStart = System.nanoTime();
+					int selected = selector.select(SELECT_TIMEOUT);
+					long selectEnd = System.nanoTime();
+
+					if (selected == 0 && pending.isEmpty() &&
+							selectEnd - selectStart < TimeUnit.MILLISECONDS.toNanos(1)) {
+						// selector returned too early without any reason, see SocketThread
+						if (++emptySelections > MAX_EMPTY_SELECTIONS) {
+							recreateSelector();
+						}
+					} else {
+						emptySelections = 0;
+					}
+
+					boolean hadWork = selected > 0 || !pending.isEmpty();
+					processSelected();
+					registerPending();
+
+					long end = System.nanoTime();
+					busy += end - selectEnd;
+					if (hadWork) {
+						loopTime.record((end - selectEnd) / 1000);
+					}
+					if (end - periodStart >= UTILIZATION_PERIOD) {
+						utilization = (busy * 100f) / (end - periodStart);
+						periodStart = end;
+						busy = 0;
+					}
+				} catch (Exception e) {
+					log.log(Level.SEVERE, name + ", server I/O error: ", e);
+					try {
+						recreateSelector();
+					} catch (Exception ex) {
+						log.log(Level.SEVERE, name + ", serious problem, can't recreate selector: ", ex);
+					}
+				}
+			}
+		}
+
+		private void addSocketService(IOService<?> s) {
+			SocketChannel sc = s.getSocketChannel();
+			SelectionKey key = sc == null ? null : sc.keyFor(selector);
+			if (key != null && key.isValid() && ((Registration) key.attachment()).service == s) {
+				int ops = getInterestOps(s);
+				try {
+					// this is called after each write, so there is no need to wake up the loop
+					// if connection is already waiting for the same events
+					if ((key.interestOps() & ops) == ops && ops != 0) {
+						return;
+					}
+				} catch (CancelledKeyException e) {
+					// connection was removed in the meantime, it will be registered again
+				}
+			}
+
+			if (log.isLoggable(Level.FINEST)) {
+				log.log(Level.FINEST, "Adding to pending: {0}", s);
+			}
+			pending.offer(s);
+			selector.wakeup();
+		}
+
+		private void arm(SelectionKey key, IOService<?> s) {
+			int ops = getInterestOps(s);
+			if (ops != 0) {
+				try {
+					key.interestOps(ops);
+				} catch (CancelledKeyException e) {
+					// connection was removed in the meantime
+					if (log.isLoggable(Level.FINEST)) {
+						log.log(Level.FINEST, "REMOVED: {0}", s.getUniqueId());
+					}
+				}
+			}
+		}
+
+		private void callInline(SelectionKey key, Registration reg) {
+			long start = System.nanoTime();
+			IOService<?> result = call(reg.service);
+			long time = System.nanoTime() - start;
+
+			inlineCalls.increment();
+			reg.offload = slowCallThreshold > 0 && time > slowCallThreshold;
+
+			// connection removed from the group during the call is not registered again
+			if (result != null && result.isConnected() && reg.service.isSocketServiceReady()) {
+				if (key.isValid()) {
+					arm(key, reg.service);
+				} else {
+					addSocketService(reg.service);
+				}
+			} else if (log.isLoggable(Level.FINEST)) {
+				// service was stopped, removed or is processed by other thread which will restore interest set
+				log.log(Level.FINEST, "REMOVED: {0}", reg.service.getUniqueId());
+			}
+		}
+
+		private void handOff(Registration reg) {
+			handedOffCalls.increment();
+			workers.execute(() -> {
+				long start = System.nanoTime();
+				IOService<?> result = call(reg.service);
+				long time = System.nanoTime() - start;
+
+				reg.offload = time > slowCallThreshold;
+				if (result != null && result.isConnected() && reg.service.isSocketServiceReady()) {
+					addSocketService(reg.service);
+				}
+			});
+		}
+
+		private void processSelected() {
+			Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+			while (it.hasNext()) {
+				SelectionKey key = it.next();
+				it.remove();
+
+				Registration reg = (Registration) key.attachment();
+				try {
+					key.interestOps(0);
+				} catch (CancelledKeyException e) {
+					// connection was removed
+					continue;
+				}
+				if (!reg.service.isSocketServiceReady()) {
+					key.cancel();
+					continue;
+				}
+				events.increment();
+
+				if (log.isLoggable(Level.FINEST)) {
+					log.log(Level.FINEST, "AWAKEN: {0}, readyOps() = {1}",
+							new Object[]{reg.service.getUniqueId(), key.readyOps()});
+				}
+
+				if (reg.offload) {
+					handOff(reg);
+				} else {
+					callInline(key, reg);
+				}
+			}
+		}
+
+		private void recreateSelector() throws IOException {
+			log.log(Level.INFO, "{0}, recreating selector, opened channels: {1}",
+					new Object[]{name, selector.keys().size()});
+			emptySelections = 0;
+
+			Selector oldSelector = selector;
+			Selector newSelector = Selector.open();
+			for (SelectionKey key : oldSelector.keys()) {
+				Registration reg = (Registration) key.attachment();
+				try {
+					int ops = key.interestOps();
+					key.cancel();
+					SocketChannel sc = reg.service.getSocketChannel();
+					if (sc.isConnected()) {
+						sc.register(newSelector, ops, reg);
+					} else {
+						reg.service.forceStop();
+					}
+				} catch (CancelledKeyException e) {
+					// connection was removed
+				} catch (Exception e) {
+					log.log(Level.FINER, "Forcing stopping the service: " + reg.service.getUniqueId(), e);
+					reg.service.forceStop();
+				}
+			}
+			selector = newSelector;
+			oldSelector.close();
+		}
+
+		private void register(IOService<?> s) throws IOException {
+			SocketChannel sc = s.getSocketChannel();
+			if (!sc.isConnected()) {
+				if (log.isLoggable(Level.FINER)) {
+					log.log(Level.FINER, "Socket not connected, forcing stopping the service: {0}", s.getUniqueId());
+				}
+				s.forceStop();
+				return;
+			}
+
+			SelectionKey key = sc.keyFor(selector);
+			if (key != null && !key.isValid()) {
+				// key was cancelled by removeSocketService(), it has to be deregistered before registering again
+				selector.selectNow();
+				key = null;
+			}
+
+			int ops = getInterestOps(s);
+			if (key == null) {
+				sc.register(selector, ops, new Registration(s));
+				if (log.isLoggable(Level.FINEST)) {
+					log.log(Level.FINEST, "REGISTERED: {0}, interestOps() = {1}", new Object[]{s.getUniqueId(), ops});
+				}
+			} else if (((Registration) key.attachment()).service != s) {
+				key.attach(new Registration(s));
+				key.interestOps(ops);
+			} else if (ops != 0) {
+				key.interestOps(key.interestOps() | ops);
+			}
+		}
+
+		private void registerPending() {
+			IOService<?> s;
+			while ((s = pending.poll()) != null) {
+				if (!s.isSocketServiceReady()) {
+					continue;
+				}
+				try {
+					register(s);
+				} catch (Exception e) {
+					if (log.isLoggable(Level.FINER)) {
+						log.log(Level.FINER, "Forcing stopping the service: " + s.getUniqueId(), e);
+					}
+					try {
+						s.forceStop();
+					} catch (Exception ex) {
+						if (log.isLoggable(Level.FINEST)) {
+							log.log(Level.FINEST, "Exception while stopping service: " + s.getUniqueId(), ex);
+						}
+					}
+				}
+			}
+		}
+
+		private void removeSocketService(IOService<?> s) {
+			SocketChannel sc = s.getSocketChannel();
+			SelectionKey key = sc == null ? null : sc.keyFor(selector);
+			if (key != null && ((Registration) key.attachment()).service == s) {
+				key.cancel();
+			}
+		}
+	}
+}
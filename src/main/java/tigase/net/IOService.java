@@ -89,10 +89,21 @@ public abstract class IOService<RefObject>
 
 	private static final Logger log = Logger.getLogger(IOService.class.getName());
 	private static final long MAX_ALLOWED_EMPTY_CALLS = 1000;
+	private static final int MIN_CHAR_BUFFER_SIZE = 2048;
+	/**
+	 * Character buffers are used only while decoding data, so we keep one per thread instead of one per connection.
+	 */
+	private static final ThreadLocal<CharBuffer> charBuffers = ThreadLocal.withInitial(
+			() -> CharBuffer.allocate(MIN_CHAR_BUFFER_SIZE));
+	/**
+	 * Size of the buffer used to encode and coalesce outgoing data. Larger data is sent in multiple writes. Buffer is
+	 * borrowed from the {@link BufferPool} only until data is passed to the socket.
+	 */
+	private static final int OUTPUT_BUFFER_SIZE = 16 * 1024;
 
 	private final ReentrantLock readInProgress = new ReentrantLock();
 	private final ReentrantLock writeInProgress = new ReentrantLock();
-	protected CharBuffer cb = CharBuffer.allocate(2048);
+	protected CharBuffer cb = null;
 	protected CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder();
 	protected CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
 	/**
@@ -106,6 +117,10 @@ public abstract class IOService<RefObject>
 	private JID dataReceiver = null;
 	private long empty_read_call_count = 0;
 	private String id = null;
+	/**
+	 * Group of threads handling this connection, <code>null</code> for the default group.
+	 */
+	private IOThreadGroup ioThreadGroup = null;
 	/**
 	 * This variable keeps the time of last transfer in any direction it is used to help detect dead connections.
 	 */
@@ -113,6 +128,11 @@ public abstract class IOService<RefObject>
 	private Certificate localCertificate;
 	private String local_address = null;
 	private Certificate peerCertificate;
+	/**
+	 * <code>outputBuffer</code> keeps encoded data which was not yet passed to the socket.
+	 */
+	private ByteBuffer outputBuffer = null;
+	private final BufferPool bufferPool = BufferPool.getInstance();
 	private long[] rdData = new long[60];
 	private RefObject refObject = null;
 
@@ -173,9 +193,8 @@ public abstract class IOService<RefObject>
 
 			throw e;
 		}
+		// input buffer is borrowed from the pool when there is data to read
 		socketInputSize = socketIO.getSocketChannel().socket().getReceiveBufferSize();
-		socketInput = ByteBuffer.allocate(socketInputSize);
-		socketInput.order(byteOrder());
 
 		Socket sock = socketIO.getSocketChannel().socket();
 
@@ -202,6 +221,7 @@ public abstract class IOService<RefObject>
 						serviceListener.packetsReady(this);
 					}    // end of if (receivedPackets.size() > 0)
 				} finally {
+					releaseInputBuffers();
 					readInProgress.unlock();
 					if (!isConnected()) {
 						// added to sooner detect disconnection of peer - ie. client
@@ -434,6 +454,27 @@ public abstract class IOService<RefObject>
 		((ZLibIO) socketIO).setIOListener(this);
 	}
 
+	/**
+	 * Starts ZLIB compression with level adapted to the traffic and optional preset dictionary.
+	 *
+	 * @see AdaptiveZLibIO
+	 */
+	public void startZLib(int level, boolean adaptive, int minGain, byte[] dictionary) {
+		if (socketIO.checkCapabilities(ZLibIO.ZLIB_CAPS)) {
+			throw new IllegalStateException("ZLIB mode is already activated.");
+		}
+		socketIO = new AdaptiveZLibIO(socketIO, level, adaptive, minGain, dictionary);
+		((ZLibIO) socketIO).setIOListener(this);
+	}
+
+	/**
+	 * Returns ZLIB compression layer of the connection or <code>null</code> if compression is not active.
+	 */
+	public AdaptiveZLibIO getAdaptiveZLibIO() {
+		IOInterface io = socketIO;
+		return io instanceof AdaptiveZLibIO ? (AdaptiveZLibIO) io : null;
+	}
+
 	public void stop() {
 		if ((socketIO != null) && socketIO.waitingToSend()) {
 			stopping = true;
@@ -452,7 +493,7 @@ public abstract class IOService<RefObject>
 	}
 
 	public boolean waitingToSend() {
-		return socketIO.waitingToSend();
+		return socketIO.waitingToSend() || hasBufferedData();
 	}
 
 	public int waitingToSendSize() {
@@ -492,6 +533,10 @@ public abstract class IOService<RefObject>
 	 * This method returns the time of last transfer in any direction through this service. It is used to help detect
 	 * dead connections.
 	 */
+	public IOThreadGroup getIOThreadGroup() {
+		return ioThreadGroup;
+	}
+
 	public long getLastTransferTime() {
 		return lastTransferTime;
 	}
@@ -611,6 +656,10 @@ public abstract class IOService<RefObject>
 		this.serviceListener = sl;
 	}
 
+	public void setIOThreadGroup(IOThreadGroup ioThreadGroup) {
+		this.ioThreadGroup = ioThreadGroup;
+	}
+
 	public void setSslContextContainer(SSLContextContainerIfc sslContextContainer) {
 		this.sslContextContainer = sslContextContainer;
 	}
@@ -667,6 +716,8 @@ public abstract class IOService<RefObject>
 			log.log(Level.FINEST, "Socket: " + socketIO, thr);
 		}
 		try {
+			ensureInputBuffer();
+
 			ByteBuffer tmpBuffer = socketIO.read(socketInput);
 
 			if (socketIO.bytesRead() > 0) {
@@ -719,19 +770,9 @@ public abstract class IOService<RefObject>
 		// synchronized (socketIO) {
 		try {
 
-			// resizeInputBuffer();
-			// Maybe we can shrink the input buffer??
-			if ((socketInput.capacity() > socketInputSize) && (socketInput.remaining() == socketInput.capacity())) {
-
-				// Yes, looks like we can
-				if (log.isLoggable(Level.FINE)) {
-					log.log(Level.FINE, "Socket: {0}, Resizing socketInput down to {1} bytes.",
-							new Object[]{socketIO, socketInputSize});
-				}
-				socketInput = ByteBuffer.allocate(socketInputSize);
-				socketInput.order(byteOrder());
-				cb = CharBuffer.allocate(socketInputSize * 4);
-			}
+			// Input buffer resized for a big packet is returned to the pool
+			// as soon as it is empty, so there is no need to shrink it here.
+			ensureInputBuffer();
 
 			// if (log.isLoggable(Level.FINEST)) {
 			// log.finer("Before read from socket.");
@@ -789,13 +830,7 @@ public abstract class IOService<RefObject>
 					// log.finer("cb.position()=" + cb.position());
 					// }
 					// tmpBuffer.flip();
-					if (cb.capacity() < tmpBuffer.remaining() * 4) {
-						if (log.isLoggable(Level.FINEST)) {
-							log.log(Level.FINEST, "Socket: {0}, resizing character buffer to: {1}",
-									new Object[]{socketIO, tmpBuffer.remaining()});
-						}
-						cb = CharBuffer.allocate(tmpBuffer.remaining() * 4);
-					}
+					cb = getCharBuffer(tmpBuffer.remaining() * 4);
 
 					CoderResult cr = decoder.decode(tmpBuffer, cb, false);
 
@@ -913,6 +948,8 @@ public abstract class IOService<RefObject>
 		// Avoid concurrent calls here (one from call() and another from
 		// application)
 		try {
+			// data encoded earlier must be sent first
+			writeBufferedData();
 			if ((data != null) && data.hasRemaining()) {
 				int length = data.remaining();
 
@@ -945,6 +982,93 @@ public abstract class IOService<RefObject>
 		}
 	}
 
+	/**
+	 * Method encodes data to the output buffer of the connection without sending it. Data is passed to the socket when
+	 * the buffer is full or when {@link #writeData(String)} is called, so multiple stanzas may be sent in a single
+	 * write. Caller is responsible for calling {@link #flushData()} after all data is buffered.
+	 *
+	 * @param data to encode
+	 */
+	protected void bufferData(final String data) {
+		if ((data == null) || data.isEmpty()) {
+			return;
+		}
+
+		writeInProgress.lock();
+		try {
+			if (log.isLoggable(Level.FINEST)) {
+				log.log(Level.FINEST, "Socket: {0}, Buffering data: {1}", new Object[]{socketIO, data.length()});
+			}
+			encodeData(data);
+		} catch (Exception e) {
+			if (log.isLoggable(Level.FINER)) {
+				log.log(Level.FINER, "Data encoding exception " + connectionId, e);
+			}
+			forceStop();
+		} finally {
+			writeInProgress.unlock();
+		}
+	}
+
+	/**
+	 * Method copies binary data to the output buffer of the connection without sending it, in the same way as {@link
+	 * #bufferData(String)} does with character data.
+	 *
+	 * @param data to buffer, consumed by the call
+	 */
+	protected void bufferBytes(final ByteBuffer data) {
+		if ((data == null) || !data.hasRemaining()) {
+			return;
+		}
+
+		writeInProgress.lock();
+		try {
+			if (log.isLoggable(Level.FINEST)) {
+				log.log(Level.FINEST, "Socket: {0}, Buffering bytes: {1}", new Object[]{socketIO, data.remaining()});
+			}
+			while (data.hasRemaining()) {
+				if (outputBuffer == null) {
+					outputBuffer = bufferPool.acquire(OUTPUT_BUFFER_SIZE);
+				}
+				if (!outputBuffer.hasRemaining()) {
+					writeBufferedData();
+					continue;
+				}
+
+				int length = Math.min(outputBuffer.remaining(), data.remaining());
+				ByteBuffer part = data.duplicate();
+
+				part.limit(part.position() + length);
+				outputBuffer.put(part);
+				data.position(data.position() + length);
+			}
+		} catch (Exception e) {
+			if (log.isLoggable(Level.FINER)) {
+				log.log(Level.FINER, "Data buffering exception " + connectionId, e);
+			}
+			forceStop();
+		} finally {
+			writeInProgress.unlock();
+		}
+	}
+
+	/**
+	 * Method sends all data buffered by {@link #bufferData(String)} or {@link #bufferBytes(ByteBuffer)} to the socket.
+	 */
+	protected void flushData() {
+		writeInProgress.lock();
+		try {
+			writeBufferedData();
+		} catch (Exception e) {
+			if (log.isLoggable(Level.FINER)) {
+				log.log(Level.FINER, "Data writing exception " + connectionId, e);
+			}
+			forceStop();
+		} finally {
+			writeInProgress.unlock();
+		}
+	}
+
 	protected void writeData(final String data) {
 
 		// Try to lock the data writing method
@@ -973,25 +1097,10 @@ public abstract class IOService<RefObject>
 					}
 				}
 
-				ByteBuffer dataBuffer = null;
-
-				// int out_buff_size = data.length();
-				// int idx_start = 0;
-				// int idx_offset = Math.min(idx_start + out_buff_size, data.length());
-				//
-				// while (idx_start < data.length()) {
-				// String data_str = data.substring(idx_start, idx_offset);
-				// if (log.isLoggable(Level.FINEST)) {
-				// log.finest("Writing data_str (" + data_str.length() + "), idx_start="
-				// + idx_start + ", idx_offset=" + idx_offset + ": " + data_str);
-				// }
-				encoder.reset();
-
-				// dataBuffer = encoder.encode(CharBuffer.wrap(data, idx_start,
-				// idx_offset));
-				dataBuffer = encoder.encode(CharBuffer.wrap(data));
-				encoder.flush(dataBuffer);
-				socketIO.write(dataBuffer);
+				// Data is encoded directly to the output buffer of the connection,
+				// together with any data buffered by bufferData() before.
+				encodeData(data);
+				writeBufferedData();
 				if (log.isLoggable(Level.FINEST)) {
 					log.log(Level.FINEST, "Socket: {0}, wrote: {1}", new Object[]{socketIO, data.length()});
 				}
@@ -1004,7 +1113,9 @@ public abstract class IOService<RefObject>
 				// addWritten(data.length());
 				empty_read_call_count = 0;
 			} else {
-				if (socketIO.waitingToSend()) {
+				if (hasBufferedData()) {
+					writeBufferedData();
+				} else if (socketIO.waitingToSend()) {
 					socketIO.write(null);
 					setLastTransferTime();
 					empty_read_call_count = 0;
@@ -1025,6 +1136,74 @@ public abstract class IOService<RefObject>
 		}
 	}
 
+	private void encodeData(final String data) throws IOException {
+		CharBuffer input = CharBuffer.wrap(data);
+		CoderResult result;
+
+		encoder.reset();
+		do {
+			if (outputBuffer == null) {
+				outputBuffer = bufferPool.acquire(OUTPUT_BUFFER_SIZE);
+			}
+			result = encoder.encode(input, outputBuffer, true);
+			if (result.isError()) {
+				result.throwException();
+			}
+			if (result.isOverflow()) {
+				// Buffer is full, we have to send it before encoding the rest of data
+				writeBufferedData();
+			}
+		} while (result.isOverflow());
+
+		do {
+			if (outputBuffer == null) {
+				outputBuffer = bufferPool.acquire(OUTPUT_BUFFER_SIZE);
+			}
+			result = encoder.flush(outputBuffer);
+			if (result.isOverflow()) {
+				writeBufferedData();
+			}
+		} while (result.isOverflow());
+	}
+
+	private boolean hasBufferedData() {
+		ByteBuffer buffer = outputBuffer;
+		return (buffer != null) && (buffer.position() > 0);
+	}
+
+	private void writeBufferedData() throws IOException {
+		if (!hasBufferedData()) {
+			return;
+		}
+
+		outputBuffer.flip();
+
+		int length = outputBuffer.remaining();
+
+		if (socketIO.waitingToSend()) {
+			// Socket will queue the data until previous data is sent, so we pass
+			// a copy of exact size and return the output buffer to the pool.
+			ByteBuffer data = ByteBuffer.allocate(length);
+			data.put(outputBuffer);
+			data.flip();
+			bufferPool.release(outputBuffer);
+			socketIO.write(data);
+		} else {
+			socketIO.write(outputBuffer);
+			if (!outputBuffer.hasRemaining()) {
+				bufferPool.release(outputBuffer);
+			}
+			// otherwise the buffer was queued by the socket as it was not fully
+			// written, so it cannot be reused and it is not returned to the pool
+		}
+		outputBuffer = null;
+		if (log.isLoggable(Level.FINEST)) {
+			log.log(Level.FINEST, "Socket: {0}, wrote buffered: {1}", new Object[]{socketIO, length});
+		}
+		setLastTransferTime();
+		empty_read_call_count = 0;
+	}
+
 	protected boolean isSocketServiceReady() {
 		return socketServiceReady;
 	}
@@ -1038,13 +1217,47 @@ public abstract class IOService<RefObject>
 	}
 
 	protected boolean isInputBufferEmpty() {
-		return (socketInput != null) && (socketInput.remaining() == socketInput.capacity());
+		return (socketInput == null) || (socketInput.remaining() == socketInput.capacity());
 	}
 
 	protected IOInterface getIO() {
 		return socketIO;
 	}
 
+	private void ensureInputBuffer() {
+		if (socketInput == null) {
+			socketInput = bufferPool.acquire(socketInputSize);
+			socketInput.order(byteOrder());
+		}
+	}
+
+	protected CharBuffer getCharBuffer(int size) {
+		CharBuffer buffer = charBuffers.get();
+
+		if (buffer.capacity() < size) {
+			if (log.isLoggable(Level.FINEST)) {
+				log.log(Level.FINEST, "Socket: {0}, resizing character buffer to: {1}", new Object[]{socketIO, size});
+			}
+			buffer = CharBuffer.allocate(size);
+			charBuffers.set(buffer);
+		}
+		return buffer;
+	}
+
+	/**
+	 * Returns input buffers to the pool if there is no partially received data waiting for more data.
+	 */
+	private void releaseInputBuffers() {
+		cb = null;
+		if ((socketInput != null) && isInputBufferEmpty()) {
+			bufferPool.release(socketInput);
+			socketInput = null;
+		}
+		if (socketIO != null) {
+			socketIO.releaseIdleBuffers();
+		}
+	}
+
 	private void resizeInputBuffer() throws IOException {
 		int netSize = socketIO.getInputPacketSize();
 
@@ -1069,10 +1282,14 @@ public abstract class IOService<RefObject>
 				log.log(Level.FINE, "Socket: {0}, Resizing socketInput to {1} bytes.", new Object[]{socketIO, newSize});
 			}
 
-			ByteBuffer b = ByteBuffer.allocate(newSize);
+			// size limited by bufferLimit may not match any of the pool size classes
+			ByteBuffer b = BufferPool.capacityFor(newSize) == newSize
+						   ? bufferPool.acquire(newSize)
+						   : ByteBuffer.allocate(newSize);
 
 			b.order(byteOrder());
 			b.put(socketInput);
+			bufferPool.release(socketInput);
 			socketInput = b;
 		} else {
 
@@ -0,0 +1,36 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.net;
+
+import tigase.stats.StatisticsList;
+
+/**
+ * Group of threads handling network connections.
+ * <br>
+ * Connection is handled by the group set with {@link IOService#setIOThreadGroup(IOThreadGroup)} or by the default
+ * group, if it was not set. Groups are obtained with {@link SocketThread#getThreadGroup(String, int)}.
+ */
+public interface IOThreadGroup {
+
+	void addSocketService(IOService<?> s);
+
+	void getStatistics(String compName, StatisticsList list);
+
+	void removeSocketService(IOService<?> s);
+
+}
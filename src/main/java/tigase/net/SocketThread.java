@@ -18,6 +18,8 @@
 package tigase.net;
 
 import tigase.annotations.TODO;
+import tigase.stats.HistogramMetric;
+import tigase.stats.StatisticsList;
 
 import java.io.IOException;
 import java.nio.channels.CancelledKeyException;
@@ -33,6 +35,17 @@ import java.util.logging.Logger;
 /**
  * Describe class SocketThread here.
  * <br>
+ * Connections are handled by groups of threads ({@link IOThreadGroup}). Connections without a group assigned with
+ * {@link IOService#setIOThreadGroup(IOThreadGroup)} are handled by the default group shared by all components. Named
+ * groups with their own threads are created with {@link #getThreadGroup(String, int)}, ie. for connection managers with
+ * <code>io-thread-group</code> set.
+ * <br>
+ * If system property <code>{@value #IO_ENGINE_PROP_KEY}</code> is set to <code>{@value #IO_ENGINE_EVENT_LOOP}</code>,
+ * groups use {@link EventLoopGroup} instead of the selector threads and the thread pool of this class. Size of the
+ * default group may be set with <code>{@value #EVENT_LOOPS_PROP_KEY}</code> (number of available processors by
+ * default) and <code>{@value #SLOW_CALL_THRESHOLD_PROP_KEY}</code> (in milliseconds, {@value
+ * #SLOW_CALL_THRESHOLD_PROP_DEF} by default) properties.
+ * <br>
  * Created: Mon Jan 30 12:01:17 2006
  *
  * @author <a href="mailto:artur.hefczyc@tigase.org">Artur Hefczyc</a>
@@ -41,58 +54,29 @@ public class SocketThread
 		implements Runnable {
 
 	public static final int DEF_MAX_THREADS_PER_CPU = 8;
+	public static final String EVENT_LOOPS_PROP_KEY = "net-io-event-loops";
+	public static final String IO_ENGINE_EVENT_LOOP = "event-loop";
+	public static final String IO_ENGINE_PROP_KEY = "net-io-engine";
+	public static final String SLOW_CALL_THRESHOLD_PROP_KEY = "net-io-slow-call-threshold";
+	public static final long SLOW_CALL_THRESHOLD_PROP_DEF = 10;
 	private static final Logger log = Logger.getLogger(SocketThread.class.getName());
 	private static final int MAX_EMPTY_SELECTIONS = 10;
+	private static int cpus = Runtime.getRuntime().availableProcessors();
 	/**
-	 * Variable <code>completionService</code> keeps reference to server thread pool. There is only one thread pool used
-	 * by all server modules. Each module requiring separate threads for tasks processing must have access to server
-	 * thread pool.
+	 * Variable <code>defaultGroup</code> keeps reference to server I/O threads. The default group is used by all server
+	 * modules which do not have their own group of threads configured.
 	 */
-	private static CompletionService<IOService<?>> completionService = null;
-	private static int cpus = Runtime.getRuntime().availableProcessors();
-	private static ThreadPoolExecutor executor = null;
-	private static SocketThread[] socketReadThread = null;
-	private static SocketThread[] socketWriteThread = null;
+	private static IOThreadGroup defaultGroup = null;
+	private static final ConcurrentHashMap<String, IOThreadGroup> groups = new ConcurrentHashMap<>();
 
 	//private static int threadNo = 0;
 //private static final int READ_ONLY = SelectionKey.OP_READ;
 //private static final int READ_WRITE = SelectionKey.OP_READ | SelectionKey.OP_WRITE;
 	static {
-		if (socketReadThread == null) {
-			int nThreads = (cpus * DEF_MAX_THREADS_PER_CPU) / 2 + 1;
-
-			executor = new ThreadPoolExecutor(nThreads, nThreads, 0L, TimeUnit.MILLISECONDS,
-											  new LinkedBlockingQueue<Runnable>());
-			completionService = new ExecutorCompletionService<IOService<?>>(executor);
-			socketReadThread = new SocketThread[nThreads];
-			socketWriteThread = new SocketThread[nThreads];
-
-			for (int i = 0; i < socketReadThread.length; i++) {
-				socketReadThread[i] = new SocketThread("socketReadThread-" + i);
-				socketReadThread[i].reading = true;
-
-				Thread thrd = new Thread(socketReadThread[i]);
-
-				thrd.setName("socketReadThread-" + i);
-				thrd.start();
-			}
-
-			log.log(Level.WARNING, "{0} socketReadThreads started.", socketReadThread.length);
-
-			for (int i = 0; i < socketWriteThread.length; i++) {
-				socketWriteThread[i] = new SocketThread("socketWriteThread-" + i);
-				socketWriteThread[i].writing = true;
-
-				Thread thrd = new Thread(socketWriteThread[i]);
-
-				thrd.setName("socketWriteThread-" + i);
-				thrd.start();
-			}
-
-			log.log(Level.WARNING, "{0} socketWriteThreads started.", socketWriteThread.length);
-		}    // end of if (acceptThread == null)
+		defaultGroup = createThreadGroup(null, (cpus * DEF_MAX_THREADS_PER_CPU) / 2 + 1);
 	}
 
+	private final SelectorThreadGroup group;
 	private Selector clientsSel = null;
 
 	// private boolean selecting = false;
@@ -110,32 +94,57 @@ public class SocketThread
 	private boolean writing = false;
 
 	public static void addSocketService(IOService<?> s) {
-		s.setSocketServiceReady(true);
-		// Due to a delayed SelectionKey cancelling deregistering
-		// nature this distribution doesn't work well, it leads to
-		// dead-lock. Let's make sure the service is always processed
-		// by the same thread thus the same Selector.
-		// socketReadThread[incrementAndGet()].addSocketServicePriv(s);
-		if (s.waitingToRead()) {
-			socketReadThread[s.hashCode() % socketReadThread.length].addSocketServicePriv(s);
-		}
+		getThreadGroup(s).addSocketService(s);
+	}
 
-		if (s.waitingToSend()) {
-			socketWriteThread[s.hashCode() % socketWriteThread.length].addSocketServicePriv(s);
+	public static void getStatistics(String compName, StatisticsList list) {
+		defaultGroup.getStatistics(compName, list);
+		for (IOThreadGroup group : groups.values()) {
+			group.getStatistics(compName, list);
 		}
 	}
 
+	/**
+	 * Returns named group of I/O threads, creating it if it does not exist yet.
+	 *
+	 * @param name of the group
+	 * @param threads number of threads of the group, if not greater than <code>0</code> number of available
+	 * processors is used. It is ignored if the group already exists.
+	 *
+	 * @return group of I/O threads
+	 */
+	public static IOThreadGroup getThreadGroup(String name, int threads) {
+		return groups.computeIfAbsent(name, key -> createThreadGroup(key, threads > 0 ? threads : cpus));
+	}
 
 	public static void removeSocketService(IOService<Object> s) {
-		s.setSocketServiceReady(false);
-		socketReadThread[s.hashCode() % socketReadThread.length].removeSocketServicePriv(s);
-		socketWriteThread[s.hashCode() % socketWriteThread.length].removeSocketServicePriv(s);
+		getThreadGroup(s).removeSocketService(s);
+	}
+
+	private static IOThreadGroup createThreadGroup(String name, int nThreads) {
+		String prefix = name == null ? "" : name + "-";
+		if (IO_ENGINE_EVENT_LOOP.equals(System.getProperty(IO_ENGINE_PROP_KEY))) {
+			int loops = name == null ? Integer.getInteger(EVENT_LOOPS_PROP_KEY, cpus) : nThreads;
+			try {
+				return new EventLoopGroup(prefix + "socketEventLoop", loops, nThreads,
+										  Long.getLong(SLOW_CALL_THRESHOLD_PROP_KEY, SLOW_CALL_THRESHOLD_PROP_DEF));
+			} catch (IOException e) {
+				log.log(Level.SEVERE, "Server I/O error, can't start event loops, using selector threads.", e);
+			}
+		}
+		return new SelectorThreadGroup(prefix, nThreads);
+	}
+
+	private static IOThreadGroup getThreadGroup(IOService<?> s) {
+		IOThreadGroup group = s.getIOThreadGroup();
+		return group == null ? defaultGroup : group;
 	}
 
 	/**
 	 * Creates a new <code>SocketThread</code> instance.
 	 */
-	private SocketThread(String name) {
+	private SocketThread(String name, SelectorThreadGroup group) {
+		this.group = group;
 		try {
 			clientsSel = Selector.open();
 		} catch (Exception e) {
@@ -177,6 +186,8 @@ public class SocketThread
 			try {
 				clientsSel.select();
 
+				long loopStart = System.nanoTime();
+
 				if (log.isLoggable(Level.FINEST)) {
 					log.log(Level.FINEST, "Selector AWAKE: {0}", clientsSel);
 				}
@@ -267,9 +278,11 @@ public class SocketThread
 				IOService serv = null;
 
 				while ((serv = forCompletion.pollFirst()) != null) {
-					completionService.submit(serv);
+					group.completionService.submit(serv);
 				}
 
+				group.loopTime.record((System.nanoTime() - loopStart) / 1000);
+
 				// clientsSel.selectNow();
 			} catch (CancelledKeyException brokene) {
 
@@ -316,8 +329,8 @@ public class SocketThread
 	}
 
 	public void setMaxThread(int threads) {
-		executor.setCorePoolSize(threads);
-		executor.setMaximumPoolSize(threads);
+		group.executor.setCorePoolSize(threads);
+		group.executor.setMaximumPoolSize(threads);
 	}
 
 	public void setMaxThreadPerCPU(int threads) {
@@ -451,6 +464,88 @@ public class SocketThread
 		}
 	}
 
+	/**
+	 * Group of selector threads (separate for reading and writing) and a thread pool processing connections.
+	 */
+	private static class SelectorThreadGroup
+			implements IOThreadGroup {
+
+		private final CompletionService<IOService<?>> completionService;
+		private final ThreadPoolExecutor executor;
+		private final HistogramMetric loopTime = new HistogramMetric("Selector loop time [us]", Level.FINE);
+		private final String prefix;
+		private final SocketThread[] socketReadThread;
+		private final SocketThread[] socketWriteThread;
+
+		private SelectorThreadGroup(String prefix, int nThreads) {
+			this.prefix = prefix;
+			executor = new ThreadPoolExecutor(nThreads, nThreads, 0L, TimeUnit.MILLISECONDS,
+											  new LinkedBlockingQueue<Runnable>());
+			completionService = new ExecutorCompletionService<IOService<?>>(executor);
+			socketReadThread = new SocketThread[nThreads];
+			socketWriteThread = new SocketThread[nThreads];
+
+			for (int i = 0; i < socketReadThread.length; i++) {
+				socketReadThread[i] = new SocketThread(prefix + "socketReadThread-" + i, this);
+				socketReadThread[i].reading = true;
+
+				Thread thrd = new Thread(socketReadThread[i]);
+
+				thrd.setName(prefix + "socketReadThread-" + i);
+				thrd.start();
+			}
+
+			log.log(Level.WARNING, "{0} {1}socketReadThreads started.", new Object[]{socketReadThread.length, prefix});
+
+			for (int i = 0; i < socketWriteThread.length; i++) {
+				socketWriteThread[i] = new SocketThread(prefix + "socketWriteThread-" + i, this);
+				socketWriteThread[i].writing = true;
+
+				Thread thrd = new Thread(socketWriteThread[i]);
+
+				thrd.setName(prefix + "socketWriteThread-" + i);
+				thrd.start();
+			}
+
+			log.log(Level.WARNING, "{0} {1}socketWriteThreads started.", new Object[]{socketWriteThread.length, prefix});
+		}
+
+		@Override
+		public void addSocketService(IOService<?> s) {
+			s.setSocketServiceReady(true);
+			// Due to a delayed SelectionKey cancelling deregistering
+			// nature this distribution doesn't work well, it leads to
+			// dead-lock. Let's make sure the service is always processed
+			// by the same thread thus the same Selector.
+			// socketReadThread[incrementAndGet()].addSocketServicePriv(s);
+			if (s.waitingToRead()) {
+				socketReadThread[s.hashCode() % socketReadThread.length].addSocketServicePriv(s);
+			}
+
+			if (s.waitingToSend()) {
+				socketWriteThread[s.hashCode() % socketWriteThread.length].addSocketServicePriv(s);
+			}
+		}
+
+		@Override
+		public void getStatistics(String compName, StatisticsList list) {
+			String name = prefix + "socketThreads";
+			list.add(compName, name + " queue", executor.getQueue().size(), Level.FINE);
+			list.add(compName, name + " active", executor.getActiveCount(), Level.FINE);
+			list.add(compName, name + " selector loops", loopTime.getCount(), Level.FINE);
+			list.add(compName, name + " selector loop time 99th percentile [us]", loopTime.getPercentile(99),
+					 Level.FINE);
+			list.add(compName, name + " selector loop time max [us]", loopTime.getMax(), Level.FINE);
+		}
+
+		@Override
+		public void removeSocketService(IOService<?> s) {
+			s.setSocketServiceReady(false);
+			socketReadThread[s.hashCode() % socketReadThread.length].removeSocketServicePriv(s);
+			socketWriteThread[s.hashCode() % socketWriteThread.length].removeSocketServicePriv(s);
+		}
+	}
+
 	private class IOServiceComparator
 			implements Comparator<IOService<?>> {
 
@@ -473,7 +568,7 @@ public class SocketThread
 		public void run() {
 			for (; ; ) {
 				try {
-					IOService<?> service = completionService.take().get();
+					IOService<?> service = group.completionService.take().get();
 
 					if (service != null) {
 						if (service.isConnected()) {
@@ -40,4 +40,17 @@ public class ClassUtilBean
 		classes.addAll(modulesManager.getClasses());
 		return classes;
 	}
+
+	@Override
+	public Set<Class<?>> getBeanClasses(Class<?> requiredClass) {
+		Set<Class<?>> classes = super.getBeanClasses(requiredClass);
+		// classes of modules are not indexed, so all of them are candidates
+		classes.addAll(ModulesManagerImpl.getInstance().getClasses());
+		return classes;
+	}
+
+	@Override
+	public boolean isKnownClass(Class<?> cls) {
+		return super.isKnownClass(cls) || ModulesManagerImpl.getInstance().getClasses().contains(cls);
+	}
 }
@@ -21,6 +21,8 @@ import tigase.component.ScheduledTask;
 import tigase.kernel.beans.Inject;
 import tigase.kernel.beans.config.ConfigField;
 import tigase.server.filters.PacketCounter;
+import tigase.stats.HistogramMetric;
+import tigase.stats.MetricsRegistry;
 import tigase.stats.StatisticType;
 import tigase.stats.StatisticsContainer;
 import tigase.stats.StatisticsList;
@@ -135,7 +137,8 @@ public abstract class AbstractMessageReceiver
 	private final List<PriorityQueueAbstract<Packet>> out_queues = new ArrayList<PriorityQueueAbstract<Packet>>(
 			pr_cache.length);
 	private final List<PriorityQueueAbstract<Packet>> in_queues = new ArrayList<>(pr_cache.length);
-	private final long[] processPacketTimings = new long[100];
+	private HistogramMetric processingTime = new HistogramMetric("Processing time [ns]", Level.FINE);
+	private final HistogramMetric[] processingTimes = new HistogramMetric[pr_cache.length];
 	private final Set<Pattern> regexRoutings = new ConcurrentSkipListSet<Pattern>(new PatternComparator());
 	private final ThreadFactory threadFactory = new ThreadFactory() {
 
@@ -168,7 +171,6 @@ public abstract class AbstractMessageReceiver
 	private long packets_per_minute = 0;
 	private long packets_per_second = 0;
 	private MessageReceiver parent = null;
-	private int pptIdx = 0;
 	@ConfigField(desc = "Priority queue class", alias = "priority-queue-implementation")
 	private Class<? extends PriorityQueueAbstract> priorityQueueClass = PriorityQueueRelaxed.class;
 	// ~--- fields ---------------------------------------------------------------
@@ -242,6 +244,10 @@ public abstract class AbstractMessageReceiver
 	}
 
 	public AbstractMessageReceiver() {
+		for (Priority priority : pr_cache) {
+			processingTimes[priority.ordinal()] = new HistogramMetric("Processing time " + priority.name() + " [ns]",
+																	  Level.FINER);
+		}
 		// initializing default value for incoming filters
 		PacketFilterIfc filter = new PacketCounter();
 		setIncomingFilters(Arrays.asList(filter));
@@ -407,6 +413,7 @@ public abstract class AbstractMessageReceiver
 			log.log(Level.FINE, "{0} - attempt to add regex routing: {1}", new Object[]{getName(), address});
 		}
 		regexRoutings.add(Pattern.compile(address, Pattern.CASE_INSENSITIVE));
+		regexRoutingsChanged();
 		if (log.isLoggable(Level.FINE)) {
 			log.log(Level.FINE, "{0} - success adding regex routing: {1}", new Object[]{getName(), address});
 		}
@@ -514,6 +521,7 @@ public abstract class AbstractMessageReceiver
 	 */
 	public void clearRegexRoutings() {
 		regexRoutings.clear();
+		regexRoutingsChanged();
 	}
 
 	/**
@@ -657,10 +665,15 @@ public abstract class AbstractMessageReceiver
 	@Override
 	public void release() {
 		stop();
+		unregisterMetrics(getName());
 	}
 
 	public boolean removeRegexRouting(String address) {
-		return regexRoutings.remove(Pattern.compile(address, Pattern.CASE_INSENSITIVE));
+		boolean removed = regexRoutings.remove(Pattern.compile(address, Pattern.CASE_INSENSITIVE));
+		if (removed) {
+			regexRoutingsChanged();
+		}
+		return removed;
 	}
 
 	/**
@@ -783,16 +796,6 @@ public abstract class AbstractMessageReceiver
 		list.add(getName(), StatisticType.OUT_QUEUE_OVERFLOW.getDescription(), statSentPacketsEr, Level.INFO);
 		list.add(getName(), "Total queues overflow", (statReceivedPacketsEr + statSentPacketsEr), Level.INFO);
 
-		long res = 0;
-
-		for (long ppt : processPacketTimings) {
-			res += ppt;
-		}
-
-		long prcessingTime = res / processPacketTimings.length;
-
-		list.add(getName(), "Average processing time on last " + processPacketTimings.length + " runs [ms]",
-				 prcessingTime, Level.FINE);
 		for (PacketFilterIfc packetFilter : incoming_filters) {
 			packetFilter.getStatistics(list);
 		}
@@ -884,7 +887,9 @@ public abstract class AbstractMessageReceiver
 
 	@Override
 	public void setName(String name) {
+		String oldName = getName();
 		super.setName(name);
+		registerMetrics(oldName, name);
 		in_queues_size = processingInThreads();
 		out_queues_size = processingOutThreads();
 		schedulerThreads_size = schedulerThreads();
@@ -1141,6 +1146,36 @@ public abstract class AbstractMessageReceiver
 		}
 	}
 
+	private void registerMetrics(String oldName, String name) {
+		if (oldName != null && !oldName.equals(name)) {
+			unregisterMetrics(oldName);
+		}
+		// metrics registered under this name by other instance of the component are reused
+		MetricsRegistry registry = MetricsRegistry.getInstance();
+		processingTime = registry.register(name, processingTime);
+		for (int i = 0; i < processingTimes.length; i++) {
+			processingTimes[i] = registry.register(name, processingTimes[i]);
+		}
+	}
+
+	private void regexRoutingsChanged() {
+		// MessageRouter caches results of regex routings lookups
+		if (parent instanceof MessageRouter) {
+			((MessageRouter) parent).regexRoutingsChanged(this);
+		}
+	}
+
+	private void unregisterMetrics(String name) {
+		if (name == null) {
+			return;
+		}
+		MetricsRegistry registry = MetricsRegistry.getInstance();
+		registry.unregister(name, processingTime);
+		for (HistogramMetric histogram : processingTimes) {
+			registry.unregister(name, histogram);
+		}
+	}
+
 	private void stopThreads() {
 		// stopped = true;
 		try {
@@ -1360,7 +1395,8 @@ public abstract class AbstractMessageReceiver
 					// }
 					switch (type) {
 						case IN_QUEUE:
-							long startPPT = System.currentTimeMillis();
+							long startPPT = System.nanoTime();
+							Priority priority = packet.getPriority();
 
 							// tracer.trace(null, packet.getElemTo(), packet.getElemFrom(),
 							// packet.getFrom(), getName(), type.name(), null, packet);
@@ -1401,14 +1437,10 @@ public abstract class AbstractMessageReceiver
 									processPacket(packet);
 								}
 
-								// It is all concurrent so we have to use a local index variable
-								int idx = pptIdx;
-
-								pptIdx = (pptIdx + 1) % processPacketTimings.length;
-
-								long timing = System.currentTimeMillis() - startPPT;
+								long timing = System.nanoTime() - startPPT;
 
-								processPacketTimings[idx] = timing;
+								processingTime.record(timing);
+								processingTimes[priority.ordinal()].record(timing);
 							}
 
 							break;
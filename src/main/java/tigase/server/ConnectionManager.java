@@ -30,6 +30,7 @@ import tigase.server.script.CommandIfc;
 import tigase.server.xmppclient.XMPPIOProcessor;
 import tigase.stats.StatisticsList;
 import tigase.util.common.TimerTask;
+import tigase.util.common.TimingWheel;
 import tigase.util.repository.DataTypes;
 import tigase.xml.Element;
 import tigase.xmpp.StreamError;
@@ -112,6 +113,9 @@ public abstract class ConnectionManager<IO extends XMPPIOService<?>>
 	public static final String WATCHDOG_DELAY = "watchdog_delay";
 	public static final String WATCHDOG_TIMEOUT = "watchdog_timeout";
 	public static final String WATCHDOG_PING_TYPE_KEY = "watchdog_ping_type";
+	private static final String WATCHDOG_TIMEOUT_KEY = "WatchdogTimeout";
+	private static final long WATCHDOG_MAX_TICK = 1000;
+	private static final int WATCHDOG_WHEEL_SIZE = 4096;
 
 	protected static final Element pingElement = new Element("iq", new Element[]{
 			new Element("ping", new String[]{"xmlns"}, new String[]{"urn:xmpp:ping"})}, new String[]{"type", "id"},
@@ -137,6 +141,8 @@ public abstract class ConnectionManager<IO extends XMPPIOService<?>>
 	private static ConnectionOpenThread connectThread = ConnectionOpenThread.getInstance();
 	@ConfigField(desc = "Interfaces to listen on", alias = PORT_IFC_PROP_KEY)
 	public String[] PORT_IFC_PROP_VAL = {"*"};
+	@ConfigField(desc = "Parse XMPP streams directly from UTF-8 encoded bytes", alias = "byte-parsing")
+	protected boolean byteParsing = false;
 	@ConfigField(desc = "Delay before connection is established")
 	protected long connectionDelay = 2 * SECOND;
 	protected boolean delayPortListening = PORT_LISTENING_DELAY_DEF;
@@ -146,6 +152,10 @@ public abstract class ConnectionManager<IO extends XMPPIOService<?>>
 	 */
 	@ConfigField(desc = "Limit of elements for single XMPP stanza", alias = ELEMENTS_NUMBER_LIMIT_PROP_KEY)
 	protected int elements_number_limit = ELEMENTS_NUMBER_LIMIT_PROP_VAL;
+	@ConfigField(desc = "Name of group of I/O threads handling connections", alias = "io-thread-group")
+	protected String ioThreadGroupName = null;
+	@ConfigField(desc = "Number of threads in group of I/O threads", alias = "io-threads")
+	protected int ioThreads = 0;
 	protected Kernel kernel;
 	@ConfigField(desc = "Default size of a network buffer", alias = "net-buffer")
 	protected int net_buffer = NET_BUFFER_ST_PROP_VAL;
@@ -167,6 +177,7 @@ public abstract class ConnectionManager<IO extends XMPPIOService<?>>
 	private String flashCrossDomainPolicyFile = XMPPIOService.CROSS_DOMAIN_POLICY_FILE_PROP_VAL;
 	private String flassCrossDomainPolicy = null;
 	private IOServiceStatisticsGetter ioStatsGetter = new IOServiceStatisticsGetter();
+	private volatile IOThreadGroup ioThreadGroup = null;
 	@ConfigField(desc = "Limit of bytes per minute for connection")
 	private long last_minute_bin_limit = LAST_MINUTE_BIN_LIMIT_PROP_VAL;
 	@ConfigField(desc = "Limit of packets per minute for connection")
@@ -190,7 +201,11 @@ public abstract class ConnectionManager<IO extends XMPPIOService<?>>
 	@ConfigField(desc = "Limit of total number of packets per connection")
 	private long total_packets_limit = TOTAL_PACKETS_LIMIT_PROP_VAL;
 	private LinkedList<Map<String, Object>> waitingTasks = new LinkedList<Map<String, Object>>();
-	private Watchdog watchdog = null;
+	private volatile Watchdog watchdog = null;
+	private long watchdogExpired = 0;
+	private long watchdogLag = 0;
+	private long watchdogMaxLag = 0;
+	private long watchdogRescheduled = 0;
 	private long watchdogRuns = 0;
 	private long watchdogStopped = 0;
 	private long watchdogTests = 0;
@@ -210,6 +225,10 @@ public abstract class ConnectionManager<IO extends XMPPIOService<?>>
 	@Override
 	public void beanConfigurationChanged(Collection<String> changedFields) {
 		super.beanConfigurationChanged(changedFields);
+		if (changedFields.contains("ioThreadGroupName") || changedFields.contains("ioThreads")) {
+			// new connections will be handled by the new group
+			ioThreadGroup = null;
+		}
 	}
 
 	public boolean checkTrafficLimits(IO serv) {
@@ -445,6 +464,11 @@ public abstract class ConnectionManager<IO extends XMPPIOService<?>>
 		services.put(id, service);
 		++services_size;
 
+		Watchdog watchdog = this.watchdog;
+		if (watchdog != null) {
+			watchdog.schedule(service);
+		}
+
 		if (enableServiceConnectedTimeout(service)) {
 			ServiceConnectedTimer startTimer = new ServiceConnectedTimer(service);
 			addTimerTask(startTimer, serviceConnectedTimeout, TimeUnit.SECONDS);
@@ -465,6 +489,11 @@ public abstract class ConnectionManager<IO extends XMPPIOService<?>>
 
 		ServiceConnectedTimer.cancel(service);
 
+		Watchdog watchdog = this.watchdog;
+		if (watchdog != null) {
+			watchdog.cancel(service);
+		}
+
 		// synchronized(service) {
 		String id = getUniqueId(service);
 
@@ -652,6 +681,13 @@ public abstract class ConnectionManager<IO extends XMPPIOService<?>>
 		list.add(getName(), "Watchdog runs", watchdogRuns, Level.FINER);
 		list.add(getName(), "Watchdog tests", watchdogTests, Level.FINE);
 		list.add(getName(), "Watchdog stopped", watchdogStopped, Level.FINE);
+		if (watchdog != null) {
+			list.add(getName(), "Watchdog scheduled", watchdog.getScheduledCount(), Level.FINER);
+		}
+		list.add(getName(), "Watchdog expired", watchdogExpired, Level.FINER);
+		list.add(getName(), "Watchdog rescheduled", watchdogRescheduled, Level.FINER);
+		list.add(getName(), "Watchdog lag [ms]", watchdogLag, Level.FINE);
+		list.add(getName(), "Watchdog max lag [ms]", watchdogMaxLag, Level.FINER);
 		for (XMPPIOProcessor proc : processors) {
 			proc.getStatistics(list);
 		}
@@ -778,9 +814,18 @@ public abstract class ConnectionManager<IO extends XMPPIOService<?>>
 	}
 
 	protected void setupWatchdogThread() {
-		watchdog = newWatchdog();
+		Watchdog watchdog = newWatchdog();
 		watchdog.setName("Watchdog - " + getName());
 		watchdog.setDaemon(true);
+		this.watchdog = watchdog;
+
+		// Watchdog is published first, so services started from now on are scheduled by serviceStarted(), and then
+		// services started before are added. Service scheduled twice is kept in the wheel only once.
+		for (IO service : services.values()) {
+			if (service.isConnected()) {
+				watchdog.schedule(service);
+			}
+		}
 	}
 
 	protected Watchdog newWatchdog() {
@@ -906,6 +951,20 @@ public abstract class ConnectionManager<IO extends XMPPIOService<?>>
 		return result;
 	}
 
+	/**
+	 * Method returns group of I/O threads which should handle new connections of this component.
+	 *
+	 * @return group of I/O threads or <code>null</code> if connections should be handled by the default group
+	 */
+	protected IOThreadGroup getIOThreadGroup() {
+		IOThreadGroup group = ioThreadGroup;
+		if (group == null && ioThreadGroupName != null && !ioThreadGroupName.isEmpty()) {
+			group = SocketThread.getThreadGroup(ioThreadGroupName, ioThreads);
+			ioThreadGroup = group;
+		}
+		return group;
+	}
+
 	protected abstract long getMaxInactiveTime();
 
 	protected Map<String, Object> getParamsForPort(int port) {
@@ -1204,7 +1263,9 @@ public abstract class ConnectionManager<IO extends XMPPIOService<?>>
 
 			((XMPPDomBuilderHandler) serv.getSessionData().get(DOM_HANDLER)).setElementsLimit(elements_number_limit);
 
+			serv.setByteParsing(byteParsing);
 			serv.setIOServiceListener(ConnectionManager.this);
+			serv.setIOThreadGroup(getIOThreadGroup());
 			serv.setSessionData(port_props);
 			try {
 				serv.accept(sc);
@@ -1355,14 +1416,21 @@ public abstract class ConnectionManager<IO extends XMPPIOService<?>>
 	}
 
 	/**
-	 * Class looks in all established connections and checks whether any of them is dead by performing either whitspace
-	 * or XMPP ping. If client fails to respond within defined time then the service is stopped.
+	 * Class checks established connections whether any of them is dead by performing either whitspace or XMPP ping. If
+	 * client fails to respond within defined time then the service is stopped.
+	 * <br>
+	 * Each service is kept in a {@link TimingWheel} with the time at which it should be checked next, so only services
+	 * which may be inactive are checked on each tick of the watchdog. Activity of the service is not tracked by the
+	 * wheel - time of the last transfer is verified when the service expires and if there was any activity the service
+	 * is rescheduled to be checked after <code>watchdogTimeout</code> counting from its last transfer.
 	 */
 	protected class Watchdog
 			extends Thread {
 
 		Packet pingPacket;
 		private boolean shutdown = false;
+		private final TimingWheel<XMPPIOService> wheel = new TimingWheel<>(
+				Math.max(1, Math.min(watchdogDelay, WATCHDOG_MAX_TICK)), WATCHDOG_WHEEL_SIZE);
 
 		@Override
 		public void run() {
@@ -1370,7 +1438,10 @@ public abstract class ConnectionManager<IO extends XMPPIOService<?>>
 				try {
 
 					// Sleep...
-					Thread.sleep(watchdogDelay);
+					long sleep = wheel.getNextTickTime() - System.currentTimeMillis();
+					if (sleep > 0) {
+						Thread.sleep(sleep);
+					}
 					++watchdogRuns;
 
 					executeWatchdog();
@@ -1384,8 +1455,38 @@ public abstract class ConnectionManager<IO extends XMPPIOService<?>>
 			shutdown = true;
 		}
 
+		public int getScheduledCount() {
+			return wheel.size();
+		}
+
+		/**
+		 * Adds service to the watchdog. Service will be checked after <code>watchdogTimeout</code> of inactivity.
+		 */
+		protected void schedule(final XMPPIOService service) {
+			TimingWheel.Timeout<XMPPIOService> timeout = wheel.schedule(service, getNextCheckTime(service,
+																								   System.currentTimeMillis()));
+			Object old = service.getSessionData().put(WATCHDOG_TIMEOUT_KEY, timeout);
+			if (old != null) {
+				((TimingWheel.Timeout<?>) old).cancel();
+			}
+		}
+
+		/**
+		 * Removes service from the watchdog.
+		 */
+		protected void cancel(final XMPPIOService service) {
+			TimingWheel.Timeout<?> timeout = (TimingWheel.Timeout<?>) service.getSessionData()
+					.remove(WATCHDOG_TIMEOUT_KEY);
+			if (timeout != null) {
+				timeout.cancel();
+			}
+		}
+
 		protected long getDurationSinceLastTransfer(final XMPPIOService service) {
-			long curr_time = System.currentTimeMillis();
+			return getDurationSinceLastTransfer(service, System.currentTimeMillis());
+		}
+
+		private long getDurationSinceLastTransfer(final XMPPIOService service, long curr_time) {
 			long lastTransfer;
 			switch (watchdogPingType) {
 				case XMPP:
@@ -1399,86 +1500,106 @@ public abstract class ConnectionManager<IO extends XMPPIOService<?>>
 			return curr_time - lastTransfer;
 		}
 
+		private long getNextCheckTime(final XMPPIOService service, long now) {
+			long sinceLastTransfer = getDurationSinceLastTransfer(service, now);
+			long timeout = Math.min(watchdogTimeout, maxInactivityTime);
+			if (sinceLastTransfer < 0 || sinceLastTransfer > timeout) {
+				// never active or clock moved back, let's count from now
+				return now + Math.max(0, timeout);
+			}
+			return now + (timeout - sinceLastTransfer);
+		}
+
 		private void executeWatchdog() {
-			/** Walk through all connections and check whether they are really
-			 * alive. Depending on the configuration send either whitespace or
-			 * XMPP ping if the service is inactive for the configured period of
-			 * time
-			 */
-			doForAllServices(new ServiceChecker<IO>() {
-				@Override
-				public void check(final XMPPIOService service) {
-					try {
-						if (null != service) {
-							long sinceLastTransfer = getDurationSinceLastTransfer(service);
-							if (log.isLoggable(Level.FINEST)) {
-								log.log(Level.FINEST,
-										"Testing service: {0}, sinceLastTransfer: {1}, maxInactivityTime: {2}, watchdogTimeout: {3}, watchdogDelay: {4}, watchdogPingType: {5} ",
-										new Object[]{service, sinceLastTransfer, maxInactivityTime,
-													 watchdogTimeout, watchdogDelay, watchdogPingType});
-							}
-							if (sinceLastTransfer >= maxInactivityTime) {
-
-								// Stop the service if max keep-alive time is exceeded
-								// for non-active connections.
-								if (log.isLoggable(Level.INFO)) {
-									log.log(Level.INFO,
-											"{0}: Max inactive time exceeded, stopping: {1} ( sinceLastTransfer: {2}, maxInactivityTime: {3}, watchdogTimeout: {4}, watchdogDelay: {5}, watchdogPingType: {6} )",
-											new Object[]{getName(), service, sinceLastTransfer,
-														 maxInactivityTime, watchdogTimeout, watchdogDelay,
-														 watchdogPingType});
-								}
-								++watchdogStopped;
-								service.forceStop();
-							} else {
-								if (sinceLastTransfer >= (watchdogTimeout)) {
-
-									/** At least once every configured timings check if the
-									 * connection is still alive with the use of configured
-									 * ping type. */
-									switch (watchdogPingType) {
-										case XMPP:
-											pingPacket = Iq.packetInstance(pingElement.clone(), JID.jidInstanceNS(
-													(String) service.getSessionData().get(XMPPIOService.HOSTNAME_KEY)),
-																		   JID.jidInstanceNS(service.getUserJid()));
-											if (log.isLoggable(Level.FINEST)) {
-												log.log(Level.FINEST, "{0}, sending XMPP ping {1}",
-														new Object[]{service, pingPacket});
-											}
-											if (!writePacketToSocket((IO) service, pingPacket)) {
-												// writing failed, stopp service
-												++watchdogStopped;
-												service.forceStop();
-											}
-											break;
-
-										case WHITESPACE:
-											if (log.isLoggable(Level.FINEST)) {
-												log.log(Level.FINEST, "Sending whitespace ping for service {0}",
-														new Object[]{service});
-											}
-											service.writeRawData(" ");
-											break;
-									}
-									++watchdogTests;
-								}
-							}
+			long now = System.currentTimeMillis();
+			long lag = now - wheel.getNextTickTime();
+			if (lag > 0) {
+				watchdogLag = lag;
+				if (lag > watchdogMaxLag) {
+					watchdogMaxLag = lag;
+				}
+			} else {
+				watchdogLag = 0;
+			}
+			watchdogExpired += wheel.advance(now, this::check);
+		}
+
+		private void check(final TimingWheel.Timeout<XMPPIOService> timeout) {
+			final XMPPIOService service = timeout.getItem();
+			final long now = System.currentTimeMillis();
+			try {
+				long sinceLastTransfer = getDurationSinceLastTransfer(service);
+				if (log.isLoggable(Level.FINEST)) {
+					log.log(Level.FINEST,
+							"Testing service: {0}, sinceLastTransfer: {1}, maxInactivityTime: {2}, watchdogTimeout: {3}, watchdogDelay: {4}, watchdogPingType: {5} ",
+							new Object[]{service, sinceLastTransfer, maxInactivityTime, watchdogTimeout,
+										 watchdogDelay, watchdogPingType});
+				}
+				if (sinceLastTransfer >= maxInactivityTime) {
+
+					// Stop the service if max keep-alive time is exceeded
+					// for non-active connections.
+					if (log.isLoggable(Level.INFO)) {
+						log.log(Level.INFO,
+								"{0}: Max inactive time exceeded, stopping: {1} ( sinceLastTransfer: {2}, maxInactivityTime: {3}, watchdogTimeout: {4}, watchdogDelay: {5}, watchdogPingType: {6} )",
+								new Object[]{getName(), service, sinceLastTransfer, maxInactivityTime,
+											 watchdogTimeout, watchdogDelay, watchdogPingType});
+					}
+					++watchdogStopped;
+					service.forceStop();
+					return;
+				}
+
+				if (sinceLastTransfer < watchdogTimeout) {
+					// there was some activity since the service was scheduled
+					++watchdogRescheduled;
+					wheel.reschedule(timeout, getNextCheckTime(service, now));
+					return;
+				}
+
+				/** At least once every configured timings check if the
+				 * connection is still alive with the use of configured
+				 * ping type. */
+				switch (watchdogPingType) {
+					case XMPP:
+						pingPacket = Iq.packetInstance(pingElement.clone(), JID.jidInstanceNS(
+								(String) service.getSessionData().get(XMPPIOService.HOSTNAME_KEY)),
+													   JID.jidInstanceNS(service.getUserJid()));
+						if (log.isLoggable(Level.FINEST)) {
+							log.log(Level.FINEST, "{0}, sending XMPP ping {1}", new Object[]{service, pingPacket});
 						}
-					} catch (IOException e) {
-
-						// Close the service
-						try {
-							if (service != null) {
-								log.info(getName() + "Found dead connection, stopping: " + service);
-								++watchdogStopped;
-								service.forceStop();
-							}
-						} catch (Exception ignore) {
-							// Do nothing here as we expect Exception to be thrown here...
+						if (!writePacketToSocket((IO) service, pingPacket)) {
+							// writing failed, stopp service
+							++watchdogStopped;
+							service.forceStop();
+							return;
 						}
-					}
+						break;
+
+					case WHITESPACE:
+						if (log.isLoggable(Level.FINEST)) {
+							log.log(Level.FINEST, "Sending whitespace ping for service {0}", new Object[]{service});
+						}
+						service.writeRawData(" ");
+						break;
+				}
+				++watchdogTests;
+
+				// check again after watchdogDelay, but not later than when max inactivity time passes
+				long deadline = Math.max(now, Math.min(now + Math.max(watchdogDelay, 0),
+													   now + maxInactivityTime - sinceLastTransfer));
+				wheel.reschedule(timeout, deadline);
+			} catch (IOException e) {
+
+				// Close the service
+				try {
+					log.info(getName() + "Found dead connection, stopping: " + service);
+					++watchdogStopped;
+					service.forceStop();
+				} catch (Exception ignore) {
+					// Do nothing here as we expect Exception to be thrown here...
 				}
-			});
+			}
 		}
 	}
 
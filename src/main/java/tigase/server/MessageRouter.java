@@ -21,18 +21,22 @@ import tigase.conf.ConfigurationException;
 import tigase.conf.ConfiguratorAbstract;
 import tigase.conf.MonitoringBeanIfc;
 import tigase.disco.XMPPService;
+import tigase.io.BufferPool;
 import tigase.kernel.beans.Bean;
 import tigase.kernel.beans.Inject;
 import tigase.kernel.beans.RegistrarBean;
 import tigase.kernel.beans.UnregisterAware;
 import tigase.kernel.beans.config.ConfigField;
 import tigase.kernel.core.Kernel;
+import tigase.net.SocketThread;
 import tigase.stats.StatisticsList;
 import tigase.sys.NMTScope;
 import tigase.sys.NativeMemoryTracking;
 import tigase.sys.TigaseRuntime;
+import tigase.util.routing.RoutingTable;
 import tigase.util.stringprep.TigaseStringprepException;
 import tigase.util.updater.UpdatesChecker;
+import tigase.vhosts.VHostManagerIfc;
 import tigase.xml.Element;
 import tigase.xmpp.Authorization;
 import tigase.xmpp.PacketErrorTypeException;
@@ -100,6 +104,9 @@ public class MessageRouter
 	private MonitoringBeanIfc monitoringBean;
 	private Map<String, MessageReceiver> receivers = new ConcurrentHashMap<>();
 	private ConcurrentHashMap<String, ComponentRegistrator> registrators = new ConcurrentHashMap<>();
+	@ConfigField(desc = "Maximal number of cached routes for domains and regex routings", alias = "routing-cache-size")
+	private int routingCacheSize = RoutingTable.DEF_MAX_CACHE_SIZE;
+	private final RoutingTable routingTable = new RoutingTable();
 	@Inject
 	private UpdatesChecker updates_checker = null;
 	private Map<String, XMPPService> xmppServices = new ConcurrentHashMap<>();
@@ -180,6 +187,7 @@ public class MessageRouter
 				registr.addComponent(component);
 			}    // end of if (reg != component)
 		}      // end of for ()
+		updateRoutingTable();
 	}
 
 	public void addRegistrator(ComponentRegistrator registr) throws ConfigurationException {
@@ -193,17 +201,21 @@ public class MessageRouter
 
 			// } // end of if (comp != registr)
 		}    // end of for (ServerComponent comp : components)
+		// registrator (ie. vhost manager) may change routing of already added components
+		updateRoutingTable();
 	}
 
 	public void addRouter(MessageReceiver receiver) throws ConfigurationException {
 		log.info("Adding receiver: " + receiver.getClass().getSimpleName());
 		addComponent(receiver);
 		receivers.put(receiver.getName(), receiver);
+		updateRoutingTable();
 	}
 
 	@Override
 	public void beanConfigurationChanged(Collection<String> changedFields) {
 		super.beanConfigurationChanged(changedFields);
+		routingTable.setMaxCacheSize(routingCacheSize);
 		if (getServiceEntity() != null &&
 				(changedFields.contains("disco_name") || changedFields.contains("disco_show_version"))) {
 			updateServiceDiscoveryItem(getName(), null, getDiscoDescription(), "server", "im", false);
@@ -394,20 +406,22 @@ public class MessageRouter
 		// to a virtual domains (implement VHostListener and return 'true' from
 		// handlesLocalDomains() method call)
 		String host = packet.getTo().getDomain();
-		ServerComponent[] comps = getComponentsForLocalDomain(host);
+		RoutingTable.DomainRoute route = getDomainRoute(host);
+		ServerComponent[] comps = route.getLocalComponents();
 
 		if (comps == null) {
 
 			// Still no component found, now the most expensive lookup.
 			// Checking regex routings provided by the component.
-			comps = getServerComponentsForRegex(packet.getTo().getBareJID().toString());
+			// Results are cached by the routing table.
+			comps = routingTable.getComponentsForRegex(packet.getTo().getBareJID().toString());
 		}
 		if ((comps == null) && !isLocalDomain(host)) {
 
 			// None of the component want to process the packet.
 			// If the packet is addressed to non-local domain then it is processed by
 			// all components dealing with external world, like s2s
-			comps = getComponentsForNonLocalDomain(host);
+			comps = route.getNonLocalComponents();
 		}
 
 		// Ok, if any component has been found then process the packet in a standard
@@ -499,6 +513,7 @@ public class MessageRouter
 		if (component instanceof XMPPService) {
 			xmppServices.remove(component.getName());
 		}
+		updateRoutingTable();
 	}
 
 	public void removeRegistrator(ComponentRegistrator registr) {
@@ -512,6 +527,7 @@ public class MessageRouter
 
 			// } // end of if (comp != registr)
 		}    // end of for (ServerComponent comp : components)
+		updateRoutingTable();
 	}
 
 	public void removeRouter(MessageReceiver receiver) {
@@ -520,6 +536,16 @@ public class MessageRouter
 		removeComponent(receiver);
 	}
 
+	/**
+	 * Method called by receivers after their regex routings were changed, so cached routes are dropped.
+	 */
+	public void regexRoutingsChanged(MessageReceiver receiver) {
+		if (log.isLoggable(Level.FINEST)) {
+			log.log(Level.FINEST, "Regex routings of {0} changed, dropping cached routes", receiver.getName());
+		}
+		routingTable.invalidate();
+	}
+
 	@Override
 	public void start() {
 		super.start();
@@ -537,6 +563,7 @@ public class MessageRouter
 				comp.release();
 			}
 		}
+		updateRoutingTable();
 		super.stop();
 	}
 
@@ -553,6 +580,9 @@ public class MessageRouter
 	@Override
 	public void getStatistics(StatisticsList list) {
 		super.getStatistics(list);
+		routingTable.getStatistics(getName(), list);
+		BufferPool.getInstance().getStatistics(getName(), list);
+		SocketThread.getStatistics(getName(), list);
 		list.add(getName(), "Local hostname", getDefHostName().getDomain(), Level.INFO);
 
 		TigaseRuntime runtime = TigaseRuntime.getTigaseRuntime();
@@ -669,9 +699,17 @@ public class MessageRouter
 		}
 	}
 
+	@Override
+	public void setVHostManager(VHostManagerIfc manager) {
+		super.setVHostManager(manager);
+		// cached domain routes were computed using previous instance
+		routingTable.invalidate();
+	}
+
 	@Override
 	public void setConfig(ConfiguratorAbstract config) throws ConfigurationException {
 		components.put(getName(), this);
+		updateRoutingTable();
 		this.config = config;
 		addRegistrator(config);
 	}
@@ -821,12 +859,8 @@ public class MessageRouter
 		return items;
 	}
 
-	private ServerComponent[] getComponentsForLocalDomain(String domain) {
-		return vHostManager.getComponentsForLocalDomain(domain);
-	}
-
-	private ServerComponent[] getComponentsForNonLocalDomain(String domain) {
-		return vHostManager.getComponentsForNonLocalDomain(domain);
+	private RoutingTable.DomainRoute getDomainRoute(String domain) {
+		return routingTable.getDomainRoute(domain, vHostManager, getDefHostName().getDomain());
 	}
 
 	private ServerComponent getLocalComponent(JID jid) {
@@ -839,7 +873,7 @@ public class MessageRouter
 		// to the component ID then this is where the processing must happen.
 		// Normally the component id is: component name + "@" + default hostname
 		// However the component may "choose" to have any ID.
-		ServerComponent comp = components_byId.get(jid);
+		ServerComponent comp = routingTable.getComponent(jid);
 
 		if (comp != null) {
 			return comp;
@@ -856,7 +890,7 @@ public class MessageRouter
 		// Code below, tries to find a destination by the component name + any
 		// active virtual hostname.
 		if (jid.getLocalpart() != null) {
-			comp = components.get(jid.getLocalpart());
+			comp = routingTable.getComponentByName(jid.getLocalpart());
 			if ((comp != null) &&
 					(isLocalDomain(jid.getDomain()) || jid.getDomain().equals(getDefHostName().getDomain()))) {
 				return comp;
@@ -871,46 +905,20 @@ public class MessageRouter
 
 		// Instead of a component ID built of: component name + "@" domain name
 		// Some components have an ID of: component name + "." domain name
-		// Code below tries to find a packet receiver if the address have the other
-		// type of form.
-		int idx = jid.getDomain().indexOf('.');
-
-		if (idx > 0) {
-			String cmpName = jid.getDomain().substring(0, idx);
-			String basename = jid.getDomain().substring(idx + 1);
-
-			comp = components.get(cmpName);
-			if ((comp != null) && (isLocalDomain(basename) || basename.equals(getDefHostName().getDomain()))) {
-				if (log.isLoggable(Level.FINEST)) {
-					log.log(Level.FINEST, "Component matched: {0}, for comp: {1}, basename: {3}",
-							new Object[]{jid, components.keySet(), comp, basename});
-				}
-				return comp;
-			}
-			if (log.isLoggable(Level.FINEST)) {
-				log.log(Level.FINEST, "Component match failed: {0}, for comp: {1}, basename: {3}",
-						new Object[]{jid, components.keySet(), comp, basename});
-			}
+		// The routing table keeps the result for each domain, so we do not have
+		// to split the domain name for every packet.
+		comp = getDomainRoute(jid.getDomain()).getSubdomainComponent();
+		if (log.isLoggable(Level.FINEST)) {
+			log.log(Level.FINEST, "Component match for subdomain: {0}, for comp: {1}, result: {2}",
+					new Object[]{jid, components.keySet(), comp});
 		}
 
-		return null;
+		return comp;
 	}
 
-	private ServerComponent[] getServerComponentsForRegex(String id) {
-		LinkedHashSet<ServerComponent> comps = new LinkedHashSet<ServerComponent>();
-
-		for (MessageReceiver mr : receivers.values()) {
-			if (log.isLoggable(Level.FINEST)) {
-				log.finest("Checking routings for: " + mr.getName());
-			}
-			if (mr.isInRegexRoutings(id)) {
-				comps.add(mr);
-			}
-		}
-		if (comps.size() > 0) {
-			return comps.toArray(new ServerComponent[comps.size()]);
-		} else {
-			return null;
+	private void updateRoutingTable() {
+		synchronized (routingTable) {
+			routingTable.update(components_byId, components, receivers.values());
 		}
 	}
 
@@ -918,7 +926,7 @@ public class MessageRouter
 		if (comp != null) {
 			return (comp instanceof DisableDisco);
 		} else {
-			ServerComponent[] comps = getComponentsForLocalDomain(to.getDomain());
+			ServerComponent[] comps = getDomainRoute(to.getDomain()).getLocalComponents();
 
 			if (comps != null) {
 				for (ServerComponent c : comps) {
@@ -104,19 +104,23 @@ public class Store
 				stamp = formatter.format(new Date());
 			}
 			removeTigasePayload(packet);
-			try {
-				Element elem = packet.getElement();
+			Element elem = packet.getElement();
 
-				if (elem.getChild("delay", "urn:xmpp:delay") == null) {
-					Element x = new Element("delay", "Offline Storage", new String[]{"from", "stamp", "xmlns"},
-											new String[]{packet.getStanzaTo().getDomain(), stamp, "urn:xmpp:delay"});
+			if (elem.getChild("delay", "urn:xmpp:delay") == null) {
+				Element x = new Element("delay", "Offline Storage", new String[]{"from", "stamp", "xmlns"},
+										new String[]{packet.getStanzaTo().getDomain(), stamp, "urn:xmpp:delay"});
 
-					elem.addChild(x);
-				}
-				repo.storeMessage(packet.getStanzaFrom(), packet.getStanzaTo(), expired, elem, nonAuthUserRepo);
-			} catch (UserNotFoundException ex) {
-				log.info("User not found for offline message: " + packet);
+				elem.addChild(x);
 			}
+			repo.storeMessageAsync(packet.getStanzaFrom(), packet.getStanzaTo(), expired, elem, nonAuthUserRepo)
+					.exceptionally(ex -> {
+						if (ex instanceof UserNotFoundException) {
+							log.info("User not found for offline message: " + packet);
+						} else {
+							log.log(Level.WARNING, "Problem storing offline message: " + packet, ex);
+						}
+						return false;
+					});
 		}
 
 		return false;
@@ -19,8 +19,11 @@ package tigase.server.amp.db;
 
 import tigase.db.*;
 import tigase.db.util.RepositoryVersionAware;
+import tigase.kernel.beans.UnregisterAware;
 import tigase.kernel.beans.config.ConfigField;
 import tigase.server.Packet;
+import tigase.stats.StatisticsList;
+import tigase.stats.StatisticsProviderIfc;
 import tigase.util.ExceptionUtilities;
 import tigase.xml.DomBuilderHandler;
 import tigase.xml.Element;
@@ -32,6 +35,10 @@ import tigase.xmpp.jid.JID;
 import java.sql.*;
 import java.util.Date;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -46,7 +53,7 @@ import java.util.stream.IntStream;
 @Repository.SchemaId(id = Schema.SERVER_SCHEMA_ID, name = Schema.SERVER_SCHEMA_NAME)
 public class JDBCMsgRepository
 		extends MsgRepository<Long, DataRepository>
-		implements RepositoryVersionAware {
+		implements RepositoryVersionAware, StatisticsProviderIfc, UnregisterAware {
 
 	private static final Logger log = Logger.getLogger(JDBCMsgRepository.class.getName());
 	protected DataRepository data_repo = null;
@@ -76,6 +83,15 @@ public class JDBCMsgRepository
 	@ConfigField(desc = "Query to list messages", alias = "list-messages-query")
 	private String MSGS_LIST_MESSAGES = "{ call Tig_OfflineMessages_ListMessages(?) }";
 	private boolean initialized = false;
+	@ConfigField(desc = "Maximal number of offline messages stored in a single batch", alias = "store-batch-size")
+	private int storeBatchSize = 1;
+	@ConfigField(desc = "Maximal time in ms for which message waits for other messages to store them in a batch", alias = "store-batch-window")
+	private long storeBatchWindow = 10;
+	@ConfigField(desc = "Number of threads storing batches of offline messages", alias = "store-batch-writers")
+	private int storeBatchWriters = 2;
+	@ConfigField(desc = "Maximal number of offline messages waiting to be stored", alias = "store-queue-size")
+	private int storeQueueSize = 10000;
+	private volatile StoreWriter[] storeWriters = null;
 
 	@Override
 	public void setDataSource(DataRepository data_repo) {
@@ -312,10 +328,14 @@ public class JDBCMsgRepository
 			.toArray(ReentrantReadWriteLock[]::new);
 
 	private ReentrantReadWriteLock getLock(BareJID jid) {
+		return locks[getLockIndex(jid)];
+	}
+
+	private int getLockIndex(BareJID jid) {
 		if (jid == null) {
-			return locks[0];
+			return 0;
 		}
-		return locks[Math.abs(jid.hashCode() % locks.length)];
+		return Math.abs(jid.hashCode() % locks.length);
 	}
 
 	public Queue<Element> loadMessagesToJID(XMPPResourceConnection session, boolean delete,
@@ -324,13 +344,17 @@ public class JDBCMsgRepository
 		BareJID to = null;
 
 		ReentrantReadWriteLock.WriteLock lock = null;
+		DataRepository repo = null;
 		try {
 			to = session.getBareJID();
+			// messages queued for storage have to be stored before we load them
+			waitForStoredMessages(to);
 			lock = getLock(to).writeLock();
 			lock.lock();
+			repo = data_repo.takeRepoHandle(to);
 
 			ResultSet rs = null;
-			PreparedStatement select_to_jid_st = data_repo.getPreparedStatement(to, MSGS_GET_MESSAGES);
+			PreparedStatement select_to_jid_st = repo.getPreparedStatement(to, MSGS_GET_MESSAGES);
 
 			synchronized (select_to_jid_st) {
 				try {
@@ -346,7 +370,7 @@ public class JDBCMsgRepository
 			if (delete) {
 				rs = null;
 				try {
-					PreparedStatement delete_to_jid_st = data_repo.getPreparedStatement(to, MSGS_DELETE_MESSAGES);
+					PreparedStatement delete_to_jid_st = repo.getPreparedStatement(to, MSGS_DELETE_MESSAGES);
 
 					synchronized (delete_to_jid_st) {
 						delete_to_jid_st.setString(1, to.toString());
@@ -361,6 +385,9 @@ public class JDBCMsgRepository
 		} catch (NotAuthorizedException ex) {
 			log.log(Level.WARNING, "Session not authorized yet!", ex);
 		} finally {
+			if (repo != null) {
+				data_repo.releaseRepoHandle(repo);
+			}
 			if (lock != null) {
 				lock.unlock();
 			}
@@ -372,75 +399,232 @@ public class JDBCMsgRepository
 	@Override
 	public boolean storeMessage(JID from, JID to, Date expired, Element msg, NonAuthUserRepository userRepo)
 			throws UserNotFoundException {
+		StoreRequest request = createStoreRequest(from, to, expired, msg, userRepo);
+		StoreWriter writer = getStoreWriter(request.to);
+
+		if (writer == null) {
+			return storeMessage(request);
+		}
+
+		try {
+			return writer.add(request).get();
+		} catch (InterruptedException ex) {
+			log.log(Level.FINE, "Interrupted while waiting for message to {0} being stored", to);
+			Thread.currentThread().interrupt();
+			return false;
+		} catch (ExecutionException ex) {
+			log.log(Level.WARNING, "Problem adding new entry to DB: ", ex.getCause());
+			return false;
+		}
+	}
+
+	@Override
+	public CompletableFuture<Boolean> storeMessageAsync(JID from, JID to, Date expired, Element msg,
+														NonAuthUserRepository userRepo) {
+		StoreRequest request;
+		try {
+			request = createStoreRequest(from, to, expired, msg, userRepo);
+		} catch (UserNotFoundException ex) {
+			CompletableFuture<Boolean> future = new CompletableFuture<>();
+			future.completeExceptionally(ex);
+			return future;
+		}
+
+		StoreWriter writer = getStoreWriter(request.to);
+		if (writer == null) {
+			request.future.complete(storeMessage(request));
+			return request.future;
+		}
+		return writer.add(request);
+	}
+
+	@Override
+	public void beforeUnregister() {
+		StoreWriter[] writers = storeWriters;
+		storeWriters = null;
+		if (writers != null) {
+			for (StoreWriter writer : writers) {
+				writer.shutdown();
+			}
+		}
+	}
+
+	@Override
+	public void getStatistics(String compName, StatisticsList list) {
+		StoreWriter[] writers = storeWriters;
+		if (writers == null) {
+			return;
+		}
+
+		long batches = 0;
+		long batchTime = 0;
+		long failures = 0;
+		long latency = 0;
+		long maxBatchSize = 0;
+		long maxLatency = 0;
+		long messages = 0;
+		int queueSize = 0;
+		for (StoreWriter writer : writers) {
+			batches += writer.batches;
+			batchTime += writer.batchTime;
+			failures += writer.failures;
+			latency += writer.latency;
+			maxBatchSize = Math.max(maxBatchSize, writer.maxBatchSize);
+			maxLatency = Math.max(maxLatency, writer.maxLatency);
+			messages += writer.messages;
+			queueSize += writer.queue.size();
+		}
+
+		list.add(compName, "Offline messages/Store queue size", queueSize, Level.FINE);
+		list.add(compName, "Offline messages/Store batches", batches, Level.FINE);
+		list.add(compName, "Offline messages/Stored in batches", messages, Level.FINE);
+		list.add(compName, "Offline messages/Average batch size", batches == 0 ? 0f : ((float) messages / batches),
+				 Level.FINE);
+		list.add(compName, "Offline messages/Max batch size", maxBatchSize, Level.FINER);
+		list.add(compName, "Offline messages/Average batch time [ms]",
+				 batches == 0 ? 0f : ((float) batchTime / batches), Level.FINER);
+		list.add(compName, "Offline messages/Average store latency [ms]",
+				 messages == 0 ? 0f : ((float) latency / messages), Level.FINE);
+		list.add(compName, "Offline messages/Max store latency [ms]", maxLatency, Level.FINER);
+		list.add(compName, "Offline messages/Failed batches", failures, Level.FINER);
+	}
+
+	private StoreRequest createStoreRequest(JID from, JID to, Date expired, Element msg,
+											NonAuthUserRepository userRepo) throws UserNotFoundException {
 		if (log.isLoggable(Level.FINEST)) {
 			log.log(Level.FINEST, "Storring expired: {0} message: {1}",
 					new Object[]{expired, Packet.elemToString(msg)});
 		}
 
-		boolean result = false;
-
-		ReentrantReadWriteLock.ReadLock lock = getLock(to == null ? null : to.getBareJID()).readLock();
-		lock.lock();
+		long msgs_store_limit = getMsgsStoreLimit(to.getBareJID(), userRepo);
+		int msg_type;
 		try {
-			long msgs_store_limit = getMsgsStoreLimit(to.getBareJID(), userRepo);
+			final String name = msg.getName();
+			final MSG_TYPES valueOf = MSG_TYPES.valueOf(name);
+			msg_type = valueOf.ordinal();
+		} catch (IllegalArgumentException e) {
+			msg_type = Integer.MAX_VALUE;
+		}
 
-			PreparedStatement insert_msg_st = data_repo.getPreparedStatement(to.getBareJID(), MSGS_ADD_MESSAGE);
+		// message is serialized here as the caller may modify the element after the request is queued
+		return new StoreRequest(from.getBareJID(), to.getBareJID(), expired, msg_type, msg.toString(),
+								msgs_store_limit);
+	}
 
-			synchronized (insert_msg_st) {
-				insert_msg_st.setString(1, to.getBareJID().toString());
-				insert_msg_st.setString(2, from.getBareJID().toString());
-				int msg_type;
-				try {
-					final String name = msg.getName();
-					final MSG_TYPES valueOf = MSG_TYPES.valueOf(name);
-					msg_type = valueOf.ordinal();
-				} catch (IllegalArgumentException e) {
-					msg_type = Integer.MAX_VALUE;
-				}
+	private boolean executeStore(DataRepository repo, PreparedStatement insert_msg_st, StoreRequest request)
+			throws SQLException {
+		boolean result = false;
 
-				insert_msg_st.setInt(3, msg_type);
-				data_repo.setTimestamp(insert_msg_st, 4, new Timestamp(System.currentTimeMillis()));
-				insert_msg_st.setString(5, msg.toString());
+		synchronized (insert_msg_st) {
+			insert_msg_st.setString(1, request.to.toString());
+			insert_msg_st.setString(2, request.from.toString());
+			insert_msg_st.setInt(3, request.type);
+			repo.setTimestamp(insert_msg_st, 4, new Timestamp(System.currentTimeMillis()));
+			insert_msg_st.setString(5, request.data);
 
-				if (expired == null) {
-					insert_msg_st.setNull(6, Types.TIMESTAMP);
-				} else {
-					Timestamp time = new Timestamp(expired.getTime());
+			if (request.expired == null) {
+				insert_msg_st.setNull(6, Types.TIMESTAMP);
+			} else {
+				Timestamp time = new Timestamp(request.expired.getTime());
 
-					data_repo.setTimestamp(insert_msg_st, 6, time);
+				repo.setTimestamp(insert_msg_st, 6, time);
+			}
+			insert_msg_st.setLong(7, request.limit);
+
+			try (ResultSet rs = insert_msg_st.executeQuery()) {
+				if (rs.next()) {
+					result = rs.getLong(1) != 0;
 				}
-				insert_msg_st.setLong(7, msgs_store_limit);
+			}
+		}
+
+		return result;
+	}
+
+	private StoreWriter getStoreWriter(BareJID to) {
+		if (storeBatchSize <= 1) {
+			return null;
+		}
 
-				try (ResultSet rs = insert_msg_st.executeQuery()) {
-					if (rs.next()) {
-						result = rs.getLong(1) != 0;
+		StoreWriter[] writers = storeWriters;
+		if (writers == null) {
+			synchronized (this) {
+				writers = storeWriters;
+				if (writers == null) {
+					writers = new StoreWriter[Math.max(1, storeBatchWriters)];
+					for (int i = 0; i < writers.length; i++) {
+						writers[i] = new StoreWriter(i);
+						writers[i].start();
 					}
+					storeWriters = writers;
 				}
 			}
+		}
 
-			if (expired != null) {
-				if (expired.getTime() < earliestOffline) {
-					earliestOffline = expired.getTime();
-				}
+		// messages to the same recipient are always stored by the same writer to keep their order
+		return writers[Math.abs(to.hashCode() % writers.length)];
+	}
 
-				if (expiredQueue.size() == 0) {
-					loadExpiredQueue(1);
-				}
+	private void messageStored(Date expired) {
+		if (expired != null) {
+			if (expired.getTime() < earliestOffline) {
+				earliestOffline = expired.getTime();
 			}
+
+			if (expiredQueue.size() == 0) {
+				loadExpiredQueue(1);
+			}
+		}
+	}
+
+	private boolean storeMessage(StoreRequest request) {
+		boolean result = false;
+
+		ReentrantReadWriteLock.ReadLock lock = getLock(request.to).readLock();
+		lock.lock();
+		DataRepository repo = data_repo.takeRepoHandle(request.to);
+		try {
+			PreparedStatement insert_msg_st = repo.getPreparedStatement(request.to, MSGS_ADD_MESSAGE);
+
+			result = executeStore(repo, insert_msg_st, request);
+
+			messageStored(request.expired);
 		} catch (DataTruncation dte) {
-			log.log(Level.FINE, "Data truncated for message from {0} to {1}", new Object[]{from, to});
+			log.log(Level.FINE, "Data truncated for message from {0} to {1}", new Object[]{request.from, request.to});
 		} catch (SQLException e) {
-			if (e.getErrorCode() == 1366 || e.getMessage() != null && e.getMessage().startsWith("Incorrect string value")) {
-				log.log(Level.WARNING, "Your MySQL configuration can't handle extended Unicode (for example emoji) correctly. Please refer to <Support for emoji and other icons> section of the server documentation");
-			} else {
-				log.log(Level.WARNING, "Problem adding new entry to DB: ", e);
-			}
+			logStoreException(e);
 		} finally {
+			data_repo.releaseRepoHandle(repo);
 			lock.unlock();
 		}
 		return result;
 	}
 
+	private void logStoreException(SQLException e) {
+		if (e.getErrorCode() == 1366 || e.getMessage() != null && e.getMessage().startsWith("Incorrect string value")) {
+			log.log(Level.WARNING, "Your MySQL configuration can't handle extended Unicode (for example emoji) correctly. Please refer to <Support for emoji and other icons> section of the server documentation");
+		} else {
+			log.log(Level.WARNING, "Problem adding new entry to DB: ", e);
+		}
+	}
+
+	/**
+	 * Waits until all messages to the recipient queued before this call are stored.
+	 */
+	private void waitForStoredMessages(BareJID to) {
+		StoreWriter writer = getStoreWriter(to);
+		if (writer == null) {
+			return;
+		}
+		try {
+			writer.add(new StoreRequest(to)).get();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException ex) {
+			log.log(Level.FINE, "Problem waiting for messages to " + to + " being stored", ex.getCause());
+		}
+	}
+
 	protected Queue<Element> parseLoadedMessages(OfflineMessagesProcessor proc, ResultSet rs) throws SQLException {
 		StringBuilder sb = new StringBuilder(1000);
 		Queue<Element> result = new LinkedList<Element>();
@@ -578,4 +762,234 @@ public class JDBCMsgRepository
 		}
 	}
 
+	private static class StoreRequest {
+
+		private final long created = System.currentTimeMillis();
+		private final String data;
+		private final Date expired;
+		private final BareJID from;
+		private final CompletableFuture<Boolean> future = new CompletableFuture<>();
+		private final long limit;
+		private final BareJID to;
+		private final int type;
+
+		private StoreRequest(BareJID from, BareJID to, Date expired, int type, String data, long limit) {
+			this.from = from;
+			this.to = to;
+			this.expired = expired;
+			this.type = type;
+			this.data = data;
+			this.limit = limit;
+		}
+
+		/**
+		 * Creates marker request, which is completed when all requests queued before are stored.
+		 */
+		private StoreRequest(BareJID to) {
+			this(null, to, null, 0, null, 0);
+		}
+
+		private boolean isMarker() {
+			return data == null;
+		}
+	}
+
+	/**
+	 * Thread storing queued offline messages in batches. Each batch is stored on a single database connection without
+	 * releasing it between messages. Auto-commit of the connection is not changed, as it may be shared with other
+	 * threads, so each message is still committed separately. If storing of a message fails, it and the remaining
+	 * messages from the batch are stored one by one.
+	 */
+	private class StoreWriter
+			extends Thread {
+
+		private final LinkedBlockingQueue<StoreRequest> queue = new LinkedBlockingQueue<>(
+				Math.max(storeBatchSize, storeQueueSize / Math.max(1, storeBatchWriters)));
+		private long batchTime = 0;
+		private long batches = 0;
+		private long failures = 0;
+		private long latency = 0;
+		private long maxBatchSize = 0;
+		private long maxLatency = 0;
+		private long messages = 0;
+		private volatile boolean shutdown = false;
+
+		private StoreWriter(int idx) {
+			super("offline-msgs-writer-" + idx);
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			List<StoreRequest> batch = new ArrayList<>();
+			while (!shutdown) {
+				try {
+					batch.add(queue.take());
+					collectBatch(batch);
+				} catch (InterruptedException ex) {
+					// shutdown or just interrupted, queued messages will be stored anyway
+				}
+				store(batch);
+			}
+			storeRemaining();
+		}
+
+		private CompletableFuture<Boolean> add(StoreRequest request) {
+			try {
+				queue.put(request);
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				request.future.completeExceptionally(ex);
+				return request.future;
+			}
+			if (shutdown) {
+				// writer may have already finished
+				storeRemaining();
+			}
+			return request.future;
+		}
+
+		private void collectBatch(List<StoreRequest> batch) throws InterruptedException {
+			int batchSize = storeBatchSize;
+			long deadline = System.currentTimeMillis() + storeBatchWindow;
+			while (batch.size() < batchSize) {
+				if (queue.drainTo(batch, batchSize - batch.size()) > 0) {
+					continue;
+				}
+				long wait = deadline - System.currentTimeMillis();
+				if (wait <= 0) {
+					return;
+				}
+				StoreRequest request = queue.poll(wait, TimeUnit.MILLISECONDS);
+				if (request == null) {
+					return;
+				}
+				batch.add(request);
+			}
+		}
+
+		private void shutdown() {
+			shutdown = true;
+			interrupt();
+		}
+
+		private void store(List<StoreRequest> batch) {
+			if (batch.isEmpty()) {
+				return;
+			}
+			try {
+				storeBatch(batch);
+			} catch (Throwable ex) {
+				log.log(Level.WARNING, "Problem storing batch of offline messages", ex);
+				for (StoreRequest request : batch) {
+					request.future.completeExceptionally(ex);
+				}
+			}
+			batch.clear();
+		}
+
+		private void storeBatch(List<StoreRequest> batch) {
+			long start = System.currentTimeMillis();
+			int size = 0;
+			BitSet lockIdxs = new BitSet(locks.length);
+			for (StoreRequest request : batch) {
+				if (!request.isMarker()) {
+					lockIdxs.set(getLockIndex(request.to));
+					++size;
+				}
+			}
+
+			if (size == 0) {
+				for (StoreRequest request : batch) {
+					request.future.complete(true);
+				}
+				return;
+			}
+
+			Boolean[] results = null;
+			if (size > 1) {
+				// locks are always acquired in ascending order to avoid deadlocks with other writers
+				for (int i = lockIdxs.nextSetBit(0); i >= 0; i = lockIdxs.nextSetBit(i + 1)) {
+					locks[i].readLock().lock();
+				}
+				try {
+					results = storeOnSingleConnection(batch);
+				} finally {
+					for (int i = lockIdxs.previousSetBit(locks.length - 1); i >= 0;
+						 i = lockIdxs.previousSetBit(i - 1)) {
+						locks[i].readLock().unlock();
+					}
+				}
+			}
+
+			long now = System.currentTimeMillis();
+			for (int i = 0; i < batch.size(); i++) {
+				StoreRequest request = batch.get(i);
+				if (request.isMarker()) {
+					request.future.complete(true);
+					continue;
+				}
+
+				boolean result;
+				if (results != null && results[i] != null) {
+					result = results[i];
+					messageStored(request.expired);
+				} else {
+					result = storeMessage(request);
+				}
+				request.future.complete(result);
+
+				long requestLatency = now - request.created;
+				latency += requestLatency;
+				if (requestLatency > maxLatency) {
+					maxLatency = requestLatency;
+				}
+			}
+
+			++batches;
+			messages += size;
+			if (size > maxBatchSize) {
+				maxBatchSize = size;
+			}
+			batchTime += System.currentTimeMillis() - start;
+		}
+
+		/**
+		 * Stores messages from the batch in order, returning <code>null</code> for messages which were not stored
+		 * because of a failure.
+		 */
+		private Boolean[] storeOnSingleConnection(List<StoreRequest> batch) {
+			Boolean[] results = new Boolean[batch.size()];
+			DataRepository repo = data_repo.takeRepoHandle(batch.get(0).to);
+
+			try {
+				PreparedStatement insert_msg_st = repo.getPreparedStatement(batch.get(0).to, MSGS_ADD_MESSAGE);
+				synchronized (insert_msg_st) {
+					for (int i = 0; i < batch.size(); i++) {
+						StoreRequest request = batch.get(i);
+						if (!request.isMarker()) {
+							results[i] = executeStore(repo, insert_msg_st, request);
+						}
+					}
+				}
+			} catch (SQLException ex) {
+				++failures;
+				if (log.isLoggable(Level.FINE)) {
+					log.log(Level.FINE, "Storing batch of " + batch.size() +
+							" offline messages failed, storing remaining ones one by one", ex);
+				}
+			} finally {
+				data_repo.releaseRepoHandle(repo);
+			}
+			return results;
+		}
+
+		private synchronized void storeRemaining() {
+			List<StoreRequest> batch = new ArrayList<>();
+			while (queue.drainTo(batch, Math.max(1, storeBatchSize)) > 0) {
+				store(batch);
+			}
+		}
+	}
+
 }
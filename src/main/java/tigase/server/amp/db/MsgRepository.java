@@ -40,6 +40,7 @@ import java.util.Date;
 import java.util.List;
 import java.util.Map;
 import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.DelayQueue;
 import java.util.concurrent.Delayed;
@@ -326,6 +327,13 @@ public abstract class MsgRepository<T, S extends DataSource>
 			return repo.storeMessage(from, to, expired, msg, userRepo);
 		}
 
+		@Override
+		public CompletableFuture<Boolean> storeMessageAsync(JID from, JID to, Date expired, Element msg,
+															NonAuthUserRepository userRepo) {
+			MsgRepositoryIfc repo = getRepository(to.getDomain());
+			return repo.storeMessageAsync(from, to, expired, msg, userRepo);
+		}
+
 		@Override
 		@Deprecated
 		public void initRepository(String resource_uri, Map<String, String> params) throws DBInitException {
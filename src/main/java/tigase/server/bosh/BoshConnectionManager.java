@@ -30,6 +30,7 @@ import tigase.server.ReceiverTimeoutHandler;
 import tigase.server.xmppclient.ClientConnectionManager;
 import tigase.server.xmppclient.SeeOtherHostIfc.Phase;
 import tigase.stats.StatisticsList;
+import tigase.util.common.TimingWheel;
 import tigase.util.stringprep.TigaseStringprepException;
 import tigase.xml.Element;
 import tigase.xmpp.*;
@@ -41,8 +42,10 @@ import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.IOException;
 import java.util.*;
-import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.logging.*;
 
 import static tigase.server.bosh.Constants.*;
@@ -68,14 +71,22 @@ public class BoshConnectionManager
 	public static final String CLIENT_ACCESS_POLICY_FILE_PROP_VAL = "etc/client-access-policy.xml";
 	private static final Logger log = Logger.getLogger(BoshConnectionManager.class.getName());
 	private static final int DEF_PORT_NO = 5280;
+	private static final long TIMEOUT_WHEEL_TICK = 100;
+	private static final int TIMEOUT_WHEEL_SIZE = 1024;
 
 	private static java.util.logging.Handler sidFilehandler;
-	protected final Map<UUID, BoshSession> sessions = new ConcurrentSkipListMap<UUID, BoshSession>();
+	protected final Map<UUID, BoshSession> sessions = new ConcurrentHashMap<UUID, BoshSession>();
+	private final LongAdder emptyResponses = new LongAdder();
+	private final LongAccumulator maxResponseStanzas = new LongAccumulator(Long::max, 0);
+	private final LongAdder responseStanzas = new LongAdder();
+	private final LongAdder responses = new LongAdder();
 	private int[] PORTS = {DEF_PORT_NO};
 	@ConfigField(desc = "Batch queue timeout", alias = BATCH_QUEUE_TIMEOUT_KEY)
 	private long batch_queue_timeout = BATCH_QUEUE_TIMEOUT_VAL;
 	@ConfigField(desc = "Delay before closing BOSH session", alias = BOSH_SESSION_CLOSE_DELAY_PROP_KEY)
 	private long bosh_session_close_delay = BOSH_SESSION_CLOSE_DELAY_DEF_VAL;
+	@ConfigField(desc = "Engine processing BOSH sessions", alias = BOSH_SESSION_ENGINE_KEY)
+	private SessionEngine sessionEngine = SessionEngine.locking;
 	private String clientAccessPolicy = null;
 	@ConfigField(desc = "Client access policy file", alias = CLIENT_ACCESS_POLICY_FILE_PROP_KEY)
 	private String clientAccessPolicyFile = CLIENT_ACCESS_POLICY_FILE_PROP_VAL;
@@ -108,6 +119,7 @@ public class BoshConnectionManager
 
 	;
 	private ReceiverTimeoutHandler stoppedHandler = newStoppedHandler();
+	private volatile TimeoutWheel timeoutWheel = null;
 
 	// This should be actually a multi-thread save variable.
 	// Changing it to
@@ -198,79 +210,82 @@ public class BoshConnectionManager
 		Packet p = null;
 
 		while ((p = serv.getReceivedPackets().poll()) != null) {
-			Queue<Packet> out_results = new ArrayDeque<Packet>(2);
 			BoshSession bs = null;
 			String sid_str = null;
 
-			synchronized (sessions) {
-				if (log.isLoggable(Level.FINER)) {
-					log.log(Level.FINER, "Processing packet: {0}, type: {1}",
-							new Object[]{p.getElemName(), p.getType()});
-				}
-				if (log.isLoggable(Level.FINEST)) {
-					log.log(Level.FINEST, "Processing socket data: {0}", p);
-				}
-				sid_str = p.getAttributeStaticStr(SID_ATTR);
+			if (log.isLoggable(Level.FINER)) {
+				log.log(Level.FINER, "Processing packet: {0}, type: {1}", new Object[]{p.getElemName(), p.getType()});
+			}
+			if (log.isLoggable(Level.FINEST)) {
+				log.log(Level.FINEST, "Processing socket data: {0}", p);
+			}
+			sid_str = p.getAttributeStaticStr(SID_ATTR);
 
-				UUID sid = null;
+			UUID sid = null;
 
-				if (sid_str == null) {
-					String hostname = p.getAttributeStaticStr(Packet.TO_ATT);
+			if (sid_str == null) {
+				String hostname = p.getAttributeStaticStr(Packet.TO_ATT);
 
-					if ((hostname != null) && isLocalDomain(hostname)) {
-						if (!isAllowed(srv, hostname)) {
-							if (log.isLoggable(Level.FINE)) {
-								log.log(Level.FINE, "Policy violation. Closing connection: {0}", p);
-							}
-							try {
-								serv.sendErrorAndStop(Authorization.NOT_ALLOWED, StreamError.PolicyViolation, p,
-													  "Policy violation.");
-							} catch (IOException e) {
-								log.log(Level.WARNING, "Problem sending invalid hostname error for sid =  " + sid, e);
-							}
-						} else {
-							bs = new BoshSession(getDefVHostItem().getDomain(),
-												 JID.jidInstanceNS(routings.computeRouting(hostname)), this,
-												 sendNodeHostname ? getDefHostName().getDomain() : null,
-												 maxSessionWaitingPackets);
-							sid = bs.getSid();
-							sessions.put(sid, bs);
-
-							if (log.isLoggable(Level.FINE)) {
-								log.log(Level.FINE, "{0} : {1} ({2})",
-										new Object[]{BOSH_OPERATION_TYPE.CREATE, sid, "Socket bosh session"});
-							}
+				if ((hostname != null) && isLocalDomain(hostname)) {
+					if (!isAllowed(srv, hostname)) {
+						if (log.isLoggable(Level.FINE)) {
+							log.log(Level.FINE, "Policy violation. Closing connection: {0}", p);
 						}
-					} else {
 						try {
-							serv.sendErrorAndStop(Authorization.NOT_ALLOWED, hostname == null
-																			 ? StreamError.ImproperAddressing
-																			 : StreamError.HostUnknown, p,
-												  "Invalid hostname.");
+							serv.sendErrorAndStop(Authorization.NOT_ALLOWED, StreamError.PolicyViolation, p,
+												  "Policy violation.");
 						} catch (IOException e) {
 							log.log(Level.WARNING, "Problem sending invalid hostname error for sid =  " + sid, e);
 						}
+					} else {
+						bs = new BoshSession(getDefVHostItem().getDomain(),
+											 JID.jidInstanceNS(routings.computeRouting(hostname)), this,
+											 sendNodeHostname ? getDefHostName().getDomain() : null,
+											 maxSessionWaitingPackets, sessionEngine == SessionEngine.wheel);
+						sid = bs.getSid();
+						sessions.put(sid, bs);
+
+						if (log.isLoggable(Level.FINE)) {
+							log.log(Level.FINE, "{0} : {1} ({2})",
+									new Object[]{BOSH_OPERATION_TYPE.CREATE, sid, "Socket bosh session"});
+						}
 					}
 				} else {
 					try {
-						sid = UUID.fromString(sid_str);
-						bs = sessions.get(sid);
-					} catch (IllegalArgumentException e) {
-						log.log(Level.WARNING, "Problem processing socket data, sid =  " + sid_str +
-								" does not conform to the UUID string representation.", e);
+						serv.sendErrorAndStop(Authorization.NOT_ALLOWED, hostname == null
+																		 ? StreamError.ImproperAddressing
+																		 : StreamError.HostUnknown, p,
+											  "Invalid hostname.");
+					} catch (IOException e) {
+						log.log(Level.WARNING, "Problem sending invalid hostname error for sid =  " + sid, e);
 					}
 				}
+			} else {
+				try {
+					sid = UUID.fromString(sid_str);
+					bs = sessions.get(sid);
+				} catch (IllegalArgumentException e) {
+					log.log(Level.WARNING, "Problem processing socket data, sid =  " + sid_str +
+							" does not conform to the UUID string representation.", e);
+				}
 			}
 			try {
 				if (bs != null) {
-					synchronized (bs) {
-						if (sid_str == null) {
-							bs.init(p, serv, max_wait, min_polling, max_inactivity, concurrent_requests, hold_requests,
-									max_pause, max_batch_size, batch_queue_timeout, out_results);
+					final BoshSession session = bs;
+					final Packet packet = p;
+					final boolean init = sid_str == null;
+
+					session.execute(() -> {
+						Queue<Packet> out_results = new ArrayDeque<Packet>(2);
+
+						if (init) {
+							session.init(packet, serv, max_wait, min_polling, max_inactivity, concurrent_requests,
+										 hold_requests, max_pause, max_batch_size, batch_queue_timeout, out_results);
 						} else {
-							bs.processSocketPacket(p, serv, out_results);
+							session.processSocketPacket(packet, serv, out_results);
 						}
-					}
+						addOutPackets(out_results, session);
+					});
 				} else {
 					if (log.isLoggable(Level.FINE)) {
 						log.log(Level.FINE, "{0} : {1} ({2})",
@@ -278,7 +293,6 @@ public class BoshConnectionManager
 					}
 					serv.sendErrorAndStop(Authorization.ITEM_NOT_FOUND, null, p, "Invalid SID");
 				}
-				addOutPackets(out_results, bs);
 			} catch (IOException e) {
 				log.log(Level.WARNING, "Problem processing socket data for sid =  " + sid_str, e);
 			}
@@ -302,8 +316,13 @@ public class BoshConnectionManager
 	@Override
 	public BoshTask scheduleTask(BoshSession bs, long delay) {
 		BoshTask bt = new BoshTask(bs, this);
+		TimeoutWheel timeoutWheel = this.timeoutWheel;
 
-		addTimerTask(bt, delay);
+		if (timeoutWheel != null) {
+			timeoutWheel.schedule(bt, delay);
+		} else {
+			addTimerTask(bt, delay);
+		}
 
 		// boshTasks.schedule(bt, delay);
 		return bt;
@@ -330,7 +349,13 @@ public class BoshConnectionManager
 							new Object[]{BOSH_OPERATION_TYPE.REMOVE, bs.getSid(), "Closing bosh session"});
 				}
 
-				bs.disconnected(service);
+				if (bs.isSingleWriter()) {
+					bs.execute(() -> bs.disconnected(service));
+				} else {
+					// called without the lock of the session, as the service may be locked by a thread sending
+					// data to it while holding the lock of the session
+					bs.disconnected(service);
+				}
 			}
 		}
 		return result;
@@ -439,13 +464,53 @@ public class BoshConnectionManager
 	@Override
 	public void getStatistics(StatisticsList list) {
 		super.getStatistics(list);
-		if (list.checkLevel(Level.FINEST)) {
 
-			// Be careful here, the size() for this map is expensive to count
-			list.add(getName(), "Bosh sessions", sessions.size(), Level.FINEST);
+		long responsesVal = responses.sum();
+
+		list.add(getName(), "Bosh sessions", sessions.size(), Level.FINE);
+		list.add(getName(), "Bosh responses", responsesVal, Level.FINE);
+		list.add(getName(), "Bosh empty responses", emptyResponses.sum(), Level.FINE);
+		list.add(getName(), "Bosh average stanzas per response",
+				 responsesVal == 0 ? 0f : ((float) responseStanzas.sum()) / responsesVal, Level.FINE);
+		list.add(getName(), "Bosh max stanzas per response", maxResponseStanzas.get(), Level.FINER);
+
+		TimeoutWheel timeoutWheel = this.timeoutWheel;
+		if (timeoutWheel != null) {
+			list.add(getName(), "Bosh timeouts scheduled", timeoutWheel.getScheduledCount(), Level.FINER);
+			list.add(getName(), "Bosh timeouts expired", timeoutWheel.expired, Level.FINER);
+			list.add(getName(), "Bosh timeouts lag [ms]", timeoutWheel.lag, Level.FINER);
+		}
+	}
+
+	@Override
+	public void responseSent(BoshSession bs, int stanzas) {
+		responses.increment();
+		if (stanzas == 0) {
+			emptyResponses.increment();
+		} else {
+			responseStanzas.add(stanzas);
+			maxResponseStanzas.accumulate(stanzas);
+		}
+	}
+
+	@Override
+	public void start() {
+		super.start();
+		if (sessionEngine == SessionEngine.wheel && timeoutWheel == null) {
+			timeoutWheel = new TimeoutWheel();
+			timeoutWheel.start();
 		}
 	}
 
+	@Override
+	public void stop() {
+		if (timeoutWheel != null) {
+			timeoutWheel.shutdown();
+			timeoutWheel = null;
+		}
+		super.stop();
+	}
+
 	public void setSidLoggerLevel(String loggerLevel) {
 		Level level = Level.OFF;
 		if (loggerLevel != null) {
@@ -536,7 +601,7 @@ public class BoshConnectionManager
 		BoshSession bs = new BoshSession(getDefVHostItem().getDomain(),
 										 JID.jidInstanceNS(routings.computeRouting(hostname)), this,
 										 sendNodeHostname ? getDefHostName().getDomain() : null,
-										 maxSessionWaitingPackets);
+										 maxSessionWaitingPackets, sessionEngine == SessionEngine.wheel);
 
 		String jid = attr.get(FROM_ATTR);
 		String uuid = UUID.randomUUID().toString();
@@ -656,8 +721,10 @@ public class BoshConnectionManager
 
 								redirectPacket.setPacketTo(packet.getTo());
 								writePacketToSocket(redirectPacket);
-								session.sendWaitingPackets();
-								session.close();
+								session.execute(() -> {
+									session.sendWaitingPackets();
+									session.close();
+								});
 								if (log.isLoggable(Level.FINE)) {
 									log.log(Level.FINE, "{0} : {1} ({2})",
 											new Object[]{BOSH_OPERATION_TYPE.REMOVE, session.getSid(),
@@ -698,7 +765,7 @@ public class BoshConnectionManager
 
 							condition.setPacketTo(packet.getTo());
 							writePacketToSocket(condition);
-							session.sendWaitingPackets();
+							session.execute(session::sendWaitingPackets);
 							bosh_session_close_delay = 100;
 						}
 					} catch (TigaseStringprepException ex) {
@@ -712,7 +779,7 @@ public class BoshConnectionManager
 							// Intentionally left blank
 						}
 					}
-					session.close();
+					session.execute(session::close);
 					if (log.isLoggable(Level.FINE)) {
 						log.log(Level.FINE, "{0} : {1} ({2})",
 								new Object[]{BOSH_OPERATION_TYPE.REMOVE, session.getSid(),
@@ -759,12 +826,12 @@ public class BoshConnectionManager
 		BoshSession session = getBoshSession(packet.getTo());
 
 		if (session != null) {
-			synchronized (session) {
+			session.execute(() -> {
 				Queue<Packet> out_results = new ArrayDeque<Packet>();
 
 				session.processPacket(packet, out_results);
 				addOutPackets(out_results, session);
-			}
+			});
 
 			return true;
 		} else {
@@ -846,6 +913,22 @@ public class BoshConnectionManager
 
 	}
 
+	/**
+	 * Engine processing BOSH sessions.
+	 */
+	public enum SessionEngine {
+		/**
+		 * Session is locked while processing requests and packets, each wait and inactivity timeout is a separate
+		 * timer task.
+		 */
+		locking,
+		/**
+		 * Requests and packets of a session are processed by a single thread at once without locking, wait and
+		 * inactivity timeouts of all sessions are kept in a single timing wheel.
+		 */
+		wheel
+	}
+
 	// ~--- inner classes --------------------------------------------------------
 	private class StartedHandler
 			implements ReceiverTimeoutHandler {
@@ -891,7 +974,7 @@ public class BoshConnectionManager
 
 			if (session != null) {
 				log.fine("Closing session for timeout: " + session.getSid());
-				session.close();
+				session.execute(session::close);
 				if (log.isLoggable(Level.FINE)) {
 					log.log(Level.FINE, "{0} : {1} ({2})",
 							new Object[]{BOSH_OPERATION_TYPE.REMOVE, session.getSid(), "Closing session for timeout"});
@@ -902,4 +985,64 @@ public class BoshConnectionManager
 			}
 		}
 	}
+
+	/**
+	 * Thread expiring wait and inactivity timeouts of all BOSH sessions kept in a single {@link TimingWheel}.
+	 * Expired tasks are handed to the scheduler of the component and executed there as actions of their sessions, so
+	 * the wheel thread never processes queued actions of a session.
+	 */
+	private class TimeoutWheel
+			extends Thread {
+
+		private final TimingWheel<BoshTask> wheel = new TimingWheel<>(TIMEOUT_WHEEL_TICK, TIMEOUT_WHEEL_SIZE);
+		private volatile long expired = 0;
+		private volatile long lag = 0;
+		private volatile boolean shutdown = false;
+
+		private TimeoutWheel() {
+			super(BoshConnectionManager.this.getName() + "-timeout-wheel");
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			while (!shutdown) {
+				try {
+					long sleep = wheel.getNextTickTime() - System.currentTimeMillis();
+					if (sleep > 0) {
+						Thread.sleep(sleep);
+					}
+
+					long now = System.currentTimeMillis();
+					lag = Math.max(0, now - wheel.getNextTickTime());
+					expired += wheel.advance(now, timeout -> expire(timeout.getItem()));
+				} catch (InterruptedException e) {    /* Do nothing here */
+				} catch (Exception e) {
+					log.log(Level.WARNING, "Problem expiring BOSH timeouts", e);
+				}
+			}
+		}
+
+		public void shutdown() {
+			shutdown = true;
+			interrupt();
+		}
+
+		public int getScheduledCount() {
+			return wheel.size();
+		}
+
+		protected void schedule(BoshTask task, long delay) {
+			task.setTimeout(wheel.schedule(task, System.currentTimeMillis() + delay));
+		}
+
+		private void expire(BoshTask task) {
+			addTimerTask(new tigase.util.common.TimerTask() {
+				@Override
+				public void run() {
+					task.expired();
+				}
+			}, 0);
+		}
+	}
 }
@@ -156,6 +156,14 @@ public class BoshIOService
 		return sb;
 	}
 
+	/**
+	 * HTTP requests are checked before parsing, so data has to be decoded to characters.
+	 */
+	@Override
+	protected boolean isByteParsingSupported() {
+		return false;
+	}
+
 	protected int getDataLength(String data, String content_type) {
 		String charset = getCharset(content_type);
 		if (charset != null) {
@@ -184,6 +192,12 @@ public class BoshIOService
 		return null;
 	}
 
+	@Override
+	protected void writePacket(Packet packet) throws IOException {
+		// each write needs HTTP headers, so packets cannot be coalesced
+		writeRawData(packet.getElement().toString());
+	}
+
 	@Override
 	public void writeRawData(String data) throws IOException {
 		if ((data != null) && data.startsWith("<body")) {
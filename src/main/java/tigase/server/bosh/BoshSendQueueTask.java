@@ -33,7 +33,7 @@ public class BoshSendQueueTask
 
 	@Override
 	public void run() {
-		bs.sendWaitingPackets();
+		bs.execute(bs::sendWaitingPackets);
 	}
 
 }
@@ -33,9 +33,11 @@ import tigase.xmpp.jid.BareJID;
 import tigase.xmpp.jid.JID;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.ConcurrentSkipListSet;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Pattern;
@@ -59,6 +61,12 @@ public class BoshSession {
 	private static final long SECOND = 1000;
 	private static final TimerTaskComparator timerTaskComparator = new TimerTaskComparator();
 
+	/**
+	 * Actions waiting to be executed on the session if it is processed by a single thread at once
+	 */
+	private final Queue<Runnable> actions = new ConcurrentLinkedQueue<Runnable>();
+	private final AtomicInteger pendingActions = new AtomicInteger();
+	private final boolean singleWriter;
 	private long batch_queue_timeout = BATCH_QUEUE_TIMEOUT_VAL;
 	// ~--- fields ---------------------------------------------------------------
 	private BoshSessionCache cache = null;
@@ -116,6 +124,18 @@ public class BoshSession {
 	 */
 	public BoshSession(String def_domain, JID dataReceiver, BoshSessionTaskHandler handler, String hostname,
 					   int maxWaitingPackets) {
+		this(def_domain, dataReceiver, handler, hostname, maxWaitingPackets, false);
+	}
+
+	/**
+	 * Creates a new <code>BoshSession</code> instance.
+	 *
+	 * @param singleWriter <code>true</code> if actions passed to {@link #execute(Runnable)} should be queued and
+	 * executed by a single thread at once instead of locking the session
+	 */
+	public BoshSession(String def_domain, JID dataReceiver, BoshSessionTaskHandler handler, String hostname,
+					   int maxWaitingPackets, boolean singleWriter) {
+		this.singleWriter = singleWriter;
 		this.sid = UUID.randomUUID();
 		this.domain = def_domain;
 		this.dataReceiver = dataReceiver;
@@ -125,6 +145,37 @@ public class BoshSession {
 		this.waiting_packets = new LinkedBlockingQueue(maxWaitingPackets);
 	}
 
+	/**
+	 * Executes action changing state of the session. Actions are never executed concurrently.
+	 * <br>
+	 * By default action is executed by the calling thread while holding lock of the session. For single writer
+	 * sessions action is added to the queue of the session and the calling thread executes it only if no other thread
+	 * is executing actions of the session, together with all actions queued in the meantime. Otherwise the action is
+	 * executed later by the thread which is already processing the session, so the calling thread never waits.
+	 *
+	 * @param action to execute
+	 */
+	public void execute(Runnable action) {
+		if (!singleWriter) {
+			synchronized (this) {
+				action.run();
+			}
+			return;
+		}
+
+		actions.offer(action);
+		if (pendingActions.getAndIncrement() != 0) {
+			return;
+		}
+		do {
+			try {
+				actions.poll().run();
+			} catch (Exception ex) {
+				log.log(Level.WARNING, "Problem processing action of BOSH session: " + getSid(), ex);
+			}
+		} while (pendingActions.decrementAndGet() != 0);
+	}
+
 	public void close() {
 		terminate = true;
 		processPacket(null, null);
@@ -535,6 +586,10 @@ public class BoshSession {
 		return sid;
 	}
 
+	public boolean isSingleWriter() {
+		return singleWriter;
+	}
+
 	public void setUserJid(String jid) {
 		userJid = JID.jidInstanceNS(jid);
 	}
@@ -944,6 +999,9 @@ public class BoshSession {
 			if (terminate) {
 				body.setAttribute("type", StanzaType.terminate.toString());
 			}
+
+			List<Element> children = body.getChildren();
+			handler.responseSent(this, children == null ? 0 : children.size());
 			handler.writeRawData(serv, body.toString());
 			retireConnectionService(serv);
 
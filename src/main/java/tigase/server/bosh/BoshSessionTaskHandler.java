@@ -55,4 +55,14 @@ public interface BoshSessionTaskHandler {
 	Element getSeeOtherHostError(Packet packet, BareJID destination);
 
 	boolean processUndeliveredPacket(Packet packet, Long stamp, String errorMessage);
+
+	/**
+	 * Called when a response is sent to the client for any of its requests, whether it was held or answered
+	 * immediately.
+	 *
+	 * @param bs session which sent the response
+	 * @param stanzas number of stanzas sent in the response
+	 */
+	default void responseSent(BoshSession bs, int stanzas) {
+	}
 }
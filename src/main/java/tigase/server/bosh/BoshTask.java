@@ -19,6 +19,7 @@ package tigase.server.bosh;
 
 import tigase.server.Packet;
 import tigase.util.common.TimerTask;
+import tigase.util.common.TimingWheel;
 
 import java.util.ArrayDeque;
 import java.util.Queue;
@@ -41,7 +42,7 @@ public class BoshTask
 	protected long timerOrder = System.currentTimeMillis();
 	private BoshSession bs = null;
 	private BoshConnectionManager manager = null;
-
+	private volatile TimingWheel.Timeout<BoshTask> timeout = null;
 
 	public BoshTask(BoshSession bs, BoshConnectionManager manager) {
 		this.bs = bs;
@@ -61,4 +62,29 @@ public class BoshTask
 
 		manager.addOutPackets(out_results, bs);
 	}
+
+	@Override
+	public void cancel(boolean mayInterruptIfRunning) {
+		super.cancel(mayInterruptIfRunning);
+
+		TimingWheel.Timeout<BoshTask> timeout = this.timeout;
+		if (timeout != null) {
+			timeout.cancel();
+		}
+	}
+
+	/**
+	 * Called when the task scheduled in the timing wheel expires. Task is executed as an action of its session.
+	 */
+	protected void expired() {
+		bs.execute(() -> {
+			if (!isCancelled()) {
+				run();
+			}
+		});
+	}
+
+	protected void setTimeout(TimingWheel.Timeout<BoshTask> timeout) {
+		this.timeout = timeout;
+	}
 }
@@ -48,6 +48,8 @@ public abstract class Constants {
 
 	protected static final String BOSH_SESSION_CLOSE_DELAY_PROP_KEY = "bosh-session-close-delay";
 
+	protected static final String BOSH_SESSION_ENGINE_KEY = "bosh-session-engine";
+
 	protected static final String BOSH_XMLNS = "http://jabber.org/protocol/httpbind";
 
 	protected static final String CACHE_ATTR = "cache";
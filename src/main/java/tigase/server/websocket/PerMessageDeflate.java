@@ -0,0 +1,285 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.server.websocket;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Implementation of <code>permessage-deflate</code> extension of WebSocket protocol.
+ * <br>
+ * Each connection which negotiated the extension has its own compressor and decompressor, so by default the sliding
+ * window is shared between messages sent in the same direction. Output of the compressor is flushed with
+ * <code>SYNC_FLUSH</code> after each message and trailing <code>0x00 0x00 0xFF 0xFF</code> bytes are removed from the
+ * payload, as required by the specification. Java implementation of ZLIB always uses 32KB window, so offers
+ * limiting window of the server are declined.
+ * @see <a href="https://tools.ietf.org/html/rfc7692">RFC 7692: Compression Extensions for WebSocket</a>
+ */
+class PerMessageDeflate {
+
+	static final String EXTENSION = "permessage-deflate";
+
+	private static final int BUFFER_SIZE = 1024;
+	private static final String CLIENT_MAX_WINDOW_BITS = "client_max_window_bits";
+	private static final String CLIENT_NO_CONTEXT_TAKEOVER = "client_no_context_takeover";
+	/**
+	 * Maximal size of decompressed payload of a single frame.
+	 */
+	private static final int MAX_PAYLOAD_SIZE = 4 * 1024 * 1024;
+	private static final int MAX_WINDOW_BITS = 15;
+	private static final String SERVER_MAX_WINDOW_BITS = "server_max_window_bits";
+	private static final String SERVER_NO_CONTEXT_TAKEOVER = "server_no_context_takeover";
+	private static final byte[] TAIL = {0x00, 0x00, (byte) 0xFF, (byte) 0xFF};
+	private static final Logger log = Logger.getLogger(PerMessageDeflate.class.getCanonicalName());
+
+	private final boolean clientNoContextTakeover;
+	private final Deflater deflater;
+	private final Inflater inflater = new Inflater(true);
+	private final String response;
+	private final boolean serverNoContextTakeover;
+	private byte[] compressInput = new byte[BUFFER_SIZE];
+	private byte[] compressOutput = new byte[BUFFER_SIZE];
+	private byte[] decompressInput = new byte[BUFFER_SIZE];
+	private byte[] decompressOutput = new byte[BUFFER_SIZE];
+
+	/**
+	 * Selects first offer of <code>permessage-deflate</code> extension which parameters are supported.
+	 *
+	 * @param offers value of <code>Sec-WebSocket-Extensions</code> header sent by the client
+	 * @param level of compression
+	 *
+	 * @return instance for the connection or <code>null</code> if no offer was accepted
+	 */
+	static PerMessageDeflate negotiate(String offers, int level) {
+		if (offers == null) {
+			return null;
+		}
+		for (String offer : offers.split(",")) {
+			String[] params = offer.split(";");
+			if (!EXTENSION.equalsIgnoreCase(params[0].trim())) {
+				continue;
+			}
+
+			boolean clientNoContextTakeover = false;
+			boolean serverNoContextTakeover = false;
+			boolean serverMaxWindowBits = false;
+			boolean clientMaxWindowBits = false;
+			boolean accepted = true;
+			for (int i = 1; i < params.length && accepted; i++) {
+				String param = params[i];
+				String value = null;
+				int idx = param.indexOf('=');
+				if (idx > 0) {
+					value = param.substring(idx + 1).trim();
+					if (value.length() > 1 && value.charAt(0) == '"' && value.charAt(value.length() - 1) == '"') {
+						value = value.substring(1, value.length() - 1);
+					}
+					param = param.substring(0, idx);
+				}
+				switch (param.trim().toLowerCase()) {
+					case CLIENT_NO_CONTEXT_TAKEOVER:
+						accepted = !clientNoContextTakeover && value == null;
+						clientNoContextTakeover = true;
+						break;
+					case SERVER_NO_CONTEXT_TAKEOVER:
+						accepted = !serverNoContextTakeover && value == null;
+						serverNoContextTakeover = true;
+						break;
+					case SERVER_MAX_WINDOW_BITS:
+						// window of the compressor cannot be limited
+						accepted = !serverMaxWindowBits && value != null && isWindowBits(value) &&
+								Integer.parseInt(value) == MAX_WINDOW_BITS;
+						serverMaxWindowBits = true;
+						break;
+					case CLIENT_MAX_WINDOW_BITS:
+						// decompressor accepts any window, so we do not need to limit it
+						accepted = !clientMaxWindowBits && (value == null || isWindowBits(value));
+						clientMaxWindowBits = true;
+						break;
+					default:
+						accepted = false;
+						break;
+				}
+			}
+
+			if (accepted) {
+				StringBuilder response = new StringBuilder(EXTENSION);
+				if (serverNoContextTakeover) {
+					response.append("; ").append(SERVER_NO_CONTEXT_TAKEOVER);
+				}
+				if (clientNoContextTakeover) {
+					response.append("; ").append(CLIENT_NO_CONTEXT_TAKEOVER);
+				}
+				if (serverMaxWindowBits) {
+					response.append("; ").append(SERVER_MAX_WINDOW_BITS).append('=').append(MAX_WINDOW_BITS);
+				}
+				return new PerMessageDeflate(level, serverNoContextTakeover, clientNoContextTakeover,
+											 response.toString());
+			}
+			if (log.isLoggable(Level.FINEST)) {
+				log.log(Level.FINEST, "Declining unsupported offer of extension: {0}", offer);
+			}
+		}
+		return null;
+	}
+
+	private static boolean isWindowBits(String value) {
+		if (value.isEmpty() || value.length() > 2) {
+			return false;
+		}
+		for (int i = 0; i < value.length(); i++) {
+			if (!Character.isDigit(value.charAt(i))) {
+				return false;
+			}
+		}
+		int bits = Integer.parseInt(value);
+		return bits >= 8 && bits <= MAX_WINDOW_BITS;
+	}
+
+	PerMessageDeflate(int level, boolean serverNoContextTakeover, boolean clientNoContextTakeover, String response) {
+		this.deflater = new Deflater(level, true);
+		this.serverNoContextTakeover = serverNoContextTakeover;
+		this.clientNoContextTakeover = clientNoContextTakeover;
+		this.response = response;
+	}
+
+	/**
+	 * Returns value of <code>Sec-WebSocket-Extensions</code> header which should be sent to the client.
+	 */
+	String getResponse() {
+		return response;
+	}
+
+	/**
+	 * Compresses a whole message.
+	 *
+	 * @param data to compress, consumed by the call
+	 *
+	 * @return payload of the frame, valid only until the next call
+	 */
+	ByteBuffer compress(ByteBuffer data) {
+		synchronized (deflater) {
+			int size = data.remaining();
+			if (data.hasArray()) {
+				deflater.setInput(data.array(), data.arrayOffset() + data.position(), size);
+			} else {
+				if (compressInput.length < size) {
+					compressInput = new byte[size];
+				}
+				data.get(compressInput, 0, size);
+				deflater.setInput(compressInput, 0, size);
+			}
+			data.position(data.limit());
+
+			int length = 0;
+			while (true) {
+				length += deflater.deflate(compressOutput, length, compressOutput.length - length, Deflater.SYNC_FLUSH);
+				if (length < compressOutput.length) {
+					break;
+				}
+				// output buffer is full, so there may be more data to flush
+				compressOutput = Arrays.copyOf(compressOutput, compressOutput.length * 2);
+			}
+			if (serverNoContextTakeover) {
+				deflater.reset();
+			}
+
+			if (length >= TAIL.length) {
+				length -= TAIL.length;
+			}
+			if (length == 0) {
+				// empty message is sent as a single empty block
+				compressOutput[length++] = 0x00;
+			}
+			return ByteBuffer.wrap(compressOutput, 0, length);
+		}
+	}
+
+	/**
+	 * Decompresses a payload of a single frame of compressed message.
+	 *
+	 * @param payload of the frame, consumed by the call
+	 * @param fin <code>true</code> if it is the last frame of the message
+	 *
+	 * @return decompressed data, valid only until the next call
+	 *
+	 * @throws DataFormatException if payload is not valid or decompressed data is too big
+	 */
+	ByteBuffer decompress(ByteBuffer payload, boolean fin) throws DataFormatException {
+		synchronized (inflater) {
+			int size = payload.remaining();
+			if (payload.hasArray()) {
+				inflater.setInput(payload.array(), payload.arrayOffset() + payload.position(), size);
+			} else {
+				if (decompressInput.length < size) {
+					decompressInput = new byte[size];
+				}
+				payload.get(decompressInput, 0, size);
+				inflater.setInput(decompressInput, 0, size);
+			}
+			payload.position(payload.limit());
+
+			int length = inflate(0);
+			if (fin) {
+				inflater.setInput(TAIL);
+				length = inflate(length);
+				if (clientNoContextTakeover || inflater.finished()) {
+					inflater.reset();
+				}
+			}
+			return ByteBuffer.wrap(decompressOutput, 0, length);
+		}
+	}
+
+	/**
+	 * Releases resources of compressor and decompressor.
+	 */
+	void end() {
+		synchronized (deflater) {
+			deflater.end();
+		}
+		synchronized (inflater) {
+			inflater.end();
+		}
+	}
+
+	private int inflate(int length) throws DataFormatException {
+		while (!inflater.finished()) {
+			if (length == decompressOutput.length) {
+				if (length >= MAX_PAYLOAD_SIZE) {
+					throw new DataFormatException("Decompressed payload exceeds " + MAX_PAYLOAD_SIZE + " bytes");
+				}
+				decompressOutput = Arrays.copyOf(decompressOutput, Math.min(length * 2, MAX_PAYLOAD_SIZE));
+			}
+			int read = inflater.inflate(decompressOutput, length, decompressOutput.length - length);
+			length += read;
+			if (read == 0 && length < decompressOutput.length) {
+				if (inflater.needsDictionary()) {
+					throw new DataFormatException("Preset dictionary is not supported");
+				}
+				break;
+			}
+		}
+		return length;
+	}
+}
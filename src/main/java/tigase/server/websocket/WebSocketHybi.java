@@ -24,11 +24,15 @@ import tigase.util.Base64;
 import java.io.IOException;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.MalformedInputException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
 
 import static tigase.server.websocket.WebSocketXMPPIOService.State.closing;
 
@@ -54,13 +58,19 @@ public class WebSocketHybi
 					"Access-Control-Allow-Headers: Content-Type\r\n" + "Access-Control-Max-Age: 86400\r\n";
 
 	private static final String WS_ACCEPT_KEY = "Sec-WebSocket-Accept";
+	private static final String WS_EXTENSIONS_KEY = "Sec-WebSocket-Extensions";
 	private static final String WS_KEY_KEY = "Sec-WebSocket-Key";
 
 	private static final String CLOSE_CODE = "close-code";
 	private static final int PROTOCOL_ERROR = 1003;
+	private static final int MESSAGE_TOO_BIG = 1009;
 	private static byte[] EMPTY = new byte[0];
 	@ConfigField(desc = "Allow for unmasked frames send from client", alias = "ws-allow-unmasked-frames")
 	private boolean allowUnmaskedFromClient = false;
+	@ConfigField(desc = "Compress messages with permessage-deflate extension if requested by client", alias = "ws-permessage-deflate")
+	private boolean permessageDeflate = false;
+	@ConfigField(desc = "Level of permessage-deflate compression", alias = "ws-permessage-deflate-level")
+	private int permessageDeflateLevel = Deflater.BEST_SPEED;
 
 	@Override
 	public String getId() {
@@ -99,6 +109,16 @@ public class WebSocketHybi
 		response.append(WS_ACCEPT_KEY + ": ");
 		response.append(wsAccept);
 		response.append("\r\n");
+		if (permessageDeflate) {
+			PerMessageDeflate deflate = PerMessageDeflate.negotiate(headers.get(WS_EXTENSIONS_KEY.toUpperCase()),
+																	permessageDeflateLevel);
+			if (deflate != null) {
+				response.append(WS_EXTENSIONS_KEY + ": ");
+				response.append(deflate.getResponse());
+				response.append("\r\n");
+				service.deflate = deflate;
+			}
+		}
 		response.append("\r\n");
 		service.maskingKey = new byte[4];
 		service.writeRawData(response.toString());
@@ -159,7 +179,17 @@ public class WebSocketHybi
 					// if frame length is bigger than 125 then
 					// if is 126 - size is short (unsigned short)
 					// is is 127 - size is long
-					service.frameLength = (service.frameLength == 126) ? (buf.getShort() & 0xffff) : buf.getLong();
+					// size is always in network byte order, regardless of byte order of the buffer
+					service.frameLength = getLength(buf, (service.frameLength == 126) ? 2 : 8);
+					if (service.frameLength < 0 || service.frameLength > Integer.MAX_VALUE) {
+						if (log.isLoggable(Level.FINEST)) {
+							log.log(Level.FINEST, "Socket: {0}, closing connection due to frame too big: {1}",
+									new Object[]{service, service.frameLength});
+						}
+						service.frameLength = -1;
+						closeConnection(service, MESSAGE_TOO_BIG);
+						return null;
+					}
 				}
 				if (masked) {
 
@@ -169,18 +199,16 @@ public class WebSocketHybi
 			}
 
 			if (buf.remaining() >= service.frameLength) {
-				byte[] data = new byte[(int) service.frameLength];
-
-				buf.get(data);
+				int start = buf.position();
+				int end = start + (int) service.frameLength;
 
-				// if content is masked then unmask content
+				// if content is masked then unmask content in place
 				if (masked) {
-					byte[] maskingKey = service.maskingKey;
-					for (int i = 0; i < data.length; i++) {
-						data[i] = (byte) (data[i] ^ maskingKey[i % 4]);
-					}
+					unmask(buf, start, end, service.maskingKey);
 				}
-				unmasked = ByteBuffer.wrap(data);
+				unmasked = buf.duplicate();
+				unmasked.limit(end);
+				buf.position(end);
 				service.frameLength = -1;
 			} else {
 				// not enought data so reset buffer position
@@ -204,17 +232,26 @@ public class WebSocketHybi
 						log.log(Level.FINEST, "Socket: {0}, sending response on ping frame", new Object[]{service});
 					}
 					type = (byte) (((byte) (type ^ 0x09)) | 0x0A);
-					try {
-						ByteBuffer header = createFrameHeader(type, unmasked.remaining());
-
-						service.writeInProgress.lock();
-						service.writeBytes(header);
-						service.writeBytes(unmasked);
-					} finally {
-						service.writeInProgress.unlock();
-					}
+					writeFrame(service, type, unmasked);
 					// We are returning empty byte buffer to make sure other frames remaining in buffer will be processed
 					unmasked = ByteBuffer.wrap(EMPTY);
+				} else {
+					// RSV1 bit is set only in the first frame of compressed message
+					if ((type & 0x0F) != 0x00) {
+						service.compressedMessage = (type & 0x40) == 0x40;
+					}
+					if (service.compressedMessage) {
+						if (service.deflate == null) {
+							if (log.isLoggable(Level.FINEST)) {
+								log.log(Level.FINEST,
+										"Socket: {0}, closing connection due to protocol error - compressed frame sent without negotiation {1}",
+										new Object[]{service, String.format("%02X ", type)});
+							}
+							closeConnection(service, PROTOCOL_ERROR);
+							return null;
+						}
+						unmasked = service.deflate.decompress(unmasked, (type & 0x80) == 0x80);
+					}
 				}
 			}
 		} catch (BufferUnderflowException ex) {
@@ -223,6 +260,13 @@ public class WebSocketHybi
 			buf.position(position);
 			service.frameLength = -1;
 			unmasked = null;
+		} catch (DataFormatException ex) {
+			if (log.isLoggable(Level.FINEST)) {
+				log.log(Level.FINEST, "Socket: {0}, closing connection due to invalid compressed frame: {1}",
+						new Object[]{service, ex.getMessage()});
+			}
+			closeConnection(service, PROTOCOL_ERROR);
+			unmasked = null;
 		}
 
 		return unmasked;
@@ -232,17 +276,49 @@ public class WebSocketHybi
 	public void encodeFrameAndWrite(WebSocketXMPPIOService service, ByteBuffer buf) throws IOException {
 		int size = buf.remaining();
 
-		// set type as finally part (0x80) of message of type text (0x01)
 		if (log.isLoggable(Level.FINEST)) {
 			log.log(Level.FINEST, "Socket: {0}, sending encoded data size = {1}", new Object[]{service, size});
 		}
 
-		ByteBuffer bbuf = createFrameHeader((byte) 0x81, size);
+		// lock is held while compressing, so messages are sent in the same order as they were compressed
+		service.writeInProgress.lock();
+		try {
+			if (service.deflate != null) {
+				// set type as finally part (0x80) of compressed (0x40) message of type text (0x01)
+				writeFrame(service, (byte) 0xC1, service.deflate.compress(buf));
+			} else {
+				// set type as finally part (0x80) of message of type text (0x01)
+				writeFrame(service, (byte) 0x81, buf);
+			}
+		} finally {
+			service.writeInProgress.unlock();
+		}
+	}
+
+	@Override
+	public void encodeFrameAndWrite(WebSocketXMPPIOService service, String data) throws IOException {
+		if (service.deflate != null) {
+			encodeFrameAndWrite(service, service.encode(data));
+			return;
+		}
+
+		// data is encoded directly to the output buffer of the connection, so size of the frame is calculated first
+		int size = utf8Length(data);
 
-		// send frame header
-		service.writeBytes(bbuf);
+		if (log.isLoggable(Level.FINEST)) {
+			log.log(Level.FINEST, "Socket: {0}, sending encoded data size = {1}", new Object[]{service, size});
+		}
 
-		service.writeBytes(buf);
+		service.writeInProgress.lock();
+		try {
+			ByteBuffer header = putFrameHeader(service, (byte) 0x81, size);
+			header.flip();
+			service.bufferBytes(header);
+			service.bufferData(data);
+			service.flushData();
+		} finally {
+			service.writeInProgress.unlock();
+		}
 	}
 
 	@Override
@@ -261,14 +337,76 @@ public class WebSocketHybi
 		if (code != null) {
 			len += 2;
 		}
-		ByteBuffer bbuf = createFrameHeader((byte) 0x88, len);
-		service.writeBytes(bbuf);
-		if (code != null) {
-			ByteBuffer buf = ByteBuffer.allocate(2);
-			buf.putShort(code.shortValue());
-			buf.flip();
-			service.writeBytes(buf);
+		service.writeInProgress.lock();
+		try {
+			ByteBuffer header = putFrameHeader(service, (byte) 0x88, len);
+			if (code != null) {
+				header.putShort(code.shortValue());
+			}
+			header.flip();
+			service.bufferBytes(header);
+			service.flushData();
+		} finally {
+			service.writeInProgress.unlock();
+		}
+	}
+
+	/**
+	 * Calculates size of data encoded in UTF-8
+	 *
+	 * @throws MalformedInputException if data contains unpaired surrogate
+	 */
+	static int utf8Length(String data) throws MalformedInputException {
+		int length = data.length();
+		for (int i = 0; i < data.length(); i++) {
+			char c = data.charAt(i);
+			if (c < 0x80) {
+				continue;
+			}
+			if (c < 0x800) {
+				length += 1;
+			} else if (Character.isHighSurrogate(c)) {
+				if (i + 1 == data.length() || !Character.isLowSurrogate(data.charAt(i + 1))) {
+					throw new MalformedInputException(1);
+				}
+				// surrogate pair is encoded in 4 bytes
+				length += 2;
+				i++;
+			} else if (Character.isLowSurrogate(c)) {
+				throw new MalformedInputException(1);
+			} else {
+				length += 2;
+			}
+		}
+		return length;
+	}
+
+	/**
+	 * Unmask content of the buffer in place, 8 bytes at once
+	 */
+	static void unmask(ByteBuffer buf, int start, int end, byte[] maskingKey) {
+		int key = ((maskingKey[0] & 0xFF) << 24) | ((maskingKey[1] & 0xFF) << 16) | ((maskingKey[2] & 0xFF) << 8) |
+				(maskingKey[3] & 0xFF);
+		if (buf.order() == ByteOrder.LITTLE_ENDIAN) {
+			key = Integer.reverseBytes(key);
+		}
+		long mask = (((long) key) << 32) | (key & 0xFFFFFFFFL);
+
+		int i = start;
+		for (; i + 8 <= end; i += 8) {
+			buf.putLong(i, buf.getLong(i) ^ mask);
+		}
+		for (; i < end; i++) {
+			buf.put(i, (byte) (buf.get(i) ^ maskingKey[(i - start) & 3]));
+		}
+	}
+
+	private static long getLength(ByteBuffer buf, int bytes) {
+		long length = 0;
+		for (int i = 0; i < bytes; i++) {
+			length = (length << 8) | (buf.get() & 0xFF);
 		}
+		return length;
 	}
 
 	private void closeConnection(WebSocketXMPPIOService service, Integer code) {
@@ -288,12 +426,30 @@ public class WebSocketHybi
 	}
 
 	/**
-	 * Create WebSocket frame header with specific type and size
+	 * Write WebSocket frame with specific type and payload
+	 */
+	private void writeFrame(WebSocketXMPPIOService service, byte type, ByteBuffer payload) {
+		service.writeInProgress.lock();
+		try {
+			ByteBuffer header = putFrameHeader(service, type, payload.remaining());
+			header.flip();
+			service.bufferBytes(header);
+			service.bufferBytes(payload);
+			service.flushData();
+		} finally {
+			service.writeInProgress.unlock();
+		}
+	}
+
+	/**
+	 * Put WebSocket frame header with specific type and size to the header buffer of the connection. Caller has to
+	 * hold write lock of the connection until the header is written.
 	 *
 	 */
-	private ByteBuffer createFrameHeader(byte type, int size) {
-		ByteBuffer bbuf = ByteBuffer.allocate(12);
+	private ByteBuffer putFrameHeader(WebSocketXMPPIOService service, byte type, int size) {
+		ByteBuffer bbuf = service.frameHeader;
 
+		bbuf.clear();
 		bbuf.put(type);
 		if (size <= 125) {
 			bbuf.put((byte) size);
@@ -304,7 +460,6 @@ public class WebSocketHybi
 			bbuf.put((byte) 0x7F);
 			bbuf.putLong(size);
 		}
-		bbuf.flip();
 
 		return bbuf;
 	}
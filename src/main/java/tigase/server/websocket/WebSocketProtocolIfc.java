@@ -69,6 +69,13 @@ public interface WebSocketProtocolIfc {
 	 */
 	void encodeFrameAndWrite(WebSocketXMPPIOService service, ByteBuffer buf) throws IOException;
 
+	/**
+	 * Method encodes string into WebSocket frame and writes it to passed service
+	 */
+	default void encodeFrameAndWrite(WebSocketXMPPIOService service, String data) throws IOException {
+		encodeFrameAndWrite(service, service.encode(data));
+	}
+
 	/**
 	 * Method closes connection by sending close frame
 	 */
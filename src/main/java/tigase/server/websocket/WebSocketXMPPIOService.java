@@ -41,6 +41,10 @@ public class WebSocketXMPPIOService<RefObject>
 		extends XMPPIOService<RefObject> {
 
 	private static final String BAD_REQUEST = "HTTP/1.0 400 Bad request\r\n\r\n";
+	/**
+	 * Initial size of buffer for decompressed data, bigger buffers are allocated only when needed.
+	 */
+	private static final int INFLATED_BUFFER_SIZE = 16 * 1024;
 	private static final String CONNECTION_KEY = "Connection";
 	private static final Logger log = Logger.getLogger(WebSocketXMPPIOService.class.getCanonicalName());
 
@@ -70,8 +74,21 @@ public class WebSocketXMPPIOService<RefObject>
 	/* static variables used by WebSocket protocol */
 
 	private final WebSocketProtocolIfc[] protocols;
+	/**
+	 * <code>true</code> if frames of currently received message are compressed
+	 */
+	protected boolean compressedMessage = false;
+	/**
+	 * Compressor and decompressor of messages, set only if <code>permessage-deflate</code> extension was negotiated
+	 */
+	protected PerMessageDeflate deflate = null;
+	/**
+	 * Buffer for headers of frames written to the connection, used only while holding write lock
+	 */
+	protected final ByteBuffer frameHeader = ByteBuffer.allocate(14);
 	protected long frameLength = -1;
 	protected byte[] maskingKey = null;
+	private ByteBuffer inflated = null;
 	private byte[] partialData = null;
 	private WebSocketProtocolIfc protocol = null;
 	private boolean started = false;
@@ -90,6 +107,14 @@ public class WebSocketXMPPIOService<RefObject>
 		super.stop(); //To change body of generated methods, choose Tools | Templates.
 	}
 
+	@Override
+	public void forceStop() {
+		super.forceStop();
+		if (deflate != null) {
+			deflate.end();
+		}
+	}
+
 	public void dumpHeaders(Map<String, String> headers) {
 		if (log.isLoggable(Level.FINEST)) {
 			StringBuilder builder = new StringBuilder(1000);
@@ -150,6 +175,14 @@ public class WebSocketXMPPIOService<RefObject>
 		return "<close xmlns='urn:ietf:params:xml:ns:xmpp-framing' />";
 	}
 
+	/**
+	 * Data are unwrapped from WebSocket frames while being read, so they are passed to the parser as characters.
+	 */
+	@Override
+	protected boolean isByteParsingSupported() {
+		return false;
+	}
+
 	@Override
 	protected char[] readData() throws IOException {
 		ByteBuffer cb = super.readBytes();
@@ -173,12 +206,33 @@ public class WebSocketXMPPIOService<RefObject>
 		if (state != State.handshaking) {
 
 			// data needs to be decoded fully not just first frame!!
-			ByteBuffer tmp = ByteBuffer.allocate(cb.remaining());
-			// here we got buffer overflow
+			// Payload of a frame is never bigger than the frame, so decoded payloads are moved in place to the
+			// beginning of the read buffer, unless they were decompressed.
+			ByteBuffer tmp;
+			if (deflate == null) {
+				tmp = cb.duplicate();
+				tmp.limit(tmp.capacity());
+			} else {
+				if (inflated == null) {
+					inflated = ByteBuffer.allocate(INFLATED_BUFFER_SIZE);
+				}
+				tmp = inflated;
+				tmp.clear();
+			}
+
+			int start = tmp.position();
 			ByteBuffer decoded = null;
 			while (cb.hasRemaining() && (decoded = decodeFrame(cb)) != null) {
 				//decoded = decodeFrame(cb);
-				if (decoded != null && decoded.hasRemaining()) {
+				if (decoded.hasRemaining()) {
+					if (tmp.remaining() < decoded.remaining()) {
+						// decompressed data do not fit, bigger buffer is used only for this read
+						ByteBuffer old = tmp;
+						tmp = ByteBuffer.allocate(Math.max(old.capacity() * 2, old.position() + decoded.remaining()));
+						old.flip();
+						tmp.put(old);
+						old.clear();
+					}
 					tmp.put(decoded);
 				}
 			}
@@ -192,9 +246,8 @@ public class WebSocketXMPPIOService<RefObject>
 			// compact buffer after reading all frames
 			cb.compact();
 
-			if (tmp.capacity() > 0) {
-				tmp.flip();
-			}
+			tmp.limit(tmp.position());
+			tmp.position(start);
 			cb = tmp;
 		}
 		if (started) {
@@ -240,6 +293,12 @@ public class WebSocketXMPPIOService<RefObject>
 		return null;
 	}
 
+	@Override
+	protected void writePacket(Packet packet) throws IOException {
+		// each packet is sent in a separate WebSocket frame
+		writeRawData(packet.getElement().toString());
+	}
+
 	/**
 	 * Custom implementation of writeData function which encodes data in WebSocket protocol frames
 	 *
@@ -267,10 +326,7 @@ public class WebSocketXMPPIOService<RefObject>
 							log.log(Level.FINEST, "sending data = {0}", data);
 						}
 
-						ByteBuffer buf = encode(data);
-						protocol.encodeFrameAndWrite(this, buf);
-
-						//buf.compact();
+						protocol.encodeFrameAndWrite(this, data);
 					} else {
 						writeBytes(null);
 					}
@@ -348,6 +404,24 @@ public class WebSocketXMPPIOService<RefObject>
 		super.writeBytes(data);
 	}
 
+	// bufferData(), bufferBytes() and flushData() are protected in IOService, so they are overridden only to make
+	// them accessible to implementations of WebSocket protocol in this package, which write frame header and payload
+	// to the buffer and send them to the socket at once
+	@Override
+	protected void bufferData(String data) {
+		super.bufferData(data);
+	}
+
+	@Override
+	protected void bufferBytes(ByteBuffer data) {
+		super.bufferBytes(data);
+	}
+
+	@Override
+	protected void flushData() {
+		super.flushData();
+	}
+
 	/**
 	 * Process data from internal temporary buffer used to decode HTTP request used by WebSocket protocol to switch
 	 * protocol to WebSocket protocol
@@ -433,9 +507,7 @@ public class WebSocketXMPPIOService<RefObject>
 			oldTmpBuffer.clear();
 			partialCharacterBytes = null;
 		}
-		if (cb.capacity() < tmpBuffer.remaining() * 4) {
-			cb = CharBuffer.allocate(tmpBuffer.remaining() * 4);
-		}
+		cb = getCharBuffer(tmpBuffer.remaining() * 4);
 
 		CoderResult cr = decoder.decode(tmpBuffer, cb, false);
 
@@ -463,7 +535,7 @@ public class WebSocketXMPPIOService<RefObject>
 	/**
 	 * Encode string into buffer
 	 */
-	private ByteBuffer encode(String data) throws CharacterCodingException {
+	protected ByteBuffer encode(String data) throws CharacterCodingException {
 		ByteBuffer dataBuffer = null;
 
 		encoder.reset();
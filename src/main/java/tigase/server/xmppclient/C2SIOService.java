@@ -133,32 +133,27 @@ public class C2SIOService<RefObject>
 			cb.position(cb.position() + i + 1);
 		}
 
-		for (i = 0; i < buffer.limit(); i++) {
-			byte b = buffer.get(i);
-			switch (b) {
-				case 0x16:
-					// may be SSL 3.0 or newer header
-					if (i + 5 < buffer.limit() && buffer.get(i+5) == 0x01) {
-						// found SSL 3.0 header!!
-						synchronized (this) {
-							extractTlsHandshakeData(buffer, i);
-						}
-						return true;
-					}
-				case 0x01:
-					if (i >= 2 && (buffer.get(i-2) & 0x80) == 0x80) {
-						// found SSL 2.0 header!!
-						synchronized (this) {
-							extractTlsHandshakeData(buffer, i - 2);
-						}
-						return true;
-					}
-				default:
-					break;
-			}
+		if (handleTlsHandshake(buffer)) {
+			return true;
+		}
+		if (log.isLoggable(Level.FINER)) {
+			// buffer may be a direct buffer borrowed from the pool
+			log.log(Level.FINER, "Tried Not found SSL/TLS handshake, bb: {0}, contents: {1} , cb: {2}",
+					new String[]{String.valueOf(buffer),
+								 buffer.hasArray() ? Arrays.toString(buffer.array()) : "[direct]",
+								 String.valueOf(cb.array())});
+		}
+		return false;
+	}
+
+	@Override
+	protected boolean handleUnexpectedInput(ByteBuffer data) {
+		if (handleTlsHandshake(data)) {
+			return true;
+		}
+		if (log.isLoggable(Level.FINER)) {
+			log.log(Level.FINER, "Tried Not found SSL/TLS handshake, bb: {0}", data);
 		}
-		log.log(Level.FINER, "Tried Not found SSL/TLS handshake, bb: {0}, contents: {1} , cb: {2}",
-				new String[]{String.valueOf(buffer), Arrays.toString(buffer.array()), String.valueOf(cb.array())});
 		return false;
 	}
 
@@ -189,6 +184,37 @@ public class C2SIOService<RefObject>
 		}
 	}
 
+	/**
+	 * Looks for SSL/TLS handshake sent by a client which expects TLS without STARTTLS.
+	 */
+	private boolean handleTlsHandshake(ByteBuffer buffer) {
+		for (int i = 0; i < buffer.limit(); i++) {
+			byte b = buffer.get(i);
+			switch (b) {
+				case 0x16:
+					// may be SSL 3.0 or newer header
+					if (i + 5 < buffer.limit() && buffer.get(i+5) == 0x01) {
+						// found SSL 3.0 header!!
+						synchronized (this) {
+							extractTlsHandshakeData(buffer, i);
+						}
+						return true;
+					}
+				case 0x01:
+					if (i >= 2 && (buffer.get(i-2) & 0x80) == 0x80) {
+						// found SSL 2.0 header!!
+						synchronized (this) {
+							extractTlsHandshakeData(buffer, i - 2);
+						}
+						return true;
+					}
+				default:
+					break;
+			}
+		}
+		return false;
+	}
+
 	private void runQueuedTaskIfExists() {
 		Runnable run;
 		synchronized (tasks) {
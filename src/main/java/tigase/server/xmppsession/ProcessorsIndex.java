@@ -0,0 +1,335 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.server.xmppsession;
+
+import tigase.server.Packet;
+import tigase.xml.Element;
+import tigase.xmpp.XMPPProcessor;
+import tigase.xmpp.XMPPProcessorIfc;
+import tigase.xmpp.XMPPResourceConnection;
+
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Immutable index of processors used by {@link SessionManager} to find processors which may handle a packet without
+ * calling {@link XMPPProcessorIfc#canHandle(Packet, XMPPResourceConnection)} of every loaded processor.
+ * <br>
+ * Processors are indexed by element name, child element name and namespace taken from
+ * {@link XMPPProcessorIfc#supElementNamePaths()} and {@link XMPPProcessorIfc#supNamespaces()}. The index only narrows
+ * down the list of candidates, <code>canHandle()</code> is still called for each of them, so types of stanzas and
+ * namespaces of deeper elements are verified by the processor itself.
+ * <br>
+ * Processors which override <code>canHandle()</code>, do not extend {@link XMPPProcessor} or handle all elements are
+ * returned as candidates for every packet.
+ */
+public class ProcessorsIndex {
+
+	private static final String ANY = "*";
+	private static final Entry[] NO_ENTRIES = new Entry[0];
+	private static final Logger log = Logger.getLogger(ProcessorsIndex.class.getName());
+
+	private final Entry[] always;
+	private final Map<String, ElementNode> byElement;
+	private final Entry[] entries;
+
+	/**
+	 * Creates a new index for the given processors. Match counters of processors present in the previous index are
+	 * preserved.
+	 *
+	 * @param processors currently loaded processors
+	 * @param previous index which is replaced or <code>null</code>
+	 */
+	public static ProcessorsIndex build(Collection<XMPPProcessorIfc> processors, ProcessorsIndex previous) {
+		Map<XMPPProcessorIfc, Entry> previousEntries = new IdentityHashMap<>();
+
+		if (previous != null) {
+			for (Entry entry : previous.entries) {
+				previousEntries.put(entry.processor, entry);
+			}
+		}
+
+		List<Entry> entries = new ArrayList<>(processors.size());
+		Set<Entry> always = new LinkedHashSet<>();
+		Map<String, ElementNodeBuilder> byElement = new HashMap<>();
+
+		for (XMPPProcessorIfc processor : processors) {
+			Entry old = previousEntries.get(processor);
+			Entry entry = new Entry(entries.size(), processor, isIndexable(processor),
+									old == null ? new LongAdder() : old.matches);
+
+			entries.add(entry);
+			if (!entry.indexed) {
+				always.add(entry);
+				continue;
+			}
+
+			String[][] paths = processor.supElementNamePaths();
+			if (paths == null) {
+				// canHandle() of XMPPProcessor does not authorize anything in such case
+				continue;
+			}
+			if (!addToIndex(entry, paths, processor.supNamespaces(), byElement)) {
+				always.add(entry);
+			}
+		}
+
+		Map<String, ElementNode> elements = new HashMap<>();
+		for (Map.Entry<String, ElementNodeBuilder> e : byElement.entrySet()) {
+			elements.put(e.getKey(), e.getValue().build());
+		}
+
+		ProcessorsIndex index = new ProcessorsIndex(entries.toArray(new Entry[entries.size()]), toArray(always),
+													elements);
+		if (log.isLoggable(Level.FINEST)) {
+			log.log(Level.FINEST, "Built processors index for {0} processors, {1} processors checked for every packet",
+					new Object[]{entries.size(), always.size()});
+		}
+		return index;
+	}
+
+	private static boolean addToIndex(Entry entry, String[][] paths, String[] xmlnss,
+									  Map<String, ElementNodeBuilder> byElement) {
+		if (xmlnss == null || xmlnss.length < paths.length) {
+			return false;
+		}
+
+		// Paths are validated first, so the processor is not partially indexed
+		for (String[] path : paths) {
+			if (path == null || path.length == 0 || !isName(path[0])) {
+				return false;
+			}
+		}
+
+		for (int i = 0; i < paths.length; i++) {
+			String[] path = paths[i];
+			ElementNodeBuilder node = byElement.computeIfAbsent(path[0], name -> new ElementNodeBuilder());
+
+			if (path.length == 1 || !isName(path[1])) {
+				node.any.add(entry);
+			} else {
+				ChildNodeBuilder child = node.byChild.computeIfAbsent(path[1], name -> new ChildNodeBuilder());
+				if (path.length == 2) {
+					// namespace of the child element is compared by canHandle()
+					child.byXmlns.computeIfAbsent(xmlnss[i], xmlns -> new LinkedHashSet<>()).add(entry);
+				} else {
+					// namespace belongs to a deeper element, so we index only by the child name
+					child.any.add(entry);
+				}
+			}
+		}
+		return true;
+	}
+
+	private static boolean isIndexable(XMPPProcessorIfc processor) {
+		if (!(processor instanceof XMPPProcessor)) {
+			return false;
+		}
+		try {
+			return processor.getClass()
+					.getMethod("canHandle", Packet.class, XMPPResourceConnection.class)
+					.getDeclaringClass() == XMPPProcessor.class;
+		} catch (NoSuchMethodException ex) {
+			return false;
+		}
+	}
+
+	private static boolean isName(String name) {
+		return name != null && !name.isEmpty() && !ANY.equals(name);
+	}
+
+	private static Entry[] toArray(Set<Entry> entries) {
+		return entries.isEmpty() ? NO_ENTRIES : entries.toArray(new Entry[entries.size()]);
+	}
+
+	private ProcessorsIndex(Entry[] entries, Entry[] always, Map<String, ElementNode> byElement) {
+		this.entries = entries;
+		this.always = always;
+		this.byElement = byElement;
+	}
+
+	/**
+	 * Replaces content of the result with processors which may handle the given element. Each processor is added
+	 * only once.
+	 */
+	public void getCandidates(Element elem, Candidates result) {
+		result.clear();
+		result.addAll(always);
+
+		ElementNode node = byElement.get(elem.getName());
+		if (node == null) {
+			return;
+		}
+
+		result.addAll(node.any);
+		if (node.byChild.isEmpty()) {
+			return;
+		}
+
+		List<Element> children = elem.getChildren();
+		if (children != null) {
+			for (Element child : children) {
+				ChildNode childNode = node.byChild.get(child.getName());
+				if (childNode != null) {
+					result.addAll(childNode.any);
+					Entry[] byXmlns = childNode.byXmlns.get(child.getXMLNS());
+					if (byXmlns != null) {
+						result.addAll(byXmlns);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns entries for all processors in the index.
+	 */
+	public Entry[] getEntries() {
+		return entries;
+	}
+
+	/**
+	 * Returns number of processors checked for every packet.
+	 */
+	public int getNotIndexedCount() {
+		return always.length;
+	}
+
+	/**
+	 * Reusable list of candidates for a packet. Processors are deduplicated by their position in the index, so adding a
+	 * processor does not scan the list. Instance may be used only by a single thread at once.
+	 */
+	public static final class Candidates {
+
+		private final BitSet added = new BitSet();
+		private final ArrayList<Entry> entries = new ArrayList<>(8);
+
+		public void clear() {
+			added.clear();
+			entries.clear();
+		}
+
+		public Entry get(int idx) {
+			return entries.get(idx);
+		}
+
+		public int size() {
+			return entries.size();
+		}
+
+		private void addAll(Entry[] toAdd) {
+			for (Entry entry : toAdd) {
+				if (!added.get(entry.idx)) {
+					added.set(entry.idx);
+					entries.add(entry);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Processor with a counter of packets which it handled.
+	 */
+	public static final class Entry {
+
+		private final int idx;
+		private final boolean indexed;
+		private final LongAdder matches;
+		private final XMPPProcessorIfc processor;
+
+		private Entry(int idx, XMPPProcessorIfc processor, boolean indexed, LongAdder matches) {
+			this.idx = idx;
+			this.processor = processor;
+			this.indexed = indexed;
+			this.matches = matches;
+		}
+
+		public long getMatches() {
+			return matches.sum();
+		}
+
+		public XMPPProcessorIfc getProcessor() {
+			return processor;
+		}
+
+		public boolean isIndexed() {
+			return indexed;
+		}
+
+		public void matched() {
+			matches.increment();
+		}
+
+		@Override
+		public String toString() {
+			return processor.id();
+		}
+	}
+
+	private static final class ChildNode {
+
+		private final Entry[] any;
+		private final Map<String, Entry[]> byXmlns;
+
+		private ChildNode(Entry[] any, Map<String, Entry[]> byXmlns) {
+			this.any = any;
+			this.byXmlns = byXmlns;
+		}
+	}
+
+	private static final class ChildNodeBuilder {
+
+		private final Set<Entry> any = new LinkedHashSet<>();
+		private final Map<String, Set<Entry>> byXmlns = new HashMap<>();
+
+		private ChildNode build() {
+			Map<String, Entry[]> xmlnss = new HashMap<>();
+			for (Map.Entry<String, Set<Entry>> e : byXmlns.entrySet()) {
+				xmlnss.put(e.getKey(), toArray(e.getValue()));
+			}
+			return new ChildNode(toArray(any), xmlnss);
+		}
+	}
+
+	private static final class ElementNode {
+
+		private final Entry[] any;
+		private final Map<String, ChildNode> byChild;
+
+		private ElementNode(Entry[] any, Map<String, ChildNode> byChild) {
+			this.any = any;
+			this.byChild = byChild;
+		}
+	}
+
+	private static final class ElementNodeBuilder {
+
+		private final Set<Entry> any = new LinkedHashSet<>();
+		private final Map<String, ChildNodeBuilder> byChild = new HashMap<>();
+
+		private ElementNode build() {
+			Map<String, ChildNode> children = new HashMap<>();
+			for (Map.Entry<String, ChildNodeBuilder> e : byChild.entrySet()) {
+				children.put(e.getKey(), e.getValue().build());
+			}
+			return new ElementNode(toArray(any), children);
+		}
+	}
+}
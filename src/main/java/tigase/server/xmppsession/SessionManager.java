@@ -46,7 +46,9 @@ import tigase.kernel.beans.selector.ConfigTypeEnum;
 import tigase.kernel.core.Kernel;
 import tigase.server.*;
 import tigase.server.script.CommandIfc;
+import tigase.stats.HistogramMetric;
 import tigase.stats.MaxDailyCounterQueue;
+import tigase.stats.MetricsRegistry;
 import tigase.stats.StatisticsList;
 import tigase.sys.OnlineJidsReporter;
 import tigase.sys.TigaseRuntime;
@@ -72,7 +74,6 @@ import java.security.cert.Certificate;
 import java.security.cert.CertificateFactory;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.ConcurrentSkipListSet;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
@@ -142,7 +143,6 @@ public class SessionManager
 	private Calendar lastDailyStatsReset = Calendar.getInstance();
 	private int maxDailyUsersConnectionsWithinLastWeek = 0;
 	private MaxDailyCounterQueue<Integer> maxDailyUsersSessions = new MaxDailyCounterQueue<>(31);
-	private int maxIdx = 100;
 	private int maxUserConnections = 0;
 	private int maxUserSessions = 0;
 	private int maxUserSessionsDaily = 0;
@@ -163,9 +163,13 @@ public class SessionManager
 	// private long[] defForwTime = new long[maxIdx];
 	// private long[] walkTime = new long[maxIdx];
 	// private long[] postTime = new long[maxIdx];
-	private Map<String, long[]> postTimes = new ConcurrentSkipListMap<String, long[]>();
+	private final Map<String, PluginTimes> pluginTimes = new ConcurrentHashMap<>();
 	private Map<String, XMPPPreprocessorIfc> preProcessors = new ConcurrentHashMap<String, XMPPPreprocessorIfc>(10);
 	private Map<String, XMPPProcessorIfc> processors = new ConcurrentHashMap<String, XMPPProcessorIfc>(32);
+	private volatile ProcessorsIndex processorsIndex = ProcessorsIndex.build(Collections.emptyList(), null);
+	// walk() is not reentrant, so each thread may reuse the list of candidates
+	private final ThreadLocal<ProcessorsIndex.Candidates> walkCandidates = ThreadLocal.withInitial(
+			ProcessorsIndex.Candidates::new);
 	@Inject(nullAllowed = true)
 	private MessageRouter router;
 	@Inject
@@ -181,7 +185,6 @@ public class SessionManager
 	private String smThreadsPool = SessionManagerConfig.SM_THREADS_POOL_PROP_VAL;
 	private StaleConnectionCloser staleConnectionCloser = new StaleConnectionCloser();
 	private Map<String, XMPPStopListenerIfc> stopListeners = new ConcurrentHashMap<String, XMPPStopListenerIfc>(10);
-	private int tIdx = 0;
 	private long totalUserConnections = 0;
 	private long totalUserSessions = 0;
 	@Inject
@@ -254,6 +257,7 @@ public class SessionManager
 				}
 			}
 			processors.put(proc.id(), (XMPPProcessorIfc) proc);
+			rebuildProcessorsIndex();
 			log.log(Level.CONFIG, "Added processor: {0} for plugin id: {1}",
 					new Object[]{proc.getClass().getSimpleName(), proc.id()});
 			loaded = true;
@@ -477,6 +481,7 @@ public class SessionManager
 
 		if (pt != null) {
 			p = processors.remove(plug_id);
+			rebuildProcessorsIndex();
 			pt.shutdown();
 			if (p != null) {
 				allPlugins.remove(p);
@@ -494,6 +499,10 @@ public class SessionManager
 			p = stopListeners.remove(plug_id);
 			allPlugins.remove(p);
 		}
+		PluginTimes times = pluginTimes.remove(plug_id);
+		if (times != null) {
+			times.unregister();
+		}
 		if (p != null) {
 			eventBus.unregisterAll(p);
 			if (p instanceof PresenceCapabilitiesManager.PresenceCapabilitiesListener) {
@@ -516,6 +525,15 @@ public class SessionManager
 		eventBus.registerAll(this);
 	}
 
+	@Override
+	public void release() {
+		super.release();
+		for (PluginTimes times : pluginTimes.values()) {
+			times.unregister();
+		}
+		pluginTimes.clear();
+	}
+
 	@Override
 	public void stop() {
 		eventBus.unregisterAll(this);
@@ -677,16 +695,13 @@ public class SessionManager
 			list.add(getName(), "Total queues wait", totalQueuesWait, Level.INFO);
 			list.add(getName(), "Total queues overflow", totalQueuesOverflow, Level.INFO);
 		}
-		if (list.checkLevel(Level.FINE)) {
-			for (Map.Entry tmEntry : postTimes.entrySet()) {
+		if (list.checkLevel(Level.FINER)) {
+			ProcessorsIndex index = processorsIndex;
 
-				// This line is only temporary because JIndent cannot parse it inside the above
-				// for statement
-				Map.Entry<String, long[]> entry = tmEntry;
-
-				list.add(getName(),
-						 "Average " + tmEntry.getKey() + " on last " + entry.getValue().length + " runs [ms]",
-						 calcAverage(entry.getValue()), Level.FINE);
+			list.add(getName(), "Processors checked for every packet", index.getNotIndexedCount(), Level.FINER);
+			for (ProcessorsIndex.Entry entry : index.getEntries()) {
+				list.add(getName(), "Processor matches: " + entry.getProcessor().id(), entry.getMatches(),
+						 Level.FINER);
 			}
 		}
 		list.add(getName(), "Maximum user sessions today", maxUserSessionsDaily, Level.INFO);
@@ -1749,9 +1764,6 @@ public class SessionManager
 
 	protected void processPacket(Packet packet, XMPPResourceConnection conn) {
 		long startTime = System.currentTimeMillis();
-		int idx = tIdx;
-
-		tIdx = (tIdx + 1) % maxIdx;
 
 		// long defPrepTm = 0;
 		// long prepTm = 0;
@@ -1795,7 +1807,10 @@ public class SessionManager
 		// block certain packets.
 		if (!stop) {
 			for (XMPPPreprocessorIfc preproc : preProcessors.values()) {
+				long stTime = System.nanoTime();
+
 				stop |= preproc.preProcess(packet, conn, naUserRepository, results, plugin_config.get(preproc.id()));
+				getPluginTimes(preproc.id()).preprocessing().record(System.nanoTime() - stTime);
 				if (stop && log.isLoggable(Level.FINEST)) {
 					log.log(Level.FINEST, "Packet blocked by: {0}, packet{1}", new Object[]{preproc.id(), packet});
 
@@ -1837,21 +1852,10 @@ public class SessionManager
 		// walkTm = System.currentTimeMillis() - startTime;
 		if (!stop) {
 			for (XMPPPostprocessorIfc postproc : postProcessors.values()) {
-				String plug_id = postproc.id();
-				long[] postProcTime = null;
-
-				synchronized (postTimes) {
-					postProcTime = postTimes.get(plug_id);
-					if (postProcTime == null) {
-						postProcTime = new long[maxIdx];
-						postTimes.put(plug_id, postProcTime);
-					}
-				}
-
-				long stTime = System.currentTimeMillis();
+				long stTime = System.nanoTime();
 
 				postproc.postProcess(packet, conn, naUserRepository, results, plugin_config.get(postproc.id()));
-				postProcTime[idx] = System.currentTimeMillis() - stTime;
+				getPluginTimes(postproc.id()).postprocessing().record(System.nanoTime() - stTime);
 			}    // end of for (XMPPPostprocessorIfc postproc: postProcessors)
 		}      // end of if (!stop)
 
@@ -2228,26 +2232,29 @@ public class SessionManager
 		activeUserNumber = count;
 	}
 
-	private long calcAverage(long[] timings) {
-		long res = 0;
+	private PluginTimes getPluginTimes(String id) {
+		PluginTimes times = pluginTimes.get(id);
 
-		for (long ppt : timings) {
-			res += ppt;
+		if (times == null) {
+			times = pluginTimes.computeIfAbsent(id, PluginTimes::new);
 		}
 
-		long processingTime = res / timings.length;
-
-		return processingTime;
+		return times;
 	}
 
 	private void walk(final Packet packet, final XMPPResourceConnection connection) {
 
-		// final Element elem, final Queue<Packet> results) {
-		for (XMPPProcessorIfc proc_t : processors.values()) {
-			XMPPProcessorIfc processor = proc_t;
+		// Only processors which may handle the packet are checked, see ProcessorsIndex
+		ProcessorsIndex.Candidates candidates = walkCandidates.get();
+
+		processorsIndex.getCandidates(packet.getElement(), candidates);
+		for (int i = 0; i < candidates.size(); i++) {
+			ProcessorsIndex.Entry entry = candidates.get(i);
+			XMPPProcessorIfc processor = entry.getProcessor();
 			Authorization result = processor.canHandle(packet, connection);
 
 			if (result == Authorization.AUTHORIZED) {
+				entry.matched();
 				if (log.isLoggable(Level.FINEST)) {
 					log.log(Level.FINEST, "XMPPProcessorIfc: {0} ({1}" + ")" + "Request: " + "{2}, conn: {3}",
 							new Object[]{processor.getClass().getSimpleName(), processor.id(), packet, connection});
@@ -2276,6 +2283,13 @@ public class SessionManager
 				}
 			}
 		}    // end of for ()
+		candidates.clear();
+	}
+
+	private void rebuildProcessorsIndex() {
+		synchronized (processors) {
+			processorsIndex = ProcessorsIndex.build(processors.values(), processorsIndex);
+		}
 	}
 
 	private List<Element> getFeatures(XMPPResourceConnection session) {
@@ -2619,6 +2633,60 @@ public class SessionManager
 
 	}
 
+	/**
+	 * Histograms of processing times of a single plugin. Histogram of each phase is registered when the phase is
+	 * executed for the first time, so only phases implemented by the plugin are reported.
+	 */
+	private class PluginTimes {
+
+		private final String id;
+		private volatile HistogramMetric postprocessing;
+		private volatile HistogramMetric preprocessing;
+		private volatile HistogramMetric processing;
+
+		private PluginTimes(String id) {
+			this.id = id;
+		}
+
+		private HistogramMetric postprocessing() {
+			HistogramMetric histogram = postprocessing;
+			if (histogram == null) {
+				histogram = postprocessing = register("postprocessing");
+			}
+			return histogram;
+		}
+
+		private HistogramMetric preprocessing() {
+			HistogramMetric histogram = preprocessing;
+			if (histogram == null) {
+				histogram = preprocessing = register("preprocessing");
+			}
+			return histogram;
+		}
+
+		private HistogramMetric processing() {
+			HistogramMetric histogram = processing;
+			if (histogram == null) {
+				histogram = processing = register("processing");
+			}
+			return histogram;
+		}
+
+		// registry returns the same histogram if it is registered concurrently by other thread
+		private HistogramMetric register(String phase) {
+			return MetricsRegistry.getInstance()
+					.histogram(getName(), "Plugin " + id + " " + phase + " time [ns]", Level.FINE);
+		}
+
+		private void unregister() {
+			for (HistogramMetric histogram : new HistogramMetric[]{preprocessing, processing, postprocessing}) {
+				if (histogram != null) {
+					MetricsRegistry.getInstance().unregister(getName(), histogram);
+				}
+			}
+		}
+	}
+
 	private class ProcessorWorkerThread
 			extends WorkerThread {
 
@@ -2629,8 +2697,11 @@ public class SessionManager
 			XMPPProcessorIfc processor = item.getProcessor();
 
 			try {
+				long stTime = System.nanoTime();
+
 				processor.process(item.getPacket(), item.getConn(), naUserRepository, local_results,
 								  plugin_config.get(processor.id()));
+				getPluginTimes(processor.id()).processing().record(System.nanoTime() - stTime);
 				if (item.getConn() != null) {
 					setPermissions(item.getConn(), local_results);
 				}
@@ -0,0 +1,68 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.stats;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+
+/**
+ * Monotonic counter which may be incremented concurrently without contention.
+ */
+public class CounterMetric
+		extends Metric {
+
+	private final LongAdder counter = new LongAdder();
+	private final String[] descriptions;
+
+	public CounterMetric(String description, Level level) {
+		super(description, level);
+		this.descriptions = new String[]{description};
+	}
+
+	public void add(long value) {
+		counter.add(value);
+	}
+
+	public long getValue() {
+		return counter.sum();
+	}
+
+	public void inc() {
+		counter.increment();
+	}
+
+	@Override
+	public String toString() {
+		return "CounterMetric{" + "description='" + description + '\'' + ", counter=" + counter + '}';
+	}
+
+	@Override
+	protected String[] getDescriptions() {
+		return descriptions;
+	}
+
+	@Override
+	protected boolean isFloat(int idx) {
+		return false;
+	}
+
+	@Override
+	protected void snapshot(long[] longs, float[] floats, int offset) {
+		longs[offset] = counter.sum();
+	}
+}
@@ -0,0 +1,66 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.stats;
+
+import java.util.function.DoubleSupplier;
+import java.util.function.LongSupplier;
+import java.util.logging.Level;
+
+/**
+ * Metric which value is read from the supplier when statistics are collected.
+ */
+public class GaugeMetric
+		extends Metric {
+
+	private final String[] descriptions;
+	private final DoubleSupplier floatSupplier;
+	private final LongSupplier longSupplier;
+
+	public GaugeMetric(String description, Level level, LongSupplier supplier) {
+		super(description, level);
+		this.descriptions = new String[]{description};
+		this.longSupplier = supplier;
+		this.floatSupplier = null;
+	}
+
+	public GaugeMetric(String description, Level level, DoubleSupplier supplier) {
+		super(description, level);
+		this.descriptions = new String[]{description};
+		this.longSupplier = null;
+		this.floatSupplier = supplier;
+	}
+
+	@Override
+	protected String[] getDescriptions() {
+		return descriptions;
+	}
+
+	@Override
+	protected boolean isFloat(int idx) {
+		return floatSupplier != null;
+	}
+
+	@Override
+	protected void snapshot(long[] longs, float[] floats, int offset) {
+		if (longSupplier != null) {
+			longs[offset] = longSupplier.getAsLong();
+		} else {
+			floats[offset] = (float) floatSupplier.getAsDouble();
+		}
+	}
+}
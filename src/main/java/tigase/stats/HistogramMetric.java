@@ -0,0 +1,222 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.stats;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+
+/**
+ * Histogram of recorded values, ie. processing times in nanoseconds.
+ * <br>
+ * Values are counted in log-linear buckets (as in HdrHistogram): each range between consecutive powers of 2 is split
+ * into {@value #SUB_BUCKETS} buckets, so percentiles are reported with relative error below 7%, using the upper bound
+ * of the bucket. Values above {@value #MAX_BITS} bits are counted in the last bucket. Recording a value does not
+ * allocate or lock, and each bucket is a {@link LongAdder}, so threads recording values at the same time do not
+ * contend on a single counter.
+ * <br>
+ * Percentiles, average and maximal value are calculated over a sliding window, covering values recorded within last
+ * one or two <code>window</code> periods, while count is a total number of recorded values.
+ */
+public class HistogramMetric
+		extends Metric {
+
+	public static final long DEFAULT_WINDOW = 60 * 1000;
+
+	private static final int MAX_BITS = 40;
+	private static final int SUB_BITS = 4;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+	private static final int BUCKETS = (MAX_BITS - SUB_BITS + 1) * SUB_BUCKETS;
+
+	private final LongAdder[] buckets = new LongAdder[BUCKETS];
+	private final String[] descriptions;
+	// maximal value recorded within the current window
+	private final LongAccumulator max = new LongAccumulator(Long::max, 0);
+	// maximal value recorded within the previous window
+	private volatile long previousMax = 0;
+	private final LongAdder sum = new LongAdder();
+	private final long window;
+	// state of the histogram at the start of the current and of the previous window
+	private Baseline current;
+	private Baseline previous;
+
+	static int bucketIndex(long value) {
+		if (value < SUB_BUCKETS) {
+			return value < 0 ? 0 : (int) value;
+		}
+		int bits = 64 - Long.numberOfLeadingZeros(value);
+		if (bits > MAX_BITS) {
+			return BUCKETS - 1;
+		}
+		int shift = bits - SUB_BITS - 1;
+		return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+	}
+
+	static long bucketUpperBound(int idx) {
+		if (idx < SUB_BUCKETS) {
+			return idx;
+		}
+		int shift = idx / SUB_BUCKETS - 1;
+		long lower = ((long) (SUB_BUCKETS + idx % SUB_BUCKETS)) << shift;
+		return lower + (1L << shift) - 1;
+	}
+
+	public HistogramMetric(String description, Level level) {
+		this(description, level, DEFAULT_WINDOW);
+	}
+
+	public HistogramMetric(String description, Level level, long window) {
+		super(description, level);
+		this.window = window;
+		this.descriptions = new String[]{description + " count", description + " average",
+										 description + " max", description + " 50th percentile",
+										 description + " 99th percentile", description + " 99.9th percentile"};
+		for (int i = 0; i < BUCKETS; i++) {
+			buckets[i] = new LongAdder();
+		}
+		this.current = new Baseline(System.currentTimeMillis(), new long[BUCKETS], 0);
+		this.previous = current;
+	}
+
+	/**
+	 * Returns total number of recorded values.
+	 */
+	public long getCount() {
+		long count = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			count += buckets[i].sum();
+		}
+		return count;
+	}
+
+	/**
+	 * Returns maximal value recorded within the window.
+	 */
+	public long getMax() {
+		capture(new long[BUCKETS], System.currentTimeMillis());
+		return getWindowMax();
+	}
+
+	/**
+	 * Returns upper bound of the bucket containing the percentile of values recorded within the window.
+	 *
+	 * @param percentile from <code>0</code> to <code>100</code>
+	 */
+	public long getPercentile(double percentile) {
+		long[] counts = new long[BUCKETS];
+		Baseline base = capture(counts, System.currentTimeMillis());
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] -= base.counts[i];
+			total += counts[i];
+		}
+		return getPercentile(counts, total, percentile);
+	}
+
+	public void record(long value) {
+		buckets[bucketIndex(value)].increment();
+		if (value > 0) {
+			sum.add(value);
+			max.accumulate(value);
+		}
+	}
+
+	@Override
+	protected String[] getDescriptions() {
+		return descriptions;
+	}
+
+	@Override
+	protected boolean isFloat(int idx) {
+		return idx == 1;
+	}
+
+	@Override
+	protected void snapshot(long[] longs, float[] floats, int offset) {
+		long[] counts = new long[BUCKETS];
+		long sumVal = sum.sum();
+		Baseline base = capture(counts, System.currentTimeMillis());
+
+		long count = 0;
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			count += counts[i];
+			counts[i] -= base.counts[i];
+			total += counts[i];
+		}
+		longs[offset] = count;
+		floats[offset + 1] = total == 0 ? 0f : ((float) (sumVal - base.sum)) / total;
+		longs[offset + 2] = getPercentile(counts, total, 100);
+		longs[offset + 3] = getPercentile(counts, total, 50);
+		longs[offset + 4] = getPercentile(counts, total, 99);
+		longs[offset + 5] = getPercentile(counts, total, 99.9);
+	}
+
+	/**
+	 * Copies current counts and returns state of the histogram at the start of the window, starting a new window if
+	 * the current one has elapsed.
+	 */
+	private synchronized Baseline capture(long[] counts, long now) {
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] = buckets[i].sum();
+		}
+		if (now - current.time >= window) {
+			Baseline next = new Baseline(now, counts.clone(), sum.sum());
+			// if nothing was collected during the whole previous window, there is no data to keep
+			boolean idle = now - current.time >= 2 * window;
+			long windowMax = max.getThenReset();
+			previousMax = idle ? 0 : windowMax;
+			previous = idle ? next : current;
+			current = next;
+		}
+		return previous;
+	}
+
+	private long getPercentile(long[] counts, long total, double percentile) {
+		if (total == 0) {
+			return 0;
+		}
+		long windowMax = getWindowMax();
+		long threshold = Math.max(1, (long) Math.ceil(total * percentile / 100));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts[i];
+			if (seen >= threshold) {
+				return Math.min(bucketUpperBound(i), windowMax);
+			}
+		}
+		return windowMax;
+	}
+
+	private long getWindowMax() {
+		return Math.max(previousMax, max.get());
+	}
+
+	private static class Baseline {
+
+		private final long[] counts;
+		private final long sum;
+		private final long time;
+
+		private Baseline(long time, long[] counts, long sum) {
+			this.time = time;
+			this.counts = counts;
+			this.sum = sum;
+		}
+	}
+}
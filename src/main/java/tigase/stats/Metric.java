@@ -0,0 +1,61 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.stats;
+
+import java.util.logging.Level;
+
+/**
+ * Base class of metrics registered in {@link MetricsRegistry}.
+ * <br>
+ * Metric exports a fixed number of values, each of them with its own description, which are copied to a snapshot
+ * when statistics are collected.
+ */
+public abstract class Metric {
+
+	protected final String description;
+	protected final Level level;
+
+	protected Metric(String description, Level level) {
+		this.description = description;
+		this.level = level;
+	}
+
+	public String getDescription() {
+		return description;
+	}
+
+	public Level getLevel() {
+		return level;
+	}
+
+	/**
+	 * Returns descriptions of exported values. Returned array may not change.
+	 */
+	protected abstract String[] getDescriptions();
+
+	/**
+	 * Returns <code>true</code> if exported value is a float value.
+	 */
+	protected abstract boolean isFloat(int idx);
+
+	/**
+	 * Copies exported values to the snapshot arrays, starting at <code>offset</code>.
+	 */
+	protected abstract void snapshot(long[] longs, float[] floats, int offset);
+
+}
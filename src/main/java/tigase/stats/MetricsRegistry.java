@@ -0,0 +1,210 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.stats;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.DoubleSupplier;
+import java.util.function.LongSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Registry of typed metrics of components.
+ * <br>
+ * Metrics are registered once, ie. during initialization of a component, and are updated by the component without
+ * any synchronization. When statistics are collected, {@link StatisticsCollector} copies current values of all
+ * metrics of the component to a single snapshot, which is added to the {@link StatisticsList}. Records of the
+ * snapshot are created only if they are retrieved from the list.
+ */
+public class MetricsRegistry {
+
+	private static final Logger log = Logger.getLogger(MetricsRegistry.class.getName());
+	private static final MetricsRegistry instance = new MetricsRegistry();
+
+	private final ConcurrentHashMap<String, ComponentMetrics> components = new ConcurrentHashMap<>();
+
+	public static MetricsRegistry getInstance() {
+		return instance;
+	}
+
+	public CounterMetric counter(String comp, String description, Level level) {
+		return register(comp, new CounterMetric(description, level));
+	}
+
+	public GaugeMetric gauge(String comp, String description, Level level, LongSupplier supplier) {
+		return register(comp, new GaugeMetric(description, level, supplier));
+	}
+
+	public GaugeMetric gauge(String comp, String description, Level level, DoubleSupplier supplier) {
+		return register(comp, new GaugeMetric(description, level, supplier));
+	}
+
+	public Set<String> getCompNames() {
+		return Collections.unmodifiableSet(components.keySet());
+	}
+
+	public HistogramMetric histogram(String comp, String description, Level level) {
+		return register(comp, new HistogramMetric(description, level));
+	}
+
+	/**
+	 * Registers metric of the component. If metric with the same description and type is already registered, then
+	 * the registered metric is returned, so it is safe to register metrics each time the component is initialized.
+	 *
+	 * @return registered metric
+	 */
+	@SuppressWarnings("unchecked")
+	public <T extends Metric> T register(String comp, T metric) {
+		ComponentMetrics metrics = components.computeIfAbsent(comp, ComponentMetrics::new);
+		synchronized (metrics) {
+			Metric existing = metrics.find(metric.getDescription());
+			if (existing != null) {
+				if (existing.getClass() != metric.getClass()) {
+					throw new IllegalArgumentException(
+							"Metric " + comp + "/" + metric.getDescription() + " is already registered as " +
+									existing.getClass().getSimpleName());
+				}
+				return (T) existing;
+			}
+			metrics.add(metric);
+		}
+		if (log.isLoggable(Level.FINEST)) {
+			log.log(Level.FINEST, "Registered metric {0}/{1}", new Object[]{comp, metric.getDescription()});
+		}
+		return metric;
+	}
+
+	/**
+	 * Copies current values of all metrics of the component to the list.
+	 *
+	 * @return <code>true</code> if the component has any metrics registered
+	 */
+	public boolean snapshot(String comp, StatisticsList list) {
+		ComponentMetrics metrics = components.get(comp);
+		if (metrics == null) {
+			return false;
+		}
+		list.addMetrics(metrics.snapshot());
+		return true;
+	}
+
+	/**
+	 * Removes all metrics of the component.
+	 */
+	public void unregister(String comp) {
+		components.remove(comp);
+	}
+
+	/**
+	 * Removes the metric of the component.
+	 */
+	public void unregister(String comp, Metric metric) {
+		ComponentMetrics metrics = components.get(comp);
+		if (metrics != null) {
+			synchronized (metrics) {
+				metrics.remove(metric);
+			}
+		}
+	}
+
+	/**
+	 * Layout of exported values of metrics of a single component. Layout is replaced when metrics are registered,
+	 * so snapshot may use it without locking.
+	 */
+	static class Layout {
+
+		final String comp;
+		final String[] descriptions;
+		final boolean[] floats;
+		final Map<String, Integer> index;
+		final Level[] levels;
+		final Metric[] metrics;
+		final int[] offsets;
+
+		private Layout(String comp, Metric[] metrics) {
+			this.comp = comp;
+			this.metrics = metrics;
+			this.offsets = new int[metrics.length];
+
+			int size = 0;
+			for (int i = 0; i < metrics.length; i++) {
+				offsets[i] = size;
+				size += metrics[i].getDescriptions().length;
+			}
+
+			this.descriptions = new String[size];
+			this.floats = new boolean[size];
+			this.levels = new Level[size];
+			this.index = new HashMap<>(size * 2);
+			for (int i = 0; i < metrics.length; i++) {
+				String[] descs = metrics[i].getDescriptions();
+				for (int j = 0; j < descs.length; j++) {
+					int idx = offsets[i] + j;
+					descriptions[idx] = descs[j].intern();
+					floats[idx] = metrics[i].isFloat(j);
+					levels[idx] = metrics[i].getLevel();
+					index.put(descriptions[idx], idx);
+				}
+			}
+		}
+	}
+
+	private static class ComponentMetrics {
+
+		private final String comp;
+		private volatile Layout layout;
+
+		private ComponentMetrics(String comp) {
+			this.comp = comp;
+			this.layout = new Layout(comp, new Metric[0]);
+		}
+
+		private void add(Metric metric) {
+			Metric[] metrics = Arrays.copyOf(layout.metrics, layout.metrics.length + 1);
+			metrics[metrics.length - 1] = metric;
+			layout = new Layout(comp, metrics);
+		}
+
+		private Metric find(String description) {
+			for (Metric metric : layout.metrics) {
+				if (metric.getDescription().equals(description)) {
+					return metric;
+				}
+			}
+			return null;
+		}
+
+		private void remove(Metric metric) {
+			List<Metric> metrics = new ArrayList<>(Arrays.asList(layout.metrics));
+			if (metrics.remove(metric)) {
+				layout = new Layout(comp, metrics.toArray(new Metric[metrics.size()]));
+			}
+		}
+
+		private MetricsSnapshot snapshot() {
+			Layout current = layout;
+			long[] longs = new long[current.descriptions.length];
+			float[] floats = new float[current.descriptions.length];
+			for (int i = 0; i < current.metrics.length; i++) {
+				current.metrics[i].snapshot(longs, floats, current.offsets[i]);
+			}
+			return new MetricsSnapshot(current, longs, floats);
+		}
+	}
+}
@@ -0,0 +1,63 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.stats;
+
+/**
+ * Values of all metrics of a single component copied from {@link MetricsRegistry} at the same time.
+ * <br>
+ * Snapshot keeps only arrays of values, {@link StatRecord} for a value is created only when it is requested.
+ */
+class MetricsSnapshot {
+
+	private final float[] floats;
+	private final MetricsRegistry.Layout layout;
+	private final long[] longs;
+
+	MetricsSnapshot(MetricsRegistry.Layout layout, long[] longs, float[] floats) {
+		this.layout = layout;
+		this.longs = longs;
+		this.floats = floats;
+	}
+
+	String getComponent() {
+		return layout.comp;
+	}
+
+	/**
+	 * Returns record for the value with the description or <code>null</code> if there is no such value or it is
+	 * filtered out by the level of the list.
+	 */
+	StatRecord getRecord(String description, StatisticsList list) {
+		Integer idx = layout.index.get(description);
+		if (idx == null) {
+			return null;
+		}
+		return getRecord(idx, list);
+	}
+
+	StatRecord getRecord(int idx, StatisticsList list) {
+		StatRecord record = layout.floats[idx]
+							? new StatRecord(layout.comp, layout.descriptions[idx], floats[idx], layout.levels[idx])
+							: new StatRecord(layout.comp, layout.descriptions[idx], longs[idx], layout.levels[idx]);
+		return list.checkLevel(layout.levels[idx], record) ? record : null;
+	}
+
+	int size() {
+		return layout.descriptions.length;
+	}
+}
@@ -314,6 +314,11 @@ public class StatisticsCollector
 		for (StatisticsContainer comp : components.values()) {
 			getComponentStats(comp.getName(), list);
 		}
+		for (String comp : MetricsRegistry.getInstance().getCompNames()) {
+			if (!components.containsKey(comp)) {
+				MetricsRegistry.getInstance().snapshot(comp, list);
+			}
+		}
 
 		getStatistics(list);
 
@@ -338,6 +343,7 @@ public class StatisticsCollector
 		if (stats != null) {
 			stats.getStatistics(list);
 		}
+		MetricsRegistry.getInstance().snapshot(name, list);
 	}
 
 	@Override
@@ -33,6 +33,8 @@ public class StatisticsList
 		implements Iterable<StatRecord> {
 
 	private static final Logger log = Logger.getLogger(StatisticsList.class.getName());
+	// snapshots of metrics which were not converted to records yet
+	private final ArrayList<MetricsSnapshot> metrics = new ArrayList<>();
 	private final LinkedHashMap<String, LinkedHashMap<String, StatRecord>> stats = new LinkedHashMap<String, LinkedHashMap<String, StatRecord>>();
 	private Level statLevel = Level.ALL;
 
@@ -107,6 +109,7 @@ public class StatisticsList
 	 *
 	 */
 	public Set<String> getCompNames() {
+		materializeMetrics();
 		return stats.keySet();
 	}
 
@@ -147,19 +150,16 @@ public class StatisticsList
 	}
 
 	public LinkedHashMap<String, StatRecord> getCompStats(String comp) {
+		materializeMetrics();
 		return stats.get(comp);
 	}
 
 	public long getValue(String comp, String description, long def) {
 		long result = def;
-		LinkedHashMap<String, StatRecord> compStats = stats.get(comp);
-
-		if (compStats != null) {
-			StatRecord rec = compStats.get(description);
+		StatRecord rec = getRecord(comp, description);
 
-			if (rec != null) {
-				result = rec.getLongValue();
-			}
+		if (rec != null) {
+			result = rec.getLongValue();
 		}
 
 		return result;
@@ -167,14 +167,10 @@ public class StatisticsList
 
 	public float getValue(String comp, String description, float def) {
 		float result = def;
-		LinkedHashMap<String, StatRecord> compStats = stats.get(comp);
-
-		if (compStats != null) {
-			StatRecord rec = compStats.get(description);
+		StatRecord rec = getRecord(comp, description);
 
-			if (rec != null) {
-				result = rec.getFloatValue();
-			}
+		if (rec != null) {
+			result = rec.getFloatValue();
 		}
 
 		return result;
@@ -182,14 +178,10 @@ public class StatisticsList
 
 	public int getValue(String comp, String description, int def) {
 		int result = def;
-		LinkedHashMap<String, StatRecord> compStats = stats.get(comp);
-
-		if (compStats != null) {
-			StatRecord rec = compStats.get(description);
+		StatRecord rec = getRecord(comp, description);
 
-			if (rec != null) {
-				result = rec.getIntValue();
-			}
+		if (rec != null) {
+			result = rec.getIntValue();
 		}
 
 		return result;
@@ -197,14 +189,10 @@ public class StatisticsList
 
 	public String getValue(String comp, String description, String def) {
 		String result = def;
-		LinkedHashMap<String, StatRecord> compStats = stats.get(comp);
-
-		if (compStats != null) {
-			StatRecord rec = compStats.get(description);
+		StatRecord rec = getRecord(comp, description);
 
-			if (rec != null) {
-				result = rec.getValue();
-			}
+		if (rec != null) {
+			result = rec.getValue();
 		}
 
 		return result;
@@ -212,14 +200,10 @@ public class StatisticsList
 
 	public <E> Collection<E> getValue(String comp, String description, Collection<E> def) {
 		Collection<E> result = def;
-		LinkedHashMap<String, StatRecord> compStats = stats.get(comp);
-
-		if (compStats != null) {
-			StatRecord rec = compStats.get(description);
+		StatRecord rec = getRecord(comp, description);
 
-			if (rec != null) {
-				result = rec.getCollection();
-			}
+		if (rec != null) {
+			result = rec.getCollection();
 		}
 
 		return result;
@@ -235,14 +219,10 @@ public class StatisticsList
 
 	public <E> Collection<E> getCollectionValue(String comp, String description, Collection<E> def) {
 		Collection<E> result = def;
-		LinkedHashMap<String, StatRecord> compStats = stats.get(comp);
+		StatRecord rec = getRecord(comp, description);
 
-		if (compStats != null) {
-			StatRecord rec = compStats.get(description);
-
-			if (rec != null) {
-				result = rec.getCollection();
-			}
+		if (rec != null) {
+			result = rec.getCollection();
 		}
 
 		return result;
@@ -273,14 +253,24 @@ public class StatisticsList
 
 	@Override
 	public Iterator<StatRecord> iterator() {
+		materializeMetrics();
 		return new StatsIterator();
 	}
 
 	@Override
 	public String toString() {
+		materializeMetrics();
 		return stats.toString();
 	}
 
+	/**
+	 * Adds snapshot of metrics of a component. Records for values of metrics are created only when they are
+	 * retrieved.
+	 */
+	void addMetrics(MetricsSnapshot snapshot) {
+		metrics.add(snapshot);
+	}
+
 	private boolean addEntry(String comp, String description, Level recordLevel, StatRecord statRecord) {
 		description = description.intern();
 		if (checkLevel(recordLevel, statRecord)) {
@@ -298,6 +288,50 @@ public class StatisticsList
 		return false;
 	}
 
+	private StatRecord getRecord(String comp, String description) {
+		LinkedHashMap<String, StatRecord> compStats = stats.get(comp);
+
+		if (compStats != null) {
+			StatRecord rec = compStats.get(description);
+
+			if (rec != null) {
+				return rec;
+			}
+		}
+		for (MetricsSnapshot snapshot : metrics) {
+			if (snapshot.getComponent().equals(comp)) {
+				StatRecord rec = snapshot.getRecord(description, this);
+
+				if (rec != null) {
+					return rec;
+				}
+			}
+		}
+
+		return null;
+	}
+
+	private void materializeMetrics() {
+		if (metrics.isEmpty()) {
+			return;
+		}
+		for (MetricsSnapshot snapshot : metrics) {
+			LinkedHashMap<String, StatRecord> compStats = null;
+			for (int i = 0; i < snapshot.size(); i++) {
+				StatRecord rec = snapshot.getRecord(i, this);
+
+				if (rec != null) {
+					if (compStats == null) {
+						compStats = stats.computeIfAbsent(snapshot.getComponent(), k -> new LinkedHashMap<>());
+					}
+					// records added directly to the list take precedence
+					compStats.putIfAbsent(rec.getDescription(), rec);
+				}
+			}
+		}
+		metrics.clear();
+	}
+
 	private class StatsIterator
 			implements Iterator<StatRecord> {
 
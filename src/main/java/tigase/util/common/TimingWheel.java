@@ -0,0 +1,259 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.util.common;
+
+import java.util.ArrayList;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Hashed timing wheel for a large number of timeouts with low time resolution, ie. inactivity timeouts of
+ * connections.
+ * <br>
+ * Time is divided into ticks of <code>tickDuration</code> milliseconds and each timeout is kept in a bucket
+ * selected by its deadline tick. Advancing the wheel visits only buckets of ticks which passed since the previous
+ * call, so the cost of a tick depends on the number of timeouts in a single bucket and not on the number of all
+ * scheduled timeouts. Timeouts with deadlines further than a single rotation of the wheel stay in their bucket
+ * until their tick comes.
+ * <br>
+ * Timeouts may be scheduled and cancelled from any thread, but the wheel must be advanced by a single thread.
+ * Expired timeouts may be scheduled again (ie. from the expiry handler) with {@link #reschedule(Timeout, long)},
+ * which allows reusing the same handle for the whole lifetime of an item.
+ */
+public class TimingWheel<T> {
+
+	private final ArrayList<Timeout<T>>[] buckets;
+	private final int mask;
+	private final Queue<Timeout<T>> pending = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger size = new AtomicInteger();
+	private final long tickDuration;
+	private volatile long processedTick;
+
+	/**
+	 * Creates a new wheel.
+	 *
+	 * @param tickDuration duration of a single tick in milliseconds
+	 * @param wheelSize number of buckets, rounded up to power of 2
+	 */
+	@SuppressWarnings("unchecked")
+	public TimingWheel(long tickDuration, int wheelSize) {
+		if (tickDuration <= 0) {
+			throw new IllegalArgumentException("Tick duration must be greater than 0: " + tickDuration);
+		}
+		if (wheelSize <= 0 || wheelSize > (1 << 30)) {
+			throw new IllegalArgumentException("Invalid wheel size: " + wheelSize);
+		}
+		int buckets = Integer.highestOneBit(wheelSize);
+		if (buckets < wheelSize) {
+			buckets <<= 1;
+		}
+		this.tickDuration = tickDuration;
+		this.buckets = new ArrayList[buckets];
+		this.mask = buckets - 1;
+		this.processedTick = (System.currentTimeMillis() / tickDuration) - 1;
+	}
+
+	/**
+	 * Processes all ticks which passed until <code>now</code> and calls handler for each expired timeout. Expired
+	 * timeouts are removed from the wheel before the handler is called.
+	 *
+	 * @param now current time in milliseconds
+	 * @param handler called for each expired timeout
+	 *
+	 * @return number of expired timeouts
+	 */
+	public int advance(long now, Consumer<Timeout<T>> handler) {
+		long nowTick = now / tickDuration;
+		long fromTick = processedTick + 1;
+
+		movePending(fromTick);
+
+		if (nowTick < fromTick) {
+			return 0;
+		}
+
+		// after a long delay every bucket is visited only once
+		long toTick = Math.min(nowTick, fromTick + mask);
+		ArrayList<Timeout<T>> expired = null;
+		for (long tick = fromTick; tick <= toTick; tick++) {
+			expired = expireBucket(buckets[(int) (tick & mask)], nowTick, expired);
+		}
+		processedTick = nowTick;
+
+		if (expired == null) {
+			return 0;
+		}
+		for (Timeout<T> timeout : expired) {
+			handler.accept(timeout);
+		}
+		return expired.size();
+	}
+
+	/**
+	 * Returns time in milliseconds at which the next tick should be processed.
+	 */
+	public long getNextTickTime() {
+		return (processedTick + 1) * tickDuration;
+	}
+
+	public long getTickDuration() {
+		return tickDuration;
+	}
+
+	/**
+	 * Schedules expired timeout again.
+	 *
+	 * @param timeout expired timeout
+	 * @param deadline new deadline in milliseconds
+	 *
+	 * @return <code>false</code> if timeout was cancelled and was not scheduled
+	 */
+	public boolean reschedule(Timeout<T> timeout, long deadline) {
+		if (timeout.wheel != this) {
+			throw new IllegalArgumentException("Timeout does not belong to this wheel: " + timeout);
+		}
+		if (timeout.scheduled) {
+			throw new IllegalStateException("Timeout is already scheduled: " + timeout);
+		}
+		if (timeout.cancelled) {
+			return false;
+		}
+		timeout.deadline = deadline;
+		timeout.scheduled = true;
+		size.incrementAndGet();
+		pending.offer(timeout);
+		return true;
+	}
+
+	/**
+	 * Schedules a new timeout for the item.
+	 *
+	 * @param item which will be passed to the expiry handler
+	 * @param deadline time in milliseconds
+	 */
+	public Timeout<T> schedule(T item, long deadline) {
+		Timeout<T> timeout = new Timeout<>(this, item);
+		reschedule(timeout, deadline);
+		return timeout;
+	}
+
+	/**
+	 * Returns number of scheduled timeouts.
+	 */
+	public int size() {
+		return size.get();
+	}
+
+	private void add(Timeout<T> timeout, long minTick) {
+		long tick = (timeout.deadline + tickDuration - 1) / tickDuration;
+		timeout.tick = Math.max(tick, minTick);
+
+		int idx = (int) (timeout.tick & mask);
+		ArrayList<Timeout<T>> bucket = buckets[idx];
+		if (bucket == null) {
+			bucket = new ArrayList<>();
+			buckets[idx] = bucket;
+		}
+		bucket.add(timeout);
+	}
+
+	private ArrayList<Timeout<T>> expireBucket(ArrayList<Timeout<T>> bucket, long nowTick,
+											  ArrayList<Timeout<T>> expired) {
+		if (bucket == null || bucket.isEmpty()) {
+			return expired;
+		}
+
+		int kept = 0;
+		for (int i = 0; i < bucket.size(); i++) {
+			Timeout<T> timeout = bucket.get(i);
+			if (timeout.cancelled) {
+				timeout.scheduled = false;
+				size.decrementAndGet();
+			} else if (timeout.tick <= nowTick) {
+				timeout.scheduled = false;
+				size.decrementAndGet();
+				if (expired == null) {
+					expired = new ArrayList<>();
+				}
+				expired.add(timeout);
+			} else {
+				bucket.set(kept++, timeout);
+			}
+		}
+		for (int i = bucket.size() - 1; i >= kept; i--) {
+			bucket.remove(i);
+		}
+		return expired;
+	}
+
+	private void movePending(long minTick) {
+		Timeout<T> timeout;
+		while ((timeout = pending.poll()) != null) {
+			if (timeout.cancelled) {
+				timeout.scheduled = false;
+				size.decrementAndGet();
+			} else {
+				add(timeout, minTick);
+			}
+		}
+	}
+
+	/**
+	 * Handle of the item scheduled in the wheel.
+	 */
+	public static final class Timeout<T> {
+
+		private final T item;
+		private final TimingWheel<T> wheel;
+		private volatile boolean cancelled = false;
+		private volatile long deadline;
+		private volatile boolean scheduled = false;
+		private long tick;
+
+		private Timeout(TimingWheel<T> wheel, T item) {
+			this.wheel = wheel;
+			this.item = item;
+		}
+
+		/**
+		 * Cancels the timeout. Cancelled timeout will not expire and cannot be scheduled again.
+		 */
+		public void cancel() {
+			cancelled = true;
+		}
+
+		public long getDeadline() {
+			return deadline;
+		}
+
+		public T getItem() {
+			return item;
+		}
+
+		public boolean isCancelled() {
+			return cancelled;
+		}
+
+		@Override
+		public String toString() {
+			return "Timeout{item=" + item + ", deadline=" + deadline + ", cancelled=" + cancelled + "}";
+		}
+	}
+}
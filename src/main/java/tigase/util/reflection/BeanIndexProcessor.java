@@ -0,0 +1,231 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.util.reflection;
+
+import javax.annotation.processing.*;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.*;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.lang.model.util.Elements;
+import javax.lang.model.util.Types;
+import javax.tools.Diagnostic;
+import javax.tools.FileObject;
+import javax.tools.StandardLocation;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Annotation processor generating index of classes which are looked up by the kernel during startup.
+ * <br>
+ * Index is written to <code>{@value #INDEX_FILE}</code> and contains binary names of classes annotated
+ * with <code>@Bean</code> (directly or inherited) or <code>@Repository.Meta</code> and of classes implementing
+ * <code>Repository</code>, <code>SchemaLoader</code> or <code>XMPPProcessor</code>. Each line contains name of a
+ * single class optionally followed by a tab character and comma separated names of parents declared in its
+ * <code>@Bean</code> annotation, which may be inherited from a superclass.
+ * <br>
+ * On incremental compilation only changed classes are processed, so entries of the existing index are kept for
+ * classes which were not processed and still exist.
+ * <br>
+ * Processor is registered as a service, so it is used when compiling any project which depends on Tigase XMPP
+ * Server. {@link ClassUtilBean} loads only classes listed in the index of a jar file instead of scanning all of its
+ * classes.
+ */
+@SupportedAnnotationTypes("*")
+public class BeanIndexProcessor
+		extends AbstractProcessor {
+
+	public static final String INDEX_FILE = "META-INF/tigase/beans.index";
+
+	private static final String BEAN_ANNOTATION = "tigase.kernel.beans.Bean";
+	private static final String[] INDEXED_SUPERTYPES = {"tigase.db.Repository", "tigase.db.util.SchemaLoader",
+														"tigase.xmpp.XMPPProcessor"};
+	private static final String META_ANNOTATION = "tigase.db.Repository.Meta";
+
+	private final Map<String, String> entries = new TreeMap<>();
+	private final Set<String> processed = new HashSet<>();
+	private Elements elements;
+	private List<TypeMirror> supertypes;
+	private Types types;
+
+	@Override
+	public SourceVersion getSupportedSourceVersion() {
+		return SourceVersion.latestSupported();
+	}
+
+	@Override
+	public synchronized void init(ProcessingEnvironment processingEnv) {
+		super.init(processingEnv);
+		elements = processingEnv.getElementUtils();
+		types = processingEnv.getTypeUtils();
+		supertypes = new ArrayList<>();
+		for (String name : INDEXED_SUPERTYPES) {
+			TypeElement type = elements.getTypeElement(name);
+			if (type != null) {
+				supertypes.add(types.erasure(type.asType()));
+			}
+		}
+	}
+
+	@Override
+	public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+		if (roundEnv.processingOver()) {
+			if (!processed.isEmpty()) {
+				writeIndex();
+			}
+		} else {
+			for (TypeElement type : ElementFilter.typesIn(roundEnv.getRootElements())) {
+				processType(type);
+			}
+		}
+		return false;
+	}
+
+	private AnnotationMirror findAnnotation(List<? extends AnnotationMirror> mirrors, String annotation) {
+		for (AnnotationMirror mirror : mirrors) {
+			if (((TypeElement) mirror.getAnnotationType().asElement()).getQualifiedName().contentEquals(annotation)) {
+				return mirror;
+			}
+		}
+		return null;
+	}
+
+	private String getBinaryName(TypeMirror type) {
+		if (type.getKind() != TypeKind.DECLARED) {
+			return null;
+		}
+		return elements.getBinaryName((TypeElement) ((DeclaredType) type).asElement()).toString();
+	}
+
+	private String getParents(AnnotationMirror bean) {
+		String parent = null;
+		List<String> parents = new ArrayList<>();
+		for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> e : bean.getElementValues()
+				.entrySet()) {
+			String name = e.getKey().getSimpleName().toString();
+			Object value = e.getValue().getValue();
+			if ("parent".equals(name) && value instanceof TypeMirror) {
+				parent = getBinaryName((TypeMirror) value);
+			} else if ("parents".equals(name) && value instanceof List) {
+				for (Object item : (List<?>) value) {
+					Object itemValue = ((AnnotationValue) item).getValue();
+					if (itemValue instanceof TypeMirror) {
+						String parentName = getBinaryName((TypeMirror) itemValue);
+						if (parentName != null) {
+							parents.add(parentName);
+						}
+					}
+				}
+			}
+		}
+		// same as in the kernel, parents are used only if parent is not set
+		if (parent != null && !Object.class.getName().equals(parent)) {
+			return parent;
+		}
+		return String.join(",", parents);
+	}
+
+	private boolean hasAnnotation(List<? extends AnnotationMirror> mirrors, String annotation) {
+		return findAnnotation(mirrors, annotation) != null;
+	}
+
+	private void processType(TypeElement type) {
+		// @Bean is @Inherited, so it is returned also for subclasses of annotated classes
+		AnnotationMirror bean = findAnnotation(elements.getAllAnnotationMirrors(type), BEAN_ANNOTATION);
+		boolean indexed = bean != null || hasAnnotation(type.getAnnotationMirrors(), META_ANNOTATION);
+		if (!indexed) {
+			TypeMirror erasure = types.erasure(type.asType());
+			for (TypeMirror supertype : supertypes) {
+				if (types.isSubtype(erasure, supertype)) {
+					indexed = true;
+					break;
+				}
+			}
+		}
+		String name = elements.getBinaryName(type).toString();
+		processed.add(name);
+		if (indexed) {
+			entries.put(name, bean == null ? "" : getParents(bean));
+		}
+
+		for (TypeElement nested : ElementFilter.typesIn(type.getEnclosedElements())) {
+			processType(nested);
+		}
+	}
+
+	/**
+	 * Reads entries of the index written by previous compilation, which are still valid.
+	 *
+	 * @return entries of the index or <code>null</code> if there is no index
+	 */
+	private Map<String, String> readExistingIndex() {
+		Map<String, String> result = new TreeMap<>();
+		try {
+			FileObject file = processingEnv.getFiler().getResource(StandardLocation.CLASS_OUTPUT, "", INDEX_FILE);
+			try (BufferedReader reader = new BufferedReader(
+					new InputStreamReader(file.openInputStream(), StandardCharsets.UTF_8))) {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					if (line.trim().isEmpty()) {
+						continue;
+					}
+					int idx = line.indexOf('\t');
+					String name = idx < 0 ? line : line.substring(0, idx);
+					// entries of processed classes are replaced and entries of removed classes are dropped
+					if (!processed.contains(name) && elements.getTypeElement(name.replace('$', '.')) != null) {
+						result.put(name, idx < 0 ? "" : line.substring(idx + 1));
+					}
+				}
+			}
+		} catch (IOException | IllegalArgumentException ex) {
+			return null;
+		}
+		return result;
+	}
+
+	private void writeIndex() {
+		Map<String, String> index = readExistingIndex();
+		if (index == null) {
+			if (entries.isEmpty()) {
+				return;
+			}
+			index = new TreeMap<>();
+		}
+		index.putAll(entries);
+		try {
+			FileObject file = processingEnv.getFiler()
+					.createResource(StandardLocation.CLASS_OUTPUT, "", INDEX_FILE);
+			try (Writer writer = new OutputStreamWriter(file.openOutputStream(), StandardCharsets.UTF_8)) {
+				for (Map.Entry<String, String> e : index.entrySet()) {
+					writer.write(e.getKey());
+					if (!e.getValue().isEmpty()) {
+						writer.write('\t');
+						writer.write(e.getValue());
+					}
+					writer.write('\n');
+				}
+			}
+		} catch (IOException ex) {
+			processingEnv.getMessager()
+					.printMessage(Diagnostic.Kind.ERROR, "Could not write index of beans: " + ex.getMessage());
+		}
+	}
+}
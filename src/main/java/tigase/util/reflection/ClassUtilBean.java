@@ -17,13 +17,22 @@
  */
 package tigase.util.reflection;
 
+import tigase.kernel.beans.Bean;
 import tigase.util.ClassComparator;
 import tigase.util.ClassUtil;
 
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.CodeSource;
 import java.util.*;
 import java.util.function.Predicate;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
@@ -31,6 +40,9 @@ import java.util.stream.Stream;
 
 /**
  * Created by andrzej on 08.09.2016.
+ * <br>
+ * Jar files containing index generated by {@link BeanIndexProcessor} are not scanned - only classes listed in the
+ * index are loaded from them. Other jar files and directories are scanned for all classes.
  */
 public class ClassUtilBean {
 
@@ -47,6 +59,8 @@ public class ClassUtilBean {
 	private static ClassUtilBean instance;
 	private static Logger log = Logger.getLogger(ClassUtilBean.class.getCanonicalName());
 	protected HashSet<Class<?>> classes = new HashSet<>();
+	private final Map<String, List<Class<?>>> beanClassesByParent = new HashMap<>();
+	private final Set<String> indexedLocations = new HashSet<>();
 
 	public static List<String> getPackagesToSkip(String[] packagesToSkip) {
 		if (packagesToSkip == null) {
@@ -72,6 +86,7 @@ public class ClassUtilBean {
 	}
 
 	public void initialize(Collection<String> skipPackages) {
+		Map<String, String> beanParents = new HashMap<>();
 		try {
 			Predicate<String> filter = null;
 			if (skipPackages == null) {
@@ -87,22 +102,135 @@ public class ClassUtilBean {
 					return true;
 				};
 			}
-			classes.addAll(ClassUtil.getClassesFromClassPath(filter));
+			classes.addAll(getClassesFromClassPath(filter, beanParents));
 			// support for handling debugging test cases started by Maven Surefire Plugin
 			// as without it Tigase Kernel is not able to see annotated beans
 			classes.addAll(getClassesFromSurefireClassLoader());
 		} catch (IOException | ClassNotFoundException e) {
 			log.log(Level.SEVERE, "Could not initialize list of classes", e);
 		}
+		beanClassesByParent.clear();
+		for (Class<?> cls : classes) {
+			for (String parent : getBeanParents(cls, beanParents)) {
+				beanClassesByParent.computeIfAbsent(parent, key -> new ArrayList<>()).add(cls);
+			}
+		}
 		synchronized (ClassUtilBean.class) {
 			instance = this;
 		}
 	}
 
+	/**
+	 * Method returns classes known to this instance. Classes from jar files without index of beans and from
+	 * directories are all returned, but from jar files with index only classes listed in the index are returned,
+	 * ie. annotated with <code>@Bean</code> or <code>@Repository.Meta</code> and implementations of
+	 * <code>Repository</code>, <code>SchemaLoader</code> or <code>XMPPProcessor</code>. Method should not be used
+	 * to look for classes of other types.
+	 *
+	 * @return set of known classes
+	 */
 	public Set<Class<?>> getAllClasses() {
 		return Collections.unmodifiableSet(classes);
 	}
 
+	/**
+	 * Method returns classes annotated with <code>@Bean</code> which <code>parent</code> or one of
+	 * <code>parents</code> is the passed class or any of its supertypes. Returned set may be used instead of
+	 * {@link #getAllClasses()} when looking for beans which should be registered for a bean of the passed class.
+	 *
+	 * @param requiredClass class of the parent bean
+	 *
+	 * @return set of candidate bean classes
+	 */
+	public Set<Class<?>> getBeanClasses(Class<?> requiredClass) {
+		Set<Class<?>> result = new HashSet<>();
+		for (String type : getSupertypes(requiredClass, new HashSet<>())) {
+			List<Class<?>> beans = beanClassesByParent.get(type);
+			if (beans != null) {
+				result.addAll(beans);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Method checks if class is known, ie. it was found in classpath or it was loaded from a jar file with index of
+	 * beans.
+	 *
+	 * @param cls class to check
+	 *
+	 * @return <code>true</code> if class is known
+	 */
+	public boolean isKnownClass(Class<?> cls) {
+		if (classes.contains(cls)) {
+			return true;
+		}
+		if (indexedLocations.isEmpty()) {
+			return false;
+		}
+		String location = getLocation(cls);
+		return location != null && indexedLocations.contains(location);
+	}
+
+	protected List<String> getBeanParents(Class<?> cls, Map<String, String> beanParents) {
+		String parents = beanParents.get(cls.getName());
+		if (parents != null) {
+			return parents.isEmpty() ? Collections.emptyList() : Arrays.asList(parents.split(","));
+		}
+
+		// @Bean is @Inherited, so subclasses are registered for the same parents as when classes are scanned
+		Bean bean = cls.getAnnotation(Bean.class);
+		if (bean == null) {
+			return Collections.emptyList();
+		}
+		if (bean.parent() != Object.class) {
+			return Collections.singletonList(bean.parent().getName());
+		}
+		return Arrays.stream(bean.parents()).map(Class::getName).collect(Collectors.toList());
+	}
+
+	private Set<Class<?>> getClassesFromClassPath(Predicate<String> filter, Map<String, String> beanParents)
+			throws IOException, ClassNotFoundException {
+		Set<Class<?>> classes_set = new TreeSet<Class<?>>(new ClassComparator());
+		String classpath = System.getProperty("java.class.path");
+		ClassLoader loader = ClassUtilBean.class.getClassLoader();
+		int indexed = 0;
+		int scanned = 0;
+
+		StringTokenizer stok = new StringTokenizer(classpath, File.pathSeparator, false);
+		while (stok.hasMoreTokens()) {
+			File file = new File(stok.nextToken());
+			if (!file.exists()) {
+				continue;
+			}
+
+			Set<String> class_names = null;
+			if (file.isFile()) {
+				class_names = readIndex(file, beanParents);
+				if (class_names != null) {
+					indexedLocations.add(file.getCanonicalPath());
+					indexed++;
+				} else {
+					class_names = ClassUtil.getClassNamesFromJar(file);
+					scanned++;
+				}
+			} else if (file.isDirectory()) {
+				class_names = ClassUtil.getClassNamesFromDir(file);
+				scanned++;
+			}
+			if (class_names != null) {
+				Set<String> names = class_names.stream().filter(filter).collect(Collectors.toSet());
+				tigase.osgi.util.ClassUtil.getClassesFromNames(loader, names).forEach(classes_set::add);
+			}
+		}
+
+		if (log.isLoggable(Level.CONFIG)) {
+			log.log(Level.CONFIG, "Loaded {0} classes, using index of {1} jar files and scanning {2} locations",
+					new Object[]{classes_set.size(), indexed, scanned});
+		}
+		return classes_set;
+	}
+
 	private Set<Class<?>> getClassesFromSurefireClassLoader() {
 		Set<Class<?>> classes_set = new TreeSet<Class<?>>(new ClassComparator());
 		String classpath = System.getProperty("surefire.test.class.path");
@@ -147,4 +275,59 @@ public class ClassUtilBean {
 
 		return classes_set;
 	}
+
+	private String getLocation(Class<?> cls) {
+		CodeSource codeSource = cls.getProtectionDomain().getCodeSource();
+		URL url = codeSource == null ? null : codeSource.getLocation();
+		if (url == null || !"file".equals(url.getProtocol())) {
+			return null;
+		}
+		try {
+			return new File(url.toURI()).getCanonicalPath();
+		} catch (URISyntaxException | IOException | IllegalArgumentException ex) {
+			return null;
+		}
+	}
+
+	private Set<String> getSupertypes(Class<?> cls, Set<String> result) {
+		result.add(Object.class.getName());
+		while (cls != null && result.add(cls.getName())) {
+			for (Class<?> ifc : cls.getInterfaces()) {
+				getSupertypes(ifc, result);
+			}
+			cls = cls.getSuperclass();
+		}
+		return result;
+	}
+
+	/**
+	 * Reads index of beans from the jar file.
+	 *
+	 * @return names of indexed classes or <code>null</code> if jar file does not contain index
+	 */
+	private Set<String> readIndex(File file, Map<String, String> beanParents) throws IOException {
+		try (JarFile jar = new JarFile(file)) {
+			JarEntry entry = jar.getJarEntry(BeanIndexProcessor.INDEX_FILE);
+			if (entry == null) {
+				return null;
+			}
+
+			Set<String> result = new TreeSet<>();
+			try (BufferedReader reader = new BufferedReader(
+					new InputStreamReader(jar.getInputStream(entry), StandardCharsets.UTF_8))) {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					line = line.trim();
+					if (line.isEmpty()) {
+						continue;
+					}
+					int idx = line.indexOf('\t');
+					String className = idx < 0 ? line : line.substring(0, idx);
+					result.add(className);
+					beanParents.put(className, idx < 0 ? "" : line.substring(idx + 1).trim());
+				}
+			}
+			return result;
+		}
+	}
 }
@@ -0,0 +1,278 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.util.routing;
+
+import tigase.server.MessageReceiver;
+import tigase.server.ServerComponent;
+import tigase.stats.StatisticsList;
+import tigase.vhosts.VHostItem;
+import tigase.vhosts.VHostManagerIfc;
+import tigase.xmpp.jid.JID;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Routing table used by {@link tigase.server.MessageRouter} to find destination components for packets.
+ * <br>
+ * Components (by ID and by name) and regex receivers are compiled into an immutable snapshot which is replaced
+ * (copy-on-write) only when components are added or removed or when regex routings of any receiver change. Results of
+ * the more expensive lookups - components for a domain (vhost bindings, name subdomains, non-local domains) and regex
+ * routings - are cached within the snapshot, so routing of a packet to an already known destination does not
+ * allocate any objects.
+ * <br>
+ * Cached domain routes keep references to {@link VHostItem} instances used to compute them and are recomputed when
+ * the vhost repository returns a different instance, ie. after vhost was added, removed or updated.
+ */
+public class RoutingTable {
+
+	public static final int DEF_MAX_CACHE_SIZE = 10000;
+
+	private static final Logger log = Logger.getLogger(RoutingTable.class.getName());
+	private static final ServerComponent[] NO_COMPONENTS = new ServerComponent[0];
+
+	private final LongAdder domainCacheHits = new LongAdder();
+	private final LongAdder domainCacheMisses = new LongAdder();
+	private final LongAdder rebuilds = new LongAdder();
+	private final LongAdder regexCacheHits = new LongAdder();
+	private final LongAdder regexCacheMisses = new LongAdder();
+	private int maxCacheSize = DEF_MAX_CACHE_SIZE;
+	private volatile Routes routes = new Routes(Collections.emptyMap(), Collections.emptyMap(),
+												new MessageReceiver[0]);
+
+	/**
+	 * Returns component which ID is exactly the same as the given address or <code>null</code>.
+	 */
+	public ServerComponent getComponent(JID componentId) {
+		return routes.byId.get(componentId);
+	}
+
+	/**
+	 * Returns component with the given name or <code>null</code>.
+	 */
+	public ServerComponent getComponentByName(String name) {
+		return routes.byName.get(name);
+	}
+
+	/**
+	 * Returns receivers which regex routings match the given address or <code>null</code> if there are none.
+	 */
+	public ServerComponent[] getComponentsForRegex(String address) {
+		Routes current = routes;
+		if (current.receivers.length == 0) {
+			return null;
+		}
+
+		ServerComponent[] result = current.regex.get(address);
+		if (result == null) {
+			regexCacheMisses.increment();
+			result = current.computeRegex(address);
+			putBounded(current.regex, address, result);
+		} else {
+			regexCacheHits.increment();
+		}
+
+		return result == NO_COMPONENTS ? null : result;
+	}
+
+	/**
+	 * Returns (possibly cached) routing information for the domain.
+	 *
+	 * @param domain destination domain of the packet
+	 * @param vHostManager used to compute routing information and validate cached entries
+	 * @param defDomain default domain of the installation
+	 */
+	public DomainRoute getDomainRoute(String domain, VHostManagerIfc vHostManager, String defDomain) {
+		Routes current = routes;
+		DomainRoute route = current.domains.get(domain);
+
+		if (route != null && route.isValid(vHostManager)) {
+			domainCacheHits.increment();
+			return route;
+		}
+
+		domainCacheMisses.increment();
+		route = new DomainRoute(domain, vHostManager, defDomain, current);
+		putBounded(current.domains, domain, route);
+		if (log.isLoggable(Level.FINEST)) {
+			log.log(Level.FINEST, "Computed route for domain {0}: {1}", new Object[]{domain, route});
+		}
+		return route;
+	}
+
+	public void getStatistics(String compName, StatisticsList list) {
+		Routes current = routes;
+		list.add(compName, "Routing table rebuilds", rebuilds.sum(), Level.FINE);
+		list.add(compName, "Routing domain cache size", current.domains.size(), Level.FINER);
+		list.add(compName, "Routing domain cache hits", domainCacheHits.sum(), Level.FINER);
+		list.add(compName, "Routing domain cache misses", domainCacheMisses.sum(), Level.FINER);
+		list.add(compName, "Routing regex cache size", current.regex.size(), Level.FINER);
+		list.add(compName, "Routing regex cache hits", regexCacheHits.sum(), Level.FINER);
+		list.add(compName, "Routing regex cache misses", regexCacheMisses.sum(), Level.FINER);
+	}
+
+	/**
+	 * Drops all cached routes, ie. after regex routings of any receiver were changed.
+	 */
+	public synchronized void invalidate() {
+		Routes current = routes;
+		routes = new Routes(current.byId, current.byName, current.receivers);
+		rebuilds.increment();
+	}
+
+	public void setMaxCacheSize(int maxCacheSize) {
+		this.maxCacheSize = maxCacheSize;
+	}
+
+	/**
+	 * Compiles a new snapshot of the routing table from the current set of components.
+	 */
+	public synchronized void update(Map<JID, ServerComponent> componentsById, Map<String, ServerComponent> componentsByName,
+					   Collection<MessageReceiver> receivers) {
+		routes = new Routes(Collections.unmodifiableMap(new HashMap<>(componentsById)),
+							Collections.unmodifiableMap(new HashMap<>(componentsByName)),
+							receivers.toArray(new MessageReceiver[receivers.size()]));
+		rebuilds.increment();
+	}
+
+	private <V> void putBounded(Map<String, V> cache, String key, V value) {
+		if (cache.size() >= maxCacheSize) {
+			// There is no point in keeping LRU order here, unbounded number of different
+			// addresses may only come from remote domains and those can be recomputed.
+			cache.clear();
+		}
+		cache.put(key, value);
+	}
+
+	/**
+	 * Immutable routing information for a single domain.
+	 */
+	public static final class DomainRoute {
+
+		private final String baseDomain;
+		private final VHostItem baseItem;
+		private final String domain;
+		private final VHostItem item;
+		private final ServerComponent[] localComponents;
+		private final ServerComponent[] nonLocalComponents;
+		private final ServerComponent subdomainComponent;
+
+		private DomainRoute(String domain, VHostManagerIfc vHostManager, String defDomain, Routes routes) {
+			this.domain = domain;
+			this.item = vHostManager == null ? null : vHostManager.getVHostItem(domain);
+
+			// Some components are addressed by component name + "." + domain name
+			int idx = domain.indexOf('.');
+			if (idx > 0) {
+				String cmpName = domain.substring(0, idx);
+				this.baseDomain = domain.substring(idx + 1);
+				this.baseItem = vHostManager == null ? null : vHostManager.getVHostItem(baseDomain);
+
+				ServerComponent comp = routes.byName.get(cmpName);
+				if ((comp != null) && (baseItem != null || baseDomain.equals(defDomain))) {
+					this.subdomainComponent = comp;
+				} else {
+					this.subdomainComponent = null;
+				}
+			} else {
+				this.baseDomain = null;
+				this.baseItem = null;
+				this.subdomainComponent = null;
+			}
+
+			if (vHostManager != null) {
+				this.localComponents = vHostManager.getComponentsForLocalDomain(domain);
+				this.nonLocalComponents = vHostManager.getComponentsForNonLocalDomain(domain);
+			} else {
+				this.localComponents = null;
+				this.nonLocalComponents = null;
+			}
+		}
+
+		/**
+		 * Returns components for local domain as returned by
+		 * {@link VHostManagerIfc#getComponentsForLocalDomain(String)}.
+		 */
+		public ServerComponent[] getLocalComponents() {
+			return localComponents;
+		}
+
+		/**
+		 * Returns components for non-local domain as returned by
+		 * {@link VHostManagerIfc#getComponentsForNonLocalDomain(String)}.
+		 */
+		public ServerComponent[] getNonLocalComponents() {
+			return nonLocalComponents;
+		}
+
+		/**
+		 * Returns component addressed as component name + "." + local domain or <code>null</code>.
+		 */
+		public ServerComponent getSubdomainComponent() {
+			return subdomainComponent;
+		}
+
+		@Override
+		public String toString() {
+			return "DomainRoute{local=" + Arrays.toString(localComponents) + ", nonLocal=" +
+					Arrays.toString(nonLocalComponents) + ", subdomainComponent=" + subdomainComponent + "}";
+		}
+
+		private boolean isValid(VHostManagerIfc vHostManager) {
+			if (vHostManager == null) {
+				return item == null && baseItem == null;
+			}
+			return vHostManager.getVHostItem(domain) == item &&
+					(baseDomain == null || vHostManager.getVHostItem(baseDomain) == baseItem);
+		}
+	}
+
+	private static final class Routes {
+
+		private final Map<JID, ServerComponent> byId;
+		private final Map<String, ServerComponent> byName;
+		private final Map<String, DomainRoute> domains = new ConcurrentHashMap<>();
+		private final MessageReceiver[] receivers;
+		private final Map<String, ServerComponent[]> regex = new ConcurrentHashMap<>();
+
+		private Routes(Map<JID, ServerComponent> byId, Map<String, ServerComponent> byName,
+					   MessageReceiver[] receivers) {
+			this.byId = byId;
+			this.byName = byName;
+			this.receivers = receivers;
+		}
+
+		private ServerComponent[] computeRegex(String address) {
+			List<ServerComponent> comps = null;
+
+			for (MessageReceiver mr : receivers) {
+				if (mr.isInRegexRoutings(address)) {
+					if (comps == null) {
+						comps = new ArrayList<>(1);
+					}
+					comps.add(mr);
+				}
+			}
+
+			return comps == null ? NO_COMPONENTS : comps.toArray(new ServerComponent[comps.size()]);
+		}
+	}
+}
@@ -0,0 +1,223 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.util.workqueue;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Priority queue with the same semantics as {@link PriorityQueueRelaxed} but without any shared monitor.
+ * <br>
+ * Each priority is backed by a lock-free multi-producer, single-consumer linked queue, so producers only ever
+ * perform a single atomic swap to enqueue an element. The consumer thread parks itself when all priorities are empty
+ * and is woken up by a producer which observes it waiting.
+ * <br>
+ * <strong>Only a single thread may call {@link #take()}</strong>, which is how queues are used by
+ * {@link tigase.server.AbstractMessageReceiver} - each queue has exactly one {@code QueueListener} thread.
+ */
+public class PriorityQueueLockFree<E>
+		extends PriorityQueueAbstract<E> {
+
+	private static final long PUT_BACKOFF_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+	private volatile int maxSize = Integer.MAX_VALUE;
+	private Lane<E>[] qs = null;
+	private volatile Thread waiter = null;
+
+	public PriorityQueueLockFree() {
+	}
+
+	protected PriorityQueueLockFree(int maxPriority, int maxSize) {
+		init(maxPriority, maxSize);
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public final void init(int maxPriority, int maxSize) {
+		this.maxSize = maxSize;
+		qs = new Lane[maxPriority];
+		for (int i = 0; i < qs.length; i++) {
+			qs[i] = new Lane<E>();
+		}
+	}
+
+	@Override
+	public boolean offer(E element, int priority) {
+		checkPriority(priority);
+
+		// Same as PriorityQueueRelaxed - if the queue for given priority is full
+		// we try to put the element to the queue for the next lower priority
+		for (int i = priority; i < qs.length; i++) {
+			if (qs[i].offer(element, maxSize)) {
+				signalNotEmpty();
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public void put(E element, int priority) throws InterruptedException {
+		checkPriority(priority);
+
+		Lane<E> q = qs[priority];
+		while (!q.offer(element, maxSize)) {
+			LockSupport.parkNanos(this, PUT_BACKOFF_NANOS);
+			if (Thread.interrupted()) {
+				throw new InterruptedException();
+			}
+		}
+		signalNotEmpty();
+	}
+
+	@Override
+	public void setMaxSize(int maxSize) {
+		// Lanes are unbounded linked queues so there is nothing to copy,
+		// we only change the limit checked on insert.
+		this.maxSize = maxSize;
+	}
+
+	@Override
+	public int[] size() {
+		int[] result = new int[qs.length];
+
+		for (int i = 0; i < result.length; i++) {
+			result[i] = qs[i].size();
+		}
+
+		return result;
+	}
+
+	@Override
+	public E take() throws InterruptedException {
+		E e = poll();
+
+		while (e == null) {
+			waiter = Thread.currentThread();
+			// Re-check after publishing waiter, otherwise we could miss the signal
+			// from a producer which added an element just before we set the field.
+			e = poll();
+			if (e == null) {
+				LockSupport.park(this);
+				e = poll();
+			}
+			waiter = null;
+			if (e == null && Thread.interrupted()) {
+				throw new InterruptedException();
+			}
+		}
+
+		return e;
+	}
+
+	@Override
+	public int totalSize() {
+		int result = 0;
+
+		for (int i = 0; i < qs.length; i++) {
+			result += qs[i].size();
+		}
+
+		return result;
+	}
+
+	private void checkPriority(int priority) {
+		if ((priority < 0) || (qs.length <= priority)) {
+			throw new IllegalArgumentException("parameter priority must be " + "between 0 and " + (qs.length - 1));
+		}
+	}
+
+	private E poll() {
+		for (int i = 0; i < qs.length; i++) {
+			E e = qs[i].poll();
+			if (e != null) {
+				return e;
+			}
+		}
+		return null;
+	}
+
+	private void signalNotEmpty() {
+		Thread w = waiter;
+		if (w != null) {
+			LockSupport.unpark(w);
+		}
+	}
+
+	private static final class Node<E> {
+
+		private volatile Node<E> next;
+		private E value;
+
+		private Node(E value) {
+			this.value = value;
+		}
+	}
+
+	/**
+	 * Unbounded multi-producer, single-consumer linked queue (Vyukov's algorithm) with an additional counter used to
+	 * enforce the configured maximal size.
+	 */
+	private static final class Lane<E> {
+
+		private final AtomicInteger count = new AtomicInteger(0);
+		private final AtomicReference<Node<E>> tail;
+		// accessed only by the consumer thread
+		private Node<E> head;
+
+		private Lane() {
+			head = new Node<E>(null);
+			tail = new AtomicReference<>(head);
+		}
+
+		private boolean offer(E element, int maxSize) {
+			if (element == null) {
+				throw new NullPointerException();
+			}
+			if (count.incrementAndGet() > maxSize) {
+				count.decrementAndGet();
+				return false;
+			}
+
+			Node<E> node = new Node<E>(element);
+			Node<E> prev = tail.getAndSet(node);
+			// Between getAndSet and this write the consumer may see the queue as empty,
+			// that is fine as the producer will signal the consumer after linking the node.
+			prev.next = node;
+			return true;
+		}
+
+		private E poll() {
+			Node<E> next = head.next;
+			if (next == null) {
+				return null;
+			}
+			E e = next.value;
+			next.value = null;
+			head = next;
+			count.decrementAndGet();
+			return e;
+		}
+
+		private int size() {
+			return count.get();
+		}
+	}
+}
@@ -344,6 +344,34 @@ public abstract class RepositoryAccess {
 		// return null;
 	}
 
+	/**
+	 * This method retrieves all <code>(key, value)</code> pairs stored in the given subnode with a single call to the
+	 * repository.
+	 *
+	 * @param subnode a <code>String</code> value of path to node where data are stored.
+	 *
+	 * @return a <code>Map</code> containing all data found in given subnode.
+	 *
+	 * @throws NotAuthorizedException is thrown when session has not been authorized yet and there is no access to
+	 * permanent storage.
+	 * @see #setData(String, String, String)
+	 */
+	public Map<String, String> getDataMap(final String subnode) throws NotAuthorizedException, TigaseDBException {
+		if (is_anonymous) {
+			return Collections.emptyMap();
+		}
+		if (!isAuthorized()) {
+			throw new NotAuthorizedException(NO_ACCESS_TO_REP_MSG);
+		}
+		try {
+			return repo.getDataMap(getBareJID(), subnode);
+		} catch (UserNotFoundException e) {
+			log.log(Level.FINEST, "Problem accessing reposiotry: ", e);
+
+			throw new NotAuthorizedException(NO_ACCESS_TO_REP_MSG, e);
+		}    // end of try-catch
+	}
+
 	/**
 	 * This method allows to retrieve list of values associated with one key. As it is possible to store many values
 	 * with one key there are a few methods which provides this functionality. If given key does not exists in given
@@ -44,6 +44,7 @@ public class XMPPDomBuilderHandler<RefObject>
 	private static final Logger log = Logger.getLogger(XMPPDomBuilderHandler.class.getName());
 
 	private static final String ELEM_STREAM_STREAM = "stream:stream";
+	private static final String XMLNS_PREFIX = "xmlns:";
 	private static ElementFactory defaultFactory = new DefaultElementFactory();
 
 	private ArrayDeque<Element> all_roots = new ArrayDeque<>(1);
@@ -203,11 +204,11 @@ public class XMPPDomBuilderHandler<RefObject>
 					break;
 				}
 
-				if (attr_names[i].toString().startsWith("xmlns:")) {
+				if (isNamespaceDeclaration(attr_names[i])) {
 
 					// TODO should use a StringCache instead of intern() to avoid potential
 					// DOS by exhausting permgen
-					namespaces.put(attr_names[i].substring("xmlns:".length(), attr_names[i].length()).intern(),
+					namespaces.put(attr_names[i].substring(XMLNS_PREFIX.length(), attr_names[i].length()).intern(),
 								   attr_values[i].toString());
 
 					if (log.isLoggable(Level.FINEST)) {
@@ -293,6 +294,19 @@ public class XMPPDomBuilderHandler<RefObject>
 		el_stack.push(elem);
 	}
 
+	private static boolean isNamespaceDeclaration(StringBuilder attr_name) {
+		// checked without converting the name to String, as most attributes are not declarations
+		if (attr_name.length() < XMLNS_PREFIX.length()) {
+			return false;
+		}
+		for (int i = 0; i < XMLNS_PREFIX.length(); i++) {
+			if (attr_name.charAt(i) != XMLNS_PREFIX.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
 	private Element newElement(String name, String cdata, StringBuilder[] attnames, StringBuilder[] attvals) {
 		++elements_number_limit_count;
 		Element el = customFactory.elementInstance(name, cdata, attnames, attvals);
@@ -28,6 +28,8 @@ import tigase.xml.SimpleParser;
 import tigase.xml.SingletonFactory;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Map;
@@ -91,6 +93,11 @@ public class XMPPIOService<RefObject>
 	@SuppressWarnings("rawtypes")
 	protected XMPPIOServiceListener serviceListener = null;
 	private boolean strict_ack = false;
+	/**
+	 * Parser of data read from the socket as bytes, <code>null</code> if data are decoded to characters and parsed by
+	 * <code>SimpleParser</code>.
+	 */
+	private XMPPStreamParser streamParser = null;
 	private long totalPacketsReceived = 0;
 	private long totalPacketsSent = 0;
 	private ConcurrentSkipListMap<String, Packet> waitingForAck = new ConcurrentSkipListMap<String, Packet>();
@@ -233,7 +240,7 @@ public class XMPPIOService<RefObject>
 			if (log.isLoggable(Level.FINEST)) {
 				log.log(Level.FINEST, "{0}, Sending packet: {1}", new Object[]{toString(), packet});
 			}
-			writeRawData(packet.getElement().toString());
+			writePacket(packet);
 
 			// and after sending it we should remove it to minimalize chances of lost packets
 			waitingPackets.poll();
@@ -243,6 +250,9 @@ public class XMPPIOService<RefObject>
 			}
 		}    // end of while (packet = waitingPackets.poll() != null)
 
+		// packets are coalesced in the output buffer, so we have to send them now
+		flushData();
+
 		// notify io processors that all waiting packets were sent
 		if (processors != null) {
 			for (XMPPIOProcessor processor : processors) {
@@ -266,6 +276,17 @@ public class XMPPIOService<RefObject>
 		return super.toString() + ", jid: " + jid;
 	}
 
+	/**
+	 * Method writes a packet waiting to be sent. By default packet is only encoded to the output buffer of the
+	 * connection, which is flushed after all waiting packets are processed. Services which wrap data sent to the socket
+	 * (ie. in protocol frames) should override this method and use {@link #writeRawData(String)}.
+	 *
+	 * @param packet to write
+	 */
+	protected void writePacket(Packet packet) throws IOException {
+		bufferData(packet.getElement().toString());
+	}
+
 	public void writeRawData(String data) throws IOException {
 
 		// We change state of this object in this method
@@ -368,6 +389,17 @@ public class XMPPIOService<RefObject>
 
 	}
 
+	/**
+	 * Enables parsing of data read from the socket directly from UTF-8 encoded bytes, without decoding them to
+	 * characters first. It has no effect if the service does not support it and should be called before the service
+	 * starts reading data.
+	 *
+	 * @param byteParsing <code>true</code> to parse bytes with {@link XMPPStreamParser}
+	 */
+	public void setByteParsing(boolean byteParsing) {
+		streamParser = (byteParsing && isByteParsingSupported()) ? new XMPPStreamParser(domHandler) : null;
+	}
+
 	@SuppressWarnings({"unchecked", "rawtypes"})
 	public void setIOServiceListener(XMPPIOServiceListener servList) {
 		this.serviceListener = servList;
@@ -455,75 +487,158 @@ public class XMPPIOService<RefObject>
 		// readLock.lock();
 		// try {
 		if (isConnected()) {
+			if (streamParser != null) {
+				ByteBuffer data = readBytes();
+
+				while (isConnected() && (data != null)) {
+					try {
+						if (!processData(data)) {
+							return;
+						}
+					} finally {
+						data.clear();
+					}
+					data = readBytes();
+				}
+				return;
+			}
+
 			char[] data = readData();
 
 			while (isConnected() && (data != null) && (data.length > 0)) {
-				if (log.isLoggable(Level.FINEST)) {
-					log.log(Level.FINEST, "{0}, READ:{1}", new Object[]{toString(), new String(data)});
+				if (!processData(data)) {
+					return;
 				}
+				data = readData();
+			}
+		} else {
+			if (log.isLoggable(Level.FINE)) {
+				log.log(Level.FINE, "{0}, function called when the service is not connected! forceStop()", toString());
+			}
+			forceStop();
+		}
+	}
 
-				boolean disconnect = checkData(data);
-
-				if (disconnect) {
-					if (log.isLoggable(Level.FINE)) {
-						log.log(Level.FINE, "{0}, checkData says disconnect: {1}",
-								new Object[]{toString(), new String(data)});
-					} else {
-						log.log(Level.INFO, "{0}, checkData says disconnect", toString());
-					}
-					forceStop();
+	/**
+	 * Method parses data read from the socket and moves parsed packets to the queue of received packets.
+	 *
+	 * @param data read from the socket
+	 *
+	 * @return <code>false</code> if connection was stopped because of invalid data
+	 */
+	protected boolean processData(char[] data) throws IOException {
+		if (log.isLoggable(Level.FINEST)) {
+			log.log(Level.FINEST, "{0}, READ:{1}", new Object[]{toString(), new String(data)});
+		}
 
-					return;
+		boolean disconnect = checkData(data);
 
-					// domHandler = new XMPPDomBuilderHandler<RefObject>(this);
-				}
+		if (disconnect) {
+			if (log.isLoggable(Level.FINE)) {
+				log.log(Level.FINE, "{0}, checkData says disconnect: {1}",
+						new Object[]{toString(), new String(data)});
+			} else {
+				log.log(Level.INFO, "{0}, checkData says disconnect", toString());
+			}
+			forceStop();
 
-				// This is log for debugging only,
-				// in normal mode don't even call below code
-				assert debug(new String(data), "--RECEIVED:");
+			return false;
+		}
 
-				try {
-					parser.parse(domHandler, data, 0, data.length);
-					if (domHandler.parseError()) {
-						if (log.isLoggable(Level.FINE)) {
-							log.log(Level.FINE, "{0}, Data parsing error: {1}",
-									new Object[]{toString(), StringUtilities.convertNonPrintableCharactersToLiterals(new String(data))});
-						} else {
-							log.log(Level.INFO, "{0}, data parsing error, stopping connection", toString());
-						}
-						if (serviceListener != null) {
-							Element err = new Element("not-well-formed", new String[]{"xmlns"},
-													  new String[]{"urn:ietf:params:xml:ns:xmpp-streams"});
-							String streamErrorStr = serviceListener.xmppStreamError(this,
-																					Collections.singletonList(err));
-							writeRawData(streamErrorStr);
-						}
-						forceStop();
+		// This is log for debugging only,
+		// in normal mode don't even call below code
+		assert debug(new String(data), "--RECEIVED:");
 
-						return;
+		try {
+			parser.parse(domHandler, data, 0, data.length);
+			if (domHandler.parseError()) {
+				parsingFailed(new String(data));
 
-						// domHandler = new XMPPDomBuilderHandler<RefObject>(this);
-					}
+				return false;
+			}
 
-					moveParsedPacketsToReceived(true);
-				} catch (Exception ex) {
-					log.log(Level.INFO,
-							toString() + ", Incorrect XML data: " + new String(data) + ", stopping connection: " +
-									getConnectionId() + ", exception: ", ex);
-					forceStop();
-				} finally {
-					if (domHandler.isStreamClosed()) {
-						xmppStreamClosed();
-					}
-				}  // end of try-catch
-				data = readData();
+			moveParsedPacketsToReceived(true);
+		} catch (Exception ex) {
+			log.log(Level.INFO,
+					toString() + ", Incorrect XML data: " + new String(data) + ", stopping connection: " +
+							getConnectionId() + ", exception: ", ex);
+			forceStop();
+		} finally {
+			if (domHandler.isStreamClosed()) {
+				xmppStreamClosed();
 			}
-		} else {
-			if (log.isLoggable(Level.FINE)) {
-				log.log(Level.FINE, "{0}, function called when the service is not connected! forceStop()", toString());
+		}  // end of try-catch
+
+		return true;
+	}
+
+	/**
+	 * Method parses UTF-8 encoded data read from the socket and moves parsed packets to the queue of received packets.
+	 * Data are parsed incrementally, so the buffer may end in the middle of an element or a character.
+	 *
+	 * @param data read from the socket
+	 *
+	 * @return <code>false</code> if connection was stopped because of invalid data
+	 */
+	protected boolean processData(ByteBuffer data) throws IOException {
+		int start = data.position();
+
+		if (log.isLoggable(Level.FINEST)) {
+			log.log(Level.FINEST, "{0}, READ:{1}", new Object[]{toString(), decode(data, start)});
+		}
+
+		// data which cannot be a beginning of XML stream, ie. TLS handshake sent to plain socket
+		if (!streamParser.isStarted() && data.hasRemaining() && data.get(start) != '<' &&
+				handleUnexpectedInput(data)) {
+			return true;
+		}
+
+		// This is log for debugging only,
+		// in normal mode don't even call below code
+		assert debug(decode(data, start), "--RECEIVED:");
+
+		try {
+			streamParser.parse(data);
+			if (domHandler.parseError()) {
+				parsingFailed(decode(data, start));
+
+				return false;
 			}
+
+			moveParsedPacketsToReceived(true);
+		} catch (Exception ex) {
+			log.log(Level.INFO,
+					toString() + ", Incorrect XML data: " + decode(data, start) + ", stopping connection: " +
+							getConnectionId() + ", exception: ", ex);
 			forceStop();
-		}
+		} finally {
+			if (domHandler.isStreamClosed()) {
+				xmppStreamClosed();
+			}
+		}  // end of try-catch
+
+		return true;
+	}
+
+	/**
+	 * Method called when data read from the socket as bytes cannot be a beginning of an XML stream.
+	 *
+	 * @param data read from the socket
+	 *
+	 * @return <code>true</code> if data was handled and should not be parsed
+	 */
+	protected boolean handleUnexpectedInput(ByteBuffer data) {
+		return false;
+	}
+
+	/**
+	 * Checks if the service may parse data read from the socket as bytes. Services which need data decoded to
+	 * characters, ie. to check or unwrap it before parsing, should return <code>false</code>.
+	 *
+	 * @return <code>true</code> if {@link #setByteParsing(boolean)} may be used
+	 */
+	protected boolean isByteParsingSupported() {
+		return true;
 	}
 
 	@Override
@@ -676,6 +791,28 @@ public class XMPPIOService<RefObject>
 		}    // end of while ((elem = elems.poll()) != null)
 	}
 
+	private String decode(ByteBuffer data, int start) {
+		ByteBuffer tmp = data.duplicate();
+		tmp.position(start);
+		return StandardCharsets.UTF_8.decode(tmp).toString();
+	}
+
+	private void parsingFailed(String data) throws IOException {
+		if (log.isLoggable(Level.FINE)) {
+			log.log(Level.FINE, "{0}, Data parsing error: {1}",
+					new Object[]{toString(), StringUtilities.convertNonPrintableCharactersToLiterals(data)});
+		} else {
+			log.log(Level.INFO, "{0}, data parsing error, stopping connection", toString());
+		}
+		if (serviceListener != null) {
+			Element err = new Element("not-well-formed", new String[]{"xmlns"},
+									  new String[]{"urn:ietf:params:xml:ns:xmpp-streams"});
+			String streamErrorStr = serviceListener.xmppStreamError(this, Collections.singletonList(err));
+			writeRawData(streamErrorStr);
+		}
+		forceStop();
+	}
+
 	/**
 	 * This method sets the time of last received XMPP packet, it is used to help detect dead connections.
 	 */
@@ -0,0 +1,712 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.xmpp;
+
+import tigase.xml.SimpleHandler;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Incremental parser of XMPP streams reading UTF-8 encoded data directly from network buffers.
+ * <br>
+ * Unlike <code>SimpleParser</code>, which requires data decoded to characters, this parser decodes UTF-8 while
+ * tokenizing data, so bytes read from the socket do not have to be copied to a temporary array of characters. Whole
+ * state of the parser (including incomplete multi-byte characters, names and attribute values) is kept between calls,
+ * so data may be split at any byte. Builders passed to the handler are reused and names of elements and attributes
+ * commonly used in XMPP are copied from interned constants instead of being decoded.
+ * <br>
+ * Parser reports the same events to <code>SimpleHandler</code> as <code>SimpleParser</code>. Character data and
+ * attribute values are passed as received, without resolving entities, and only predefined entities and character
+ * references are accepted. Processing instructions and comments are reported as other XML, content of CDATA sections
+ * is reported as escaped character data and document type declarations are not allowed.
+ * <br>
+ * Instance of the parser is not thread-safe and should be used for a single stream.
+ */
+public class XMPPStreamParser {
+
+	public static final int MAX_ATTRIBS_NUMBER = 50;
+
+	public static final int MAX_ATTRIBUTE_VALUE_SIZE = 10 * 1024;
+
+	public static final int MAX_CDATA_SIZE = 1024 * 1024;
+
+	public static final int MAX_NAME_SIZE = 1024;
+
+	private static final String CDATA_SECTION_START = "[CDATA[";
+	private static final String COMMENT_START = "--";
+	private static final String[] COMMON_NAMES = {"stream:stream", "stream:features", "stream:error", "iq",
+												  "message", "presence", "body", "subject", "thread", "show",
+												  "status", "priority", "query", "item", "error", "x", "c",
+												  "delay", "bind", "resource", "jid", "session", "starttls",
+												  "proceed", "auth", "mechanisms", "mechanism", "challenge",
+												  "response", "success", "failure", "enable", "enabled", "r", "a",
+												  "ping", "vCard", "compress", "compressed", "method", "db:result",
+												  "db:verify", "text", "group", "active", "inactive", "composing",
+												  "paused", "gone", "request", "received", "forwarded", "result",
+												  "set", "feature", "identity", "field", "value", "xmlns",
+												  "xmlns:stream", "xmlns:db", "to", "from", "id", "type",
+												  "version", "xml:lang", "node", "ver", "hash", "name",
+												  "subscription", "ask", "code", "h", "stamp", "category", "var",
+												  "label", "action", "sessionid"};
+	private static final int MAX_ENTITY_SIZE = 10;
+	/**
+	 * Builders which grew over this size are replaced after use, so idle connections do not keep large buffers.
+	 */
+	private static final int MAX_RETAINED_CAPACITY = 4 * 1024;
+	private static final String[] NAMES;
+	private static final byte[][] NAMES_BYTES;
+	private static final int NAMES_MASK;
+
+	static {
+		int size = Integer.highestOneBit(COMMON_NAMES.length * 4);
+		NAMES = new String[size];
+		NAMES_BYTES = new byte[size][];
+		NAMES_MASK = size - 1;
+		for (String name : COMMON_NAMES) {
+			byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+			int hash = 0;
+			for (byte b : bytes) {
+				hash = 31 * hash + b;
+			}
+			if (commonName(bytes, bytes.length, hash) == null) {
+				int idx = spread(hash) & NAMES_MASK;
+				while (NAMES[idx] != null) {
+					idx = (idx + 1) & NAMES_MASK;
+				}
+				NAMES[idx] = name.intern();
+				NAMES_BYTES[idx] = bytes;
+			}
+		}
+	}
+
+	private final SimpleHandler handler;
+	private int attrCount = 0;
+	private StringBuilder[] attrNames = new StringBuilder[4];
+	private StringBuilder[] attrNamesArg = new StringBuilder[5];
+	private StringBuilder[] attrValues = new StringBuilder[4];
+	private StringBuilder[] attrValuesArg = new StringBuilder[5];
+	private StringBuilder cdata = new StringBuilder(64);
+	private int cdataSectionStart = 0;
+	private int depth = 0;
+	private final StringBuilder elementName = new StringBuilder(16);
+	/**
+	 * Position of the last <code>&amp;</code> in the current builder or <code>-1</code> if there is no entity being
+	 * parsed.
+	 */
+	private int entityStart = -1;
+	private byte[] nameBytes = new byte[32];
+	private int nameHash = 0;
+	private int nameLength = 0;
+	private StringBuilder other = new StringBuilder(16);
+	private int quote = 0;
+	private boolean started = false;
+	private State state = State.TEXT;
+	private int utf8CodePoint = 0;
+	private int utf8MinCodePoint = 0;
+	private int utf8Remaining = 0;
+
+	private static String commonName(byte[] bytes, int length, int hash) {
+		int idx = spread(hash) & NAMES_MASK;
+		String name;
+		while ((name = NAMES[idx]) != null) {
+			byte[] nameBytes = NAMES_BYTES[idx];
+			if (nameBytes.length == length) {
+				int i = 0;
+				while (i < length && nameBytes[i] == bytes[i]) {
+					i++;
+				}
+				if (i == length) {
+					return name;
+				}
+			}
+			idx = (idx + 1) & NAMES_MASK;
+		}
+		return null;
+	}
+
+	private static boolean endsWith(StringBuilder sb, int from, String suffix) {
+		int start = sb.length() - suffix.length();
+		if (start < from) {
+			return false;
+		}
+		for (int i = 0; i < suffix.length(); i++) {
+			if (sb.charAt(start + i) != suffix.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean isNameTerminator(int b) {
+		switch (b) {
+			case '<':
+			case '>':
+			case '/':
+			case '=':
+			case '\'':
+			case '"':
+			case '&':
+				return true;
+			default:
+				return isWhitespace(b);
+		}
+	}
+
+	private static boolean isPrefix(StringBuilder sb, String str) {
+		if (sb.length() > str.length()) {
+			return false;
+		}
+		for (int i = 0; i < sb.length(); i++) {
+			if (sb.charAt(i) != str.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean isValidEntity(StringBuilder sb, int from) {
+		int length = sb.length() - from;
+		if (length >= 2 && sb.charAt(from) == '#') {
+			int i = from + 1;
+			boolean hex = sb.charAt(i) == 'x';
+			if (hex && ++i == sb.length()) {
+				return false;
+			}
+			for (; i < sb.length(); i++) {
+				char c = sb.charAt(i);
+				if (!((c >= '0' && c <= '9') || (hex && ((c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F'))))) {
+					return false;
+				}
+			}
+			return true;
+		}
+		return regionEquals(sb, from, "amp") || regionEquals(sb, from, "lt") || regionEquals(sb, from, "gt") ||
+				regionEquals(sb, from, "quot") || regionEquals(sb, from, "apos");
+	}
+
+	private static boolean isWhitespace(int b) {
+		return b == ' ' || b == '\n' || b == '\r' || b == '\t';
+	}
+
+	private static boolean regionEquals(StringBuilder sb, int from, String str) {
+		if (sb.length() - from != str.length()) {
+			return false;
+		}
+		for (int i = 0; i < str.length(); i++) {
+			if (sb.charAt(from + i) != str.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static StringBuilder reset(StringBuilder sb) {
+		if (sb.capacity() > MAX_RETAINED_CAPACITY) {
+			return new StringBuilder(64);
+		}
+		sb.setLength(0);
+		return sb;
+	}
+
+	private static int spread(int hash) {
+		return hash ^ (hash >>> 16);
+	}
+
+	public XMPPStreamParser(SimpleHandler handler) {
+		this.handler = handler;
+	}
+
+	/**
+	 * Checks if any data was passed to the parser.
+	 *
+	 * @return <code>true</code> if parser received at least one byte
+	 */
+	public boolean isStarted() {
+		return started;
+	}
+
+	/**
+	 * Parses all remaining bytes of the buffer and moves its position to the limit. After an error is reported to the
+	 * handler, all following data is ignored.
+	 *
+	 * @param data buffer with UTF-8 encoded data
+	 */
+	public void parse(ByteBuffer data) {
+		int limit = data.limit();
+		int pos = data.position();
+		if (pos < limit) {
+			started = true;
+		}
+		int i = pos;
+		while (i < limit && state != State.ERROR) {
+			if (utf8Remaining == 0 && entityStart < 0) {
+				// runs of plain ASCII characters are copied without going through the state machine
+				if (state == State.TEXT) {
+					i = depth > 0 ? copyText(data, i, limit, cdata, '<', MAX_CDATA_SIZE) : skipText(data, i, limit);
+				} else if (state == State.ATTR_VALUE) {
+					i = copyText(data, i, limit, attrValues[attrCount], quote, MAX_ATTRIBUTE_VALUE_SIZE);
+				}
+				if (i == limit || state == State.ERROR) {
+					break;
+				}
+			}
+			parseByte(data.get(i++) & 0xFF);
+		}
+		data.position(limit);
+	}
+
+	private void addNameByte(int b) {
+		if (nameLength == MAX_NAME_SIZE) {
+			error("Name is too long");
+			return;
+		}
+		if (nameLength == nameBytes.length) {
+			nameBytes = Arrays.copyOf(nameBytes, Math.min(nameLength * 2, MAX_NAME_SIZE));
+		}
+		nameBytes[nameLength++] = (byte) b;
+		nameHash = 31 * nameHash + (byte) b;
+	}
+
+	/**
+	 * Decodes byte of UTF-8 encoded data and appends decoded character to the builder.
+	 */
+	private void appendByte(StringBuilder sb, int b, int maxSize) {
+		if (utf8Remaining == 0) {
+			if (b < 0x80) {
+				sb.append((char) b);
+			} else if (b >= 0xC2 && b <= 0xDF) {
+				startCharacter(b & 0x1F, 1, 0x80);
+			} else if (b >= 0xE0 && b <= 0xEF) {
+				startCharacter(b & 0x0F, 2, 0x800);
+			} else if (b >= 0xF0 && b <= 0xF4) {
+				startCharacter(b & 0x07, 3, 0x10000);
+			} else {
+				error("Malformed UTF-8 data");
+				return;
+			}
+		} else {
+			if ((b & 0xC0) != 0x80) {
+				error("Malformed UTF-8 data");
+				return;
+			}
+			utf8CodePoint = (utf8CodePoint << 6) | (b & 0x3F);
+			if (--utf8Remaining == 0) {
+				if (utf8CodePoint < utf8MinCodePoint || utf8CodePoint > Character.MAX_CODE_POINT ||
+						(utf8CodePoint >= Character.MIN_SURROGATE && utf8CodePoint <= Character.MAX_SURROGATE)) {
+					error("Malformed UTF-8 data");
+					return;
+				}
+				sb.appendCodePoint(utf8CodePoint);
+			}
+		}
+		if (sb.length() > maxSize) {
+			error("Data exceeded maximum size of " + maxSize);
+		}
+	}
+
+	/**
+	 * Appends byte of character data or attribute value, validating entities.
+	 */
+	private void appendText(StringBuilder sb, int b, int maxSize) {
+		if (b == '&') {
+			if (entityStart >= 0) {
+				error("Invalid entity: " + sb.substring(entityStart));
+				return;
+			}
+			entityStart = sb.length();
+		} else if (entityStart >= 0) {
+			if (b == ';') {
+				if (!isValidEntity(sb, entityStart + 1)) {
+					error("Invalid entity: " + sb.substring(entityStart));
+					return;
+				}
+				entityStart = -1;
+			} else if (sb.length() - entityStart > MAX_ENTITY_SIZE) {
+				error("Invalid entity: " + sb.substring(entityStart));
+				return;
+			}
+		}
+		appendByte(sb, b, maxSize);
+	}
+
+	private boolean checkTextCompleted() {
+		if (entityStart >= 0) {
+			error("Incomplete entity");
+			return false;
+		}
+		if (utf8Remaining > 0) {
+			error("Malformed UTF-8 data");
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Copies ASCII characters to the builder until a character which has to be processed by the state machine.
+	 *
+	 * @return index of the first byte which was not copied
+	 */
+	private int copyText(ByteBuffer data, int from, int limit, StringBuilder sb, int stop, int maxSize) {
+		int i = from;
+		while (i < limit) {
+			byte b = data.get(i);
+			if (b < 0 || b == stop || b == '<' || b == '&') {
+				break;
+			}
+			sb.append((char) b);
+			i++;
+		}
+		if (sb.length() > maxSize) {
+			error("Data exceeded maximum size of " + maxSize);
+		}
+		return i;
+	}
+
+	private void endElement() {
+		if (depth > 0) {
+			--depth;
+		}
+		if (!handler.endElement(elementName)) {
+			error("Malformed XML: element close tag does not match the tag: " + elementName);
+		}
+	}
+
+	private void error(String message) {
+		state = State.ERROR;
+		handler.error(message);
+	}
+
+	private void finishAttributeName() {
+		if (attrCount == MAX_ATTRIBS_NUMBER) {
+			error("Too many attributes of element: " + elementName);
+			return;
+		}
+		if (attrCount == attrNames.length) {
+			int size = attrCount * 2;
+			attrNames = Arrays.copyOf(attrNames, size);
+			attrValues = Arrays.copyOf(attrValues, size);
+			attrNamesArg = new StringBuilder[size + 1];
+			attrValuesArg = new StringBuilder[size + 1];
+		}
+		if (attrNames[attrCount] == null) {
+			attrNames[attrCount] = new StringBuilder(16);
+			attrValues[attrCount] = new StringBuilder(32);
+		}
+		finishName(attrNames[attrCount]);
+	}
+
+	private void finishAttributeValue() {
+		if (checkTextCompleted()) {
+			++attrCount;
+			state = State.ATTRS;
+		}
+	}
+
+	private void finishName(StringBuilder sb) {
+		sb.setLength(0);
+		String name = commonName(nameBytes, nameLength, nameHash);
+		if (name != null) {
+			sb.append(name);
+		} else {
+			for (int i = 0; i < nameLength && state != State.ERROR; i++) {
+				appendByte(sb, nameBytes[i] & 0xFF, MAX_NAME_SIZE);
+			}
+			if (utf8Remaining > 0) {
+				error("Malformed UTF-8 data");
+			}
+		}
+		nameLength = 0;
+		nameHash = 0;
+	}
+
+	private void flushCData() {
+		if (cdata.length() > 0) {
+			handler.elementCData(cdata);
+			cdata = reset(cdata);
+		}
+	}
+
+	private void parseByte(int b) {
+		switch (state) {
+			case TEXT:
+				if (b == '<') {
+					if (checkTextCompleted()) {
+						state = State.TAG_OPEN;
+					}
+				} else if (depth > 0) {
+					appendText(cdata, b, MAX_CDATA_SIZE);
+				}
+				break;
+
+			case TAG_OPEN:
+				if (b == '!') {
+					other = reset(other);
+					state = State.MARKUP;
+					break;
+				}
+				flushCData();
+				if (b == '/') {
+					state = State.END_NAME;
+				} else if (b == '?') {
+					other = reset(other);
+					state = State.PI;
+				} else if (isNameTerminator(b)) {
+					error("Malformed XML: invalid character after '<': " + (char) b);
+				} else {
+					attrCount = 0;
+					state = State.START_NAME;
+					addNameByte(b);
+				}
+				break;
+
+			case START_NAME:
+				if (isWhitespace(b)) {
+					finishName(elementName);
+					if (state != State.ERROR) {
+						state = State.ATTRS;
+					}
+				} else if (b == '/') {
+					finishName(elementName);
+					if (state != State.ERROR) {
+						state = State.EMPTY_TAG;
+					}
+				} else if (b == '>') {
+					finishName(elementName);
+					if (state != State.ERROR) {
+						state = State.TEXT;
+						startElement();
+					}
+				} else if (isNameTerminator(b)) {
+					error("Malformed XML: invalid character in element name: " + (char) b);
+				} else {
+					addNameByte(b);
+				}
+				break;
+
+			case ATTRS:
+				if (isWhitespace(b)) {
+					break;
+				}
+				if (b == '/') {
+					state = State.EMPTY_TAG;
+				} else if (b == '>') {
+					state = State.TEXT;
+					startElement();
+				} else if (isNameTerminator(b)) {
+					error("Malformed XML: invalid character in element: " + (char) b);
+				} else {
+					state = State.ATTR_NAME;
+					addNameByte(b);
+				}
+				break;
+
+			case ATTR_NAME:
+				if (isWhitespace(b) || b == '=') {
+					finishAttributeName();
+					if (state != State.ERROR) {
+						state = b == '=' ? State.ATTR_QUOTE : State.ATTR_EQ;
+					}
+				} else if (isNameTerminator(b)) {
+					error("Malformed XML: invalid character in attribute name: " + (char) b);
+				} else {
+					addNameByte(b);
+				}
+				break;
+
+			case ATTR_EQ:
+				if (b == '=') {
+					state = State.ATTR_QUOTE;
+				} else if (!isWhitespace(b)) {
+					error("Malformed XML: missing value of attribute: " + attrNames[attrCount]);
+				}
+				break;
+
+			case ATTR_QUOTE:
+				if (b == '\'' || b == '"') {
+					quote = b;
+					attrValues[attrCount] = reset(attrValues[attrCount]);
+					state = State.ATTR_VALUE;
+				} else if (!isWhitespace(b)) {
+					error("Malformed XML: missing quote in value of attribute: " + attrNames[attrCount]);
+				}
+				break;
+
+			case ATTR_VALUE:
+				if (b == quote) {
+					finishAttributeValue();
+				} else if (b == '<') {
+					error("Malformed XML: invalid character in value of attribute: " + attrNames[attrCount]);
+				} else {
+					appendText(attrValues[attrCount], b, MAX_ATTRIBUTE_VALUE_SIZE);
+				}
+				break;
+
+			case EMPTY_TAG:
+				if (b == '>') {
+					state = State.TEXT;
+					startElement();
+					endElement();
+				} else {
+					error("Malformed XML: invalid character after '/' in element: " + elementName);
+				}
+				break;
+
+			case END_NAME:
+				if (b == '>') {
+					finishName(elementName);
+					if (state != State.ERROR) {
+						state = State.TEXT;
+						endElement();
+					}
+				} else if (isWhitespace(b)) {
+					finishName(elementName);
+					if (state != State.ERROR) {
+						state = State.END_TAG;
+					}
+				} else if (isNameTerminator(b)) {
+					error("Malformed XML: invalid character in element name: " + (char) b);
+				} else {
+					addNameByte(b);
+				}
+				break;
+
+			case END_TAG:
+				if (b == '>') {
+					state = State.TEXT;
+					endElement();
+				} else if (!isWhitespace(b)) {
+					error("Malformed XML: invalid character in close tag of element: " + elementName);
+				}
+				break;
+
+			case PI:
+				if (b == '>' && utf8Remaining == 0 && endsWith(other, 0, "?")) {
+					other.setLength(other.length() - 1);
+					state = State.TEXT;
+					handler.otherXML(other);
+					other = reset(other);
+				} else {
+					appendByte(other, b, MAX_CDATA_SIZE);
+				}
+				break;
+
+			case MARKUP:
+				other.append((char) b);
+				if (regionEquals(other, 0, COMMENT_START)) {
+					flushCData();
+					other = reset(other);
+					state = State.COMMENT;
+				} else if (regionEquals(other, 0, CDATA_SECTION_START)) {
+					if (depth == 0) {
+						error("Malformed XML: CDATA section outside of element");
+					} else {
+						cdataSectionStart = cdata.length();
+						state = State.CDATA_SECTION;
+					}
+				} else if (!isPrefix(other, COMMENT_START) && !isPrefix(other, CDATA_SECTION_START)) {
+					error("Malformed XML: unsupported markup: <!" + other);
+				}
+				break;
+
+			case COMMENT:
+				if (b == '>' && utf8Remaining == 0 && endsWith(other, 0, COMMENT_START)) {
+					other.setLength(other.length() - 2);
+					state = State.TEXT;
+					handler.otherXML(other);
+					other = reset(other);
+				} else {
+					appendByte(other, b, MAX_CDATA_SIZE);
+				}
+				break;
+
+			case CDATA_SECTION:
+				if (utf8Remaining > 0 || b >= 0x80) {
+					appendByte(cdata, b, MAX_CDATA_SIZE);
+				} else if (b == '>' && endsWith(cdata, cdataSectionStart, "]]")) {
+					cdata.setLength(cdata.length() - 2);
+					state = State.TEXT;
+				} else if (b == '<') {
+					cdata.append("&lt;");
+				} else if (b == '>') {
+					cdata.append("&gt;");
+				} else if (b == '&') {
+					cdata.append("&amp;");
+				} else {
+					appendByte(cdata, b, MAX_CDATA_SIZE);
+				}
+				break;
+
+			default:
+				break;
+		}
+	}
+
+	/**
+	 * Skips data outside of elements, which is ignored by the handler anyway.
+	 *
+	 * @return index of the first <code>&lt;</code>
+	 */
+	private int skipText(ByteBuffer data, int from, int limit) {
+		int i = from;
+		while (i < limit && data.get(i) != '<') {
+			i++;
+		}
+		return i;
+	}
+
+	private void startCharacter(int bits, int remaining, int minCodePoint) {
+		utf8CodePoint = bits;
+		utf8Remaining = remaining;
+		utf8MinCodePoint = minCodePoint;
+	}
+
+	private void startElement() {
+		if (attrCount == 0) {
+			handler.startElement(elementName, null, null);
+		} else {
+			System.arraycopy(attrNames, 0, attrNamesArg, 0, attrCount);
+			System.arraycopy(attrValues, 0, attrValuesArg, 0, attrCount);
+			// handler stops reading attributes at the first null
+			attrNamesArg[attrCount] = null;
+			attrValuesArg[attrCount] = null;
+			handler.startElement(elementName, attrNamesArg, attrValuesArg);
+		}
+		++depth;
+	}
+
+	private enum State {
+		TEXT,
+		TAG_OPEN,
+		START_NAME,
+		ATTRS,
+		ATTR_NAME,
+		ATTR_EQ,
+		ATTR_QUOTE,
+		ATTR_VALUE,
+		EMPTY_TAG,
+		END_NAME,
+		END_TAG,
+		PI,
+		MARKUP,
+		COMMENT,
+		CDATA_SECTION,
+		ERROR
+	}
+}
@@ -75,6 +75,8 @@ public class JabberIqRoster
 	private boolean emptyNameAllowed = false;
 	@ConfigField(desc = "Max roster size", alias = "max_roster_size")
 	private int maxRosterSize = 0;
+	@ConfigField(desc = "Number of stored roster changes after which roster is compacted", alias = "roster-compaction-threshold")
+	private int rosterCompactionThreshold = RosterFlatIncremental.ROSTER_COMPACTION_THRESHOLD_DEF;
 
 	/**
 	 * Method processes roster <code>get</code> request related to dynamic roster. Generates output packet with data
@@ -194,6 +196,14 @@ public class JabberIqRoster
 		roster_util.setMaxRosterSize(maxRosterSize);
 	}
 
+	public int getRosterCompactionThreshold() {
+		return RosterFlatIncremental.getCompactionThreshold();
+	}
+
+	public void setRosterCompactionThreshold(int rosterCompactionThreshold) {
+		RosterFlatIncremental.setCompactionThreshold(rosterCompactionThreshold);
+	}
+
 	/**
 	 * {@inheritDoc}
 	 * <br>
@@ -47,6 +47,7 @@ public class RosterFlat
 		extends RosterAbstract {
 
 	private static final Logger log = Logger.getLogger(RosterFlat.class.getName());
+	private static final int PARSE_CHUNK_SIZE = 16 * 1024;
 	private static final SimpleParser parser = SingletonFactory.getParserInstance();
 
 	private final SimpleDateFormat formatter;
@@ -71,18 +72,27 @@ public class RosterFlat
 		boolean result = false;
 		DomBuilderHandler domHandler = new DomBuilderHandler();
 
-		parser.parse(domHandler, roster_str.toCharArray(), 0, roster_str.length());
+		// Roster is parsed in chunks and parsed items are converted after each chunk, so for large rosters we
+		// do not keep a copy of the whole roster string and DOM of all items in memory at the same time
+		int len = roster_str.length();
+		char[] data = new char[Math.min(len, PARSE_CHUNK_SIZE)];
 
-		Queue<Element> elems = domHandler.getParsedElements();
+		for (int off = 0; off < len; off += data.length) {
+			int chunk = Math.min(data.length, len - off);
 
-		if ((elems != null) && (elems.size() > 0)) {
-			for (Element elem : elems) {
+			roster_str.getChars(off, off + chunk, data, 0);
+			parser.parse(domHandler, data, 0, chunk);
+
+			Queue<Element> elems = domHandler.getParsedElements();
+			Element elem;
+
+			while ((elems != null) && ((elem = elems.poll()) != null)) {
 				try {
 					RosterElement relem = new RosterElement(elem);
 
 					result |= relem.isModified();
 					if (!addBuddy(relem, roster)) {
-						break;
+						return result;
 					}
 				} catch (Exception e) {
 					log.log(Level.WARNING, "Can't load roster element: " + elem, e);
@@ -139,7 +149,7 @@ public class RosterFlat
 				relem.setSubscription(subscription);
 			}
 			if (addBuddy(relem, roster)) {
-				saveUserRoster(session);
+				saveUserRosterItem(session, relem);
 				// notify that roster element was changed!
 			} else {
 				throw new PolicyViolationException("Too many elements in the user roster. Limit: " + maxRosterSize);
@@ -173,7 +183,7 @@ public class RosterFlat
 			if (subscription != null) {
 				relem.setSubscription(subscription);
 			}
-			saveUserRoster(session);
+			saveUserRosterItem(session, relem);
 			// notify that roster element was changed!
 			if (log.isLoggable(Level.FINEST)) {
 				log.log(Level.FINEST, "Updated buddy in roster: {0}", buddy);
@@ -346,7 +356,7 @@ public class RosterFlat
 		if (log.isLoggable(Level.FINEST)) {
 			log.log(Level.FINEST, "Removing roster buddy: {0}, after removal: {1}", new Object[]{jid, roster});
 		}
-		saveUserRoster(session);
+		removeUserRosterItem(session, jid.getBareJID());
 		// notify that roster element was changed!
 
 		return true;
@@ -372,7 +382,7 @@ public class RosterFlat
 			} else {
 				relem.setName(name);
 			}
-			saveUserRoster(session);
+			saveUserRosterItem(session, relem);
 			// notify that roster element was changed!
 
 		} else {
@@ -387,7 +397,7 @@ public class RosterFlat
 
 		if (relem != null) {
 			relem.setSubscription(subscription);
-			saveUserRoster(session);
+			saveUserRosterItem(session, relem);
 			// notify that roster element was changed!
 
 		} else {
@@ -440,15 +450,17 @@ public class RosterFlat
 		if (log.isLoggable(Level.FINEST)) {
 			log.log(Level.FINEST, "Loaded user {1} roster: {0}", new Object[]{roster_str, session.getjid()});
 		}
+		boolean modified = false;
+
 		if ((roster_str != null) && !roster_str.isEmpty()) {
 			updateRosterHash(roster_str, session);
 
-			boolean modified = parseRoster(roster_str, roster, session);
-
-			if (modified) {
-				saveUserRoster(session);
-				// notify that roster element was changed!
-			}
+			modified = parseRoster(roster_str, roster, session);
+		}
+		modified |= loadRosterChanges(session, roster);
+		if (modified) {
+			saveUserRoster(session);
+			// notify that roster element was changed!
 		}
 
 		return roster;
@@ -529,6 +541,33 @@ public class RosterFlat
 		return roster;
 	}
 
+	/**
+	 * Applies changes of the roster stored separately from the roster loaded by {@link
+	 * #loadUserRoster(XMPPResourceConnection)}. Roster is stored as a whole, so there are no such changes by default.
+	 *
+	 * @return <code>true</code> if roster should be saved after loading
+	 */
+	protected boolean loadRosterChanges(XMPPResourceConnection session, Map<BareJID, RosterElement> roster)
+			throws NotAuthorizedException, TigaseDBException {
+		return false;
+	}
+
+	/**
+	 * Persists removal of the item from the user roster. By default the whole roster is saved.
+	 */
+	protected void removeUserRosterItem(XMPPResourceConnection session, BareJID buddy)
+			throws NotAuthorizedException, TigaseDBException {
+		saveUserRoster(session);
+	}
+
+	/**
+	 * Persists changes of a single item of the user roster. By default the whole roster is saved.
+	 */
+	protected void saveUserRosterItem(XMPPResourceConnection session, RosterElement relem)
+			throws NotAuthorizedException, TigaseDBException {
+		saveUserRoster(session);
+	}
+
 	protected void saveUserRoster(XMPPResourceConnection session) throws NotAuthorizedException, TigaseDBException {
 		Map<BareJID, RosterElement> roster = getUserRoster(session);
 		StringBuilder sb = new StringBuilder(5000);
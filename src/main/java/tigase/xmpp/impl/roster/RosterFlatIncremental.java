@@ -0,0 +1,173 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.xmpp.impl.roster;
+
+import tigase.db.TigaseDBException;
+import tigase.xmpp.NotAuthorizedException;
+import tigase.xmpp.XMPPResourceConnection;
+import tigase.xmpp.jid.BareJID;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Roster implementation which stores changes of single roster items instead of rewriting the whole roster.
+ * <br>
+ * Roster is kept in the same format as used by {@link RosterFlat}, but each change of a roster item is stored
+ * separately in the <code>{@value #ROSTER_CHANGES}</code> subnode with the bare JID of the contact as a key, so the
+ * latest change of an item replaces the previous one. Changes are applied on top of the stored roster when it is
+ * loaded. When number of stored changes exceeds the compaction threshold, the whole roster is saved and stored
+ * changes are removed.
+ * <br>
+ * Roster stored by {@link RosterFlat} is loaded by this implementation without any conversion. {@link RosterFlat}
+ * ignores stored changes, so before switching back compaction threshold should be set to <code>0</code> to compact
+ * rosters of users on their next login.
+ */
+public class RosterFlatIncremental
+		extends RosterFlat {
+
+	public static final String ROSTER_CHANGES = "roster-changes";
+
+	public static final int ROSTER_COMPACTION_THRESHOLD_DEF = 100;
+
+	private static final String ROSTER_CHANGES_COUNT = "roster-changes-count";
+
+	private static final String REMOVED = "-";
+
+	private static final Logger log = Logger.getLogger(RosterFlatIncremental.class.getName());
+
+	protected static int compactionThreshold = ROSTER_COMPACTION_THRESHOLD_DEF;
+
+	public static int getCompactionThreshold() {
+		return compactionThreshold;
+	}
+
+	public static void setCompactionThreshold(int compactionThreshold) {
+		RosterFlatIncremental.compactionThreshold = compactionThreshold;
+	}
+
+	@Override
+	public void logout(XMPPResourceConnection session) {
+		try {
+			if (session.isAuthorized()) {
+				for (RosterElement relem : getUserRoster(session).values()) {
+					if (relem.isModified() && relem.isPersistent()) {
+						saveUserRosterItem(session, relem);
+					}
+				}
+			}
+		} catch (NotAuthorizedException | TigaseDBException ex) {
+			log.log(Level.WARNING, "Error logging out user", ex);
+		}
+	}
+
+	@Override
+	protected boolean loadRosterChanges(XMPPResourceConnection session, Map<BareJID, RosterElement> roster)
+			throws NotAuthorizedException, TigaseDBException {
+		Map<String, String> changes = session.getDataMap(ROSTER_CHANGES);
+
+		session.putCommonSessionData(ROSTER_CHANGES_COUNT, new AtomicInteger(changes.size()));
+		if (changes.isEmpty()) {
+			return false;
+		}
+
+		boolean modified = false;
+		StringBuilder hash = new StringBuilder(getBuddiesHash(session));
+
+		// sorted to get the same roster hash for the same changes
+		for (Map.Entry<String, String> change : new TreeMap<>(changes).entrySet()) {
+			String value = change.getValue();
+
+			if (value == null || REMOVED.equals(value)) {
+				roster.remove(BareJID.bareJIDInstanceNS(change.getKey()));
+			} else {
+				modified |= parseRoster(value, roster, session);
+			}
+			hash.append(change.getKey()).append(value);
+		}
+		updateRosterHash(hash.toString(), session);
+
+		if (log.isLoggable(Level.FINEST)) {
+			log.log(Level.FINEST, "{0} | Applied {1} roster changes", new Object[]{session.getBareJID(), changes.size()});
+		}
+
+		return modified || changes.size() > compactionThreshold;
+	}
+
+	@Override
+	protected void removeUserRosterItem(XMPPResourceConnection session, BareJID buddy)
+			throws NotAuthorizedException, TigaseDBException {
+		storeChange(session, buddy, REMOVED);
+	}
+
+	@Override
+	protected void saveUserRosterItem(XMPPResourceConnection session, RosterElement relem)
+			throws NotAuthorizedException, TigaseDBException {
+		if (relem.isPersistent()) {
+			storeChange(session, relem.getJid().getBareJID(), relem.getRosterElement().toString());
+		} else {
+			storeChange(session, relem.getJid().getBareJID(), REMOVED);
+		}
+	}
+
+	@Override
+	protected void saveUserRoster(XMPPResourceConnection session) throws NotAuthorizedException, TigaseDBException {
+		Map<BareJID, RosterElement> roster = getUserRoster(session);
+
+		// changes stored concurrently have to be written after the roster and removal of stored changes
+		synchronized (roster) {
+			super.saveUserRoster(session);
+			session.removeDataGroup(ROSTER_CHANGES);
+			getChangesCount(session).set(0);
+		}
+		if (log.isLoggable(Level.FINEST)) {
+			log.log(Level.FINEST, "{0} | Compacted user roster", session.getBareJID());
+		}
+	}
+
+	private AtomicInteger getChangesCount(XMPPResourceConnection session) {
+		AtomicInteger count = (AtomicInteger) session.getCommonSessionData(ROSTER_CHANGES_COUNT);
+
+		if (count == null) {
+			count = new AtomicInteger();
+			session.putCommonSessionData(ROSTER_CHANGES_COUNT, count);
+		}
+		return count;
+	}
+
+	private void storeChange(XMPPResourceConnection session, BareJID buddy, String value)
+			throws NotAuthorizedException, TigaseDBException {
+		Map<BareJID, RosterElement> roster = getUserRoster(session);
+		int count;
+
+		synchronized (roster) {
+			session.setData(ROSTER_CHANGES, buddy.toString(), value);
+			count = getChangesCount(session).incrementAndGet();
+		}
+		if (log.isLoggable(Level.FINEST)) {
+			log.log(Level.FINEST, "{0} | Stored roster change for {1}: {2}",
+					new Object[]{session.getBareJID(), buddy, value});
+		}
+		if (count > compactionThreshold) {
+			saveUserRoster(session);
+		}
+	}
+}
@@ -0,0 +1,85 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.cluster;
+
+import org.junit.Test;
+import tigase.cluster.api.ClusterElement;
+import tigase.xml.DomBuilderHandler;
+import tigase.xml.Element;
+import tigase.xml.SimpleParser;
+import tigase.xmpp.StanzaType;
+import tigase.xmpp.jid.JID;
+
+import java.util.Collections;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.junit.Assert.*;
+
+public class ClusterBroadcastElementTest {
+
+	private final JID node1 = JID.jidInstanceNS("sess-man@node1.example.com");
+	private final JID node2 = JID.jidInstanceNS("sess-man@node2.example.com");
+	private final JID node3 = JID.jidInstanceNS("sess-man@node3.example.com");
+
+	@Test
+	public void testSharedSerialization() {
+		ClusterElement clel = ClusterElement.createClusterMethodCall(node1, node2, StanzaType.set, "user-presence",
+																	  Collections.singletonMap("user-id",
+																							   "user@example.com"));
+		clel.addDataPacket(new Element("presence", new String[]{"from", "xmlns"},
+									   new String[]{"user@example.com/res", "jabber:client"}));
+		Element template = clel.getClusterElement("cl-1");
+
+		LongAdder reused = new LongAdder();
+		ClusterBroadcastElement.SharedContent content = new ClusterBroadcastElement.SharedContent(
+				template.getChildren(), reused);
+		ClusterBroadcastElement elem2 = new ClusterBroadcastElement(template, node2, "cl-1", content);
+		ClusterBroadcastElement elem3 = new ClusterBroadcastElement(template, node3, "cl-2", content);
+
+		Element parsed2 = parse(elem2.toString());
+		assertEquals(0, reused.sum());
+		Element parsed3 = parse(elem3.toString());
+		assertTrue(reused.sum() > 0);
+
+		assertEquals(node2.toString(), parsed2.getAttributeStaticStr("to"));
+		assertEquals(node3.toString(), parsed3.getAttributeStaticStr("to"));
+		assertEquals("cl-2", parsed3.getAttributeStaticStr("id"));
+		assertEquals(ClusterElement.XMLNS, parsed3.getXMLNS());
+		assertEquals(template.getChild("control").toString(), parsed3.getChild("control").toString());
+		assertEquals(template.getChild("data").toString(), parsed3.getChild("data").toString());
+
+		ClusterElement received = new ClusterElement(parsed3);
+		assertEquals("user-presence", received.getMethodName());
+		assertEquals("user@example.com", received.getMethodParam("user-id"));
+
+		// modified element is serialized without shared content
+		long reusedBefore = reused.sum();
+		elem3.addChild(new Element("extra"));
+		assertNotNull(parse(elem3.toString()).getChild("extra"));
+		assertEquals(reusedBefore, reused.sum());
+	}
+
+	private Element parse(String data) {
+		SimpleParser parser = new SimpleParser();
+		DomBuilderHandler handler = new DomBuilderHandler();
+		char[] chars = data.toCharArray();
+
+		parser.parse(handler, chars, 0, chars.length);
+		return handler.getParsedElements().poll();
+	}
+}
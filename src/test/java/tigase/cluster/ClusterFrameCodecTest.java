@@ -0,0 +1,175 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.cluster;
+
+import org.junit.Test;
+import tigase.cluster.api.ClusterElement;
+import tigase.server.Priority;
+import tigase.xml.Element;
+import tigase.xmpp.StanzaType;
+import tigase.xmpp.jid.JID;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class ClusterFrameCodecTest {
+
+	private final JID node1 = JID.jidInstanceNS("sess-man@node1.example.com");
+	private final JID node2 = JID.jidInstanceNS("sess-man@node2.example.com");
+
+	@Test
+	public void testClusterElement() throws IOException {
+		Map<String, String> params = new LinkedHashMap<>();
+		params.put("user-id", "user@example.com");
+		params.put("escaped", "a &amp; b");
+		params.put("empty", null);
+
+		ClusterElement clel = ClusterElement.createClusterMethodCall(node1, node2, StanzaType.set, "user-connected",
+																	  params);
+		clel.addVisitedNode(node1);
+		clel.addMethodResult("result", "ok");
+		clel.addDataPacket(new Element("message", new Element[]{new Element("body", "Hello &lt;world&gt;")},
+									   new String[]{"from", "to", "xmlns"},
+									   new String[]{"user@example.com/res", "buddy@example.com", "jabber:client"}));
+		clel.setPriority(Priority.HIGH);
+
+		Element elem = clel.getClusterElement("cl-1");
+		assertTrue(ClusterFrameCodec.isClusterFrameElement(elem));
+
+		ClusterFrameCodec encoder = new ClusterFrameCodec();
+		ClusterFrameCodec decoder = new ClusterFrameCodec();
+		byte[] first = toBytes(encoder.encode(elem));
+		byte[] second = toBytes(encoder.encode(elem));
+
+		// strings from the dictionary are written only once
+		assertTrue(second.length < first.length);
+
+		List<Element> decoded = new ArrayList<>();
+		assertEquals(2, decoder.decode(ByteBuffer.wrap(concat(first, second)), new Collector(decoded, null)));
+		assertEquals(2, decoded.size());
+		assertEquals(encoder.getOutDictionarySize(), decoder.getInDictionarySize());
+
+		for (Element result : decoded) {
+			assertEquals("cl-1", result.getAttributeStaticStr("id"));
+			assertEquals(ClusterElement.XMLNS, result.getXMLNS());
+
+			ClusterElement resultClel = new ClusterElement(result);
+			assertEquals(node1.toString(), result.getAttributeStaticStr("from"));
+			assertEquals(node2.toString(), result.getAttributeStaticStr("to"));
+			assertEquals("user-connected", resultClel.getMethodName());
+			assertEquals(clel.getAllMethodParams(), resultClel.getAllMethodParams());
+			assertEquals(clel.getAllMethodResults(), resultClel.getAllMethodResults());
+			assertEquals(clel.getVisitedNodes(), resultClel.getVisitedNodes());
+			assertEquals(clel.getFirstNode(), resultClel.getFirstNode());
+			assertEquals(Priority.HIGH, resultClel.getPriority());
+			assertEquals(clel.getDataPackets().peek().toString(), resultClel.getDataPackets().peek().toString());
+		}
+	}
+
+	@Test
+	public void testPartialFrames() throws IOException {
+		ClusterFrameCodec encoder = new ClusterFrameCodec();
+		ClusterFrameCodec decoder = new ClusterFrameCodec();
+		ClusterElement clel = ClusterElement.createClusterMethodCall(node1, node2, StanzaType.set, "ping", null);
+		byte[] data = concat(toBytes(encoder.encode(clel.getClusterElement("cl-2"))),
+							 toBytes(encoder.encodeXml("</stream:stream>")));
+
+		List<Element> elements = new ArrayList<>();
+		List<String> xml = new ArrayList<>();
+		Collector collector = new Collector(elements, xml);
+		ByteBuffer input = ByteBuffer.allocate(data.length);
+
+		// data is delivered byte by byte
+		for (byte b : data) {
+			input.put(b);
+			input.flip();
+			decoder.decode(input, collector);
+			input.compact();
+		}
+		assertEquals(0, input.position());
+		assertEquals(1, elements.size());
+		assertEquals("ping", new ClusterElement(elements.get(0)).getMethodName());
+		assertEquals(1, xml.size());
+		assertEquals("</stream:stream>", xml.get(0));
+	}
+
+	@Test
+	public void testXmlFallback() throws IOException {
+		Element iq = new Element("iq", new Element[]{new Element("ping", new String[]{"xmlns"}, new String[]{"urn:xmpp:ping"})},
+								 new String[]{"type", "id"}, new String[]{"get", "1"});
+		Element unknown = ClusterElement.clusterElement(node1, node2, StanzaType.set);
+		unknown.addChild(new Element("unknown"));
+
+		assertFalse(ClusterFrameCodec.isClusterFrameElement(iq));
+		assertFalse(ClusterFrameCodec.isClusterFrameElement(unknown));
+
+		ClusterFrameCodec encoder = new ClusterFrameCodec();
+		List<String> xml = new ArrayList<>();
+		ByteBuffer data = ByteBuffer.wrap(concat(toBytes(encoder.encode(iq)), toBytes(encoder.encode(unknown))));
+
+		assertEquals(2, new ClusterFrameCodec().decode(data, new Collector(null, xml)));
+		assertEquals(iq.toString(), xml.get(0));
+		assertEquals(unknown.toString(), xml.get(1));
+	}
+
+	@Test(expected = IOException.class)
+	public void testInvalidFrame() throws IOException {
+		new ClusterFrameCodec().decode(ByteBuffer.wrap(new byte[]{2, 9, 0}), new Collector(null, null));
+	}
+
+	private byte[] concat(byte[] first, byte[] second) {
+		byte[] result = new byte[first.length + second.length];
+		System.arraycopy(first, 0, result, 0, first.length);
+		System.arraycopy(second, 0, result, first.length, second.length);
+		return result;
+	}
+
+	private byte[] toBytes(ByteBuffer buffer) {
+		byte[] bytes = new byte[buffer.remaining()];
+		buffer.get(bytes);
+		return bytes;
+	}
+
+	private static class Collector
+			implements ClusterFrameCodec.FrameHandler {
+
+		private final List<Element> elements;
+		private final List<String> xml;
+
+		private Collector(List<Element> elements, List<String> xml) {
+			this.elements = elements;
+			this.xml = xml;
+		}
+
+		@Override
+		public void clusterElement(Element elem) {
+			elements.add(elem);
+		}
+
+		@Override
+		public void xmlData(String data) {
+			xml.add(data);
+		}
+	}
+}
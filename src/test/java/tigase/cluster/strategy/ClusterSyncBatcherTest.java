@@ -0,0 +1,119 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.cluster.strategy;
+
+import org.junit.Test;
+import tigase.xml.Element;
+import tigase.xmpp.jid.JID;
+
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ClusterSyncBatcherTest {
+
+	private final JID node1 = JID.jidInstanceNS("sess-man@node1.example.com");
+	private final JID node2 = JID.jidInstanceNS("sess-man@node2.example.com");
+
+	@Test
+	public void testCoalescing() {
+		List<Object[]> sent = new ArrayList<>();
+		ClusterSyncBatcher batcher = new ClusterSyncBatcher(
+				(node, params, packets) -> sent.add(new Object[]{node, params, packets}), 60000, 100);
+		List<JID> nodes = Arrays.asList(node1, node2);
+
+		batcher.addConnected(nodes, "c2s@example.com/1", params("user1", "1", null));
+		batcher.addPresence(nodes, "c2s@example.com/1", params("user1", "1", "initial"), presence("user1", "away"),
+							"presence-type", "initial");
+		batcher.addPresence(nodes, "c2s@example.com/1", params("user1", "1", "update"), presence("user1", "dnd"),
+							"presence-type", "initial");
+		batcher.addPresence(nodes, "c2s@example.com/2", params("user2", "2", "initial"), presence("user2", "xa"),
+							"presence-type", "initial");
+		assertTrue(sent.isEmpty());
+
+		batcher.flushAll();
+		assertEquals(2, sent.size());
+
+		Map<String, String> data = (Map<String, String>) sent.get(0)[1];
+		Queue<Element> packets = (Queue<Element>) sent.get(0)[2];
+		List<Map<String, String>> records = ClusterSyncBatcher.parseBatch(data);
+
+		assertEquals(3, records.size());
+		assertEquals(ClusterSyncBatcher.TYPE_CONNECTED, records.get(0).get(ClusterSyncBatcher.TYPE_KEY));
+		assertEquals("user1@example.com", records.get(0).get("userId"));
+		assertEquals(ClusterSyncBatcher.TYPE_PRESENCE, records.get(1).get(ClusterSyncBatcher.TYPE_KEY));
+		// superseded initial presence is still reported as initial
+		assertEquals("initial", records.get(1).get("presence-type"));
+		assertEquals("user2@example.com", records.get(2).get("userId"));
+
+		assertEquals(2, packets.size());
+		assertEquals("dnd", packets.poll().getChildCData(new String[]{"presence", "show"}));
+		assertEquals("xa", packets.poll().getChildCData(new String[]{"presence", "show"}));
+	}
+
+	@Test
+	public void testInitialPresenceReplacedByUnavailable() {
+		List<Map<String, String>> sent = new ArrayList<>();
+		ClusterSyncBatcher batcher = new ClusterSyncBatcher((node, params, packets) -> sent.add(params), 60000, 100);
+		List<JID> nodes = Collections.singletonList(node1);
+
+		batcher.addPresence(nodes, "c2s@example.com/1", params("user1", "1", "initial"), presence("user1", "away"),
+							"presence-type", "initial");
+		Element unavailable = new Element("presence", new String[]{"from", "type", "xmlns"},
+										  new String[]{"user1@example.com/res", "unavailable", "jabber:client"});
+		batcher.addPresence(nodes, "c2s@example.com/1", params("user1", "1", "update"), unavailable, "presence-type",
+							"initial");
+		batcher.flushAll();
+
+		List<Map<String, String>> records = ClusterSyncBatcher.parseBatch(sent.get(0));
+		assertEquals(1, records.size());
+		assertEquals("update", records.get(0).get("presence-type"));
+	}
+
+	@Test
+	public void testMaxSize() {
+		List<JID> sent = new ArrayList<>();
+		ClusterSyncBatcher batcher = new ClusterSyncBatcher((node, params, packets) -> sent.add(node), 60000, 2);
+
+		batcher.addConnected(Collections.singletonList(node1), "c2s@example.com/1", params("user1", "1", null));
+		assertTrue(sent.isEmpty());
+		batcher.addConnected(Collections.singletonList(node1), "c2s@example.com/2", params("user2", "2", null));
+		assertEquals(Collections.singletonList(node1), sent);
+
+		batcher.addConnected(Collections.singletonList(node1), "c2s@example.com/3", params("user3", "3", null));
+		batcher.nodeDisconnected(node1);
+		batcher.flushAll();
+		assertEquals(1, sent.size());
+	}
+
+	private Map<String, String> params(String user, String connectionId, String presenceType) {
+		Map<String, String> params = new LinkedHashMap<>();
+		params.put("userId", user + "@example.com");
+		params.put("connectionId", "c2s@example.com/" + connectionId);
+		if (presenceType != null) {
+			params.put("presence-type", presenceType);
+		}
+		return params;
+	}
+
+	private Element presence(String user, String show) {
+		return new Element("presence", new Element[]{new Element("show", show)}, new String[]{"from", "xmlns"},
+						   new String[]{user + "@example.com/res", "jabber:client"});
+	}
+}
@@ -0,0 +1,110 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.db;
+
+import org.junit.Test;
+import tigase.xmpp.jid.BareJID;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.*;
+
+public class DataRepositoryPoolTest {
+
+	private final BareJID user = BareJID.bareJIDInstanceNS("user@example.com");
+
+	@Test
+	public void testHashedMode() {
+		DataRepositoryPool pool = createPool(DataRepositoryPool.Mode.hashed, 2);
+
+		DataRepository repo = pool.takeRepoHandle(user);
+		assertSame(pool.takeRepo(user), repo);
+		assertSame(repo, pool.takeRepoHandle(user));
+		pool.releaseRepoHandle(repo);
+	}
+
+	@Test
+	public void testBorrowMode() throws Exception {
+		DataRepositoryPool pool = createPool(DataRepositoryPool.Mode.borrow, 2);
+
+		DataRepository first = pool.takeRepoHandle(user);
+		DataRepository second = pool.takeRepoHandle(user);
+		assertNotSame(first, second);
+
+		// pool is exhausted, so the hashed connection is used after waiting
+		assertSame(pool.takeRepo(user), pool.takeRepoHandle(user));
+
+		// handle may be returned only by the thread which borrowed it
+		CompletableFuture.runAsync(() -> pool.releaseRepoHandle(first)).get();
+		pool.releaseRepoHandle(second);
+		assertSame(second, pool.takeRepoHandle(user));
+
+		pool.releaseRepoHandle(first);
+		assertSame(first, pool.takeRepoHandle(user));
+	}
+
+	@Test
+	public void testBorrowWait() throws Exception {
+		DataRepositoryPool pool = createPool(DataRepositoryPool.Mode.borrow, 1);
+
+		DataRepository repo = pool.takeRepoHandle(user);
+		CompletableFuture<DataRepository> waiting = CompletableFuture.supplyAsync(() -> {
+			DataRepository result = pool.takeRepoHandle(user);
+			pool.releaseRepoHandle(result);
+			return result;
+		});
+		Thread.sleep(50);
+		assertFalse(waiting.isDone());
+
+		pool.releaseRepoHandle(repo);
+		assertSame(repo, waiting.get());
+	}
+
+	private DataRepositoryPool createPool(DataRepositoryPool.Mode mode, int size) {
+		DataRepositoryPool pool = new DataRepositoryPool();
+		try {
+			Field field = DataRepositoryPool.class.getDeclaredField("mode");
+			field.setAccessible(true);
+			field.set(pool, mode);
+			field = DataRepositoryPool.class.getDeclaredField("maxWait");
+			field.setAccessible(true);
+			field.set(pool, 200L);
+		} catch (Exception ex) {
+			throw new RuntimeException(ex);
+		}
+		for (int i = 0; i < size; i++) {
+			pool.addRepo((DataRepository) Proxy.newProxyInstance(DataRepository.class.getClassLoader(),
+																 new Class[]{DataRepository.class},
+																 (proxy, method, args) -> {
+																	 switch (method.getName()) {
+																		 case "hashCode":
+																			 return System.identityHashCode(proxy);
+																		 case "equals":
+																			 return proxy == args[0];
+																		 case "toString":
+																			 return "repo";
+																		 default:
+																			 return null;
+																	 }
+																 }));
+		}
+		return pool;
+	}
+}
@@ -25,11 +25,15 @@ import tigase.eventbus.FillRoutedEvent;
 import tigase.eventbus.HandleEvent;
 import tigase.eventbus.RouteEvent;
 import tigase.eventbus.component.stores.Subscription;
+import tigase.stats.MetricsRegistry;
+import tigase.stats.StatisticsList;
 import tigase.xml.Element;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.concurrent.Executor;
+import java.util.logging.Level;
 
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
@@ -441,6 +445,78 @@ public class EventBusImplementationTest {
 		Assert.assertNull(resp[4]);
 	}
 
+	@Test
+	public void testListenerQueue() {
+		final ArrayList<Runnable> tasks = new ArrayList<>();
+		eventBus.setExecutor(tasks::add);
+		eventBus.setListenerQueueSize(3);
+
+		final ArrayList<String> received = new ArrayList<>();
+		eventBus.addListener(Event1.class, event -> received.add(event.getV1()));
+		for (int i = 0; i < 5; i++) {
+			Event1 event = new Event1();
+			event.setV1("v" + i);
+			eventBus.fire(event);
+		}
+
+		// handler is scheduled only once for all queued events
+		Assert.assertEquals(1, tasks.size());
+		tasks.remove(0).run();
+		Assert.assertEquals(Arrays.asList("v0", "v1", "v2"), received);
+
+		eventBus.setOverflowPolicy(EventBusImplementation.OverflowPolicy.dropOldest);
+		received.clear();
+		for (int i = 0; i < 5; i++) {
+			Event1 event = new Event1();
+			event.setV1("v" + i);
+			eventBus.fire(event);
+		}
+		tasks.remove(0).run();
+		Assert.assertEquals(Arrays.asList("v2", "v3", "v4"), received);
+
+		eventBus.registerMetrics("eventbus-test");
+		StatisticsList list = new StatisticsList(Level.ALL);
+		MetricsRegistry.getInstance().snapshot("eventbus-test", list);
+		MetricsRegistry.getInstance().unregister("eventbus-test");
+		Assert.assertEquals(4L, list.getValue("eventbus-test", "Dropped events", -1L));
+		Assert.assertEquals(0L, list.getValue("eventbus-test", "Queued events", -1L));
+	}
+
+	@Test
+	public void testInlineHandler() {
+		final ArrayList<Runnable> tasks = new ArrayList<>();
+		eventBus.setExecutor(tasks::add);
+
+		final Object[] resp = new Object[2];
+		eventBus.registerAll(new InlineConsumer(resp));
+		eventBus.fire(new Event1());
+
+		Assert.assertNotNull(resp[0]);
+		Assert.assertNull(resp[1]);
+		Assert.assertEquals(1, tasks.size());
+		tasks.remove(0).run();
+		Assert.assertNotNull(resp[1]);
+	}
+
+	public static class InlineConsumer {
+
+		private final Object[] resp;
+
+		public InlineConsumer(Object[] resp) {
+			this.resp = resp;
+		}
+
+		@HandleEvent(inline = true)
+		public void inline(Event1 e) {
+			resp[0] = e;
+		}
+
+		@HandleEvent
+		public void queued(Event1 e) {
+			resp[1] = e;
+		}
+	}
+
 	public static class Consumer {
 
 		private final Object resp[] = new Object[]{null, null, null};
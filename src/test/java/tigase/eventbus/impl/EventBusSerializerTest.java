@@ -78,4 +78,50 @@ public class EventBusSerializerTest {
 		Assert.assertNotEquals("ala,m,a,kota", ex.getCData(new String[]{"tigase.eventbus.impl.Event1", "strArrField"}));
 	}
 
-}
\ No newline at end of file
+	@Test
+	public void testFieldsWithoutAccessors() {
+		EventBusSerializer serializer = new EventBusSerializer();
+
+		FieldsOnlyEvent eo = new FieldsOnlyEvent();
+		eo.name = "test";
+		eo.counter = 5;
+		eo.flag = true;
+
+		Element ex = serializer.serialize(eo);
+		Assert.assertEquals("test", ex.getCData(new String[]{FieldsOnlyEvent.class.getName(), "name"}));
+
+		// class and accessors are cached, so it may be deserialized many times
+		for (int i = 0; i < 2; i++) {
+			FieldsOnlyEvent ed = serializer.deserialize(ex);
+			Assert.assertEquals("test", ed.name);
+			Assert.assertEquals(5, ed.counter);
+			Assert.assertTrue(ed.flag);
+		}
+
+		Assert.assertNull(serializer.deserialize(new Element("tigase.eventbus.impl.NotExistingEvent")));
+	}
+
+	@Test
+	public void testDeserializeTrimsStrings() {
+		EventBusSerializer serializer = new EventBusSerializer();
+
+		Element ex = new Element(FieldsOnlyEvent.class.getName());
+		ex.addChild(new Element("name", "\n  test \n"));
+		FieldsOnlyEvent ed = serializer.deserialize(ex);
+		Assert.assertEquals("test", ed.name);
+
+		ex = new Element(FieldsOnlyEvent.class.getName());
+		ex.addChild(new Element("name", "null"));
+		ed = serializer.deserialize(ex);
+		Assert.assertNull(ed.name);
+	}
+
+	private static class FieldsOnlyEvent {
+
+		private int counter;
+		private boolean flag;
+		private String name;
+
+	}
+
+}
@@ -0,0 +1,81 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.io;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class BufferPoolTest {
+
+	@Test
+	public void testCapacityFor() {
+		assertEquals(1024, BufferPool.capacityFor(1));
+		assertEquals(1024, BufferPool.capacityFor(1024));
+		assertEquals(2048, BufferPool.capacityFor(1025));
+		assertEquals(32768, BufferPool.capacityFor(16709));
+		assertEquals(BufferPool.MAX_BUFFER_SIZE, BufferPool.capacityFor(BufferPool.MAX_BUFFER_SIZE));
+		assertEquals(BufferPool.MAX_BUFFER_SIZE + 1, BufferPool.capacityFor(BufferPool.MAX_BUFFER_SIZE + 1));
+	}
+
+	@Test
+	public void testReuse() {
+		BufferPool pool = new BufferPool(false, 2);
+
+		ByteBuffer buffer = pool.acquire(3000);
+		assertEquals(4096, buffer.capacity());
+		buffer.put((byte) 1);
+		pool.release(buffer);
+
+		ByteBuffer reused = pool.acquire(4000);
+		assertSame(buffer, reused);
+		assertEquals(0, reused.position());
+		assertEquals(reused.capacity(), reused.limit());
+
+		// buffer from other size class is not reused
+		assertNotSame(buffer, pool.acquire(1000));
+	}
+
+	@Test
+	public void testForeignBuffersDropped() {
+		BufferPool pool = new BufferPool(false, 2);
+
+		ByteBuffer exact = ByteBuffer.allocate(3000);
+		pool.release(exact);
+		assertNotSame(exact, pool.acquire(3000));
+
+		ByteBuffer direct = ByteBuffer.allocateDirect(4096);
+		pool.release(direct);
+		assertFalse(pool.acquire(4096).isDirect());
+	}
+
+	@Test
+	public void testMaxBuffers() {
+		BufferPool pool = new BufferPool(false, 1);
+
+		ByteBuffer first = ByteBuffer.allocate(2048);
+		ByteBuffer second = ByteBuffer.allocate(2048);
+		pool.release(first);
+		pool.release(second);
+
+		assertSame(first, pool.acquire(2048));
+		assertNotSame(second, pool.acquire(2048));
+	}
+}
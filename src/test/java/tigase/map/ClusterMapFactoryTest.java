@@ -22,7 +22,11 @@ import org.junit.Test;
 import tigase.eventbus.EventBus;
 import tigase.eventbus.EventListener;
 import tigase.eventbus.impl.EventBusImplementation;
+import tigase.eventbus.impl.EventBusSerializer;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
 
 public class ClusterMapFactoryTest {
@@ -183,4 +187,127 @@ public class ClusterMapFactoryTest {
 		Thread.sleep(100);
 		Assert.assertTrue(received[0]);
 	}
-}
\ No newline at end of file
+
+	@Test
+	public void testDeltaReplication() throws Exception {
+		final ClusterMapFactory factory = new ClusterMapFactory();
+		factory.setEventBus(new EventBusImplementation());
+		final EventBus eventBus = factory.getEventBus();
+
+		final List<ClusterMapFactory.ElementsDeltaEvent> deltas = new ArrayList<>();
+		final boolean[] received = new boolean[]{false};
+		eventBus.addListener(ClusterMapFactory.ElementsDeltaEvent.class,
+							 new EventListener<ClusterMapFactory.ElementsDeltaEvent>() {
+								 @Override
+								 public void onEvent(ClusterMapFactory.ElementsDeltaEvent event) {
+									 synchronized (deltas) {
+										 deltas.add(event);
+									 }
+								 }
+							 });
+		eventBus.addListener(ClusterMapFactory.ElementAddEvent.class,
+							 new EventListener<ClusterMapFactory.ElementAddEvent>() {
+								 @Override
+								 public void onEvent(ClusterMapFactory.ElementAddEvent event) {
+									 received[0] = true;
+								 }
+							 });
+
+		final Map<String, String> map = factory.createMap("test3", String.class, String.class);
+		factory.setReplicationWindow(map, 50);
+
+		map.put("a", "1");
+		map.put("b", "1");
+		map.put("a", "2");
+		map.remove("b");
+		map.put("c", "3");
+
+		Thread.sleep(300);
+
+		Assert.assertFalse(received[0]);
+		synchronized (deltas) {
+			Assert.assertEquals(1, deltas.size());
+			ClusterMapFactory.ElementsDeltaEvent delta = deltas.get(0);
+			Assert.assertEquals("test3", delta.getUid());
+			Assert.assertEquals(Arrays.asList("a", "c"), ClusterMapFactory.decodeStrings(delta.getKeys()));
+			Assert.assertEquals(Arrays.asList("2", "3"), ClusterMapFactory.decodeStrings(delta.getValues()));
+			Assert.assertEquals(Arrays.asList("b"), ClusterMapFactory.decodeStrings(delta.getRemovedKeys()));
+		}
+
+		// applying delta on other node
+		final ClusterMapFactory remoteFactory = new ClusterMapFactory();
+		remoteFactory.setEventBus(new EventBusImplementation());
+		final Map<String, String> remoteMap = remoteFactory.createMap("test3", String.class, String.class);
+		remoteMap.put("b", "0");
+
+		remoteFactory.onMapElementsDelta(deltas.get(0));
+
+		Assert.assertEquals("2", remoteMap.get("a"));
+		Assert.assertEquals("3", remoteMap.get("c"));
+		Assert.assertNull(remoteMap.get("b"));
+		Assert.assertEquals(2, remoteMap.size());
+
+		// changes are sent immediately after disabling the window
+		map.put("d", "4");
+		factory.setReplicationWindow(map, 0);
+		Thread.sleep(100);
+		synchronized (deltas) {
+			Assert.assertEquals(2, deltas.size());
+			Assert.assertEquals(Arrays.asList("d"), ClusterMapFactory.decodeStrings(deltas.get(1).getKeys()));
+		}
+	}
+
+	@Test
+	public void testDeltaReplicationWithEmptyValues() throws Exception {
+		final ClusterMapFactory factory = new ClusterMapFactory();
+		factory.setEventBus(new EventBusImplementation());
+		final EventBus eventBus = factory.getEventBus();
+
+		final List<ClusterMapFactory.ElementsDeltaEvent> deltas = new ArrayList<>();
+		eventBus.addListener(ClusterMapFactory.ElementsDeltaEvent.class,
+							 new EventListener<ClusterMapFactory.ElementsDeltaEvent>() {
+								 @Override
+								 public void onEvent(ClusterMapFactory.ElementsDeltaEvent event) {
+									 synchronized (deltas) {
+										 deltas.add(event);
+									 }
+								 }
+							 });
+
+		final Map<String, String> map = factory.createMap("test4", String.class, String.class);
+		factory.setReplicationWindow(map, 50);
+
+		map.put("a", "");
+		map.put("b,", "x\\");
+		map.put("c", "");
+		map.put("", "");
+
+		Thread.sleep(300);
+
+		final ClusterMapFactory.ElementsDeltaEvent delta;
+		synchronized (deltas) {
+			Assert.assertEquals(1, deltas.size());
+			delta = deltas.get(0);
+		}
+
+		// delta is sent to other nodes serialized
+		final EventBusSerializer serializer = new EventBusSerializer();
+		final ClusterMapFactory.ElementsDeltaEvent received = serializer.deserialize(serializer.serialize(delta));
+
+		final ClusterMapFactory remoteFactory = new ClusterMapFactory();
+		remoteFactory.setEventBus(new EventBusImplementation());
+		final Map<String, String> remoteMap = remoteFactory.createMap("test4", String.class, String.class);
+
+		remoteFactory.onMapElementsDelta(received);
+
+		Assert.assertEquals(map, remoteMap);
+		Assert.assertEquals(4, remoteMap.size());
+	}
+
+	@Test
+	public void testEncodeStrings() {
+		List<String> items = Arrays.asList("", "a,b", "", "12:3", "");
+		Assert.assertEquals(items, ClusterMapFactory.decodeStrings(ClusterMapFactory.encodeStrings(items)));
+		Assert.assertEquals(Arrays.asList(), ClusterMapFactory.decodeStrings(null));
+	}
+}
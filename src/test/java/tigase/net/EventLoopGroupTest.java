@@ -0,0 +1,121 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.net;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class EventLoopGroupTest {
+
+	private TestIOService service;
+
+	@Before
+	public void setUp() throws Exception {
+		service = TestIOService.connect();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		service.close();
+	}
+
+	@Test
+	public void testRegistration() throws Exception {
+		EventLoopGroup group = new EventLoopGroup("test-registration", 2, 1, 0);
+
+		group.addSocketService(service);
+		service.send("a");
+		String thread = service.calls.poll(5, TimeUnit.SECONDS);
+		assertNotNull(thread);
+		assertTrue(thread, thread.matches("test-registration-[01]"));
+
+		// connection is not called after it is removed from the group
+		group.removeSocketService(service);
+		service.send("b");
+		assertNull(service.calls.poll(300, TimeUnit.MILLISECONDS));
+
+		// data received in the meantime is read after it is added again
+		group.addSocketService(service);
+		assertEquals(thread, service.calls.poll(5, TimeUnit.SECONDS));
+
+		service.send("c");
+		assertEquals(thread, service.calls.poll(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void testRemovedDuringCall() throws Exception {
+		EventLoopGroup group = new EventLoopGroup("test-remove", 1, 1, 0);
+
+		group.addSocketService(service);
+		service.callDelay = 200;
+		service.send("a");
+		assertEquals("test-remove-0", service.started.poll(5, TimeUnit.SECONDS));
+		group.removeSocketService(service);
+		assertEquals("test-remove-0", service.calls.poll(5, TimeUnit.SECONDS));
+
+		// connection removed during the call is not registered again after the call
+		service.callDelay = 0;
+		service.send("b");
+		assertNull(service.calls.poll(300, TimeUnit.MILLISECONDS));
+	}
+
+	@Test
+	public void testRemovedDuringHandedOffCall() throws Exception {
+		EventLoopGroup group = new EventLoopGroup("test-remove-slow", 1, 1, 5);
+
+		group.addSocketService(service);
+		service.callDelay = 50;
+		service.send("a");
+		assertEquals("test-remove-slow-0", service.calls.poll(5, TimeUnit.SECONDS));
+
+		service.started.clear();
+		service.callDelay = 200;
+		service.send("b");
+		assertEquals("test-remove-slow-worker-0", service.started.poll(5, TimeUnit.SECONDS));
+		group.removeSocketService(service);
+		assertEquals("test-remove-slow-worker-0", service.calls.poll(5, TimeUnit.SECONDS));
+
+		service.callDelay = 0;
+		service.send("c");
+		assertNull(service.calls.poll(300, TimeUnit.MILLISECONDS));
+	}
+
+	@Test
+	public void testSlowCallsHandedOff() throws Exception {
+		EventLoopGroup group = new EventLoopGroup("test-slow", 1, 2, 5);
+
+		group.addSocketService(service);
+		service.callDelay = 50;
+		service.send("a");
+		assertEquals("test-slow-0", service.calls.poll(5, TimeUnit.SECONDS));
+
+		// call following the slow one is handed off to a worker thread
+		service.callDelay = 0;
+		service.send("b");
+		assertEquals("test-slow-worker-0", service.calls.poll(5, TimeUnit.SECONDS));
+
+		// and after a fast call, connection is called by the event loop again
+		service.send("c");
+		assertEquals("test-slow-0", service.calls.poll(5, TimeUnit.SECONDS));
+	}
+}
@@ -0,0 +1,110 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.net;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import tigase.stats.StatisticsList;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class IOThreadGroupTest {
+
+	private TestIOService service;
+
+	@Before
+	public void setUp() throws Exception {
+		service = TestIOService.connect();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		service.close();
+	}
+
+	@Test
+	public void testNamedGroups() {
+		IOThreadGroup group = SocketThread.getThreadGroup("test-named", 1);
+		assertNotNull(group);
+		// number of threads is ignored if the group already exists
+		assertSame(group, SocketThread.getThreadGroup("test-named", 4));
+		assertNotSame(group, SocketThread.getThreadGroup("test-named-other", 1));
+	}
+
+	@Test
+	public void testServiceHandledByItsGroup() {
+		RecordingThreadGroup group = new RecordingThreadGroup();
+		service.setIOThreadGroup(group);
+
+		SocketThread.addSocketService(service);
+		assertEquals(1, group.added.size());
+		assertSame(service, group.added.get(0));
+
+		SocketThread.removeSocketService(service);
+		assertEquals(1, group.removed.size());
+		assertSame(service, group.removed.get(0));
+	}
+
+	@Test
+	public void testSelectorThreadGroupRegistration() throws Exception {
+		IOThreadGroup group = SocketThread.getThreadGroup("test-selector", 1);
+		service.setIOThreadGroup(group);
+
+		SocketThread.addSocketService(service);
+		service.send("a");
+		assertNotNull(service.calls.poll(5, TimeUnit.SECONDS));
+
+		// connection is registered again by the group after the call returns
+		Thread.sleep(100);
+
+		// connection is not called after it is removed from the group
+		SocketThread.removeSocketService(service);
+		service.send("b");
+		assertNull(service.calls.poll(300, TimeUnit.MILLISECONDS));
+
+		// data received in the meantime is read after it is added again
+		SocketThread.addSocketService(service);
+		assertNotNull(service.calls.poll(5, TimeUnit.SECONDS));
+	}
+
+	private static class RecordingThreadGroup
+			implements IOThreadGroup {
+
+		private final List<IOService<?>> added = new ArrayList<>();
+		private final List<IOService<?>> removed = new ArrayList<>();
+
+		@Override
+		public void addSocketService(IOService<?> s) {
+			added.add(s);
+		}
+
+		@Override
+		public void getStatistics(String compName, StatisticsList list) {
+		}
+
+		@Override
+		public void removeSocketService(IOService<?> s) {
+			removed.add(s);
+		}
+	}
+}
@@ -0,0 +1,135 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.net;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Connection used by tests of groups of I/O threads. It reads and drops all available data and records names of
+ * threads which called it.
+ */
+class TestIOService
+		extends IOService<Object> {
+
+	final BlockingQueue<String> calls = new LinkedBlockingQueue<>();
+	final BlockingQueue<String> started = new LinkedBlockingQueue<>();
+	final SocketChannel peer;
+	volatile long callDelay = 0;
+	private final SocketChannel channel;
+
+	/**
+	 * Creates a connection over the loopback interface. Data written to {@link #peer} is read by the connection.
+	 */
+	static TestIOService connect() throws IOException {
+		try (ServerSocketChannel server = ServerSocketChannel.open()) {
+			server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+			SocketChannel peer = SocketChannel.open(server.getLocalAddress());
+			return new TestIOService(server.accept(), peer);
+		}
+	}
+
+	private TestIOService(SocketChannel channel, SocketChannel peer) throws IOException {
+		this.channel = channel;
+		this.peer = peer;
+		channel.configureBlocking(false);
+	}
+
+	@Override
+	public IOService<?> call() throws IOException {
+		started.offer(Thread.currentThread().getName());
+		ByteBuffer buffer = ByteBuffer.allocate(1024);
+		int read;
+		while ((read = channel.read(buffer)) > 0) {
+			buffer.clear();
+		}
+		// checked before the delay, so connection removed during the delay is returned as if it was removed just
+		// after the call returned
+		IOService<?> result = isSocketServiceReady() ? this : null;
+		if (callDelay > 0) {
+			try {
+				Thread.sleep(callDelay);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		calls.offer(Thread.currentThread().getName());
+		if (read < 0) {
+			forceStop();
+			return null;
+		}
+		return result;
+	}
+
+	void close() throws IOException {
+		peer.close();
+		channel.close();
+	}
+
+	@Override
+	public void forceStop() {
+		try {
+			channel.close();
+		} catch (IOException e) {
+			// ignoring
+		}
+	}
+
+	@Override
+	public SocketChannel getSocketChannel() {
+		return channel;
+	}
+
+	@Override
+	public String getUniqueId() {
+		return "test-" + System.identityHashCode(this);
+	}
+
+	@Override
+	public boolean isConnected() {
+		return channel.isConnected();
+	}
+
+	@Override
+	public void processWaitingPackets() {
+	}
+
+	@Override
+	public boolean waitingToSend() {
+		return false;
+	}
+
+	void send(String data) throws IOException {
+		peer.write(ByteBuffer.wrap(data.getBytes()));
+	}
+
+	@Override
+	protected void processSocketData() {
+	}
+
+	@Override
+	protected int receivedPackets() {
+		return 0;
+	}
+}
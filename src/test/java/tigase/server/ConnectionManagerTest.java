@@ -20,6 +20,8 @@ package tigase.server;
 import org.junit.Test;
 import tigase.io.IOInterface;
 import tigase.net.IOService;
+import tigase.net.IOThreadGroup;
+import tigase.net.SocketThread;
 import tigase.stats.StatisticsList;
 import tigase.xmpp.XMPPIOService;
 
@@ -32,8 +34,7 @@ import java.util.Map;
 import java.util.Queue;
 import java.util.UUID;
 
-import static org.junit.Assert.assertNotNull;
-import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.*;
 
 /**
  * Created by andrzej on 20.01.2017.
@@ -60,6 +61,20 @@ public class ConnectionManagerTest {
 		test_watchDogStop(ConnectionManager.WATCHDOG_PING_TYPE.XMPP, Type.timeout, true);
 	}
 
+	@Test
+	public void test_ioThreadGroup() throws Exception {
+		ConnectionManager connectionManager = newConnectionManager(ConnectionManager.WATCHDOG_PING_TYPE.WHITESPACE);
+		// connections are handled by the default group
+		assertNull(connectionManager.getIOThreadGroup());
+
+		connectionManager.ioThreadGroupName = "test-cm-group";
+		connectionManager.ioThreads = 1;
+		IOThreadGroup group = connectionManager.getIOThreadGroup();
+		assertNotNull(group);
+		assertSame(group, connectionManager.getIOThreadGroup());
+		assertSame(group, SocketThread.getThreadGroup("test-cm-group", 0));
+	}
+
 	protected ConnectionManager newConnectionManager(ConnectionManager.WATCHDOG_PING_TYPE pingType) throws Exception {
 		ConnectionManager connectionManager = new ConnectionManager() {
 			@Override
@@ -0,0 +1,104 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.server.bosh;
+
+import junit.framework.TestCase;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+public class BoshSessionTest
+		extends TestCase {
+
+	@Test
+	public void testExecuteNestedActionAfterCurrent() {
+		BoshSession session = new BoshSession("example.com", null, null, null, 10, true);
+		List<String> executed = new ArrayList<>();
+
+		session.execute(() -> {
+			executed.add("outer-start");
+			session.execute(() -> executed.add("nested"));
+			executed.add("outer-end");
+		});
+
+		assertEquals(Arrays.asList("outer-start", "outer-end", "nested"), executed);
+	}
+
+	@Test
+	public void testExecuteNestedActionInLockingMode() {
+		BoshSession session = new BoshSession("example.com", null, null, null, 10);
+		List<String> executed = new ArrayList<>();
+
+		session.execute(() -> {
+			executed.add("outer-start");
+			session.execute(() -> executed.add("nested"));
+			executed.add("outer-end");
+		});
+
+		assertEquals(Arrays.asList("outer-start", "nested", "outer-end"), executed);
+	}
+
+	@Test
+	public void testExecuteFromManyThreads() throws Exception {
+		BoshSession session = new BoshSession("example.com", null, null, null, 10, true);
+		int[] counter = new int[1];
+		int threads = 8;
+		int actions = 10000;
+		CountDownLatch start = new CountDownLatch(1);
+		Thread[] workers = new Thread[threads];
+
+		for (int i = 0; i < threads; i++) {
+			workers[i] = new Thread(() -> {
+				try {
+					start.await();
+				} catch (InterruptedException ex) {
+					return;
+				}
+				for (int j = 0; j < actions; j++) {
+					session.execute(() -> counter[0]++);
+				}
+			});
+			workers[i].start();
+		}
+		start.countDown();
+		for (Thread worker : workers) {
+			worker.join();
+		}
+		// thread which executes actions returns only after the queue of the session is empty
+
+		assertEquals(threads * actions, counter[0]);
+	}
+
+	@Test
+	public void testExecuteContinuesAfterFailedAction() {
+		BoshSession session = new BoshSession("example.com", null, null, null, 10, true);
+		List<String> executed = new ArrayList<>();
+
+		session.execute(() -> {
+			session.execute(() -> {
+				throw new IllegalStateException("failed action");
+			});
+			session.execute(() -> executed.add("next"));
+		});
+
+		assertEquals(Arrays.asList("next"), executed);
+	}
+}
@@ -24,7 +24,10 @@ import tigase.util.Base64;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.charset.Charset;
+import java.nio.charset.MalformedInputException;
+import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
@@ -59,7 +62,7 @@ public class WebSocketHybiTest
 				new WebSocketProtocolIfc[]{new WebSocketHybi()}) {
 
 			@Override
-			protected void writeBytes(ByteBuffer data) {
+			protected void bufferBytes(ByteBuffer data) {
 				tmp.put(data);
 			}
 
@@ -70,7 +73,7 @@ public class WebSocketHybiTest
 		ByteBuffer tmp1 = maskFrame(tmp);
 		ByteBuffer decoded = impl.decodeFrame(io, tmp1);
 		Assert.assertArrayEquals("Data before encoding do not match data after decoding", input.getBytes(),
-								 decoded.array());
+								 toArray(decoded));
 	}
 
 	@Test
@@ -164,10 +167,10 @@ public class WebSocketHybiTest
 		io.maskingKey = new byte[4];
 		ByteBuffer decoded = impl.decodeFrame(io, tmp);
 		Assert.assertArrayEquals("Data of first frame before encoding do not match data after decoding",
-								 input1.getBytes(), decoded.array());
+								 input1.getBytes(), toArray(decoded));
 		decoded = impl.decodeFrame(io, tmp);
 		Assert.assertArrayEquals("Data of second frame before encoding do not match data after decoding",
-								 input2.getBytes(), decoded.array());
+								 input2.getBytes(), toArray(decoded));
 	}
 
 	@Test
@@ -190,7 +193,7 @@ public class WebSocketHybiTest
 		WebSocketXMPPIOService<Object> io = new WebSocketXMPPIOService<Object>(
 				new WebSocketProtocolIfc[]{new WebSocketHybi()}) {
 			@Override
-			protected void writeBytes(ByteBuffer data) {
+			protected void bufferBytes(ByteBuffer data) {
 				tmp2.put(data);
 			}
 		};
@@ -198,15 +201,94 @@ public class WebSocketHybiTest
 		ByteBuffer decoded = impl.decodeFrame(io, tmp);
 		Assert.assertNotNull(decoded);
 		Assert.assertArrayEquals("Data of first frame before encoding do not match data after decoding", new byte[0],
-								 decoded.array());
+								 toArray(decoded));
 		tmp2.flip();
 		Assert.assertNotEquals("PONG frame not sent!", 0, tmp2.remaining());
 		assertEquals("PONG frame not sent!", (byte) 0x8A, tmp2.get(0));
 
 		decoded = impl.decodeFrame(io, tmp);
 		Assert.assertArrayEquals("Data of second frame before encoding do not match data after decoding",
-								 input2.getBytes(), decoded.array());
+								 input2.getBytes(), toArray(decoded));
+
+	}
+
+	@Test
+	public void testUnmaskingInPlace() throws Exception {
+		byte[] maskingKey = {0x12, 0x34, (byte) 0x56, (byte) 0x9A};
+		byte[] input = new byte[300];
+		for (int i = 0; i < input.length; i++) {
+			input[i] = (byte) ('a' + (i % 26));
+		}
+
+		for (ByteOrder order : new ByteOrder[]{ByteOrder.BIG_ENDIAN, ByteOrder.LITTLE_ENDIAN}) {
+			ByteBuffer tmp = maskFrame((byte) 0x81, input, maskingKey);
+			tmp.order(order);
+
+			WebSocketXMPPIOService<Object> io = new WebSocketXMPPIOService<Object>(
+					new WebSocketProtocolIfc[]{new WebSocketHybi()});
+			io.maskingKey = new byte[4];
+			ByteBuffer decoded = impl.decodeFrame(io, tmp);
+			Assert.assertArrayEquals("Data do not match after unmasking with " + order, input, toArray(decoded));
+			assertFalse(tmp.hasRemaining());
+		}
+	}
+
+	@Test
+	public void testUtf8Length() throws Exception {
+		for (String data : new String[]{"", "<test-data/>", "za\u017c\u00f3\u0142\u0107", "\u20ac\ud83d\ude00"}) {
+			assertEquals(data.getBytes(StandardCharsets.UTF_8).length, WebSocketHybi.utf8Length(data));
+		}
+		try {
+			WebSocketHybi.utf8Length("<test-data>\ud83d</test-data>");
+			fail("Unpaired surrogate accepted");
+		} catch (MalformedInputException ex) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testPerMessageDeflateNegotiation() {
+		assertNull(PerMessageDeflate.negotiate(null, 1));
+		assertNull(PerMessageDeflate.negotiate("x-webkit-deflate-frame", 1));
+		assertNull(PerMessageDeflate.negotiate("permessage-deflate; unknown_param", 1));
+		assertEquals("permessage-deflate",
+					 PerMessageDeflate.negotiate("permessage-deflate; client_max_window_bits", 1).getResponse());
+		// window of the server cannot be limited, so first offer has to be declined
+		assertEquals("permessage-deflate; server_no_context_takeover; client_no_context_takeover",
+					 PerMessageDeflate.negotiate("permessage-deflate; server_max_window_bits=10, " +
+														 "permessage-deflate; client_no_context_takeover; server_no_context_takeover",
+												 1).getResponse());
+	}
+
+	@Test
+	public void testPerMessageDeflateEncodingDecoding() throws IOException {
+		String input = "<message to='user@example.com'><body>Hello, hello, hello, hello!</body></message>";
+		final ByteBuffer tmp = ByteBuffer.allocate(1024);
+		WebSocketXMPPIOService<Object> io = new WebSocketXMPPIOService<Object>(
+				new WebSocketProtocolIfc[]{new WebSocketHybi()}) {
+
+			@Override
+			protected void bufferBytes(ByteBuffer data) {
+				tmp.put(data);
+			}
 
+		};
+		io.maskingKey = new byte[4];
+		io.deflate = PerMessageDeflate.negotiate("permessage-deflate", 1);
+
+		for (int i = 0; i < 2; i++) {
+			impl.encodeFrameAndWrite(io, ByteBuffer.wrap(input.getBytes(StandardCharsets.UTF_8)));
+			tmp.flip();
+			assertEquals("RSV1 bit not set in compressed frame", (byte) 0xC1, tmp.get());
+			byte[] payload = new byte[tmp.get()];
+			tmp.get(payload);
+			tmp.clear();
+			assertTrue("Message not compressed", payload.length < input.length());
+
+			ByteBuffer decoded = impl.decodeFrame(io, maskFrame((byte) 0xC1, payload, new byte[]{1, 2, 3, 4}));
+			Assert.assertArrayEquals("Data before compression do not match data after decompression",
+									 input.getBytes(StandardCharsets.UTF_8), toArray(decoded));
+		}
 	}
 
 	@Override
@@ -237,6 +319,29 @@ public class WebSocketHybiTest
 		return tmp;
 	}
 
+	private ByteBuffer maskFrame(byte type, byte[] payload, byte[] maskingKey) {
+		ByteBuffer tmp = ByteBuffer.allocate(payload.length + 8);
+		tmp.put(type);
+		if (payload.length <= 125) {
+			tmp.put((byte) (0x80 | payload.length));
+		} else {
+			tmp.put((byte) 0xFE);
+			tmp.putShort((short) payload.length);
+		}
+		tmp.put(maskingKey);
+		for (int i = 0; i < payload.length; i++) {
+			tmp.put((byte) (payload[i] ^ maskingKey[i % 4]));
+		}
+		tmp.flip();
+		return tmp;
+	}
+
+	private byte[] toArray(ByteBuffer buf) {
+		byte[] data = new byte[buf.remaining()];
+		buf.get(data);
+		return data;
+	}
+
 	private ByteBuffer generateIncomingFrame(String input) throws IOException {
 		ByteBuffer buf = ByteBuffer.wrap(input.getBytes());
 		final ByteBuffer tmp = ByteBuffer.allocate(1024);
@@ -244,7 +349,7 @@ public class WebSocketHybiTest
 				new WebSocketProtocolIfc[]{new WebSocketHybi()}) {
 
 			@Override
-			protected void writeBytes(ByteBuffer data) {
+			protected void bufferBytes(ByteBuffer data) {
 				tmp.put(data);
 			}
 
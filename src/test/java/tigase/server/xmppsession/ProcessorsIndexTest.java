@@ -0,0 +1,148 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.server.xmppsession;
+
+import org.junit.Test;
+import tigase.db.NonAuthUserRepository;
+import tigase.server.Packet;
+import tigase.xml.Element;
+import tigase.xmpp.*;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class ProcessorsIndexTest {
+
+	private final TestProcessor custom = new TestProcessor("custom", null, null) {
+		@Override
+		public Authorization canHandle(Packet packet, XMPPResourceConnection conn) {
+			return null;
+		}
+	};
+	private final TestProcessor message = new TestProcessor("message", new String[][]{{"message"}},
+															new String[]{"jabber:client"});
+	private final TestProcessor ping = new TestProcessor("ping", new String[][]{{"iq", "ping"}},
+														 new String[]{"urn:xmpp:ping"});
+	private final TestProcessor pubsub = new TestProcessor("pubsub", new String[][]{{"iq", "pubsub", "items"}},
+														   new String[]{"http://jabber.org/protocol/pubsub"});
+
+	@Test
+	public void testCandidates() {
+		ProcessorsIndex index = ProcessorsIndex.build(Arrays.asList(custom, message, ping, pubsub), null);
+
+		assertEquals(1, index.getNotIndexedCount());
+		assertEquals(new HashSet<>(Arrays.asList(custom, ping)),
+					 candidates(index, iq(new Element("ping", new String[]{"xmlns"}, new String[]{"urn:xmpp:ping"}))));
+		assertEquals(new HashSet<>(Collections.singletonList(custom)),
+					 candidates(index, iq(new Element("ping", new String[]{"xmlns"}, new String[]{"urn:xmpp:other"}))));
+		assertEquals(new HashSet<>(Arrays.asList(custom, pubsub)), candidates(index, iq(
+				new Element("pubsub", new String[]{"xmlns"}, new String[]{"http://jabber.org/protocol/pubsub"}))));
+		Element msg = new Element("message");
+		msg.addChild(new Element("body", "test"));
+		assertEquals(new HashSet<>(Arrays.asList(custom, message)), candidates(index, msg));
+		assertEquals(new HashSet<>(Collections.singletonList(custom)), candidates(index, new Element("presence")));
+	}
+
+	@Test
+	public void testCandidatesReused() {
+		ProcessorsIndex index = ProcessorsIndex.build(Arrays.asList(custom, message, ping), null);
+		ProcessorsIndex.Candidates result = new ProcessorsIndex.Candidates();
+
+		// ping is matched by both child elements, but it is added only once
+		Element iq = iq(new Element("ping", new String[]{"xmlns"}, new String[]{"urn:xmpp:ping"}));
+		iq.addChild(new Element("ping", new String[]{"xmlns"}, new String[]{"urn:xmpp:ping"}));
+		index.getCandidates(iq, result);
+		assertEquals(2, result.size());
+
+		index.getCandidates(new Element("presence"), result);
+		assertEquals(1, result.size());
+		assertSame(custom, result.get(0).getProcessor());
+	}
+
+	@Test
+	public void testMatchesPreservedOnRebuild() {
+		ProcessorsIndex index = ProcessorsIndex.build(Arrays.asList(message, ping), null);
+
+		for (ProcessorsIndex.Entry entry : index.getEntries()) {
+			if (entry.getProcessor() == ping) {
+				entry.matched();
+				entry.matched();
+			}
+		}
+
+		index = ProcessorsIndex.build(Arrays.asList(ping, pubsub), index);
+		assertEquals(2, index.getEntries().length);
+		for (ProcessorsIndex.Entry entry : index.getEntries()) {
+			assertEquals(entry.getProcessor() == ping ? 2 : 0, entry.getMatches());
+		}
+	}
+
+	private Set<XMPPProcessorIfc> candidates(ProcessorsIndex index, Element elem) {
+		ProcessorsIndex.Candidates result = new ProcessorsIndex.Candidates();
+		index.getCandidates(elem, result);
+
+		Set<XMPPProcessorIfc> processors = new HashSet<>();
+		for (int i = 0; i < result.size(); i++) {
+			ProcessorsIndex.Entry entry = result.get(i);
+			assertTrue("Duplicated candidate: " + entry, processors.add(entry.getProcessor()));
+		}
+		return processors;
+	}
+
+	private Element iq(Element child) {
+		Element iq = new Element("iq", new String[]{"type"}, new String[]{"get"});
+		iq.addChild(child);
+		return iq;
+	}
+
+	private static class TestProcessor
+			extends XMPPProcessor
+			implements XMPPProcessorIfc {
+
+		private final String id;
+		private final String[][] paths;
+		private final String[] xmlnss;
+
+		private TestProcessor(String id, String[][] paths, String[] xmlnss) {
+			this.id = id;
+			this.paths = paths;
+			this.xmlnss = xmlnss;
+		}
+
+		@Override
+		public String id() {
+			return id;
+		}
+
+		@Override
+		public void process(Packet packet, XMPPResourceConnection session, NonAuthUserRepository repo,
+							Queue<Packet> results, Map<String, Object> settings) throws XMPPException {
+		}
+
+		@Override
+		public String[][] supElementNamePaths() {
+			return paths;
+		}
+
+		@Override
+		public String[] supNamespaces() {
+			return xmlnss;
+		}
+	}
+}
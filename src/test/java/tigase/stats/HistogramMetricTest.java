@@ -0,0 +1,93 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.stats;
+
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.logging.Level;
+
+import static org.junit.Assert.*;
+
+public class HistogramMetricTest {
+
+	@Test
+	public void testBuckets() {
+		Random random = new Random(1234);
+		for (int i = 0; i < 100000; i++) {
+			long value = random.nextLong() >>> (24 + random.nextInt(40));
+			int idx = HistogramMetric.bucketIndex(value);
+			long upper = HistogramMetric.bucketUpperBound(idx);
+			assertTrue(value <= upper);
+			assertTrue((upper - value) <= value / 16);
+			if (idx > 0) {
+				assertTrue(value > HistogramMetric.bucketUpperBound(idx - 1));
+			}
+		}
+		assertEquals(HistogramMetric.bucketIndex(Long.MAX_VALUE), HistogramMetric.bucketIndex(1L << 45));
+		assertEquals(0, HistogramMetric.bucketIndex(-5));
+	}
+
+	@Test
+	public void testPercentiles() {
+		HistogramMetric histogram = new HistogramMetric("time", Level.INFO);
+		for (int i = 0; i < 1000; i++) {
+			histogram.record(1000);
+		}
+		histogram.record(5000000);
+
+		assertEquals(1001, histogram.getCount());
+		assertEquals(5000000, histogram.getMax());
+		long p50 = histogram.getPercentile(50);
+		assertTrue(p50 >= 1000 && p50 < 1070);
+		long p999 = histogram.getPercentile(99.9);
+		assertTrue(p999 >= 1000 && p999 < 1070);
+		assertEquals(5000000, histogram.getPercentile(100));
+	}
+
+	@Test
+	public void testWindow() throws Exception {
+		HistogramMetric histogram = new HistogramMetric("time", Level.INFO, 50);
+		histogram.record(1000);
+		assertTrue(histogram.getPercentile(50) >= 1000);
+
+		Thread.sleep(120);
+
+		// values recorded before last two windows are not included
+		assertEquals(0, histogram.getPercentile(50));
+		histogram.record(20);
+		assertEquals(20, histogram.getPercentile(50));
+		assertEquals(2, histogram.getCount());
+		assertEquals(20, histogram.getMax());
+	}
+
+	@Test
+	public void testWindowedMax() throws Exception {
+		HistogramMetric histogram = new HistogramMetric("time", Level.INFO, 100);
+		histogram.record(5000);
+		Thread.sleep(120);
+
+		// value from the previous window is still reported
+		histogram.record(10);
+		assertEquals(5000, histogram.getMax());
+
+		Thread.sleep(120);
+		histogram.record(30);
+		assertEquals(30, histogram.getMax());
+	}
+}
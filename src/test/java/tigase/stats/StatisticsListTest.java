@@ -19,7 +19,9 @@ package tigase.stats;
 
 import org.junit.Test;
 
+import java.util.ArrayList;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.logging.Level;
 
 import static org.junit.Assert.*;
@@ -78,4 +80,53 @@ public class StatisticsListTest {
 
 	}
 
-}
\ No newline at end of file
+	@Test
+	public void testMetrics() {
+		final String compName = "comp";
+
+		MetricsRegistry registry = new MetricsRegistry();
+		CounterMetric counter = registry.counter(compName, "counter", Level.INFO);
+		assertSame(counter, registry.counter(compName, "counter", Level.INFO));
+		registry.counter(compName, "counter-zero", Level.INFO);
+		registry.gauge(compName, "gauge", Level.FINE, () -> 0.5);
+		HistogramMetric histogram = registry.histogram(compName, "histogram", Level.INFO);
+
+		counter.add(5);
+		for (int i = 1; i <= 100; i++) {
+			histogram.record(i);
+		}
+
+		StatisticsList statRecords = new StatisticsList(Level.INFO);
+		statRecords.add(compName, "long", 1L, Level.INFO);
+		assertTrue(registry.snapshot(compName, statRecords));
+		assertFalse(registry.snapshot("other", statRecords));
+
+		// values are copied when snapshot is created
+		counter.inc();
+		assertEquals(5L, statRecords.getValue(compName, "counter", -1L));
+		assertEquals(-1L, statRecords.getValue(compName, "counter-zero", -1L));
+		assertEquals(-1f, statRecords.getValue(compName, "gauge", -1f), 0.001f);
+		assertEquals(100L, statRecords.getValue(compName, "histogram count", -1L));
+		assertEquals(50.5f, statRecords.getValue(compName, "histogram average", -1f), 0.001f);
+		assertEquals(100L, statRecords.getValue(compName, "histogram max", -1L));
+		assertEquals(51L, statRecords.getValue(compName, "histogram 50th percentile", -1L));
+		assertEquals(99L, statRecords.getValue(compName, "histogram 99th percentile", -1L));
+		assertEquals(100L, statRecords.getValue(compName, "histogram 99.9th percentile", -1L));
+
+		List<String> descriptions = new ArrayList<>();
+		for (StatRecord rec : statRecords) {
+			descriptions.add(rec.getDescription());
+		}
+		assertEquals(8, descriptions.size());
+		assertEquals("long", descriptions.get(0));
+		assertEquals("counter", descriptions.get(1));
+		assertEquals(5L, statRecords.getCompStats(compName).get("counter").getLongValue());
+
+		statRecords = new StatisticsList(Level.FINEST);
+		registry.snapshot(compName, statRecords);
+		assertEquals(6L, statRecords.getValue(compName, "counter", -1L));
+		assertEquals(0.5f, statRecords.getValue(compName, "gauge", -1f), 0.001f);
+		assertEquals(0L, statRecords.getValue(compName, "counter-zero", -1L));
+	}
+
+}
@@ -0,0 +1,108 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.util.common;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TimingWheelTest {
+
+	@Test
+	public void testExpiry() {
+		TimingWheel<String> wheel = new TimingWheel<>(100, 16);
+		long start = wheel.getNextTickTime();
+
+		wheel.schedule("a", start + 250);
+		wheel.schedule("b", start + 1000);
+		// deadline further than a single rotation of the wheel
+		wheel.schedule("c", start + 5000);
+		// deadline in the past expires on the next tick
+		wheel.schedule("d", start - 1000);
+		assertEquals(4, wheel.size());
+
+		List<String> expired = new ArrayList<>();
+		assertEquals(1, wheel.advance(start, t -> expired.add(t.getItem())));
+		assertEquals(Arrays.asList("d"), expired);
+
+		expired.clear();
+		wheel.advance(start + 200, t -> expired.add(t.getItem()));
+		assertTrue("Timeout expired too early: " + expired, expired.isEmpty());
+
+		wheel.advance(start + 300, t -> expired.add(t.getItem()));
+		assertEquals(Arrays.asList("a"), expired);
+
+		expired.clear();
+		wheel.advance(start + 1600, t -> expired.add(t.getItem()));
+		assertEquals(Arrays.asList("b"), expired);
+
+		expired.clear();
+		wheel.advance(start + 4900, t -> expired.add(t.getItem()));
+		assertTrue("Timeout expired too early: " + expired, expired.isEmpty());
+
+		wheel.advance(start + 5000, t -> expired.add(t.getItem()));
+		assertEquals(Arrays.asList("c"), expired);
+		assertEquals(0, wheel.size());
+	}
+
+	@Test
+	public void testLongDelay() {
+		TimingWheel<String> wheel = new TimingWheel<>(10, 8);
+		long start = wheel.getNextTickTime();
+
+		for (int i = 0; i < 100; i++) {
+			wheel.schedule("item-" + i, start + i * 10);
+		}
+		assertEquals(50, wheel.advance(start + 490, t -> {}));
+		assertEquals(50, wheel.size());
+		assertEquals(50, wheel.advance(start + 10000, t -> {}));
+		assertEquals(0, wheel.size());
+	}
+
+	@Test
+	public void testRescheduleAndCancel() {
+		TimingWheel<String> wheel = new TimingWheel<>(100, 16);
+		long start = wheel.getNextTickTime();
+
+		TimingWheel.Timeout<String> cancelled = wheel.schedule("cancelled", start + 100);
+		TimingWheel.Timeout<String> timeout = wheel.schedule("rescheduled", start + 100);
+		cancelled.cancel();
+
+		List<String> expired = new ArrayList<>();
+		wheel.advance(start + 100, t -> {
+			expired.add(t.getItem());
+			assertTrue(wheel.reschedule(t, start + 500));
+		});
+		assertEquals(Arrays.asList("rescheduled"), expired);
+		assertEquals(1, wheel.size());
+		assertEquals(start + 500, timeout.getDeadline());
+
+		expired.clear();
+		wheel.advance(start + 500, t -> expired.add(t.getItem()));
+		assertEquals(Arrays.asList("rescheduled"), expired);
+
+		timeout.cancel();
+		assertFalse(wheel.reschedule(timeout, start + 1000));
+		assertFalse(wheel.reschedule(cancelled, start + 1000));
+		assertEquals(0, wheel.size());
+	}
+}
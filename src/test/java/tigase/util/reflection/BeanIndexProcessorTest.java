@@ -0,0 +1,140 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.util.reflection;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import tigase.kernel.beans.Bean;
+import tigase.kernel.core.Kernel;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+public class BeanIndexProcessorTest {
+
+	private Path dir;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = Files.createTempDirectory("bean-index");
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		try (Stream<Path> paths = Files.walk(dir)) {
+			paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+		}
+	}
+
+	@Test
+	public void testIndexOfBeans() throws IOException {
+		writeSource("Parent", "public class Parent {}");
+		writeSource("ChildBean", "@tigase.kernel.beans.Bean(name = \"child\", parent = Parent.class, active = true)\n" +
+				"public class ChildBean {}");
+		writeSource("SubBean", "public class SubBean extends ChildBean {}");
+		compile("Parent", "ChildBean", "SubBean");
+
+		Map<String, String> index = readIndex();
+		assertEquals("test.Parent", index.get("test.ChildBean"));
+		assertEquals("test.Parent", index.get("test.SubBean"));
+		assertFalse(index.containsKey("test.Parent"));
+	}
+
+	@Test
+	public void testIncrementalCompilation() throws IOException {
+		writeSource("Parent", "public class Parent {}");
+		writeSource("ChildBean", "@tigase.kernel.beans.Bean(name = \"child\", parent = Parent.class, active = true)\n" +
+				"public class ChildBean {}");
+		writeSource("SubBean", "public class SubBean extends ChildBean {}");
+		compile("Parent", "ChildBean", "SubBean");
+
+		// only changed classes are compiled, so the existing index has to be updated
+		writeSource("OtherBean", "@tigase.kernel.beans.Bean(name = \"other\", parents = {Parent.class, Object.class}, " +
+				"active = true)\npublic class OtherBean {}");
+		writeSource("SubBean", "public class SubBean {}");
+		compile("OtherBean", "SubBean");
+
+		Map<String, String> index = readIndex();
+		assertEquals("test.Parent", index.get("test.ChildBean"));
+		assertEquals("test.Parent,java.lang.Object", index.get("test.OtherBean"));
+		assertFalse(index.containsKey("test.SubBean"));
+		assertEquals(2, index.size());
+	}
+
+	@Test
+	public void testInheritedBeanParents() {
+		ClassUtilBean classUtil = new ClassUtilBean();
+		Map<String, String> beanParents = new HashMap<>();
+		assertEquals(Collections.singletonList(Kernel.class.getName()),
+					 classUtil.getBeanParents(AnnotatedBean.class, beanParents));
+		assertEquals(Collections.singletonList(Kernel.class.getName()),
+					 classUtil.getBeanParents(InheritingBean.class, beanParents));
+
+		beanParents.put(InheritingBean.class.getName(), "");
+		assertEquals(Collections.emptyList(), classUtil.getBeanParents(InheritingBean.class, beanParents));
+	}
+
+	private void compile(String... classes) throws IOException {
+		JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+		Path out = dir.resolve("classes");
+		Files.createDirectories(out);
+
+		List<String> args = new ArrayList<>(
+				Arrays.asList("-processor", BeanIndexProcessor.class.getName(), "-d", out.toString(), "-classpath",
+							  System.getProperty("java.class.path") + File.pathSeparator + out));
+		for (String cls : classes) {
+			args.add(dir.resolve("src/test/" + cls + ".java").toString());
+		}
+		assertEquals(0, compiler.run(null, null, null, args.toArray(new String[args.size()])));
+	}
+
+	private Map<String, String> readIndex() throws IOException {
+		List<String> lines = Files.readAllLines(dir.resolve("classes").resolve(BeanIndexProcessor.INDEX_FILE),
+												StandardCharsets.UTF_8);
+		return lines.stream()
+				.map(line -> line.split("\t", -1))
+				.collect(Collectors.toMap(parts -> parts[0], parts -> parts.length > 1 ? parts[1] : ""));
+	}
+
+	private void writeSource(String cls, String body) throws IOException {
+		Path file = dir.resolve("src/test/" + cls + ".java");
+		Files.createDirectories(file.getParent());
+		Files.write(file, ("package test;\n\n" + body + "\n").getBytes(StandardCharsets.UTF_8));
+	}
+
+	@Bean(name = "annotated", parent = Kernel.class, active = true)
+	public static class AnnotatedBean {
+
+	}
+
+	public static class InheritingBean
+			extends AnnotatedBean {
+
+	}
+}
@@ -0,0 +1,105 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.util.workqueue;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class PriorityQueueLockFreeTest {
+
+	@Test
+	public void testPriorityOrder() throws InterruptedException {
+		PriorityQueueLockFree<String> queue = new PriorityQueueLockFree<>(3, 10);
+
+		assertTrue(queue.offer("low", 2));
+		assertTrue(queue.offer("normal", 1));
+		assertTrue(queue.offer("high", 0));
+		assertEquals(3, queue.totalSize());
+
+		assertEquals("high", queue.take());
+		assertEquals("normal", queue.take());
+		assertEquals("low", queue.take());
+		assertEquals(0, queue.totalSize());
+	}
+
+	@Test
+	public void testOverflowToLowerPriority() throws InterruptedException {
+		PriorityQueueLockFree<String> queue = new PriorityQueueLockFree<>(2, 1);
+
+		assertTrue(queue.offer("a", 0));
+		assertTrue(queue.offer("b", 0));
+		assertFalse(queue.offer("c", 0));
+		assertArrayEquals(new int[]{1, 1}, queue.size());
+
+		queue.setMaxSize(2);
+		assertTrue(queue.offer("c", 0));
+		assertEquals("a", queue.take());
+		assertEquals("c", queue.take());
+		assertEquals("b", queue.take());
+	}
+
+	@Test
+	public void testMultipleProducers() throws InterruptedException {
+		final int producers = 4;
+		final int items = 10000;
+		final PriorityQueueLockFree<Integer> queue = new PriorityQueueLockFree<>(3, producers * items);
+		final CountDownLatch start = new CountDownLatch(1);
+
+		for (int p = 0; p < producers; p++) {
+			final int priority = p % 3;
+			Thread thread = new Thread(() -> {
+				try {
+					start.await();
+					for (int i = 0; i < items; i++) {
+						queue.put(i, priority);
+					}
+				} catch (InterruptedException ex) {
+					fail(ex.getMessage());
+				}
+			});
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		start.countDown();
+		for (int i = 0; i < producers * items; i++) {
+			assertNotNull(queue.take());
+		}
+		assertEquals(0, queue.totalSize());
+	}
+
+	@Test(expected = InterruptedException.class)
+	public void testTakeInterrupted() throws InterruptedException {
+		PriorityQueueLockFree<String> queue = new PriorityQueueLockFree<>(1, 10);
+		Thread current = Thread.currentThread();
+		Thread interrupter = new Thread(() -> {
+			try {
+				TimeUnit.MILLISECONDS.sleep(100);
+			} catch (InterruptedException ex) {
+			}
+			current.interrupt();
+		});
+		interrupter.start();
+		queue.take();
+	}
+
+}
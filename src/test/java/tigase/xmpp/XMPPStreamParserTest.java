@@ -0,0 +1,113 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.xmpp;
+
+import org.junit.Test;
+import tigase.xml.Element;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class XMPPStreamParserTest {
+
+	private static final String STREAM =
+			"<?xml version='1.0'?><stream:stream xmlns='jabber:client' xmlns:stream='http://etherx.jabber.org/streams' " +
+					"to=\"example.com\" version='1.0'> " +
+					"<message to='zażółć@example.com' type=\"chat\" id='1'><body>gęślą jaźń &amp; 😀 &#x41;</body>" +
+					"<!-- comment --><x xmlns='jabber:x:data'/></message>\n" +
+					"<iq type = 'get' id='2'><query xmlns='jabber:iq:roster'/></iq>" +
+					"<message id='3'><body><![CDATA[<b>&]]></body></message>";
+
+	@Test
+	public void testParseSplitData() {
+		List<Element> expected = parse(STREAM, Integer.MAX_VALUE);
+		assertEquals(3, expected.size());
+
+		Element message = expected.get(0);
+		assertEquals("message", message.getName());
+		assertEquals("zażółć@example.com", message.getAttributeStaticStr("to"));
+		assertEquals("gęślą jaźń &amp; 😀 &#x41;", message.getChild("body").getCData());
+		assertEquals("jabber:x:data", message.getChild("x").getXMLNS());
+		assertEquals("jabber:iq:roster", expected.get(1).getChild("query").getXMLNS());
+		assertEquals("&lt;b&gt;&amp;", expected.get(2).getChild("body").getCData());
+
+		// data may be split at any byte, including in the middle of a multi-byte character
+		for (int chunk = 1; chunk < 16; chunk++) {
+			List<Element> result = parse(STREAM, chunk);
+			assertEquals(expected.size(), result.size());
+			for (int i = 0; i < expected.size(); i++) {
+				assertEquals(expected.get(i).toString(), result.get(i).toString());
+			}
+		}
+	}
+
+	@Test
+	public void testInvalidData() {
+		assertTrue(parseError("<stream:stream><message><body>&nbsp;</body></message>"));
+		assertTrue(parseError("<stream:stream><message><body>&amp</body></message>"));
+		assertTrue(parseError("<stream:stream><message to='<'/>"));
+		assertTrue(parseError("<stream:stream><message to=a/>"));
+		assertTrue(parseError("<stream:stream><message></iq>"));
+		assertTrue(parseError("<!DOCTYPE stream><stream:stream>"));
+		assertFalse(parseError("<stream:stream><message to='a'><body>&lt;&#60;</body></message>"));
+
+		XMPPDomBuilderHandler<Object> handler = new XMPPDomBuilderHandler<>(new TestXMPPIOService());
+		handler.setElementsLimit(100);
+		new XMPPStreamParser(handler).parse(
+				ByteBuffer.wrap(new byte[]{'<', 'a', '>', (byte) 0xC0, (byte) 0x80, '<', '/', 'a', '>'}));
+		assertTrue("overlong encoding", handler.parseError());
+
+		handler = new XMPPDomBuilderHandler<>(new TestXMPPIOService());
+		handler.setElementsLimit(100);
+		new XMPPStreamParser(handler).parse(ByteBuffer.wrap(new byte[]{'<', 'a', '>', (byte) 0xC4, '<', '/', 'a', '>'}));
+		assertTrue("incomplete character", handler.parseError());
+	}
+
+	private List<Element> parse(String data, int chunk) {
+		XMPPDomBuilderHandler<Object> handler = new XMPPDomBuilderHandler<>(new TestXMPPIOService());
+		handler.setElementsLimit(100);
+		XMPPStreamParser parser = new XMPPStreamParser(handler);
+
+		byte[] bytes = data.getBytes(StandardCharsets.UTF_8);
+		for (int i = 0; i < bytes.length; i += chunk) {
+			parser.parse(ByteBuffer.wrap(bytes, i, Math.min(chunk, bytes.length - i)));
+		}
+		assertFalse(handler.parseError());
+		return new ArrayList<>(handler.getParsedElements());
+	}
+
+	private boolean parseError(String data) {
+		XMPPDomBuilderHandler<Object> handler = new XMPPDomBuilderHandler<>(new TestXMPPIOService());
+		handler.setElementsLimit(100);
+		new XMPPStreamParser(handler).parse(ByteBuffer.wrap(data.getBytes(StandardCharsets.UTF_8)));
+		return handler.parseError();
+	}
+
+	private static class TestXMPPIOService
+			extends XMPPIOService<Object> {
+
+		@Override
+		protected void xmppStreamOpened(Map<String, String> attribs) {
+		}
+	}
+}
@@ -0,0 +1,92 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.xmpp.impl.roster;
+
+import org.junit.After;
+import org.junit.Test;
+import tigase.xmpp.XMPPResourceConnection;
+import tigase.xmpp.impl.ProcessorTestCase;
+import tigase.xmpp.impl.roster.RosterAbstract.SubscriptionType;
+import tigase.xmpp.jid.JID;
+
+import static org.junit.Assert.*;
+
+public class RosterFlatIncrementalTest
+		extends ProcessorTestCase {
+
+	private final JID buddy1 = JID.jidInstanceNS("buddy-1@example.com");
+	private final JID buddy2 = JID.jidInstanceNS("buddy-2@example.com");
+	private final RosterFlatIncremental roster = new RosterFlatIncremental();
+
+	@After
+	public void resetThreshold() {
+		RosterFlatIncremental.setCompactionThreshold(RosterFlatIncremental.ROSTER_COMPACTION_THRESHOLD_DEF);
+	}
+
+	@Test
+	public void testChangesStoredAndLoaded() throws Exception {
+		XMPPResourceConnection session = getSession(JID.jidInstanceNS("c2s@example.com/test-1"),
+													JID.jidInstanceNS("user-1@example.com/res-1"));
+
+		roster.addBuddy(session, buddy1, "Buddy 1", new String[]{"Friends"}, SubscriptionType.both, null);
+		roster.addBuddy(session, buddy2, "Buddy 2", null, SubscriptionType.to, null);
+		roster.setBuddyName(session, buddy1, "Renamed");
+		roster.removeBuddy(session, buddy2);
+
+		// whole roster is not written, only changes of items
+		assertNull(session.getData(null, RosterAbstract.ROSTER, null));
+		assertEquals(2, session.getDataMap(RosterFlatIncremental.ROSTER_CHANGES).size());
+
+		reload(session);
+		assertEquals("Renamed", roster.getBuddyName(session, buddy1));
+		assertArrayEquals(new String[]{"Friends"}, roster.getBuddyGroups(session, buddy1));
+		assertEquals(SubscriptionType.both, roster.getBuddySubscription(session, buddy1));
+		assertNull(roster.getRosterElement(session, buddy2));
+	}
+
+	@Test
+	public void testCompaction() throws Exception {
+		RosterFlatIncremental.setCompactionThreshold(2);
+		XMPPResourceConnection session = getSession(JID.jidInstanceNS("c2s@example.com/test-2"),
+													JID.jidInstanceNS("user-2@example.com/res-1"));
+
+		roster.addBuddy(session, buddy1, "Buddy 1", null, SubscriptionType.both, null);
+		roster.addBuddy(session, buddy2, "Buddy 2", null, SubscriptionType.both, null);
+		assertNull(session.getData(null, RosterAbstract.ROSTER, null));
+
+		roster.setBuddySubscription(session, SubscriptionType.from, buddy2);
+		assertNotNull(session.getData(null, RosterAbstract.ROSTER, null));
+		assertTrue(session.getDataMap(RosterFlatIncremental.ROSTER_CHANGES).isEmpty());
+
+		roster.removeBuddy(session, buddy1);
+		assertEquals(1, session.getDataMap(RosterFlatIncremental.ROSTER_CHANGES).size());
+
+		reload(session);
+		assertNull(roster.getRosterElement(session, buddy1));
+		assertEquals(SubscriptionType.from, roster.getBuddySubscription(session, buddy2));
+
+		// RosterFlat ignores stored changes
+		RosterFlat flat = new RosterFlat();
+		session.removeCommonSessionData(RosterAbstract.ROSTER);
+		assertNotNull(flat.getRosterElement(session, buddy1));
+	}
+
+	private void reload(XMPPResourceConnection session) {
+		session.removeCommonSessionData(RosterAbstract.ROSTER);
+	}
+}